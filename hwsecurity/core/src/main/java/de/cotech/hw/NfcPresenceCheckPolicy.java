@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw;
+
+
+import com.google.auto.value.AutoValue;
+
+
+/**
+ * Controls how often persistent NFC connections are checked for presence of the Security Key.
+ * <p>
+ * Any successful command counts as a presence check, so while a Security Key is in use no additional
+ * commands are sent. Once it is idle, the interval between presence checks starts at
+ * {@link #getInitialIntervalMs()} and is multiplied by {@link #getBackoffMultiplier()} after each successful
+ * check, up to {@link #getMaxIntervalMs()}. Longer intervals save radio power, at the cost of noticing
+ * removal of an idle Security Key later.
+ *
+ * @see SecurityKeyManagerConfig.Builder#setNfcPresenceCheckPolicy(NfcPresenceCheckPolicy)
+ */
+@AutoValue
+public abstract class NfcPresenceCheckPolicy {
+    private static final long DEFAULT_INITIAL_INTERVAL_MS = 750;
+    private static final long DEFAULT_MAX_INTERVAL_MS = 6000;
+    private static final int DEFAULT_BACKOFF_MULTIPLIER = 2;
+
+    public abstract long getInitialIntervalMs();
+
+    public abstract long getMaxIntervalMs();
+
+    public abstract int getBackoffMultiplier();
+
+    public static NfcPresenceCheckPolicy create(long initialIntervalMs, long maxIntervalMs, int backoffMultiplier) {
+        if (initialIntervalMs <= 0 || maxIntervalMs < initialIntervalMs || backoffMultiplier < 1) {
+            throw new IllegalArgumentException("Invalid NFC presence check policy");
+        }
+        return new AutoValue_NfcPresenceCheckPolicy(initialIntervalMs, maxIntervalMs, backoffMultiplier);
+    }
+
+    /**
+     * Returns a policy that checks presence at a fixed interval, without backing off.
+     */
+    public static NfcPresenceCheckPolicy createFixedInterval(long intervalMs) {
+        return create(intervalMs, intervalMs, 1);
+    }
+
+    public static NfcPresenceCheckPolicy getDefault() {
+        return create(DEFAULT_INITIAL_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS, DEFAULT_BACKOFF_MULTIPLIER);
+    }
+
+    /**
+     * Returns the interval to wait after a successful presence check that was made after the given interval.
+     */
+    public long getNextIntervalMs(long currentIntervalMs) {
+        if (currentIntervalMs >= getMaxIntervalMs() / getBackoffMultiplier()) {
+            return getMaxIntervalMs();
+        }
+        return Math.max(getInitialIntervalMs(), currentIntervalMs * getBackoffMultiplier());
+    }
+}
@@ -30,7 +30,7 @@ import java.io.IOException;
 import androidx.annotation.AnyThread;
 import androidx.annotation.WorkerThread;
 
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 
 
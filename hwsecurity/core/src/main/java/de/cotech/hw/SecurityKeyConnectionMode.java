@@ -33,6 +33,15 @@ import de.cotech.hw.internal.transport.Transport;
 
 
 public abstract class SecurityKeyConnectionMode<T extends SecurityKey> {
+    /**
+     * Connects to the applet of this mode on a newly discovered transport.
+     * <p>
+     * The {@link SecurityKeyManager} discovers different transports concurrently, so this method may be called
+     * from several dispatch threads at once, though never twice at once for the same transport. Implementations
+     * must not keep per-connection state in fields, and static caches they use must be thread-safe.
+     *
+     * @return the connected security key, or null if this transport doesn't provide the applet
+     */
     @WorkerThread
     public abstract T establishSecurityKeyConnection(SecurityKeyManagerConfig config, Transport transport) throws IOException;
     @AnyThread
@@ -42,4 +51,10 @@ public abstract class SecurityKeyConnectionMode<T extends SecurityKey> {
 
     @AnyThread
     protected void clearSentryTags() { }
+
+    /**
+     * Clears secrets this connection mode keeps beyond a single connection, such as derived PINs.
+     */
+    @AnyThread
+    protected void clearCachedSecrets() { }
 }
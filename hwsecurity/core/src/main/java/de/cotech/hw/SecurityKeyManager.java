@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Activity;
@@ -38,7 +39,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 
 import androidx.annotation.AnyThread;
@@ -55,7 +55,9 @@ import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.OnLifecycleEvent;
 import de.cotech.hw.internal.HwSentry;
 import de.cotech.hw.internal.dispatch.UsbIntentDispatchActivity;
+import de.cotech.hw.internal.transport.ConnectionProbeCache;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportDispatcher;
 import de.cotech.hw.internal.transport.nfc.NfcConnectionDispatcher;
 import de.cotech.hw.internal.transport.nfc.NfcTagManager;
 import de.cotech.hw.internal.transport.nfc.NfcTransport;
@@ -105,7 +107,8 @@ import de.cotech.hw.util.HwTimber.DebugTree;
  * can do so using {@link de.cotech.hw.raw.RawSecurityKeyConnectionMode}.
  */
 public class SecurityKeyManager {
-    private ArrayList<RegisteredConnectionMode<?>> registeredCallbacks = new ArrayList<>();
+    // accessed from dispatcher threads, which deliver transports concurrently
+    private List<RegisteredConnectionMode<?>> registeredCallbacks = new CopyOnWriteArrayList<>();
 
     private static SecurityKeyManager INSTANCE;
 
@@ -114,9 +117,9 @@ public class SecurityKeyManager {
     private UsbDeviceManager usbDeviceManager;
     private NfcTagManager nfcTagManager;
     private Handler callbackHandlerMain;
-    private Handler callbackHandlerWorker;
+    private TransportDispatcher transportDispatcher;
 
-    private List<SecurityKey> persistentSecurityKeys = new ArrayList<>(8);
+    private List<SecurityKey> persistentSecurityKeys = new CopyOnWriteArrayList<>();
     private AtomicBoolean callbackDedup = new AtomicBoolean(false);
 
     /**
@@ -199,17 +202,16 @@ public class SecurityKeyManager {
             });
         }
 
-        HandlerThread handlerThread = new HandlerThread("security-key-dispatcher");
-        handlerThread.start();
-        this.callbackHandlerWorker = new Handler(handlerThread.getLooper());
+        this.transportDispatcher = TransportDispatcher.createInstance();
         this.callbackHandlerMain = new Handler(); // we make sure this is the main thread above
 
         usbDeviceManager = UsbDeviceManager.createInstance(application,
                 this::transportConnectAndDeliverOrPostponeOrFail,
-                callbackHandlerWorker, config.isAllowUntestedUsbDevices(), config.isEnableDebugLogging());
+                transportDispatcher, config.isAllowUntestedUsbDevices(), config.isEnableDebugLogging());
         nfcTagManager = NfcTagManager.createInstance(
                 this::transportConnectAndDeliverOrPostponeOrFail,
-                callbackHandlerWorker, config.isEnableDebugLogging(), config.isEnablePersistentNfcConnection());
+                transportDispatcher, config.isEnableDebugLogging(), config.isEnablePersistentNfcConnection(),
+                config.getNfcPresenceCheckPolicy());
         application.registerActivityLifecycleCallbacks(activityLifecycleCallbacks);
 
         installCotechProviderIfAvailable();
@@ -508,10 +510,17 @@ public class SecurityKeyManager {
      * useful to clear managed state in order to rediscover a connected Security Key with a different
      * SecurityKeyConnectionMode.
      *
+     * Secrets that registered connection modes keep beyond a single connection, such as PINs derived
+     * for OpenPGP security keys, are cleared as well.
+     *
      * This method is not part of the public API.
      */
     @AnyThread
     public void clearConnectedSecurityKeys() {
+        ConnectionProbeCache.getInstance().clear();
+        for (RegisteredConnectionMode<?> mode : registeredCallbacks) {
+            mode.connectionMode.clearCachedSecrets();
+        }
         nfcTagManager.clearManagedNfcTags();
         usbDeviceManager.clearManagedUsbDevices();
     }
@@ -539,13 +548,17 @@ public class SecurityKeyManager {
         return NfcConnectionDispatcher.isNfcHardwareAvailable(application.getApplicationContext());
     }
 
+    /**
+     * Lifecycle events change the state of a registered mode on the UI thread, while dispatch threads read it
+     * concurrently to deliver transports, so it is volatile.
+     */
     private class RegisteredConnectionMode<T extends SecurityKey> implements LifecycleObserver {
         final SecurityKeyConnectionMode<T> connectionMode;
         final SecurityKeyCallback<T> callback;
-        boolean isActive;
-        boolean isBoundForever;
+        final boolean isBoundForever;
+        volatile boolean isActive;
         @Nullable
-        Transport postponedTransport;
+        volatile Transport postponedTransport;
 
         RegisteredConnectionMode(SecurityKeyConnectionMode<T> connectionMode, SecurityKeyCallback<T> callback,
                 boolean isActive) {
@@ -596,7 +609,7 @@ public class SecurityKeyManager {
             }
 
             HwTimber.d("Delivering postponed transport");
-            callbackHandlerWorker.post(() ->
+            transportDispatcher.post(deliveredTransport, () ->
                     attemptConnectWithRegisteredSecurityMode(deliveredTransport));
         }
 
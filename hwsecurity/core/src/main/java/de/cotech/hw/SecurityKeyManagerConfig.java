@@ -60,6 +60,8 @@ public abstract class SecurityKeyManagerConfig {
 
     public abstract boolean isEnablePersistentNfcConnection();
 
+    public abstract NfcPresenceCheckPolicy getNfcPresenceCheckPolicy();
+
     public abstract boolean isIgnoreNfcTagAfterUse();
 
     public abstract boolean isDisableWhileInactive();
@@ -85,6 +87,7 @@ public abstract class SecurityKeyManagerConfig {
         private boolean isSentryCaptureExceptionOnInternalError = false;
         private HwTimber.Tree loggingTree = null;
         private boolean isEnablePersistentNfcConnection = false;
+        private NfcPresenceCheckPolicy nfcPresenceCheckPolicy = NfcPresenceCheckPolicy.getDefault();
         private boolean isIgnoreNfcTagAfterUse = false;
         private boolean isDisableWhileInactive = false;
         private boolean isDisableNfcDiscoverySound = false;
@@ -203,6 +206,22 @@ public abstract class SecurityKeyManagerConfig {
             return this;
         }
 
+        /**
+         * This setting controls how often persistent NFC connections are checked for presence of the
+         * Security Key while it is idle.
+         * <p>
+         * This setting has no effect unless setEnablePersistentNfcConnection is set to true.
+         *
+         * @see NfcPresenceCheckPolicy
+         */
+        public Builder setNfcPresenceCheckPolicy(NfcPresenceCheckPolicy nfcPresenceCheckPolicy) {
+            if (nfcPresenceCheckPolicy == null) {
+                throw new NullPointerException("nfcPresenceCheckPolicy must not be null");
+            }
+            this.nfcPresenceCheckPolicy = nfcPresenceCheckPolicy;
+            return this;
+        }
+
         /**
          * This setting debounces the NFC tag for 1500 ms after it has been used.
          * <p>
@@ -282,6 +301,7 @@ public abstract class SecurityKeyManagerConfig {
                     isSentryCaptureExceptionOnInternalError,
                     loggingTree,
                     isEnablePersistentNfcConnection,
+                    nfcPresenceCheckPolicy,
                     isIgnoreNfcTagAfterUse,
                     isDisableWhileInactive,
                     isDisableNfcDiscoverySound,
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import de.cotech.hw.internal.transport.AppletCapabilities;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Sends commands to an applet following ISO/IEC 7816-4, shared by the applet connections.
+ * <p>
+ * Each command is sent as a single short or extended length APDU, or split using command chaining, depending on
+ * what the device accepts. Responses are completed with GET RESPONSE (ISO/IEC 7816-4 par.7.6.1), and resent with
+ * the correct Ne if the device asks for it with SW1 0x6C.
+ * <p>
+ * Which encodings the applet accepts is learned from its responses and remembered per device and applet in
+ * {@link TransportCapabilitiesCache}, so every command after the first exchange is sent in the working form right
+ * away. This includes whether extended length APDUs are accepted, whether command chaining is supported and with
+ * how much data per command, and whether GET RESPONSE may ask for an extended length response. The applet is
+ * identified by the AID of the last successful SELECT by DF name.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class Iso7816Communicator {
+    public static final int SW_WRONG_LENGTH = 0x6700;
+    public static final int SW_COMMAND_CHAINING_NOT_SUPPORTED = 0x6884;
+
+    private static final int SW1_RESPONSE_AVAILABLE = 0x61;
+    private static final int SW1_INCORRECT_LENGTH = 0x6C;
+
+    private static final int CLA_GET_RESPONSE = 0x00;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_SELECT = 0xA4;
+    private static final int P1_SELECT_BY_DF_NAME = 0x04;
+    private static final int MASK_CLA_CHAINING = 1 << 4;
+
+    /**
+     * Chaining limits tried after the device rejected the first command of a chain with wrong length.
+     * Some OpenPGP cards accept only 254 bytes per command, others limit commands to a 128 byte block.
+     */
+    private static final int[] FALLBACK_CHAINING_LIMITS = { 254, 128 };
+
+    private final Transport transport;
+    private final TransportCapabilitiesCache capabilitiesCache;
+    private final int maxShortCommandDataLength;
+
+    private boolean preferExtendedLength;
+    private Boolean extendedLengthHint;
+    private boolean chainingHint = true;
+    private boolean requestMaxResponseLength;
+    private byte[] selectedAid;
+
+    /**
+     * @param maxShortCommandDataLength the largest data field sent in a single short APDU, and per command when
+     *                                  chaining. This is usually {@link CommandApdu#MAX_APDU_NC_SHORT}.
+     */
+    public static Iso7816Communicator create(Transport transport, int maxShortCommandDataLength) {
+        return new Iso7816Communicator(transport, TransportCapabilitiesCache.getInstance(), maxShortCommandDataLength);
+    }
+
+    @VisibleForTesting
+    Iso7816Communicator(Transport transport, TransportCapabilitiesCache capabilitiesCache,
+            int maxShortCommandDataLength) {
+        this.transport = transport;
+        this.capabilitiesCache = capabilitiesCache;
+        this.maxShortCommandDataLength = maxShortCommandDataLength;
+    }
+
+    /**
+     * Sends every command as extended length APDU while the device accepts those, even if it would fit into a
+     * short APDU. CTAP2 requires this to receive responses without response chaining.
+     */
+    public void setPreferExtendedLength(boolean preferExtendedLength) {
+        this.preferExtendedLength = preferExtendedLength;
+    }
+
+    /**
+     * Sets whether the applet announced support for extended length APDUs, e.g. in its historical bytes. If it
+     * did, extended length APDUs are tried until the applet rejected one. If it did not, none are sent. Without a
+     * hint, extended length APDUs are sent only once the applet is known to accept them, e.g. from a previous
+     * connection.
+     */
+    public void setExtendedLengthHint(boolean extendedLengthHint) {
+        this.extendedLengthHint = extendedLengthHint;
+    }
+
+    /**
+     * Sets whether the applet announced support for command chaining, e.g. in its historical bytes.
+     */
+    public void setChainingHint(boolean chainingHint) {
+        this.chainingHint = chainingHint;
+    }
+
+    /**
+     * Requests the maximum response length of the chosen encoding for commands without an Ne. Javacards tend to
+     * return data even if Ne is absent, but other applets don't.
+     */
+    public void setRequestMaxResponseLength(boolean requestMaxResponseLength) {
+        this.requestMaxResponseLength = requestMaxResponseLength;
+    }
+
+    /**
+     * Transceives a command, splitting it into chained short APDUs and performing GET RESPONSE if necessary.
+     *
+     * @param commandApdu short or extended APDU to transceive
+     * @return response from the card
+     */
+    @WorkerThread
+    @NonNull
+    public ResponseApdu communicate(CommandApdu commandApdu) throws IOException {
+        ResponseApdu lastResponse = transceiveWithChaining(commandApdu);
+        if (lastResponse.getSw1() == SW1_INCORRECT_LENGTH && lastResponse.getSw2() != 0) {
+            commandApdu = commandApdu.withNe(lastResponse.getSw2());
+            lastResponse = transceiveWithChaining(commandApdu);
+        }
+        ResponseApdu response = readChainedResponseIfAvailable(lastResponse, commandApdu.getDescriber());
+        if (response.isSuccess() && commandApdu.getINS() == INS_SELECT
+                && commandApdu.getP1() == P1_SELECT_BY_DF_NAME) {
+            selectedAid = commandApdu.getData();
+        }
+        return response;
+    }
+
+    @NonNull
+    private ResponseApdu transceiveWithChaining(CommandApdu commandApdu) throws IOException {
+        TransportCapabilities capabilities = transport.getTransportCapabilities();
+        AppletCapabilities appletCapabilities = capabilitiesCache.getAppletCapabilities(transport, selectedAid);
+        boolean tryExtendedLength = isExtendedLengthAllowed(appletCapabilities);
+        boolean fitsShortApdu = commandApdu.getNc() <= maxShortCommandDataLength;
+
+        boolean extendedLengthRejected = false;
+        if (tryExtendedLength && (preferExtendedLength || !fitsShortApdu ||
+                commandApdu.getNe() > CommandApdu.MAX_APDU_NE_SHORT)) {
+            int maxExtendedDataLength = capabilities.isExtendedLengthSupported() ?
+                    capabilities.getMaxCommandDataLength() : CommandApdu.MAX_APDU_NC_EXTENDED;
+            if (commandApdu.getNc() <= maxExtendedDataLength) {
+                ResponseApdu response = transceiveExtended(commandApdu, appletCapabilities);
+                if (response != null) {
+                    return response;
+                }
+                extendedLengthRejected = true;
+            }
+        }
+
+        ResponseApdu response = fitsShortApdu ?
+                transport.transceive(toShortApdu(commandApdu)) : transceiveChained(commandApdu);
+        // WRONG_LENGTH may as well be about the command itself, so it only counts if the applet accepted the
+        // same command without extended length
+        if (extendedLengthRejected && (response.isSuccess() || response.getSw1() == SW1_RESPONSE_AVAILABLE)) {
+            capabilitiesCache.learnExtendedLengthSupport(transport, selectedAid, false);
+        }
+        return response;
+    }
+
+    private boolean isExtendedLengthAllowed(AppletCapabilities appletCapabilities) {
+        if (Boolean.FALSE.equals(extendedLengthHint)) {
+            return false;
+        }
+        Boolean extendedLengthSupported = appletCapabilities.getExtendedLengthSupported();
+        if (extendedLengthSupported != null) {
+            return extendedLengthSupported;
+        }
+        return Boolean.TRUE.equals(extendedLengthHint);
+    }
+
+    /**
+     * Sends the command as extended length APDU and learns from the response whether the applet accepts those. A
+     * rejection is only remembered by the caller, once the command was accepted without extended length.
+     *
+     * @return the response, or null if the applet rejected the encoding and the command must be resent
+     */
+    private ResponseApdu transceiveExtended(CommandApdu commandApdu, AppletCapabilities appletCapabilities)
+            throws IOException {
+        CommandApdu extendedCommandApdu = requestMaxResponseLength ? commandApdu.withExtendedApduNe() : commandApdu;
+        ResponseApdu response = transport.transceive(extendedCommandApdu);
+        // once verified for this applet, WRONG_LENGTH is about the command, e.g. a PIN that is too short
+        if (appletCapabilities.getExtendedLengthSupported() != null || !extendedCommandApdu.isExtendedLength()) {
+            return response;
+        }
+
+        if (response.getSw() == SW_WRONG_LENGTH) {
+            HwTimber.d("Received WRONG_LENGTH error for extended length APDU. Retrying with short APDUs.");
+            return null;
+        }
+        capabilitiesCache.learnExtendedLengthSupport(transport, selectedAid, true);
+        return response;
+    }
+
+    private CommandApdu toShortApdu(CommandApdu commandApdu) {
+        int ne = commandApdu.getNe();
+        if (ne == CommandApdu.DEFAULT_APDU_NE_ZERO) {
+            return requestMaxResponseLength ? commandApdu.withShortApduNe() : commandApdu;
+        }
+        return commandApdu.withNe(Math.min(ne, CommandApdu.MAX_APDU_NE_SHORT));
+    }
+
+    @NonNull
+    private ResponseApdu transceiveChained(CommandApdu commandApdu) throws IOException {
+        TransportCapabilities capabilities = transport.getTransportCapabilities();
+        AppletCapabilities appletCapabilities = capabilitiesCache.getAppletCapabilities(transport, selectedAid);
+        if (!chainingHint || !capabilities.isChainingSupported() || !appletCapabilities.isChainingSupported()) {
+            throw new IOException("Command too long, and chaining unavailable");
+        }
+
+        int maxChunkLength = maxShortCommandDataLength;
+        int learnedChunkLength = appletCapabilities.getMaxChainedCommandDataLength();
+        if (learnedChunkLength > 0) {
+            maxChunkLength = Math.min(maxChunkLength, learnedChunkLength);
+        }
+
+        while (true) {
+            ResponseApdu response = transceiveChained(commandApdu, maxChunkLength);
+            if (response != null) {
+                return response;
+            }
+            maxChunkLength = getFallbackChainingLimit(maxChunkLength);
+            capabilitiesCache.learnMaxChainedCommandDataLength(transport, selectedAid, maxChunkLength);
+        }
+    }
+
+    /**
+     * @return the response to the last command of the chain, or null if the device rejected the length of the
+     * first command and the chain should be resent with a lower limit
+     */
+    private ResponseApdu transceiveChained(CommandApdu commandApdu, int maxChunkLength) throws IOException {
+        byte[] data = commandApdu.getDataBuffer();
+        int dataOffset = commandApdu.getDataOffset();
+        int nc = commandApdu.getNc();
+        int totalCommands = (nc + maxChunkLength - 1) / maxChunkLength;
+
+        for (int i = 0, offset = 0; offset < nc; i++, offset += maxChunkLength) {
+            int chunkLength = Math.min(maxChunkLength, nc - offset);
+            boolean isLastCommand = offset + chunkLength >= nc;
+
+            CommandApdu chainedApdu;
+            if (isLastCommand) {
+                chainedApdu = CommandApdu.wrap(commandApdu.getCLA(), commandApdu.getINS(), commandApdu.getP1(),
+                        commandApdu.getP2(), data, dataOffset + offset, chunkLength,
+                        Math.min(commandApdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT), commandApdu.getDescriber());
+            } else {
+                chainedApdu = CommandApdu.wrap(commandApdu.getCLA() | MASK_CLA_CHAINING, commandApdu.getINS(),
+                        commandApdu.getP1(), commandApdu.getP2(), data, dataOffset + offset, chunkLength,
+                        CommandApdu.DEFAULT_APDU_NE_ZERO, commandApdu.getDescriber());
+            }
+            ResponseApdu response = transport.transceive(chainedApdu);
+
+            if (i == 0 && !isLastCommand) {
+                if (response.getSw() == SW_COMMAND_CHAINING_NOT_SUPPORTED) {
+                    capabilitiesCache.learnChainingUnsupported(transport, selectedAid);
+                    throw new IOException("Command too long, and chaining unavailable");
+                }
+                if (response.getSw() == SW_WRONG_LENGTH && getFallbackChainingLimit(maxChunkLength) > 0) {
+                    HwTimber.d("Received WRONG_LENGTH error for chained APDU of %d bytes", chunkLength);
+                    return null;
+                }
+            }
+
+            if (isLastCommand) {
+                return response;
+            }
+            if (!response.isSuccess()) {
+                throw new IOException("Failed to chain APDU " +
+                        "(" + i + "/" + (totalCommands - 1) + ", last SW: " + Integer.toHexString(response.getSw()) + ")");
+            }
+        }
+
+        throw new IllegalStateException();
+    }
+
+    private static int getFallbackChainingLimit(int maxChunkLength) {
+        for (int fallbackLimit : FALLBACK_CHAINING_LIMITS) {
+            if (fallbackLimit < maxChunkLength) {
+                return fallbackLimit;
+            }
+        }
+        return 0;
+    }
+
+    @NonNull
+    private ResponseApdu readChainedResponseIfAvailable(ResponseApdu lastResponse, CommandApduDescriber describer)
+            throws IOException {
+        if (lastResponse.getSw1() != SW1_RESPONSE_AVAILABLE) {
+            return lastResponse;
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(lastResponse.getData());
+
+        do {
+            lastResponse = transceiveGetResponse(lastResponse.getSw2(), describer);
+            result.write(lastResponse.getData());
+        } while (lastResponse.getSw1() == SW1_RESPONSE_AVAILABLE);
+
+        result.write(lastResponse.getSw1());
+        result.write(lastResponse.getSw2());
+
+        return ResponseApdu.fromBytes(result.toByteArray());
+    }
+
+    /**
+     * GET RESPONSE ISO/IEC 7816-4 par.7.6.1
+     * <p>
+     * SW2 of 0x00 means that 256 or more bytes are available. If the applet accepts extended length, all of them
+     * are requested at once instead of in blocks of 256 bytes.
+     */
+    private ResponseApdu transceiveGetResponse(int lastResponseSw2, CommandApduDescriber describer)
+            throws IOException {
+        AppletCapabilities appletCapabilities = capabilitiesCache.getAppletCapabilities(transport, selectedAid);
+        Boolean extendedGetResponseSupported = appletCapabilities.getExtendedGetResponseSupported();
+        boolean tryExtendedGetResponse = lastResponseSw2 == 0x00 &&
+                Boolean.TRUE.equals(appletCapabilities.getExtendedLengthSupported()) &&
+                !Boolean.FALSE.equals(extendedGetResponseSupported);
+
+        if (tryExtendedGetResponse) {
+            CommandApdu getResponse = CommandApdu.create(CLA_GET_RESPONSE, INS_GET_RESPONSE, 0x00, 0x00,
+                    CommandApdu.MAX_APDU_NE_EXTENDED).withDescriber(describer);
+            ResponseApdu response = transport.transceive(getResponse);
+            if (response.getSw() != SW_WRONG_LENGTH) {
+                if (extendedGetResponseSupported == null) {
+                    capabilitiesCache.learnExtendedGetResponseSupport(transport, selectedAid, true);
+                }
+                return response;
+            }
+            capabilitiesCache.learnExtendedGetResponseSupport(transport, selectedAid, false);
+        }
+
+        CommandApdu getResponse = CommandApdu.create(CLA_GET_RESPONSE, INS_GET_RESPONSE, 0x00, 0x00,
+                lastResponseSw2 == 0x00 ? CommandApdu.MAX_APDU_NE_SHORT : lastResponseSw2).withDescriber(describer);
+        return transport.transceive(getResponse);
+    }
+}
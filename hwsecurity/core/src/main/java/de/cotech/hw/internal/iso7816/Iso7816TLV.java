@@ -45,6 +45,9 @@ import de.cotech.hw.util.Arrays;
  * They include at least the T, L and V fields they were originally parsed
  * from, subclasses may also carry more specific information.
  *
+ * Parsing copies every value and, if recursive, builds the complete tree. To
+ * look up a few values only, use {@link Iso7816TlvCursor} or {@link Iso7816TlvIndex}.
+ *
  * @see { @linktourl http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_annex-d.aspx}
  *
  */
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.io.IOException;
+
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+import de.cotech.hw.util.Arrays;
+
+
+/**
+ * A forward-only reader for BER-TLV data as used by ISO/IEC 7816-4, which walks an existing buffer by offsets.
+ * <p>
+ * Unlike {@link Iso7816TLV}, nothing is copied or parsed ahead of time: {@link #next()} only decodes the tag and
+ * length of the current element, {@link #children()} returns a cursor over the value of a constructed element,
+ * and values are copied only when requested via {@link #getValue()}.
+ * <p>
+ * Tags are returned as their raw encoded bytes in big endian order, e.g. 0x7F49 for the OpenPGP public key
+ * template, which matches the tag numbers used by {@link Iso7816TLV}. Tags of up to four bytes and lengths of
+ * up to four bytes (0x84) are supported.
+ * <p>
+ * Every byte is parsed as part of an element unless {@link #skipFillerBytes()} is called, which is opt-in so that
+ * data without filler is read strictly.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public final class Iso7816TlvCursor {
+    private static final int MASK_CONSTRUCTED = 0x20;
+    private static final int MASK_TAG_NUMBER = 0x1f;
+    private static final int MASK_TAG_MORE_BYTES = 0x80;
+    private static final int MAX_TAG_BYTES = 4;
+
+    private final byte[] buffer;
+    private final int end;
+    private int position;
+    private boolean skipFillerBytes;
+
+    private int tag;
+    private int headerOffset = -1;
+    private int valueOffset;
+    private int valueLength;
+
+    private Iso7816TlvCursor(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException("TLV data out of bounds");
+        }
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public static Iso7816TlvCursor wrap(byte[] data) {
+        return new Iso7816TlvCursor(data, 0, data.length);
+    }
+
+    public static Iso7816TlvCursor wrap(byte[] data, int offset, int length) {
+        return new Iso7816TlvCursor(data, offset, length);
+    }
+
+    /**
+     * Makes this cursor, and cursors over the children of its elements, skip the 0x00 and 0xFF filler bytes
+     * ISO/IEC 7816-4 allows before, between and after elements.
+     */
+    public Iso7816TlvCursor skipFillerBytes() {
+        skipFillerBytes = true;
+        return this;
+    }
+
+    /**
+     * Advances to the next element.
+     *
+     * @return false if there are no more elements
+     * @throws IOException if the element is malformed or exceeds the available data
+     */
+    public boolean next() throws IOException {
+        while (skipFillerBytes && position < end
+                && (buffer[position] == 0x00 || buffer[position] == (byte) 0xff)) {
+            position++;
+        }
+        if (position >= end) {
+            headerOffset = -1;
+            return false;
+        }
+
+        int offset = position;
+        int tag = buffer[offset++] & 0xff;
+        if ((tag & MASK_TAG_NUMBER) == MASK_TAG_NUMBER) {
+            int tagBytes = 1;
+            int b;
+            do {
+                if (offset >= end) {
+                    throw new IOException("Truncated TLV tag");
+                }
+                if (++tagBytes > MAX_TAG_BYTES) {
+                    throw new IOException("Only tags up to " + MAX_TAG_BYTES + " bytes are supported!");
+                }
+                b = buffer[offset++] & 0xff;
+                tag = (tag << 8) | b;
+            } while ((b & MASK_TAG_MORE_BYTES) != 0);
+        }
+
+        if (offset >= end) {
+            throw new IOException("Truncated TLV length");
+        }
+        int length = buffer[offset++] & 0xff;
+        if (length > 0x80) {
+            int lengthBytes = length & 0x7f;
+            if (lengthBytes > 4) {
+                throw new IOException("Invalid length field!");
+            }
+            if (offset + lengthBytes > end) {
+                throw new IOException("Truncated TLV length");
+            }
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (buffer[offset++] & 0xff);
+            }
+            if (length < 0) {
+                throw new IOException("Invalid length field!");
+            }
+        } else if (length == 0x80) {
+            throw new IOException("Indefinite length is not supported!");
+        }
+
+        if (length > end - offset) {
+            throw new IOException("TLV length exceeds available data");
+        }
+
+        this.tag = tag;
+        this.headerOffset = position;
+        this.valueOffset = offset;
+        this.valueLength = length;
+        this.position = offset + length;
+        return true;
+    }
+
+    /**
+     * Advances to the next element with the given tag on this level.
+     *
+     * @return false if no such element follows
+     */
+    public boolean find(int tag) throws IOException {
+        while (next()) {
+            if (this.tag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getTag() {
+        checkElement();
+        return tag;
+    }
+
+    /** Returns true if the current element is constructed, i.e. its value consists of further TLV elements. */
+    public boolean isConstructed() {
+        checkElement();
+        return (firstTagByte(tag) & MASK_CONSTRUCTED) != 0;
+    }
+
+    /** Returns the buffer this cursor reads from. Use with {@link #getValueOffset()} to avoid copies. */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getValueOffset() {
+        checkElement();
+        return valueOffset;
+    }
+
+    public int getValueLength() {
+        checkElement();
+        return valueLength;
+    }
+
+    /** Returns the offset of the first tag byte of the current element. */
+    public int getElementOffset() {
+        checkElement();
+        return headerOffset;
+    }
+
+    /** Returns the length of the current element, including its tag and length fields. */
+    public int getElementLength() {
+        checkElement();
+        return valueOffset + valueLength - headerOffset;
+    }
+
+    /** Returns a copy of the value of the current element. */
+    public byte[] getValue() {
+        checkElement();
+        return Arrays.copyOfRange(buffer, valueOffset, valueOffset + valueLength);
+    }
+
+    public byte getValueByte(int index) {
+        checkElement();
+        if (index < 0 || index >= valueLength) {
+            throw new IndexOutOfBoundsException("index " + index + " out of value range " + valueLength);
+        }
+        return buffer[valueOffset + index];
+    }
+
+    /** Returns a new cursor over the elements contained in the value of the current element. */
+    public Iso7816TlvCursor children() {
+        checkElement();
+        Iso7816TlvCursor children = new Iso7816TlvCursor(buffer, valueOffset, valueLength);
+        children.skipFillerBytes = skipFillerBytes;
+        return children;
+    }
+
+    private void checkElement() {
+        if (headerOffset < 0) {
+            throw new IllegalStateException("Cursor is not positioned on an element, call next() first");
+        }
+    }
+
+    static int firstTagByte(int tag) {
+        while ((tag & ~0xff) != 0) {
+            tag >>>= 8;
+        }
+        return tag;
+    }
+}
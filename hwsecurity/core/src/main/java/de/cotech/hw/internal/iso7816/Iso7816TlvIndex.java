@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.io.IOException;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+import de.cotech.hw.util.Arrays;
+
+
+/**
+ * An index of the tags in BER-TLV data, built in a single pass over the buffer with {@link Iso7816TlvCursor}.
+ * <p>
+ * Constructed elements are descended into, and for each tag the first occurrence in depth first order is
+ * recorded, like {@link Iso7816TLV#findRecursive}. Filler bytes between elements are skipped. Only offsets are
+ * stored, values are copied when requested.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public final class Iso7816TlvIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final byte[] buffer;
+    private int[] tags = new int[INITIAL_CAPACITY];
+    private int[] valueOffsets = new int[INITIAL_CAPACITY];
+    private int[] valueLengths = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private Iso7816TlvIndex(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    public static Iso7816TlvIndex build(byte[] data) throws IOException {
+        return build(data, 0, data.length);
+    }
+
+    public static Iso7816TlvIndex build(byte[] data, int offset, int length) throws IOException {
+        Iso7816TlvIndex index = new Iso7816TlvIndex(data);
+        index.addAll(Iso7816TlvCursor.wrap(data, offset, length).skipFillerBytes());
+        return index;
+    }
+
+    private void addAll(Iso7816TlvCursor cursor) throws IOException {
+        while (cursor.next()) {
+            int tag = cursor.getTag();
+            if (indexOf(tag) < 0) {
+                add(tag, cursor.getValueOffset(), cursor.getValueLength());
+            }
+            if (cursor.isConstructed()) {
+                addAll(cursor.children());
+            }
+        }
+    }
+
+    private void add(int tag, int valueOffset, int valueLength) {
+        if (size == tags.length) {
+            tags = Arrays.copyOf(tags, size * 2);
+            valueOffsets = Arrays.copyOf(valueOffsets, size * 2);
+            valueLengths = Arrays.copyOf(valueLengths, size * 2);
+        }
+        tags[size] = tag;
+        valueOffsets[size] = valueOffset;
+        valueLengths[size] = valueLength;
+        size++;
+    }
+
+    private int indexOf(int tag) {
+        for (int i = 0; i < size; i++) {
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /** Returns the offset of the value of the given tag in {@link #getBuffer()}, or -1 if the tag is absent. */
+    public int getValueOffset(int tag) {
+        int i = indexOf(tag);
+        return i >= 0 ? valueOffsets[i] : -1;
+    }
+
+    /** Returns the length of the value of the given tag, or -1 if the tag is absent. */
+    public int getValueLength(int tag) {
+        int i = indexOf(tag);
+        return i >= 0 ? valueLengths[i] : -1;
+    }
+
+    /** Returns a copy of the value of the given tag, or null if the tag is absent. */
+    @Nullable
+    public byte[] getValue(int tag) {
+        int i = indexOf(tag);
+        if (i < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(buffer, valueOffsets[i], valueOffsets[i] + valueLengths[i]);
+    }
+
+    /**
+     * Returns a cursor over the elements contained in the value of the given tag, or null if the tag is absent.
+     * Like the index, it skips filler bytes.
+     */
+    @Nullable
+    public Iso7816TlvCursor children(int tag) {
+        int i = indexOf(tag);
+        if (i < 0) {
+            return null;
+        }
+        return Iso7816TlvCursor.wrap(buffer, valueOffsets[i], valueLengths[i]).skipFillerBytes();
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import de.cotech.hw.util.Hex;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Remembers which applets were found on a device, keyed by {@link Transport#getDeviceIdentity()}, i.e. USB
+ * vendor id, product id and serial number, or NFC tag id. Transports without a stable identity are remembered
+ * for as long as the transport instance is alive.
+ * <p>
+ * On later connections to the same device, applets that were selected before are tried first, and applets that
+ * were not found are skipped. This saves SELECT round trips, which matters most on NFC, where the Security Key
+ * is only held to the reader for a moment. A connection mode whose applets are all known to be missing fails
+ * without any SELECT, and still reports the failure as before.
+ * <p>
+ * Applets can be installed on a device later, e.g. by the vendor's management tool. That an applet was not
+ * found is therefore only remembered for {@link #MISSING_AID_TTL_MILLIS}, after that it is selected again.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class ConnectionProbeCache {
+    private static final int MAX_CACHED_DEVICES = 32;
+    @VisibleForTesting
+    static final long MISSING_AID_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ConnectionProbeCache INSTANCE = new ConnectionProbeCache();
+
+    private final Map<String, DeviceProbeResults> resultsByIdentity =
+            new LinkedHashMap<String, DeviceProbeResults>(MAX_CACHED_DEVICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceProbeResults> eldest) {
+                    return size() > MAX_CACHED_DEVICES;
+                }
+            };
+    private final Map<Transport, DeviceProbeResults> resultsByTransport = new WeakHashMap<>();
+
+    public static ConnectionProbeCache getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    ConnectionProbeCache() {
+    }
+
+    /**
+     * Returns the given AIDs in the order they should be selected on this device: AIDs that were selected
+     * before come first, AIDs that were not found before are omitted.
+     */
+    @AnyThread
+    public synchronized List<byte[]> getAidsForProbing(Transport transport, List<byte[]> aids) {
+        DeviceProbeResults results = getResults(transport, false);
+        if (results == null) {
+            return aids;
+        }
+        removeExpiredMissingAids(results);
+        List<byte[]> selectedAids = new ArrayList<>(aids.size());
+        List<byte[]> unknownAids = new ArrayList<>(aids.size());
+        for (byte[] aid : aids) {
+            String aidHex = Hex.encodeHexString(aid);
+            if (results.selectedAids.contains(aidHex)) {
+                selectedAids.add(aid);
+            } else if (!results.missingAids.containsKey(aidHex)) {
+                unknownAids.add(aid);
+            }
+        }
+        int skippedAids = aids.size() - selectedAids.size() - unknownAids.size();
+        if (skippedAids > 0) {
+            HwTimber.d("Skipping %d AIDs that were not found on this device before", skippedAids);
+        }
+        selectedAids.addAll(unknownAids);
+        return selectedAids;
+    }
+
+    @AnyThread
+    public synchronized void putAidSelected(Transport transport, byte[] aid) {
+        DeviceProbeResults results = getResults(transport, true);
+        String aidHex = Hex.encodeHexString(aid);
+        results.missingAids.remove(aidHex);
+        results.selectedAids.add(aidHex);
+    }
+
+    @AnyThread
+    public synchronized void putAidNotFound(Transport transport, byte[] aid) {
+        DeviceProbeResults results = getResults(transport, true);
+        String aidHex = Hex.encodeHexString(aid);
+        results.selectedAids.remove(aidHex);
+        results.missingAids.put(aidHex, getElapsedMillis());
+    }
+
+    @AnyThread
+    public synchronized void clear() {
+        resultsByIdentity.clear();
+        resultsByTransport.clear();
+    }
+
+    @VisibleForTesting
+    long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void removeExpiredMissingAids(DeviceProbeResults results) {
+        long now = getElapsedMillis();
+        Iterator<Long> notFoundTimes = results.missingAids.values().iterator();
+        while (notFoundTimes.hasNext()) {
+            if (now - notFoundTimes.next() >= MISSING_AID_TTL_MILLIS) {
+                notFoundTimes.remove();
+            }
+        }
+    }
+
+    private DeviceProbeResults getResults(Transport transport, boolean create) {
+        String identity = getCacheKey(transport);
+        DeviceProbeResults results = identity != null ?
+                resultsByIdentity.get(identity) : resultsByTransport.get(transport);
+        if (results == null && create) {
+            results = new DeviceProbeResults();
+            if (identity != null) {
+                resultsByIdentity.put(identity, results);
+            } else {
+                resultsByTransport.put(transport, results);
+            }
+        }
+        return results;
+    }
+
+    private static String getCacheKey(Transport transport) {
+        String deviceIdentity = transport.getDeviceIdentity();
+        if (deviceIdentity == null) {
+            return null;
+        }
+        return transport.getTransportType() + ":" + deviceIdentity;
+    }
+
+    private static class DeviceProbeResults {
+        final Set<String> selectedAids = new HashSet<>();
+        // AID -> elapsed time it was last not found at
+        final Map<String, Long> missingAids = new HashMap<>();
+    }
+}
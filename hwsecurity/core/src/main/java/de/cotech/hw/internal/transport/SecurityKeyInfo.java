@@ -82,16 +82,6 @@ public abstract class SecurityKeyInfo implements Parcelable {
                 transportType, securityKeyType, fingerprintList, aid, userId, url, verifyRetries, verifyAdminRetries, hasLifeCycleSupport);
     }
 
-    public enum TransportType {
-        NFC, USB_CCID, USB_CTAPHID
-    }
-
-    public enum SecurityKeyType {
-        YUBIKEY_NEO, YUBIKEY_4_5, FIDESMO, NITROKEY_PRO, NITROKEY_STORAGE, NITROKEY_START_OLD,
-        NITROKEY_START_1_25_AND_NEWER, GNUK_OLD, GNUK_1_25_AND_NEWER, LEDGER_NANO_S, GEMALTO_PROX_DU, ACS_ACR1252,
-        ONLYKEY, UNKNOWN
-    }
-
     public static final Set<SecurityKeyType> SUPPORTED_USB_SECURITY_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
             SecurityKeyType.YUBIKEY_NEO,
             SecurityKeyType.YUBIKEY_4_5,
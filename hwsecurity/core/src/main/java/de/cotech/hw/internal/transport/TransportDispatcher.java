@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import java.util.concurrent.Executor;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+
+
+/**
+ * Runs discovery and release work of transports on a small shared pool of dispatch threads.
+ * <p>
+ * Work for the same transport runs one after another in the order it was posted, so e.g. a transport is never
+ * released before its discovery has been handled. Work for different transports runs concurrently, up to
+ * {@link #MAX_DISPATCH_THREADS} at a time, so a Security Key that is slow to connect doesn't delay the discovery of
+ * others. The pool is separate from the I/O threads of the {@link TransportScheduler}, so dispatch work may wait
+ * for the results of asynchronous commands without taking the threads those commands need.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TransportDispatcher {
+    private static final int MAX_DISPATCH_THREADS = 4;
+
+    private static Executor dispatchExecutor;
+
+    private final KeyedSerialExecutor<Transport> dispatchQueues;
+
+    public static TransportDispatcher createInstance() {
+        return new TransportDispatcher(getDispatchExecutor());
+    }
+
+    private static synchronized Executor getDispatchExecutor() {
+        if (dispatchExecutor == null) {
+            dispatchExecutor = TransportScheduler.createThreadPool("hwsecurity dispatch", MAX_DISPATCH_THREADS);
+        }
+        return dispatchExecutor;
+    }
+
+    @VisibleForTesting
+    TransportDispatcher(Executor dispatchExecutor) {
+        this.dispatchQueues = new KeyedSerialExecutor<>(dispatchExecutor);
+    }
+
+    @AnyThread
+    public void post(Transport transport, Runnable runnable) {
+        dispatchQueues.execute(transport, runnable);
+    }
+}
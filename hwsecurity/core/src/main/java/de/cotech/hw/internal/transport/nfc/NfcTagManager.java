@@ -26,45 +26,68 @@ package de.cotech.hw.internal.transport.nfc;
 
 
 import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.os.Handler;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
+import de.cotech.hw.NfcPresenceCheckPolicy;
+import de.cotech.hw.internal.transport.TransportDispatcher;
 import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 
 
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class NfcTagManager {
-    private static final long MONITOR_SLEEP_INTERVAL = 250;
-    private static final int MONITOR_PING_DELAY = 750;
     private static final int MONITOR_TIMEOUT_DELAY = 20000;
+    private static final long MONITOR_THREAD_KEEP_ALIVE_SECONDS = 30;
 
     private final OnDiscoveredNfcTagListener callback;
-    private final Handler callbackHandler;
+    private final TransportDispatcher transportDispatcher;
     private final boolean enableDebugLogging;
     private final boolean enablePersistentNfcConnection;
+    private final NfcPresenceCheckPolicy presenceCheckPolicy;
 
     private final HashMap<Tag, ManagedNfcTag> managedNfcTags = new HashMap<>();
+    // presence of all tags is checked on a single thread, which only exists while tags are monitored
+    private final ScheduledThreadPoolExecutor monitorExecutor;
 
     public static NfcTagManager createInstance(OnDiscoveredNfcTagListener callback,
-            Handler handler, boolean enableDebugLogging, boolean enablePersistentNfcConnection) {
-        return new NfcTagManager(callback, handler, enableDebugLogging, enablePersistentNfcConnection);
+            TransportDispatcher transportDispatcher, boolean enableDebugLogging, boolean enablePersistentNfcConnection,
+            NfcPresenceCheckPolicy presenceCheckPolicy) {
+        return new NfcTagManager(callback, transportDispatcher, enableDebugLogging, enablePersistentNfcConnection,
+                presenceCheckPolicy);
     }
 
-    private NfcTagManager(OnDiscoveredNfcTagListener callback, Handler handler, boolean enableDebugLogging,
-            boolean enablePersistentNfcConnection) {
+    private NfcTagManager(OnDiscoveredNfcTagListener callback, TransportDispatcher transportDispatcher,
+            boolean enableDebugLogging, boolean enablePersistentNfcConnection,
+            NfcPresenceCheckPolicy presenceCheckPolicy) {
         this.callback = callback;
-        this.callbackHandler = handler;
+        this.transportDispatcher = transportDispatcher;
         this.enableDebugLogging = enableDebugLogging;
         this.enablePersistentNfcConnection = enablePersistentNfcConnection;
+        this.presenceCheckPolicy = presenceCheckPolicy;
+        this.monitorExecutor = createMonitorExecutor();
+    }
+
+    private static ScheduledThreadPoolExecutor createMonitorExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "hwsecurity NFC monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(MONITOR_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
     }
 
     @UiThread
@@ -108,6 +131,9 @@ public class NfcTagManager {
     private class ManagedNfcTag {
         private final Tag nfcTag;
         private NfcTransport activeTransport;
+        private ScheduledFuture<?> presenceCheck;
+        private boolean presenceCheckCancelled;
+        private long presenceCheckIntervalMs;
 
         private ManagedNfcTag(Tag nfcTag) {
             this.nfcTag = nfcTag;
@@ -115,7 +141,31 @@ public class NfcTagManager {
 
         @AnyThread
         synchronized void clearActiveNfcTransport() {
-            callbackHandler.post(activeTransport::release);
+            cancelPresenceCheck();
+            transportDispatcher.post(activeTransport, activeTransport::release);
+        }
+
+        @AnyThread
+        synchronized void schedulePresenceCheck(long delayMs) {
+            if (presenceCheckCancelled) {
+                return;
+            }
+            presenceCheck = monitorExecutor.schedule(
+                    () -> checkPresence(this), Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+        }
+
+        @AnyThread
+        synchronized void cancelPresenceCheck() {
+            presenceCheckCancelled = true;
+            if (presenceCheck != null) {
+                presenceCheck.cancel(false);
+                presenceCheck = null;
+            }
+        }
+
+        @AnyThread
+        synchronized boolean isPresenceCheckCancelled() {
+            return presenceCheckCancelled;
         }
 
         @AnyThread
@@ -129,16 +179,12 @@ public class NfcTagManager {
 
             NfcTransport nfcTransport = NfcTransport.createNfcTransport(nfcTag, enableDebugLogging, enablePersistentNfcConnection);
             activeTransport = nfcTransport;
-            startMonitorThread(this).start();
-            callbackHandler.post(() -> callback.nfcTransportDiscovered(nfcTransport));
+            presenceCheckIntervalMs = presenceCheckPolicy.getInitialIntervalMs();
+            schedulePresenceCheck(enablePersistentNfcConnection ? presenceCheckIntervalMs : MONITOR_TIMEOUT_DELAY);
+            transportDispatcher.post(nfcTransport, () -> callback.nfcTransportDiscovered(nfcTransport));
         }
     }
 
-    @AnyThread
-    private NfcMonitorThread startMonitorThread(ManagedNfcTag managedNfcTag) {
-        return new NfcMonitorThread(managedNfcTag);
-    }
-
     @AnyThread
     public void clearManagedNfcTags() {
         HwTimber.d("Clearing NFC managed tags");
@@ -164,44 +210,45 @@ public class NfcTagManager {
         }
     }
 
-    private class NfcMonitorThread extends Thread {
-        final ManagedNfcTag managedNfcTag;
-
-        NfcMonitorThread(ManagedNfcTag managedNfcTag) {
-            this.managedNfcTag = managedNfcTag;
+    /**
+     * Checks if a tag is still present, and schedules the next check.
+     * <p>
+     * Without persistent connections, a tag is dropped once it hasn't been used for a while. With persistent
+     * connections, every successful command counts as a presence check. Only if the tag has been idle for the
+     * current interval it is pinged, and the interval is increased according to the {@link NfcPresenceCheckPolicy}.
+     */
+    @WorkerThread
+    private void checkPresence(ManagedNfcTag managedNfcTag) {
+        if (managedNfcTag.isPresenceCheckCancelled()) {
+            return;
         }
+        NfcTransport activeTransport = managedNfcTag.activeTransport;
+        long now = System.currentTimeMillis();
 
-        @Override
-        @WorkerThread
-        public void run() {
-            try {
-                while (deviceIsStillConnected()) {
-                    sleepInterruptibly();
-                }
-            } finally {
+        if (!enablePersistentNfcConnection) {
+            long timeoutTime = activeTransport.getLastTransceiveTime() + MONITOR_TIMEOUT_DELAY;
+            if (timeoutTime > now) {
+                managedNfcTag.schedulePresenceCheck(timeoutTime - now);
+            } else {
                 onNfcTagLost(managedNfcTag.nfcTag);
             }
+            return;
         }
 
-        @WorkerThread
-        boolean deviceIsStillConnected() {
-            long lastTransceiveTime = managedNfcTag.activeTransport.getLastTransceiveTime();
-            if (enablePersistentNfcConnection) {
-                boolean connectionIsActive = lastTransceiveTime + MONITOR_PING_DELAY > System.currentTimeMillis();
-                return connectionIsActive || managedNfcTag.activeTransport.ping();
-            } else {
-                return lastTransceiveTime + MONITOR_TIMEOUT_DELAY > System.currentTimeMillis();
-            }
+        long lastPresenceTime = activeTransport.getLastSuccessfulTransceiveTime();
+        if (lastPresenceTime + managedNfcTag.presenceCheckIntervalMs > now) {
+            managedNfcTag.presenceCheckIntervalMs = presenceCheckPolicy.getInitialIntervalMs();
+            managedNfcTag.schedulePresenceCheck(lastPresenceTime + managedNfcTag.presenceCheckIntervalMs - now);
+            return;
         }
 
-        @WorkerThread
-        void sleepInterruptibly() {
-            try {
-                Thread.sleep(MONITOR_SLEEP_INTERVAL);
-            } catch (InterruptedException e) {
-                // nvm
-            }
+        if (!activeTransport.ping()) {
+            onNfcTagLost(managedNfcTag.nfcTag);
+            return;
         }
+        managedNfcTag.presenceCheckIntervalMs =
+                presenceCheckPolicy.getNextIntervalMs(managedNfcTag.presenceCheckIntervalMs);
+        managedNfcTag.schedulePresenceCheck(managedNfcTag.presenceCheckIntervalMs);
     }
 
     @AnyThread
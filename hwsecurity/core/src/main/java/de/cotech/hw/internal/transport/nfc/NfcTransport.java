@@ -41,9 +41,11 @@ import androidx.annotation.WorkerThread;
 import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 
 @RestrictTo(Scope.LIBRARY_GROUP)
@@ -65,6 +67,7 @@ public class NfcTransport implements Transport {
     private volatile boolean isTransceiving = false;
     private volatile boolean isTransceivingChain = false;
     private volatile long lastTransceiveTime;
+    private volatile long lastSuccessfulTransceiveTime;
 
     private boolean released = false;
     private TransportReleasedCallback transportReleasedCallback;
@@ -78,6 +81,7 @@ public class NfcTransport implements Transport {
         this.enableDebugLogging = enableDebugLogging;
         this.isPersistentlyManaged = isPersistentlyManaged;
         this.lastTransceiveTime = System.currentTimeMillis();
+        this.lastSuccessfulTransceiveTime = lastTransceiveTime;
     }
 
     @Override
@@ -107,6 +111,7 @@ public class NfcTransport implements Transport {
                 if (responseApdu.getSw1() == APDU_SW1_RESPONSE_AVAILABLE) {
                     isTransceivingChain = true;
                 }
+                lastSuccessfulTransceiveTime = System.currentTimeMillis();
                 return responseApdu;
             } catch (TagLostException e) {
                 throw new SecurityKeyDisconnectedException();
@@ -154,6 +159,22 @@ public class NfcTransport implements Transport {
         return lastTransceiveTime;
     }
 
+    /**
+     * Returns the last time the tag was known to be present, i.e. the time of the last successful command.
+     * While a command or a chain of commands is in progress, this is the current time, since it must not be
+     * interrupted by presence checks.
+     */
+    long getLastSuccessfulTransceiveTime() {
+        long now = System.currentTimeMillis();
+        if (isTransceiving) {
+            return now;
+        }
+        if (isTransceivingChain && lastTransceiveTime + TIMEOUT_WHILE_CHAINING > now) {
+            return now;
+        }
+        return lastSuccessfulTransceiveTime;
+    }
+
     @Override
     public void setTransportReleaseCallback(TransportReleasedCallback callback) {
         this.transportReleasedCallback = callback;
@@ -168,6 +189,32 @@ public class NfcTransport implements Transport {
         }
     }
 
+    @Override
+    public TransportCapabilities queryTransportCapabilities() {
+        boolean extendedLengthSupported = isExtendedLengthSupported();
+        int maxTransceiveLength = mIsoDep.getMaxTransceiveLength();
+        if (maxTransceiveLength <= 0) {
+            return TransportCapabilities.fromExtendedLengthSupport(extendedLengthSupported);
+        }
+        if (extendedLengthSupported) {
+            return TransportCapabilities.createExtended(maxTransceiveLength, maxTransceiveLength);
+        }
+        return TransportCapabilities.create(
+                Math.min(maxTransceiveLength, TransportCapabilities.MAX_SHORT_COMMAND_LENGTH),
+                Math.min(maxTransceiveLength, TransportCapabilities.MAX_SHORT_RESPONSE_LENGTH),
+                false, true, 0);
+    }
+
+    @Nullable
+    @Override
+    public String getDeviceIdentity() {
+        byte[] tagId = mTag.getId();
+        if (tagId == null || tagId.length == 0) {
+            return null;
+        }
+        return Hex.encodeHexString(tagId);
+    }
+
     @Override
     @WorkerThread
     public void release() {
@@ -222,7 +269,7 @@ public class NfcTransport implements Transport {
 
     @Nullable
     @Override
-    public SecurityKeyInfo.SecurityKeyType getSecurityKeyTypeIfAvailable() {
+    public SecurityKeyType getSecurityKeyTypeIfAvailable() {
         // Sadly, the NFC transport has no direct information about the security key type.
         return null;
     }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.internal.transport.AppletCapabilities;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+
+
+/**
+ * A recorded sequence of APDU exchanges with a single device.
+ * <p>
+ * Binary format, all integers are unsigned LEB128 varints unless noted:
+ * <pre>
+ * header: "HWTR" | version (1 byte) | transport type (UTF) | security key type (UTF, empty if unknown) |
+ *         extended length supported (1 byte) | device identity (UTF, empty if none) |
+ *         max command length | max response length | capability flags (1 byte) | secure messaging overhead |
+ *         applet count | applet*
+ * applet: AID (UTF, hex, empty if none selected) | extended length (1 byte) | chaining supported (1 byte) |
+ *         chaining limit (0 if unknown) | extended GET RESPONSE (1 byte)
+ * entry:  start nanos | duration nanos | command length | command | result type |
+ *         response length | response          (result type 0)
+ *         error message (UTF)                 (result types 1, 2)
+ * </pre>
+ * Start times are deltas to the start of the previous entry, which keeps them to a few bytes each. The
+ * extended length and GET RESPONSE bytes of an applet are 0 if unknown, 1 if not supported, and 2 if supported.
+ * <p>
+ * The header includes what was learned about the device and its applets before the first exchange, as remembered by
+ * {@link de.cotech.hw.internal.transport.TransportCapabilitiesCache}. The APDU encoding is chosen from this
+ * state, so a replay must start from it to send the recorded commands.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class ApduTrace {
+    private static final byte[] MAGIC = { 'H', 'W', 'T', 'R' };
+    private static final int VERSION = 3;
+
+    private static final int FLAG_EXTENDED_LENGTH_SUPPORTED = 1;
+    private static final int FLAG_CHAINING_SUPPORTED = 1 << 2;
+
+    private static final int SUPPORT_UNKNOWN = 0;
+    private static final int SUPPORT_NO = 1;
+    private static final int SUPPORT_YES = 2;
+
+    private final TransportType transportType;
+    @Nullable
+    private final SecurityKeyType securityKeyType;
+    private final boolean extendedLengthSupported;
+    @Nullable
+    private final String deviceIdentity;
+    private final TransportCapabilities transportCapabilities;
+    private final Map<String, AppletCapabilities> appletCapabilitiesByAid;
+    private final List<ApduTraceEntry> entries;
+
+    public ApduTrace(TransportType transportType, @Nullable SecurityKeyType securityKeyType,
+            boolean extendedLengthSupported, List<ApduTraceEntry> entries) {
+        this(transportType, securityKeyType, extendedLengthSupported, null,
+                TransportCapabilities.fromExtendedLengthSupport(extendedLengthSupported),
+                Collections.<String, AppletCapabilities>emptyMap(), entries);
+    }
+
+    public ApduTrace(TransportType transportType, @Nullable SecurityKeyType securityKeyType,
+            boolean extendedLengthSupported, @Nullable String deviceIdentity,
+            TransportCapabilities transportCapabilities, Map<String, AppletCapabilities> appletCapabilitiesByAid,
+            List<ApduTraceEntry> entries) {
+        this.transportType = transportType;
+        this.securityKeyType = securityKeyType;
+        this.extendedLengthSupported = extendedLengthSupported;
+        this.deviceIdentity = deviceIdentity;
+        this.transportCapabilities = transportCapabilities;
+        this.appletCapabilitiesByAid = Collections.unmodifiableMap(new HashMap<>(appletCapabilitiesByAid));
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    @Nullable
+    public SecurityKeyType getSecurityKeyType() {
+        return securityKeyType;
+    }
+
+    /**
+     * Returns whether the platform reported extended length support for the device.
+     */
+    public boolean isExtendedLengthSupported() {
+        return extendedLengthSupported;
+    }
+
+    @Nullable
+    public String getDeviceIdentity() {
+        return deviceIdentity;
+    }
+
+    /**
+     * Returns the capabilities known for the device when recording started.
+     */
+    public TransportCapabilities getTransportCapabilities() {
+        return transportCapabilities;
+    }
+
+    /**
+     * Returns what was known about the applets of the device when recording started, keyed by hex AID as in
+     * {@link de.cotech.hw.internal.transport.TransportCapabilitiesCache#getAllAppletCapabilities}.
+     */
+    public Map<String, AppletCapabilities> getAppletCapabilities() {
+        return appletCapabilitiesByAid;
+    }
+
+    public List<ApduTraceEntry> getEntries() {
+        return entries;
+    }
+
+    public static ApduTrace readFrom(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not an APDU trace");
+            }
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported APDU trace version: " + version);
+        }
+
+        TransportType transportType;
+        SecurityKeyType securityKeyType;
+        try {
+            transportType = TransportType.valueOf(in.readUTF());
+            String securityKeyTypeName = in.readUTF();
+            securityKeyType = securityKeyTypeName.isEmpty() ? null : SecurityKeyType.valueOf(securityKeyTypeName);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown transport or security key type in APDU trace", e);
+        }
+        boolean extendedLengthSupported = in.readBoolean();
+        String deviceIdentity = in.readUTF();
+        TransportCapabilities transportCapabilities = readTransportCapabilities(in);
+        Map<String, AppletCapabilities> appletCapabilitiesByAid = new HashMap<>();
+        int appletCount = readVarInt(in);
+        for (int i = 0; i < appletCount; i++) {
+            String aid = in.readUTF();
+            appletCapabilitiesByAid.put(aid, readAppletCapabilities(in));
+        }
+
+        List<ApduTraceEntry> entries = new ArrayList<>();
+        long startNanos = 0;
+        while (true) {
+            int firstByte = in.read();
+            if (firstByte == -1) {
+                break;
+            }
+            startNanos += readVarLong(in, firstByte);
+            long durationNanos = readVarLong(in, in.readUnsignedByte());
+            byte[] command = readBytes(in);
+            int resultType = in.readUnsignedByte();
+            if (resultType == ApduTraceEntry.RESULT_RESPONSE) {
+                entries.add(ApduTraceEntry.createResponse(startNanos, durationNanos, command, readBytes(in)));
+            } else {
+                String errorMessage = in.readUTF();
+                entries.add(ApduTraceEntry.createError(startNanos, durationNanos, command, resultType,
+                        errorMessage.isEmpty() ? null : errorMessage));
+            }
+        }
+
+        return new ApduTrace(transportType, securityKeyType, extendedLengthSupported,
+                deviceIdentity.isEmpty() ? null : deviceIdentity, transportCapabilities, appletCapabilitiesByAid,
+                entries);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        writeHeader(out);
+        long previousStartNanos = 0;
+        for (ApduTraceEntry entry : entries) {
+            writeEntry(out, entry, previousStartNanos);
+            previousStartNanos = entry.getStartNanos();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the header of this trace, without its entries.
+     */
+    void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(transportType.name());
+        out.writeUTF(securityKeyType != null ? securityKeyType.name() : "");
+        out.writeBoolean(extendedLengthSupported);
+        out.writeUTF(deviceIdentity != null ? deviceIdentity : "");
+        writeTransportCapabilities(out, transportCapabilities);
+        writeVarLong(out, appletCapabilitiesByAid.size());
+        for (Map.Entry<String, AppletCapabilities> entry : appletCapabilitiesByAid.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeAppletCapabilities(out, entry.getValue());
+        }
+    }
+
+    private static void writeTransportCapabilities(DataOutputStream out, TransportCapabilities capabilities)
+            throws IOException {
+        writeVarLong(out, capabilities.getMaxCommandLength());
+        writeVarLong(out, capabilities.getMaxResponseLength());
+        int flags = 0;
+        if (capabilities.isExtendedLengthSupported()) {
+            flags |= FLAG_EXTENDED_LENGTH_SUPPORTED;
+        }
+        if (capabilities.isChainingSupported()) {
+            flags |= FLAG_CHAINING_SUPPORTED;
+        }
+        out.writeByte(flags);
+        writeVarLong(out, capabilities.getSecureMessagingOverhead());
+    }
+
+    private static TransportCapabilities readTransportCapabilities(DataInputStream in) throws IOException {
+        int maxCommandLength = readVarInt(in);
+        int maxResponseLength = readVarInt(in);
+        int flags = in.readUnsignedByte();
+        int secureMessagingOverhead = readVarInt(in);
+        return TransportCapabilities.create(maxCommandLength, maxResponseLength,
+                (flags & FLAG_EXTENDED_LENGTH_SUPPORTED) != 0, (flags & FLAG_CHAINING_SUPPORTED) != 0,
+                secureMessagingOverhead);
+    }
+
+    private static void writeAppletCapabilities(DataOutputStream out, AppletCapabilities capabilities)
+            throws IOException {
+        writeSupport(out, capabilities.getExtendedLengthSupported());
+        out.writeBoolean(capabilities.isChainingSupported());
+        writeVarLong(out, capabilities.getMaxChainedCommandDataLength());
+        writeSupport(out, capabilities.getExtendedGetResponseSupported());
+    }
+
+    private static AppletCapabilities readAppletCapabilities(DataInputStream in) throws IOException {
+        Boolean extendedLengthSupported = readSupport(in);
+        boolean chainingSupported = in.readBoolean();
+        int maxChainedCommandDataLength = readVarInt(in);
+        Boolean extendedGetResponseSupported = readSupport(in);
+        return AppletCapabilities.create(extendedLengthSupported, chainingSupported, maxChainedCommandDataLength,
+                extendedGetResponseSupported);
+    }
+
+    private static void writeSupport(DataOutputStream out, @Nullable Boolean supported) throws IOException {
+        if (supported == null) {
+            out.writeByte(SUPPORT_UNKNOWN);
+        } else {
+            out.writeByte(supported ? SUPPORT_YES : SUPPORT_NO);
+        }
+    }
+
+    @Nullable
+    private static Boolean readSupport(DataInputStream in) throws IOException {
+        switch (in.readUnsignedByte()) {
+            case SUPPORT_UNKNOWN:
+                return null;
+            case SUPPORT_NO:
+                return false;
+            case SUPPORT_YES:
+                return true;
+            default:
+                throw new IOException("Invalid applet capabilities in APDU trace");
+        }
+    }
+
+    static void writeEntry(DataOutputStream out, ApduTraceEntry entry, long previousStartNanos) throws IOException {
+        writeVarLong(out, entry.getStartNanos() - previousStartNanos);
+        writeVarLong(out, entry.getDurationNanos());
+        writeBytes(out, entry.getCommand());
+        out.writeByte(entry.getResultType());
+        if (entry.getResultType() == ApduTraceEntry.RESULT_RESPONSE) {
+            writeBytes(out, entry.getResponse());
+        } else {
+            String errorMessage = entry.getErrorMessage();
+            out.writeUTF(errorMessage != null ? errorMessage : "");
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in, in.readUnsignedByte());
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length in APDU trace");
+        }
+        return (int) value;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values can't be encoded");
+        }
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in, int firstByte) throws IOException {
+        long value = firstByte & 0x7F;
+        int shift = 7;
+        int b = firstByte;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException("Malformed varint in APDU trace");
+            }
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import com.google.auto.value.AutoValue;
+
+
+/**
+ * A single exchange in an {@link ApduTrace}: the raw command, and either the raw response or the error
+ * the transport reported.
+ */
+@AutoValue
+@RestrictTo(Scope.LIBRARY_GROUP)
+public abstract class ApduTraceEntry {
+    public static final int RESULT_RESPONSE = 0;
+    public static final int RESULT_DISCONNECTED = 1;
+    public static final int RESULT_IO_ERROR = 2;
+
+    /** Start of the exchange, in nanoseconds since the start of the trace. */
+    public abstract long getStartNanos();
+    public abstract long getDurationNanos();
+    @SuppressWarnings("mutable")
+    public abstract byte[] getCommand();
+    public abstract int getResultType();
+    /** The raw response, or empty if the exchange failed. */
+    @SuppressWarnings("mutable")
+    public abstract byte[] getResponse();
+    @Nullable
+    public abstract String getErrorMessage();
+
+    public static ApduTraceEntry createResponse(long startNanos, long durationNanos, byte[] command,
+            byte[] response) {
+        return new AutoValue_ApduTraceEntry(startNanos, durationNanos, command, RESULT_RESPONSE, response, null);
+    }
+
+    public static ApduTraceEntry createError(long startNanos, long durationNanos, byte[] command,
+            int resultType, @Nullable String errorMessage) {
+        if (resultType != RESULT_DISCONNECTED && resultType != RESULT_IO_ERROR) {
+            throw new IllegalArgumentException("Invalid error type: " + resultType);
+        }
+        return new AutoValue_ApduTraceEntry(startNanos, durationNanos, command, resultType, new byte[0], errorMessage);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import java.util.Arrays;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+
+
+/**
+ * Removes secrets from exchanges before they are written to an {@link ApduTrace}, so traces may be collected
+ * from the field. The data field of commands carrying PINs or keys, and the response data of PERFORM SECURITY
+ * OPERATION, INTERNAL AUTHENTICATE and GENERAL AUTHENTICATE including its GET RESPONSE continuations, are
+ * overwritten with zeros. Lengths are kept, so a replay exchanges APDUs of the recorded sizes, but decrypted
+ * data, signatures and authentication responses of a replay are all zeros.
+ * <p>
+ * Commands are recognized by their interindustry INS, which OpenPGP and PIV applets share. Commands under
+ * secure messaging are kept, since their data is encrypted already.
+ */
+class ApduTraceRedactor {
+    private static final int INS_VERIFY = 0x20;
+    private static final int INS_CHANGE_REFERENCE_DATA = 0x24;
+    private static final int INS_PERFORM_SECURITY_OPERATION = 0x2A;
+    private static final int INS_RESET_RETRY_COUNTER = 0x2C;
+    private static final int INS_GENERAL_AUTHENTICATE = 0x87;
+    private static final int INS_INTERNAL_AUTHENTICATE = 0x88;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_PUT_DATA = 0xDA;
+    private static final int INS_PUT_DATA_ODD = 0xDB;
+    // YubiKey PIV extension
+    private static final int INS_IMPORT_ASYMMETRIC_KEY = 0xFE;
+
+    private static final int MASK_CLA_SECURE_MESSAGING = 0x0C;
+    private static final int SW1_RESPONSE_AVAILABLE = 0x61;
+    private static final int SHORT_HEADER_LENGTH = 4 + 1;
+    private static final int EXTENDED_HEADER_LENGTH = 4 + 3;
+
+    private boolean isRedactingResponseChain;
+
+    /**
+     * Returns the encoded command, with its data field zeroed if it may carry a PIN or key.
+     */
+    byte[] redactCommand(CommandApdu commandApdu) {
+        byte[] command = commandApdu.toBytes();
+        if (commandApdu.getINS() != INS_GET_RESPONSE) {
+            isRedactingResponseChain = false;
+        }
+        if (commandApdu.getNc() == 0 || !hasSensitiveCommandData(commandApdu)) {
+            return command;
+        }
+        int dataOffset = commandApdu.isExtendedLength() ? EXTENDED_HEADER_LENGTH : SHORT_HEADER_LENGTH;
+        Arrays.fill(command, dataOffset, dataOffset + commandApdu.getNc(), (byte) 0);
+        return command;
+    }
+
+    /**
+     * Returns the encoded response, with its data zeroed if it is the result of a security operation.
+     */
+    byte[] redactResponse(CommandApdu commandApdu, ResponseApdu responseApdu) {
+        byte[] response = responseApdu.toBytes();
+        boolean isSensitive = hasSensitiveResponseData(commandApdu) ||
+                (commandApdu.getINS() == INS_GET_RESPONSE && isRedactingResponseChain);
+        isRedactingResponseChain = isSensitive && responseApdu.getSw1() == SW1_RESPONSE_AVAILABLE;
+        if (isSensitive) {
+            Arrays.fill(response, 0, response.length - 2, (byte) 0);
+        }
+        return response;
+    }
+
+    private static boolean hasSensitiveCommandData(CommandApdu commandApdu) {
+        if ((commandApdu.getCLA() & MASK_CLA_SECURE_MESSAGING) != 0) {
+            return false;
+        }
+        switch (commandApdu.getINS()) {
+            case INS_VERIFY:
+            case INS_CHANGE_REFERENCE_DATA:
+            case INS_RESET_RETRY_COUNTER:
+            case INS_PUT_DATA:
+            case INS_PUT_DATA_ODD:
+            case INS_IMPORT_ASYMMETRIC_KEY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasSensitiveResponseData(CommandApdu commandApdu) {
+        if ((commandApdu.getCLA() & MASK_CLA_SECURE_MESSAGING) != 0) {
+            return false;
+        }
+        switch (commandApdu.getINS()) {
+            case INS_PERFORM_SECURITY_OPERATION:
+            case INS_INTERNAL_AUTHENTICATE:
+            case INS_GENERAL_AUTHENTICATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Decorates a {@link Transport}, writing every exchange with its timing to an {@link ApduTrace} stream.
+ * Traces can be served back by {@link TraceReplayTransport}.
+ * <p>
+ * The header is written before the first exchange, with the device identity and what
+ * {@link TransportCapabilitiesCache} knows about the device at that point.
+ * <p>
+ * PINs, imported keys and the results of security operations are zeroed by {@link ApduTraceRedactor} before
+ * they are written, so traces can be collected from the field. Other data, such as public keys, certificates
+ * and the cardholder name, is recorded as is.
+ * <p>
+ * Each entry is flushed as soon as it was recorded, so the trace is usable even if the app is killed.
+ * Failing to write the trace stops recording, but doesn't affect the wrapped transport.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TraceRecordingTransport implements Transport {
+    private final Transport delegate;
+    private final DataOutputStream traceOutput;
+    private final ApduTraceRedactor redactor = new ApduTraceRedactor();
+
+    private boolean headerWritten;
+    private boolean recordingFailed;
+    private long traceStartNanos;
+    private long previousStartNanos;
+
+    public TraceRecordingTransport(Transport delegate, OutputStream traceOutputStream) {
+        this.delegate = delegate;
+        this.traceOutput = new DataOutputStream(new BufferedOutputStream(traceOutputStream));
+    }
+
+    @Override
+    public ResponseApdu transceive(CommandApdu commandApdu) throws IOException {
+        writeHeaderIfNecessary();
+        long startNanos = System.nanoTime();
+        try {
+            ResponseApdu responseApdu = delegate.transceive(commandApdu);
+            long durationNanos = System.nanoTime() - startNanos;
+            record(startNanos, durationNanos, commandApdu, responseApdu, null);
+            return responseApdu;
+        } catch (IOException e) {
+            long durationNanos = System.nanoTime() - startNanos;
+            record(startNanos, durationNanos, commandApdu, null, e);
+            throw e;
+        }
+    }
+
+    private synchronized void writeHeaderIfNecessary() {
+        if (headerWritten || recordingFailed) {
+            return;
+        }
+        try {
+            TransportCapabilitiesCache capabilitiesCache = TransportCapabilitiesCache.getInstance();
+            ApduTrace header = new ApduTrace(delegate.getTransportType(), delegate.getSecurityKeyTypeIfAvailable(),
+                    delegate.isExtendedLengthSupported(), delegate.getDeviceIdentity(),
+                    capabilitiesCache.getCapabilities(this), capabilitiesCache.getAllAppletCapabilities(this),
+                    Collections.emptyList());
+            header.writeHeader(traceOutput);
+            traceStartNanos = System.nanoTime();
+            previousStartNanos = 0;
+            headerWritten = true;
+        } catch (IOException e) {
+            HwTimber.e(e, "Failed to write APDU trace, recording stopped");
+            recordingFailed = true;
+        }
+    }
+
+    private synchronized void record(long startNanos, long durationNanos, CommandApdu commandApdu,
+            @Nullable ResponseApdu responseApdu, @Nullable IOException exception) {
+        if (recordingFailed) {
+            return;
+        }
+        try {
+            long relativeStartNanos = Math.max(0, startNanos - traceStartNanos);
+            byte[] command = redactor.redactCommand(commandApdu);
+            ApduTraceEntry entry;
+            if (exception == null) {
+                entry = ApduTraceEntry.createResponse(relativeStartNanos, durationNanos,
+                        command, redactor.redactResponse(commandApdu, responseApdu));
+            } else {
+                int resultType = exception instanceof SecurityKeyDisconnectedException ?
+                        ApduTraceEntry.RESULT_DISCONNECTED : ApduTraceEntry.RESULT_IO_ERROR;
+                entry = ApduTraceEntry.createError(relativeStartNanos, durationNanos,
+                        command, resultType, exception.getMessage());
+            }
+            ApduTrace.writeEntry(traceOutput, entry, previousStartNanos);
+            traceOutput.flush();
+            previousStartNanos = relativeStartNanos;
+        } catch (IOException e) {
+            HwTimber.e(e, "Failed to write APDU trace, recording stopped");
+            recordingFailed = true;
+        }
+    }
+
+    @Override
+    public void release() {
+        delegate.release();
+        synchronized (this) {
+            try {
+                traceOutput.close();
+            } catch (IOException e) {
+                HwTimber.e(e, "Failed to close APDU trace");
+            }
+            recordingFailed = true;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public boolean isReleased() {
+        return delegate.isReleased();
+    }
+
+    @Override
+    public boolean isPersistentConnectionAllowed() {
+        return delegate.isPersistentConnectionAllowed();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return delegate.isExtendedLengthSupported();
+    }
+
+    @Override
+    public TransportCapabilities queryTransportCapabilities() {
+        return delegate.queryTransportCapabilities();
+    }
+
+    @Nullable
+    @Override
+    public String getDeviceIdentity() {
+        return delegate.getDeviceIdentity();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        delegate.connect();
+    }
+
+    @Override
+    public boolean ping() {
+        return delegate.ping();
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        return delegate.getTransportType();
+    }
+
+    @Nullable
+    @Override
+    public SecurityKeyType getSecurityKeyTypeIfAvailable() {
+        return delegate.getSecurityKeyTypeIfAvailable();
+    }
+
+    @Override
+    public void setTransportReleaseCallback(TransportReleasedCallback callback) {
+        delegate.setTransportReleaseCallback(callback);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
+import de.cotech.hw.util.Hex;
+
+
+/**
+ * Serves the exchanges of an {@link ApduTrace} back, in order. Each command must match the recorded one byte
+ * for byte, after removing the same secrets as during recording, and is answered after the recorded duration
+ * multiplied by a time scale. A time scale of 0 answers immediately, which is useful to measure host side
+ * processing only.
+ * <p>
+ * Responses are served as recorded, i.e. as redacted by {@link ApduTraceRedactor}. The response data of
+ * PERFORM SECURITY OPERATION, INTERNAL AUTHENTICATE and GENERAL AUTHENTICATE, and of the GET RESPONSE commands
+ * continuing them, is all zeros. Replayed decrypt, sign and authenticate flows therefore return zeroed
+ * results of the recorded length, which can't be verified and may fail to parse, e.g. as a DER signature.
+ * Replays exercise the timing and APDU sequence of these flows, not their results.
+ * <p>
+ * The device identity and capabilities are those recorded in the trace. On {@link #connect()} and
+ * {@link #rewind()}, what {@link TransportCapabilitiesCache} knows about the device is reset to the state it
+ * was recorded in, so the same APDU encodings are chosen as during recording, e.g. short APDUs after the device
+ * had rejected an extended length one.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TraceReplayTransport implements Transport {
+    private final ApduTrace trace;
+    private final double timeScale;
+    private final ApduTraceRedactor redactor = new ApduTraceRedactor();
+
+    private int position;
+    private boolean connected;
+    private boolean released;
+    private TransportReleasedCallback transportReleasedCallback;
+
+    public TraceReplayTransport(ApduTrace trace) {
+        this(trace, 1.0);
+    }
+
+    public TraceReplayTransport(ApduTrace trace, double timeScale) {
+        if (timeScale < 0) {
+            throw new IllegalArgumentException("Time scale must not be negative");
+        }
+        this.trace = trace;
+        this.timeScale = timeScale;
+    }
+
+    @Override
+    public synchronized ResponseApdu transceive(CommandApdu commandApdu) throws IOException {
+        if (released || !connected) {
+            throw new SecurityKeyDisconnectedException();
+        }
+        List<ApduTraceEntry> entries = trace.getEntries();
+        if (position >= entries.size()) {
+            throw new IOException("APDU trace exhausted after " + entries.size() + " commands");
+        }
+        ApduTraceEntry entry = entries.get(position);
+        byte[] command = redactor.redactCommand(commandApdu);
+        if (!Arrays.equals(entry.getCommand(), command)) {
+            throw new IOException("Command " + position + " doesn't match APDU trace: expected " +
+                    Hex.encodeHexString(entry.getCommand()) + ", got " + Hex.encodeHexString(command));
+        }
+        position++;
+
+        waitForRecordedDuration(entry.getDurationNanos());
+
+        switch (entry.getResultType()) {
+            case ApduTraceEntry.RESULT_RESPONSE:
+                return ResponseApdu.fromBytes(entry.getResponse());
+            case ApduTraceEntry.RESULT_DISCONNECTED:
+                release();
+                throw new SecurityKeyDisconnectedException();
+            default:
+                throw new IOException(entry.getErrorMessage());
+        }
+    }
+
+    private void waitForRecordedDuration(long durationNanos) throws IOException {
+        long scaledNanos = (long) (durationNanos * timeScale);
+        if (scaledNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(scaledNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during replay", e);
+        }
+    }
+
+    /**
+     * Returns true if all commands of the trace have been replayed.
+     */
+    public synchronized boolean isExhausted() {
+        return position >= trace.getEntries().size();
+    }
+
+    /**
+     * Starts over at the first command of the trace, e.g. for another benchmark iteration.
+     */
+    public void rewind() {
+        synchronized (this) {
+            position = 0;
+            released = false;
+        }
+        restoreRecordedCapabilities();
+    }
+
+    private void restoreRecordedCapabilities() {
+        TransportCapabilitiesCache.getInstance().restore(this, trace.getTransportCapabilities(),
+                trace.getAppletCapabilities());
+    }
+
+    @Override
+    public void release() {
+        TransportReleasedCallback callback;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            callback = transportReleasedCallback;
+        }
+        if (callback != null) {
+            callback.onTransportReleased();
+        }
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connected && !released;
+    }
+
+    @Override
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean isPersistentConnectionAllowed() {
+        return true;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return trace.isExtendedLengthSupported();
+    }
+
+    /**
+     * Returns the capabilities recorded in the trace, updated with what was learned during this replay.
+     */
+    @Override
+    public TransportCapabilities getTransportCapabilities() {
+        return TransportCapabilitiesCache.getInstance().getCapabilities(this);
+    }
+
+    @Override
+    public TransportCapabilities queryTransportCapabilities() {
+        return trace.getTransportCapabilities();
+    }
+
+    @Nullable
+    @Override
+    public String getDeviceIdentity() {
+        return trace.getDeviceIdentity();
+    }
+
+    @Override
+    public void connect() {
+        synchronized (this) {
+            connected = true;
+        }
+        restoreRecordedCapabilities();
+    }
+
+    @Override
+    public boolean ping() {
+        return isConnected();
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        return trace.getTransportType();
+    }
+
+    @Nullable
+    @Override
+    public SecurityKeyType getSecurityKeyTypeIfAvailable() {
+        return trace.getSecurityKeyType();
+    }
+
+    @Override
+    public synchronized void setTransportReleaseCallback(TransportReleasedCallback callback) {
+        this.transportReleasedCallback = callback;
+    }
+}
@@ -26,7 +26,6 @@ package de.cotech.hw.internal.transport.usb;
 
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -41,44 +40,47 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbRequest;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
-import android.os.Handler;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportDispatcher;
+import de.cotech.hw.internal.transport.usb.UsbDeviceMonitor.UsbDeviceMonitorCallback;
 import de.cotech.hw.internal.transport.usb.ccid.UsbCcidTransport;
 import de.cotech.hw.internal.transport.usb.ctaphid.UsbCtapHidTransport;
-import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 
 
 public class UsbDeviceManager {
     private final OnDiscoveredUsbDeviceListener callback;
-    private final android.os.Handler callbackHandler;
+    private final TransportDispatcher transportDispatcher;
     private final boolean allowUntested;
     private boolean enableDebugLogging;
 
     private final UsbManager usbManager;
+    private final UsbDeviceMonitor usbDeviceMonitor;
 
     private final HashMap<UsbDevice, ManagedUsbDevice> managedUsbDevices = new HashMap<>();
 
     public static UsbDeviceManager createInstance(Context context, OnDiscoveredUsbDeviceListener callback,
-                                                  Handler handler, boolean allowUntested, boolean enableDebugLogging) {
+                                                  TransportDispatcher transportDispatcher, boolean allowUntested,
+                                                  boolean enableDebugLogging) {
         UsbManager usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
-        return new UsbDeviceManager(usbManager, callback, handler, allowUntested, enableDebugLogging);
+        return new UsbDeviceManager(context.getApplicationContext(), usbManager, callback, transportDispatcher,
+                allowUntested, enableDebugLogging);
     }
 
-    private UsbDeviceManager(UsbManager usbManager, OnDiscoveredUsbDeviceListener callback,
-            Handler handler, boolean allowUntested, boolean enableDebugLogging) {
+    private UsbDeviceManager(Context context, UsbManager usbManager, OnDiscoveredUsbDeviceListener callback,
+            TransportDispatcher transportDispatcher, boolean allowUntested, boolean enableDebugLogging) {
         this.callback = callback;
-        this.callbackHandler = handler;
+        this.transportDispatcher = transportDispatcher;
         this.allowUntested = allowUntested;
         this.usbManager = usbManager;
         this.enableDebugLogging = enableDebugLogging;
+        this.usbDeviceMonitor = new UsbDeviceMonitor(context, usbManager, usbDeviceMonitorCallback);
     }
 
     @UiThread
@@ -108,6 +110,8 @@ public class UsbDeviceManager {
             try {
                 ManagedUsbDevice managedUsbDevice = createManagedUsbDevice(usbDevice);
                 managedUsbDevices.put(usbDevice, managedUsbDevice);
+                usbDeviceMonitor.startMonitoring(usbDevice, managedUsbDevice.usbConnection,
+                        managedUsbDevice.usbInterfaces, getIntEndpointsIfOnlyCcid(managedUsbDevice.usbInterfaces));
             } catch (IOException e) {
                 HwTimber.e(e, "Failed to initialize usb device!");
             }
@@ -127,6 +131,7 @@ public class UsbDeviceManager {
             } catch (UsbTransportException e) {
                 HwTimber.d("Failed to reclaim USB device, releasing (0x%s 0x%s)",
                         Integer.toHexString(usbDevice.getVendorId()), Integer.toHexString(usbDevice.getProductId()));
+                usbDeviceMonitor.stopMonitoring(usbDevice);
                 managedUsbDevice.clearAllActiveUsbTransports();
                 managedUsbDevices.remove(usbDevice);
                 return false;
@@ -153,7 +158,6 @@ public class UsbDeviceManager {
 
         ManagedUsbDevice managedUsbDevice = new ManagedUsbDevice(usbDevice, usbConnection, usbInterfaces);
         managedUsbDevice.claimInterface();
-        startMonitorThread(managedUsbDevice, usbInterfaces).start();
         return managedUsbDevice;
     }
 
@@ -203,7 +207,7 @@ public class UsbDeviceManager {
         synchronized void clearAllActiveUsbTransports() {
             for (Entry<UsbInterface, Transport> entry : currentActiveTransports.entrySet()) {
                 final Transport disconnectedTransport = entry.getValue();
-                callbackHandler.post(disconnectedTransport::release);
+                transportDispatcher.post(disconnectedTransport, disconnectedTransport::release);
             }
             currentActiveTransports.clear();
         }
@@ -212,7 +216,7 @@ public class UsbDeviceManager {
         synchronized void clearActiveUsbTransport(UsbInterface usbInterface) {
             Transport disconnectedTransport = currentActiveTransports.remove(usbInterface);
             if (disconnectedTransport != null) {
-                callbackHandler.post(disconnectedTransport::release);
+                transportDispatcher.post(disconnectedTransport, disconnectedTransport::release);
             }
         }
 
@@ -235,23 +239,14 @@ public class UsbDeviceManager {
             }
             HwTimber.d("USB transport created on interface class %s", usbInterface.getInterfaceClass());
             currentActiveTransports.put(usbInterface, usbTransport);
-            callbackHandler.post(() -> callback.usbTransportDiscovered(usbTransport));
-        }
-    }
-
-    @UiThread
-    private UsbMonitorThread startMonitorThread(ManagedUsbDevice managedUsbDevice, List<UsbInterface> usbInterfaces) {
-        Map<UsbEndpoint, UsbInterface> interruptEndpoints = getIntEndpointsIfOnlyCcid(usbInterfaces);
-        if (!interruptEndpoints.isEmpty()) {
-            return new UsbInterruptMonitorThread(managedUsbDevice, interruptEndpoints);
-        } else {
-            return new UsbSimpleMonitorThread(managedUsbDevice, usbInterfaces);
+            transportDispatcher.post(usbTransport, () -> callback.usbTransportDiscovered(usbTransport));
         }
     }
 
     @AnyThread
     public void clearManagedUsbDevices() {
         HwTimber.d("Clearing USB managed device state");
+        usbDeviceMonitor.stopMonitoringAll();
         synchronized (managedUsbDevices) {
             for (ManagedUsbDevice managedUsbDevice : managedUsbDevices.values()) {
                 managedUsbDevice.clearAllActiveUsbTransports();
@@ -260,7 +255,24 @@ public class UsbDeviceManager {
         }
     }
 
-    @WorkerThread
+    private final UsbDeviceMonitorCallback usbDeviceMonitorCallback = new UsbDeviceMonitorCallback() {
+        @Override
+        public void onIccConnect(UsbDevice usbDevice, UsbInterface usbInterface) {
+            UsbDeviceManager.this.onIccConnect(usbDevice, usbInterface);
+        }
+
+        @Override
+        public void onIccDisconnect(UsbDevice usbDevice, UsbInterface usbInterface) {
+            UsbDeviceManager.this.onIccDisconnect(usbDevice, usbInterface);
+        }
+
+        @Override
+        public void onUsbDeviceLost(UsbDevice usbDevice) {
+            UsbDeviceManager.this.onUsbDeviceLost(usbDevice);
+        }
+    };
+
+    @AnyThread
     private void onUsbDeviceLost(UsbDevice usbDevice) {
         HwTimber.d("Lost USB security key, dropping managed device");
         synchronized (managedUsbDevices) {
@@ -274,147 +286,30 @@ public class UsbDeviceManager {
         }
     }
 
-    @WorkerThread
+    @AnyThread
     private void onIccConnect(UsbDevice usbDevice, UsbInterface usbInterface) {
         synchronized (managedUsbDevices) {
             ManagedUsbDevice managedUsbDevice = managedUsbDevices.get(usbDevice);
+            if (managedUsbDevice == null) {
+                HwTimber.d("Device already dropped");
+                return;
+            }
             managedUsbDevice.createNewActiveUsbTransport(usbInterface);
         }
     }
 
-    @WorkerThread
+    @AnyThread
     private void onIccDisconnect(UsbDevice usbDevice, UsbInterface usbInterface) {
         if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
             HwTimber.d("ICC disconnected on interface %s", usbInterface.getName());
         }
         synchronized (managedUsbDevices) {
             ManagedUsbDevice managedUsbDevice = managedUsbDevices.get(usbDevice);
-            managedUsbDevice.clearActiveUsbTransport(usbInterface);
-        }
-    }
-
-    private abstract class UsbMonitorThread extends Thread {
-        final ManagedUsbDevice managedUsbDevice;
-
-        UsbMonitorThread(ManagedUsbDevice managedUsbDevice) {
-            this.managedUsbDevice = managedUsbDevice;
-        }
-
-        @Override
-        public void run() {
-            try {
-                loopMonitorUsb();
-            } finally {
-                onUsbDeviceLost(managedUsbDevice.usbDevice);
-            }
-        }
-
-        @WorkerThread
-        abstract void loopMonitorUsb();
-
-        @WorkerThread
-        void sleepInterruptibly(long time) {
-            try {
-                Thread.sleep(time);
-            } catch (InterruptedException e) {
-                // nvm
-            }
-        }
-
-        @AnyThread
-        boolean deviceIsStillConnected() {
-            return UsbUtils.isDeviceStillConnected(usbManager, managedUsbDevice.usbDevice);
-        }
-    }
-
-    private class UsbSimpleMonitorThread extends UsbMonitorThread {
-        final List<UsbInterface> usbInterfaces;
-
-        private UsbSimpleMonitorThread(ManagedUsbDevice managedUsbDevice, List<UsbInterface> usbInterfaces) {
-            super(managedUsbDevice);
-            this.usbInterfaces = usbInterfaces;
-        }
-
-        @WorkerThread
-        void loopMonitorUsb() {
-            HwTimber.d("Simple device, assuming all ICCs are connected");
-            for (UsbInterface usbInterface : usbInterfaces) {
-                onIccConnect(managedUsbDevice.usbDevice, usbInterface);
-            }
-            while (deviceIsStillConnected()) {
-                sleepInterruptibly(250);
-            }
-        }
-    }
-
-    private class UsbInterruptMonitorThread extends UsbMonitorThread {
-        // https://www.usb.org/sites/default/files/DWG_Smart-Card_CCID_Rev110.pdf
-        // 6.3.1 RDR_to_PC_NotifySlotChange
-        static final int CCID_NOTIFY_SLOT_CHANGE = 0x50;
-        static final int ICC_SLOT_CHANGE_NOT_PRESENT = 0x02;
-        static final int ICC_SLOT_CHANGE_PRESENT = 0x03;
-
-        private final Map<UsbEndpoint, UsbInterface> usbInterruptEndpoints;
-
-        private UsbInterruptMonitorThread(ManagedUsbDevice managedUsbDevice, Map<UsbEndpoint, UsbInterface> usbInterruptEndpoints) {
-            super(managedUsbDevice);
-            this.usbInterruptEndpoints = usbInterruptEndpoints;
-        }
-
-        @WorkerThread
-        void loopMonitorUsb() {
-            for (UsbEndpoint usbInterruptEndpoint : usbInterruptEndpoints.keySet()) {
-                ByteBuffer responseBuffer = ByteBuffer.allocate(usbInterruptEndpoint.getMaxPacketSize());
-                UsbRequest usbRequest = new UsbRequest();
-                usbRequest.initialize(managedUsbDevice.usbConnection, usbInterruptEndpoint);
-                usbRequest.setClientData(responseBuffer);
-                usbRequest.queue(responseBuffer, responseBuffer.capacity());
-            }
-
-            HwTimber.d("Listening…");
-            while (deviceIsStillConnected()) {
-                UsbRequest returnedRequest = managedUsbDevice.usbConnection.requestWait();
-                if (returnedRequest == null) {
-                    HwTimber.d("Got error listening on interrupt endpoint");
-                    break;
-                }
-
-                ByteBuffer responseBuffer = (ByteBuffer) returnedRequest.getClientData();
-                responseBuffer.rewind();
-
-                byte bMessageType = responseBuffer.get();
-                switch (bMessageType) {
-                    case CCID_NOTIFY_SLOT_CHANGE: {
-                        // Note: All ICC devices we worked with so far had exactly one slot. We make the simplifying
-                        // assumption here that this is always the case.
-                        byte bmSlotIccState = responseBuffer.get();
-                        UsbInterface usbInterface = usbInterruptEndpoints.get(returnedRequest.getEndpoint());
-                        if (bmSlotIccState == ICC_SLOT_CHANGE_PRESENT) {
-                            HwTimber.d("ICC state change: slot 0 connected");
-                            onIccConnect(managedUsbDevice.usbDevice, usbInterface);
-                        } else if (bmSlotIccState == ICC_SLOT_CHANGE_NOT_PRESENT) {
-                            HwTimber.d("ICC state change: slot 0 disconnected");
-                            onIccDisconnect(managedUsbDevice.usbDevice, usbInterface);
-                        } else {
-                            HwTimber.e("Ignoring unknown ICC state change 0x%x", bmSlotIccState);
-                        }
-                        break;
-                    }
-                    case 0x00: {
-                        HwTimber.d("Ignoring 0x00 message on interrupt endpoint");
-                        break;
-                    }
-                    default: {
-                        HwTimber.e("Got unexpected message type 0x%x on interrupt endpoint!", bMessageType);
-                        String bufferHex = Hex.encodeHexString(responseBuffer.array());
-                        HwTimber.e("Buffer: %s", bufferHex);
-                        break;
-                    }
-                }
-
-                returnedRequest.queue(responseBuffer, responseBuffer.capacity());
-                sleepInterruptibly(100);
+            if (managedUsbDevice == null) {
+                HwTimber.d("Device already dropped");
+                return;
             }
+            managedUsbDevice.clearActiveUsbTransport(usbInterface);
         }
     }
 
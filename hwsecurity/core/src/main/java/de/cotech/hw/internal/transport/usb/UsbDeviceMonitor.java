@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.UiThread;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Monitors all managed USB devices for detachment and ICC slot changes.
+ * <p>
+ * Detachment of any device is detected by a single {@link UsbManager#ACTION_USB_DEVICE_DETACHED} receiver, which is
+ * registered while at least one device is monitored. Devices with only CCID interfaces additionally get a reader
+ * that blocks in {@link UsbDeviceConnection#requestWait()} for RDR_to_PC_NotifySlotChange messages on their interrupt
+ * endpoints. No device is polled.
+ * <p>
+ * Slot changes are not handled by a single event loop for all devices: {@link UsbDeviceConnection#requestWait()}
+ * only reaps requests queued on its own connection, and waiting on several connections from one thread would mean
+ * polling them with timeouts. There is one reader thread per CCID connection instead, which only wakes up for
+ * actual interrupts. If its requests cannot be queued, the reader stops and all ICCs of the device are assumed to be
+ * connected, as for devices without interrupt endpoints.
+ */
+class UsbDeviceMonitor {
+    // https://www.usb.org/sites/default/files/DWG_Smart-Card_CCID_Rev110.pdf
+    // 6.3.1 RDR_to_PC_NotifySlotChange
+    static final int CCID_NOTIFY_SLOT_CHANGE = 0x50;
+    static final int ICC_SLOT_CHANGE_NOT_PRESENT = 0x02;
+    static final int ICC_SLOT_CHANGE_PRESENT = 0x03;
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final UsbDeviceMonitorCallback callback;
+
+    private final Map<UsbDevice, SlotChangeReader> monitoredUsbDevices = new HashMap<>();
+    private boolean receiverRegistered = false;
+
+    UsbDeviceMonitor(Context context, UsbManager usbManager, UsbDeviceMonitorCallback callback) {
+        this.context = context;
+        this.usbManager = usbManager;
+        this.callback = callback;
+    }
+
+    private final BroadcastReceiver usbDetachedReceiver = new BroadcastReceiver() {
+        @Override
+        @UiThread
+        public void onReceive(Context context, Intent intent) {
+            if (!UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                return;
+            }
+            UsbDevice usbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (usbDevice == null) {
+                HwTimber.e("Missing EXTRA_DEVICE in Intent!");
+                return;
+            }
+            synchronized (monitoredUsbDevices) {
+                if (!monitoredUsbDevices.containsKey(usbDevice)) {
+                    return;
+                }
+            }
+            HwTimber.d("USB device detached (%s)", usbDevice.getDeviceName());
+            stopMonitoring(usbDevice);
+            callback.onUsbDeviceLost(usbDevice);
+        }
+    };
+
+    /**
+     * Starts monitoring a device. If it only has CCID interfaces with interrupt endpoints, ICCs are reported as
+     * they are inserted. Otherwise, all ICCs are assumed to be connected, and are reported immediately.
+     */
+    @AnyThread
+    void startMonitoring(UsbDevice usbDevice, UsbDeviceConnection usbConnection, List<UsbInterface> usbInterfaces,
+            Map<UsbEndpoint, UsbInterface> interruptEndpoints) {
+        synchronized (monitoredUsbDevices) {
+            if (monitoredUsbDevices.containsKey(usbDevice)) {
+                return;
+            }
+            SlotChangeReader slotChangeReader = null;
+            if (!interruptEndpoints.isEmpty()) {
+                slotChangeReader = new SlotChangeReader(usbDevice, usbConnection, interruptEndpoints);
+            }
+            monitoredUsbDevices.put(usbDevice, slotChangeReader);
+            if (!receiverRegistered) {
+                context.registerReceiver(usbDetachedReceiver, new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED));
+                receiverRegistered = true;
+            }
+            if (slotChangeReader != null) {
+                slotChangeReader.start();
+            }
+        }
+
+        if (interruptEndpoints.isEmpty()) {
+            HwTimber.d("Simple device, assuming all ICCs are connected");
+            for (UsbInterface usbInterface : usbInterfaces) {
+                callback.onIccConnect(usbDevice, usbInterface);
+            }
+        }
+
+        // the device might have been detached before our receiver was registered
+        if (!UsbUtils.isDeviceStillConnected(usbManager, usbDevice)) {
+            stopMonitoring(usbDevice);
+            callback.onUsbDeviceLost(usbDevice);
+        }
+    }
+
+    @AnyThread
+    void stopMonitoring(UsbDevice usbDevice) {
+        synchronized (monitoredUsbDevices) {
+            if (!monitoredUsbDevices.containsKey(usbDevice)) {
+                return;
+            }
+            SlotChangeReader slotChangeReader = monitoredUsbDevices.remove(usbDevice);
+            if (slotChangeReader != null) {
+                slotChangeReader.cancel();
+            }
+            if (monitoredUsbDevices.isEmpty()) {
+                unregisterReceiver();
+            }
+        }
+    }
+
+    @AnyThread
+    void stopMonitoringAll() {
+        synchronized (monitoredUsbDevices) {
+            for (SlotChangeReader slotChangeReader : monitoredUsbDevices.values()) {
+                if (slotChangeReader != null) {
+                    slotChangeReader.cancel();
+                }
+            }
+            monitoredUsbDevices.clear();
+            unregisterReceiver();
+        }
+    }
+
+    @AnyThread
+    boolean isMonitoring(UsbDevice usbDevice) {
+        synchronized (monitoredUsbDevices) {
+            return monitoredUsbDevices.containsKey(usbDevice);
+        }
+    }
+
+    private void unregisterReceiver() {
+        if (receiverRegistered) {
+            context.unregisterReceiver(usbDetachedReceiver);
+            receiverRegistered = false;
+        }
+    }
+
+    @VisibleForTesting
+    UsbRequest createUsbRequest() {
+        return new UsbRequest();
+    }
+
+    private class SlotChangeReader extends Thread {
+        private final UsbDevice usbDevice;
+        private final UsbDeviceConnection usbConnection;
+        private final Map<UsbEndpoint, UsbInterface> usbInterruptEndpoints;
+        private final List<UsbRequest> usbRequests = new ArrayList<>();
+        private volatile boolean cancelled = false;
+
+        SlotChangeReader(UsbDevice usbDevice, UsbDeviceConnection usbConnection,
+                Map<UsbEndpoint, UsbInterface> usbInterruptEndpoints) {
+            super("usb-slot-change-" + usbDevice.getDeviceName());
+            this.usbDevice = usbDevice;
+            this.usbConnection = usbConnection;
+            this.usbInterruptEndpoints = usbInterruptEndpoints;
+        }
+
+        @Override
+        public void run() {
+            boolean requestsQueued;
+            try {
+                requestsQueued = loopReadSlotChanges();
+            } finally {
+                synchronized (usbRequests) {
+                    for (UsbRequest usbRequest : usbRequests) {
+                        usbRequest.close();
+                    }
+                    usbRequests.clear();
+                }
+            }
+            if (cancelled) {
+                return;
+            }
+            if (!requestsQueued) {
+                HwTimber.d("Not listening for slot changes, assuming all ICCs are connected");
+                for (UsbInterface usbInterface : new HashSet<>(usbInterruptEndpoints.values())) {
+                    callback.onIccConnect(usbDevice, usbInterface);
+                }
+                return;
+            }
+            stopMonitoring(usbDevice);
+            callback.onUsbDeviceLost(usbDevice);
+        }
+
+        @AnyThread
+        void cancel() {
+            cancelled = true;
+            synchronized (usbRequests) {
+                // makes requestWait return, so the reader notices it was cancelled
+                for (UsbRequest usbRequest : usbRequests) {
+                    usbRequest.cancel();
+                }
+            }
+        }
+
+        /**
+         * @return false if the requests could not be queued, true if the loop ended because the device was lost
+         * or the reader was cancelled
+         */
+        @WorkerThread
+        private boolean loopReadSlotChanges() {
+            synchronized (usbRequests) {
+                for (UsbEndpoint usbInterruptEndpoint : usbInterruptEndpoints.keySet()) {
+                    ByteBuffer responseBuffer = ByteBuffer.allocate(usbInterruptEndpoint.getMaxPacketSize());
+                    UsbRequest usbRequest = createUsbRequest();
+                    if (!usbRequest.initialize(usbConnection, usbInterruptEndpoint)) {
+                        HwTimber.e("Failed to initialize request on interrupt endpoint");
+                        usbRequest.close();
+                        return false;
+                    }
+                    usbRequests.add(usbRequest);
+                    usbRequest.setClientData(responseBuffer);
+                    if (!usbRequest.queue(responseBuffer, responseBuffer.capacity())) {
+                        HwTimber.e("Failed to queue request on interrupt endpoint");
+                        return false;
+                    }
+                }
+            }
+
+            HwTimber.d("Listening…");
+            while (!cancelled) {
+                UsbRequest returnedRequest = usbConnection.requestWait();
+                if (cancelled) {
+                    break;
+                }
+                if (returnedRequest == null) {
+                    HwTimber.d("Got error listening on interrupt endpoint");
+                    break;
+                }
+
+                ByteBuffer responseBuffer = (ByteBuffer) returnedRequest.getClientData();
+                responseBuffer.rewind();
+                handleInterruptMessage(responseBuffer, usbInterruptEndpoints.get(returnedRequest.getEndpoint()));
+
+                responseBuffer.clear();
+                if (!returnedRequest.queue(responseBuffer, responseBuffer.capacity())) {
+                    HwTimber.e("Failed to queue request on interrupt endpoint");
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @WorkerThread
+        private void handleInterruptMessage(ByteBuffer responseBuffer, UsbInterface usbInterface) {
+            byte bMessageType = responseBuffer.get();
+            switch (bMessageType) {
+                case CCID_NOTIFY_SLOT_CHANGE: {
+                    // Note: All ICC devices we worked with so far had exactly one slot. We make the simplifying
+                    // assumption here that this is always the case.
+                    byte bmSlotIccState = responseBuffer.get();
+                    if (bmSlotIccState == ICC_SLOT_CHANGE_PRESENT) {
+                        HwTimber.d("ICC state change: slot 0 connected");
+                        callback.onIccConnect(usbDevice, usbInterface);
+                    } else if (bmSlotIccState == ICC_SLOT_CHANGE_NOT_PRESENT) {
+                        HwTimber.d("ICC state change: slot 0 disconnected");
+                        callback.onIccDisconnect(usbDevice, usbInterface);
+                    } else {
+                        HwTimber.e("Ignoring unknown ICC state change 0x%x", bmSlotIccState);
+                    }
+                    break;
+                }
+                case 0x00: {
+                    HwTimber.d("Ignoring 0x00 message on interrupt endpoint");
+                    break;
+                }
+                default: {
+                    HwTimber.d("Ignoring message type 0x%x on interrupt endpoint", bMessageType);
+                    break;
+                }
+            }
+        }
+    }
+
+    interface UsbDeviceMonitorCallback {
+        @AnyThread
+        void onIccConnect(UsbDevice usbDevice, UsbInterface usbInterface);
+
+        @AnyThread
+        void onIccDisconnect(UsbDevice usbDevice, UsbInterface usbInterface);
+
+        @AnyThread
+        void onUsbDeviceLost(UsbDevice usbDevice);
+    }
+}
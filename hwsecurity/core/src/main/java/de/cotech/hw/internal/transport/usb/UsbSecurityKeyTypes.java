@@ -33,6 +33,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import de.cotech.hw.internal.transport.SecurityKeyInfo;
+import de.cotech.hw.internal.transport.SecurityKeyType;
 import de.cotech.hw.internal.transport.Version;
 
 
@@ -72,7 +73,7 @@ public class UsbSecurityKeyTypes {
     private static final int PRODUCT_ACR1252 = 0x223e;
 
     @Nullable
-    public static SecurityKeyInfo.SecurityKeyType getSecurityKeyTypeFromUsbDeviceInfo(int vendorId, int productId, String serialNo) {
+    public static SecurityKeyType getSecurityKeyTypeFromUsbDeviceInfo(int vendorId, int productId, String serialNo) {
         switch (vendorId) {
             case VENDOR_YUBICO: {
                 switch (productId) {
@@ -80,26 +81,26 @@ public class UsbSecurityKeyTypes {
                     case PRODUCT_YUBIKEY_NEO_CCID:
                     case PRODUCT_YUBIKEY_NEO_U2F_CCID:
                     case PRODUCT_YUBIKEY_NEO_OTP_U2F_CCID:
-                        return SecurityKeyInfo.SecurityKeyType.YUBIKEY_NEO;
+                        return SecurityKeyType.YUBIKEY_NEO;
                     case PRODUCT_YUBIKEY_4_5_CCID:
                     case PRODUCT_YUBIKEY_4_5_OTP_CCID:
                     case PRODUCT_YUBIKEY_4_5_FIDO_CCID:
                     case PRODUCT_YUBIKEY_4_5_OTP_FIDO_CCID:
-                        return SecurityKeyInfo.SecurityKeyType.YUBIKEY_4_5;
+                        return SecurityKeyType.YUBIKEY_4_5;
                 }
                 break;
             }
             case VENDOR_NITROKEY: {
                 switch (productId) {
                     case PRODUCT_NITROKEY_PRO:
-                        return SecurityKeyInfo.SecurityKeyType.NITROKEY_PRO;
+                        return SecurityKeyType.NITROKEY_PRO;
                     case PRODUCT_NITROKEY_START:
                         Version gnukVersion = SecurityKeyInfo.parseGnukVersionString(serialNo);
                         boolean versionGreaterEquals125 = gnukVersion != null
                                 && Version.create("1.2.5").compareTo(gnukVersion) <= 0;
-                        return versionGreaterEquals125 ? SecurityKeyInfo.SecurityKeyType.NITROKEY_START_1_25_AND_NEWER : SecurityKeyInfo.SecurityKeyType.NITROKEY_START_OLD;
+                        return versionGreaterEquals125 ? SecurityKeyType.NITROKEY_START_1_25_AND_NEWER : SecurityKeyType.NITROKEY_START_OLD;
                     case PRODUCT_NITROKEY_STORAGE:
-                        return SecurityKeyInfo.SecurityKeyType.NITROKEY_STORAGE;
+                        return SecurityKeyType.NITROKEY_STORAGE;
                 }
                 break;
             }
@@ -107,33 +108,33 @@ public class UsbSecurityKeyTypes {
                 Version gnukVersion = SecurityKeyInfo.parseGnukVersionString(serialNo);
                 boolean versionGreaterEquals125 = gnukVersion != null
                         && Version.create("1.2.5").compareTo(gnukVersion) <= 0;
-                return versionGreaterEquals125 ? SecurityKeyInfo.SecurityKeyType.GNUK_1_25_AND_NEWER : SecurityKeyInfo.SecurityKeyType.GNUK_OLD;
+                return versionGreaterEquals125 ? SecurityKeyType.GNUK_1_25_AND_NEWER : SecurityKeyType.GNUK_OLD;
             }
             case VENDOR_LEDGER: {
-                return SecurityKeyInfo.SecurityKeyType.LEDGER_NANO_S;
+                return SecurityKeyType.LEDGER_NANO_S;
             }
             case VENDOR_ONLYKEY1: {
                 switch (productId) {
                     case PRODUCT_ONLYKEY1:
-                        return SecurityKeyInfo.SecurityKeyType.ONLYKEY;
+                        return SecurityKeyType.ONLYKEY;
                 }
             }
             case VENDOR_ONLYKEY2: {
                 switch (productId) {
                     case PRODUCT_ONLYKEY2:
-                        return SecurityKeyInfo.SecurityKeyType.ONLYKEY;
+                        return SecurityKeyType.ONLYKEY;
                 }
             }
             case VENDOR_GEMALTO: {
                 switch (productId) {
                     case PRODUCT_PROX_DU:
-                        return SecurityKeyInfo.SecurityKeyType.GEMALTO_PROX_DU;
+                        return SecurityKeyType.GEMALTO_PROX_DU;
                 }
             }
             case VENDOR_ACS: {
                 switch (productId) {
                     case PRODUCT_ACR1252:
-                        return SecurityKeyInfo.SecurityKeyType.GEMALTO_PROX_DU;
+                        return SecurityKeyType.GEMALTO_PROX_DU;
                 }
             }
         }
@@ -145,25 +146,25 @@ public class UsbSecurityKeyTypes {
         return UsbSecurityKeyTypes.getSecurityKeyTypeFromUsbDeviceInfo(vendorId, productId, null) != null;
     }
 
-    private static final Map<SecurityKeyInfo.SecurityKeyType, String> SECURITY_KEY_NAMES = createTypeNameMap();
+    private static final Map<SecurityKeyType, String> SECURITY_KEY_NAMES = createTypeNameMap();
 
-    private static Map<SecurityKeyInfo.SecurityKeyType, String> createTypeNameMap() {
+    private static Map<SecurityKeyType, String> createTypeNameMap() {
         // NOTE: Only add Security Keys, do not add smartcard reader!
-        @SuppressLint("UseSparseArrays") Map<SecurityKeyInfo.SecurityKeyType, String> result = new HashMap<>();
-        result.put(SecurityKeyInfo.SecurityKeyType.YUBIKEY_NEO, "YubiKey NEO");
-        result.put(SecurityKeyInfo.SecurityKeyType.YUBIKEY_4_5, "YubiKey");
-        result.put(SecurityKeyInfo.SecurityKeyType.NITROKEY_PRO, "Nitrokey Pro");
-        result.put(SecurityKeyInfo.SecurityKeyType.NITROKEY_STORAGE, "Nitrokey Storage");
-        result.put(SecurityKeyInfo.SecurityKeyType.NITROKEY_START_OLD, "Nitrokey Start");
-        result.put(SecurityKeyInfo.SecurityKeyType.NITROKEY_START_1_25_AND_NEWER, "Nitrokey Start");
-        result.put(SecurityKeyInfo.SecurityKeyType.GNUK_OLD, "Gnuk");
-        result.put(SecurityKeyInfo.SecurityKeyType.GNUK_1_25_AND_NEWER, "Gnuk");
-        result.put(SecurityKeyInfo.SecurityKeyType.LEDGER_NANO_S, "Ledger Nano S");
-        result.put(SecurityKeyInfo.SecurityKeyType.ONLYKEY, "OnlyKey");
+        @SuppressLint("UseSparseArrays") Map<SecurityKeyType, String> result = new HashMap<>();
+        result.put(SecurityKeyType.YUBIKEY_NEO, "YubiKey NEO");
+        result.put(SecurityKeyType.YUBIKEY_4_5, "YubiKey");
+        result.put(SecurityKeyType.NITROKEY_PRO, "Nitrokey Pro");
+        result.put(SecurityKeyType.NITROKEY_STORAGE, "Nitrokey Storage");
+        result.put(SecurityKeyType.NITROKEY_START_OLD, "Nitrokey Start");
+        result.put(SecurityKeyType.NITROKEY_START_1_25_AND_NEWER, "Nitrokey Start");
+        result.put(SecurityKeyType.GNUK_OLD, "Gnuk");
+        result.put(SecurityKeyType.GNUK_1_25_AND_NEWER, "Gnuk");
+        result.put(SecurityKeyType.LEDGER_NANO_S, "Ledger Nano S");
+        result.put(SecurityKeyType.ONLYKEY, "OnlyKey");
         return Collections.unmodifiableMap(result);
     }
 
-    public static String getSecurityKeyName(SecurityKeyInfo.SecurityKeyType securityKeyType) {
+    public static String getSecurityKeyName(SecurityKeyType securityKeyType) {
         return SECURITY_KEY_NAMES.get(securityKeyType);
     }
 
@@ -38,6 +38,7 @@ import android.hardware.usb.UsbManager;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import de.cotech.hw.util.Arrays;
@@ -139,4 +140,17 @@ public class UsbUtils {
     public static boolean isDeviceStillConnected(UsbManager usbManager, UsbDevice usbDevice) {
         return usbManager.getDeviceList().containsValue(usbDevice);
     }
+
+    /**
+     * Returns an identifier for the device which is stable across connections, or null if the device
+     * doesn't report a serial number.
+     */
+    @Nullable
+    public static String getDeviceIdentity(UsbDevice usbDevice, UsbDeviceConnection usbConnection) {
+        String serial = usbConnection.getSerial();
+        if (serial == null || serial.isEmpty()) {
+            return null;
+        }
+        return String.format("%04x:%04x:%s", usbDevice.getVendorId(), usbDevice.getProductId(), serial);
+    }
 }
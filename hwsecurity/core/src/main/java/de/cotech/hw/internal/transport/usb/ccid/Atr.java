@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ccid;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import com.google.auto.value.AutoValue;
+import de.cotech.hw.util.Arrays;
+
+
+/**
+ * Answer-to-Reset, as specified in ISO 7816-3, Section 8.
+ * <p>
+ * Only the interface bytes relevant to protocol and parameter selection are interpreted.
+ * Parsing is lenient: missing or truncated interface bytes fall back to their default values.
+ */
+@AutoValue
+@RestrictTo(Scope.LIBRARY_GROUP)
+public abstract class Atr {
+    private static final byte TS_DIRECT_CONVENTION = 0x3B;
+    private static final byte TS_INVERSE_CONVENTION = 0x3F;
+
+    public static final int PROTOCOL_T0 = 0;
+    public static final int PROTOCOL_T1 = 1;
+    private static final int PROTOCOL_GLOBAL = 15;
+
+    // Fi = 372, Di = 1
+    public static final byte DEFAULT_FINDEX_DINDEX = 0x11;
+    private static final int DEFAULT_GUARD_TIME = 0;
+    private static final int DEFAULT_T0_WAITING_INTEGER = 10;
+    // ISO 7816-3, 11.4.2
+    public static final int DEFAULT_IFSC = 32;
+    // ISO 7816-3, 11.4.3: BWI = 4, CWI = 13
+    private static final int DEFAULT_T1_WAITING_INTEGERS = 0x4D;
+
+    private static final int MAX_IFSC = 254;
+
+    // ISO 7816-3, Table 7 and Table 8, indexed by Fi and Di
+    private static final int[] FI_VALUES = {
+            372, 372, 558, 744, 1116, 1488, 1860, 0, 0, 512, 768, 1024, 1536, 2048, 0, 0 };
+    private static final int[] FMAX_KHZ_VALUES = {
+            4000, 5000, 6000, 8000, 12000, 16000, 20000, 0, 0, 5000, 7500, 10000, 15000, 20000, 0, 0 };
+    private static final int[] DI_VALUES = {
+            0, 1, 2, 4, 8, 16, 32, 64, 12, 20, 0, 0, 0, 0, 0, 0 };
+
+    @SuppressWarnings("mutable")
+    public abstract byte[] getRawAtr();
+    public abstract boolean isInverseConvention();
+    /** TA1, encoding Fi and Di supported by the card. */
+    public abstract byte getFindexDindex();
+    /** TC1, extra guard time N. */
+    public abstract int getGuardTime();
+    /** TA2 is present: the card is in specific mode and doesn't accept PPS. */
+    public abstract boolean isSpecificMode();
+    /** Bitmask of protocols T offered by the card, with bit T set for protocol T. */
+    public abstract int getProtocols();
+    /** TC2, waiting integer for T=0. */
+    public abstract int getT0WaitingInteger();
+    /** First TA for T=1, information field size of the card. */
+    public abstract int getIfsc();
+    /** First TB for T=1, block and character waiting time integers. */
+    public abstract int getT1WaitingIntegers();
+    /** First TC for T=1, bit 1 selects CRC instead of LRC as error detection code. */
+    public abstract boolean isT1CrcChecksum();
+    @SuppressWarnings("mutable")
+    public abstract byte[] getHistoricalBytes();
+
+    @NonNull
+    public static Atr fromBytes(byte[] atr) {
+        if (atr == null) {
+            atr = new byte[0];
+        }
+
+        boolean inverseConvention = atr.length > 0 && atr[0] == TS_INVERSE_CONVENTION;
+        byte findexDindex = DEFAULT_FINDEX_DINDEX;
+        int guardTime = DEFAULT_GUARD_TIME;
+        boolean specificMode = false;
+        int protocols = 0;
+        int t0WaitingInteger = DEFAULT_T0_WAITING_INTEGER;
+        int ifsc = DEFAULT_IFSC;
+        int t1WaitingIntegers = DEFAULT_T1_WAITING_INTEGERS;
+        boolean t1CrcChecksum = false;
+        boolean hasT1Ta = false, hasT1Tb = false, hasT1Tc = false;
+        int historicalBytesCount = 0;
+
+        int offset = 1;
+        if (offset < atr.length) {
+            int t0 = atr[offset++] & 0xff;
+            historicalBytesCount = t0 & 0x0f;
+
+            int interfaceBytesIndicator = (t0 >> 4) & 0x0f;
+            int groupIndex = 1;
+            int previousProtocol = -1;
+            while (true) {
+                Integer ta = null, tb = null, tc = null;
+                if ((interfaceBytesIndicator & 0x1) != 0 && offset < atr.length) {
+                    ta = atr[offset++] & 0xff;
+                }
+                if ((interfaceBytesIndicator & 0x2) != 0 && offset < atr.length) {
+                    tb = atr[offset++] & 0xff;
+                }
+                if ((interfaceBytesIndicator & 0x4) != 0 && offset < atr.length) {
+                    tc = atr[offset++] & 0xff;
+                }
+
+                if (groupIndex == 1) {
+                    if (ta != null) {
+                        findexDindex = (byte) (int) ta;
+                    }
+                    if (tc != null) {
+                        guardTime = tc;
+                    }
+                } else if (groupIndex == 2) {
+                    specificMode = ta != null;
+                    if (tc != null) {
+                        t0WaitingInteger = tc;
+                    }
+                } else if (previousProtocol == PROTOCOL_T1) {
+                    if (ta != null && !hasT1Ta) {
+                        hasT1Ta = true;
+                        ifsc = ta >= 1 && ta <= MAX_IFSC ? ta : DEFAULT_IFSC;
+                    }
+                    if (tb != null && !hasT1Tb) {
+                        hasT1Tb = true;
+                        t1WaitingIntegers = tb;
+                    }
+                    if (tc != null && !hasT1Tc) {
+                        hasT1Tc = true;
+                        t1CrcChecksum = (tc & 0x01) != 0;
+                    }
+                }
+
+                if ((interfaceBytesIndicator & 0x8) == 0 || offset >= atr.length) {
+                    break;
+                }
+
+                int td = atr[offset++] & 0xff;
+                previousProtocol = td & 0x0f;
+                if (previousProtocol != PROTOCOL_GLOBAL) {
+                    protocols |= 1 << previousProtocol;
+                }
+                interfaceBytesIndicator = (td >> 4) & 0x0f;
+                groupIndex++;
+            }
+        }
+
+        if (protocols == 0) {
+            // without TD1, only T=0 is offered
+            protocols = 1 << PROTOCOL_T0;
+        }
+
+        int historicalBytesEnd = Math.min(atr.length, offset + historicalBytesCount);
+        byte[] historicalBytes = offset < historicalBytesEnd ?
+                Arrays.copyOfRange(atr, offset, historicalBytesEnd) : new byte[0];
+
+        return new AutoValue_Atr(atr, inverseConvention, findexDindex, guardTime, specificMode, protocols,
+                t0WaitingInteger, ifsc, t1WaitingIntegers, t1CrcChecksum, historicalBytes);
+    }
+
+    public boolean isValid() {
+        byte[] rawAtr = getRawAtr();
+        return rawAtr.length >= 2 &&
+                (rawAtr[0] == TS_DIRECT_CONVENTION || rawAtr[0] == TS_INVERSE_CONVENTION);
+    }
+
+    public boolean supportsProtocol(int protocol) {
+        return (getProtocols() & (1 << protocol)) != 0;
+    }
+
+    public int getFindex() {
+        return (getFindexDindex() >> 4) & 0x0f;
+    }
+
+    public int getDindex() {
+        return getFindexDindex() & 0x0f;
+    }
+
+    /** Clock rate conversion integer Fi for the given index, or 0 if the index is reserved. */
+    static int getFi(int findex) {
+        return FI_VALUES[findex & 0x0f];
+    }
+
+    /** Maximum clock frequency in kHz for the given Fi index, or 0 if the index is reserved. */
+    static int getFmaxKhz(int findex) {
+        return FMAX_KHZ_VALUES[findex & 0x0f];
+    }
+
+    /** Baud rate adjustment integer Di for the given index, or 0 if the index is reserved. */
+    static int getDi(int dindex) {
+        return DI_VALUES[dindex & 0x0f];
+    }
+}
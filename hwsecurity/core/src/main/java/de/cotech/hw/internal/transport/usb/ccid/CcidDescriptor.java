@@ -48,7 +48,9 @@ abstract class CcidDescriptor {
 
     // dwFeatures Masks
     private static final int FEATURE_AUTOMATIC_VOLTAGE = 0x00008;
+    private static final int FEATURE_AUTOMATIC_NEGOTIATION = 0x00040;
     private static final int FEATURE_AUTOMATIC_PPS = 0x00080;
+    private static final int FEATURE_AUTOMATIC_IFSD = 0x00400;
 
     private static final int FEATURE_EXCHANGE_LEVEL_TPDU = 0x10000;
     private static final int FEATURE_EXCHANGE_LEVEL_SHORT_APDU = 0x20000;
@@ -60,6 +62,9 @@ abstract class CcidDescriptor {
     private static final byte VOLTAGE_1_8V = 4;
 
     private static final int SLOT_OFFSET = 4;
+    private static final int DEFAULT_CLOCK_OFFSET = 10;
+    private static final int MAX_DATA_RATE_OFFSET = 23;
+    private static final int MAX_IFSD_OFFSET = 28;
     private static final int FEATURES_OFFSET = 40;
     private static final short MASK_T0_PROTO = 1;
     private static final short MASK_T1_PROTO = 2;
@@ -68,15 +73,27 @@ abstract class CcidDescriptor {
     public abstract byte getVoltageSupport();
     public abstract int getProtocols();
     public abstract int getFeatures();
+    public abstract int getMaxIfsd();
+    /** Default ICC clock frequency in kHz. */
+    public abstract int getDefaultClock();
+    /** Maximum data rate in bps. */
+    public abstract int getMaxDataRate();
 
     @VisibleForTesting
     static CcidDescriptor fromValues(byte maxSlotIndex, byte voltageSupport, int protocols, int features) {
-        return new AutoValue_CcidDescriptor(maxSlotIndex, voltageSupport, protocols, features);
+        return fromValues(maxSlotIndex, voltageSupport, protocols, features, 0, 0, 0);
+    }
+
+    @VisibleForTesting
+    static CcidDescriptor fromValues(byte maxSlotIndex, byte voltageSupport, int protocols, int features,
+            int maxIfsd, int defaultClock, int maxDataRate) {
+        return new AutoValue_CcidDescriptor(maxSlotIndex, voltageSupport, protocols, features, maxIfsd,
+                defaultClock, maxDataRate);
     }
 
     @NonNull
     static CcidDescriptor fromRawDescriptors(byte[] desc) throws UsbTransportException {
-        int dwProtocols = 0, dwFeatures = 0;
+        int dwProtocols = 0, dwFeatures = 0, dwMaxIfsd = 0, dwDefaultClock = 0, dwMaxDataRate = 0;
         byte bMaxSlotIndex = 0, bVoltageSupport = 0;
 
         boolean hasCcidDescriptor = false;
@@ -97,6 +114,21 @@ abstract class CcidDescriptor {
 
                 byteBuffer.reset();
 
+                byteBuffer.position(byteBuffer.position() + DEFAULT_CLOCK_OFFSET);
+                dwDefaultClock = byteBuffer.getInt();
+
+                byteBuffer.reset();
+
+                byteBuffer.position(byteBuffer.position() + MAX_DATA_RATE_OFFSET);
+                dwMaxDataRate = byteBuffer.getInt();
+
+                byteBuffer.reset();
+
+                byteBuffer.position(byteBuffer.position() + MAX_IFSD_OFFSET);
+                dwMaxIfsd = byteBuffer.getInt();
+
+                byteBuffer.reset();
+
                 byteBuffer.position(byteBuffer.position() + FEATURES_OFFSET);
                 dwFeatures = byteBuffer.getInt();
                 hasCcidDescriptor = true;
@@ -110,7 +142,8 @@ abstract class CcidDescriptor {
             throw new UsbTransportException("CCID descriptor not found");
         }
 
-        return new AutoValue_CcidDescriptor(bMaxSlotIndex, bVoltageSupport, dwProtocols, dwFeatures);
+        return new AutoValue_CcidDescriptor(bMaxSlotIndex, bVoltageSupport, dwProtocols, dwFeatures, dwMaxIfsd,
+                dwDefaultClock, dwMaxDataRate);
     }
 
     Voltage[] getVoltages() {
@@ -160,6 +193,51 @@ abstract class CcidDescriptor {
         return hasFeature(FEATURE_AUTOMATIC_PPS);
     }
 
+    boolean hasAutomaticIfsd() {
+        return hasFeature(FEATURE_AUTOMATIC_IFSD);
+    }
+
+    boolean hasAutomaticParameterNegotiation() {
+        return hasFeature(FEATURE_AUTOMATIC_NEGOTIATION);
+    }
+
+    /**
+     * Selects the Fi/Di pair with the highest data rate supported by both this reader at its default
+     * clock and the card. Candidates use Fi as announced in TA1, with Di up to the value announced in TA1.
+     *
+     * @return value for TA1/PPS1/bmFindexDindex, or the default of Fi = 372, Di = 1
+     */
+    byte selectFindexDindex(Atr atr) {
+        if (atr.isSpecificMode()) {
+            // card doesn't accept PPS, the parameters of TA1 are already in effect
+            return atr.getFindexDindex();
+        }
+
+        int findex = atr.getFindex();
+        int fi = Atr.getFi(findex);
+        int maxDi = Atr.getDi(atr.getDindex());
+        int clockKhz = getDefaultClock();
+        if (fi == 0 || maxDi == 0 || clockKhz == 0 || getMaxDataRate() == 0 || clockKhz > Atr.getFmaxKhz(findex)) {
+            return Atr.DEFAULT_FINDEX_DINDEX;
+        }
+
+        byte bestFindexDindex = Atr.DEFAULT_FINDEX_DINDEX;
+        long bestDataRate = clockKhz * 1000L / Atr.getFi(Atr.DEFAULT_FINDEX_DINDEX >> 4);
+        for (int dindex = 1; dindex < 16; dindex++) {
+            int di = Atr.getDi(dindex);
+            if (di == 0 || di > maxDi) {
+                continue;
+            }
+            long dataRate = clockKhz * 1000L * di / fi;
+            if (dataRate <= getMaxDataRate() && dataRate > bestDataRate) {
+                bestDataRate = dataRate;
+                bestFindexDindex = (byte) ((findex << 4) | dindex);
+            }
+        }
+
+        return bestFindexDindex;
+    }
+
     private boolean hasFeature(int feature) {
         return (getFeatures() & feature) != 0;
     }
@@ -26,7 +26,6 @@ package de.cotech.hw.internal.transport.usb.ccid;
 
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
@@ -37,6 +36,7 @@ import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import androidx.annotation.WorkerThread;
 import com.google.auto.value.AutoValue;
+import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
 import de.cotech.hw.util.Arrays;
 import de.cotech.hw.util.Hex;
@@ -47,10 +47,16 @@ public class CcidTransceiver {
     private static final int CCID_HEADER_LENGTH = 10;
 
     private static final int MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK = 0x80;
+    private static final int MESSAGE_TYPE_RDR_TO_PC_PARAMETERS = 0x82;
+    private static final int MESSAGE_TYPE_PC_TO_RDR_SET_PARAMETERS = 0x61;
     private static final int MESSAGE_TYPE_PC_TO_RDR_ICC_POWER_ON = 0x62;
     private static final int MESSAGE_TYPE_PC_TO_RDR_ICC_POWER_OFF = 0x63;
     private static final int MESSAGE_TYPE_PC_TO_RDR_XFR_BLOCK = 0x6f;
 
+    private static final byte TCCKS_T1 = 0x10;
+    private static final byte TCCKS_CRC = 0x01;
+    private static final byte TCCKS_INVERSE_CONVENTION = 0x02;
+
     private static final int COMMAND_STATUS_SUCCESS = 0;
     private static final int COMMAND_STATUS_TIME_EXTENSION_RQUESTED = 2;
 
@@ -61,6 +67,12 @@ public class CcidTransceiver {
     private static final int DEVICE_COMMUNICATE_TIMEOUT_MILLIS = 5000;
     private static final int DEVICE_SKIP_TIMEOUT_MILLIS = 100;
 
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    // extended APDU with 4 byte header, 3 byte Lc, 65535 bytes of data and 2 byte Le, responses are smaller
+    private static final int MAX_DATA_LENGTH = 4 + 3 + 65535 + 2;
+
+    private static final byte[] EMPTY_DATA = new byte[0];
+
 
     private final UsbDeviceConnection usbConnection;
     private final UsbEndpoint usbBulkIn;
@@ -68,6 +80,10 @@ public class CcidTransceiver {
     private final CcidDescriptor usbCcidDescription;
     private final byte[] inputBuffer;
 
+    // Reused across calls: header and payload of outgoing messages, and data of incoming messages
+    private byte[] outputBuffer;
+    private byte[] dataBuffer;
+
     private byte currentSequenceNumber;
 
 
@@ -79,6 +95,8 @@ public class CcidTransceiver {
         usbCcidDescription = ccidDescription;
 
         inputBuffer = new byte[usbBulkIn.getMaxPacketSize()];
+        outputBuffer = new byte[INITIAL_BUFFER_SIZE];
+        dataBuffer = new byte[INITIAL_BUFFER_SIZE];
     }
 
     /**
@@ -134,7 +152,7 @@ public class CcidTransceiver {
 
         sendRaw(iccPowerCommand, 0, iccPowerCommand.length);
 
-        return receiveDataBlock(sequenceNumber);
+        return receiveDataBlock(sequenceNumber).withDetachedData();
     }
 
     private void iccPowerOff() throws UsbTransportException {
@@ -150,31 +168,160 @@ public class CcidTransceiver {
         sendRaw(iccPowerCommand, 0, iccPowerCommand.length);
     }
 
+    /**
+     * Sets protocol parameters of the slot, as derived from the ATR. Readers that do automatic PPS
+     * according to the active parameters will perform the PPS exchange with the card.
+     * Spec: 6.1.7 PC_to_RDR_SetParameters
+     *
+     * @param atr ATR of the card
+     * @param protocol {@link Atr#PROTOCOL_T0} or {@link Atr#PROTOCOL_T1}
+     * @param findexDindex Fi/Di to use, as encoded in TA1
+     */
+    @WorkerThread
+    public synchronized void setParameters(Atr atr, int protocol, byte findexDindex) throws UsbTransportException {
+        byte convention = atr.isInverseConvention() ? TCCKS_INVERSE_CONVENTION : 0x00;
+        byte[] protocolData;
+        if (protocol == Atr.PROTOCOL_T1) {
+            protocolData = new byte[] {
+                    findexDindex,
+                    (byte) (TCCKS_T1 | convention | (atr.isT1CrcChecksum() ? TCCKS_CRC : 0x00)),
+                    (byte) atr.getGuardTime(),
+                    (byte) atr.getT1WaitingIntegers(),
+                    0x00, // clock stop not supported
+                    (byte) atr.getIfsc(),
+                    0x00 // NAD
+            };
+        } else {
+            protocolData = new byte[] {
+                    findexDindex,
+                    convention,
+                    (byte) atr.getGuardTime(),
+                    (byte) atr.getT0WaitingInteger(),
+                    0x00 // clock stop not supported
+            };
+        }
+
+        byte sequenceNumber = currentSequenceNumber++;
+        int l = protocolData.length;
+        final byte[] setParametersHeader = {
+                MESSAGE_TYPE_PC_TO_RDR_SET_PARAMETERS,
+                (byte) l, 0x00, 0x00, 0x00,
+                SLOT_NUMBER,
+                sequenceNumber,
+                (byte) protocol,
+                0x00, 0x00 // reserved for future use
+        };
+        byte[] setParametersCommand = Arrays.concatenate(setParametersHeader, protocolData);
+
+        sendRaw(setParametersCommand, 0, setParametersCommand.length);
+
+        receiveDataBlock(sequenceNumber, MESSAGE_TYPE_RDR_TO_PC_PARAMETERS);
+        HwTimber.d("CCID: set parameters for T=%d, Fi/Di %02x", protocol, findexDindex);
+    }
+
+    /**
+     * For readers that do automatic PPS according to the active parameters, but don't select parameters
+     * on their own, sets the fastest Fi/Di supported by reader and card so the reader performs the PPS.
+     * Failures are ignored, leaving the default parameters in effect.
+     */
+    @WorkerThread
+    public synchronized void setFastestParametersForAutomaticPps(Atr atr, int protocol) throws UsbTransportException {
+        if (!hasAutomaticPps() || hasAutomaticParameterNegotiation()) {
+            return;
+        }
+        byte findexDindex = selectFindexDindex(atr);
+        if (findexDindex == Atr.DEFAULT_FINDEX_DINDEX) {
+            return;
+        }
+
+        try {
+            setParameters(atr, protocol, findexDindex);
+        } catch (UsbCcidErrorException e) {
+            HwTimber.d("CCID: reader rejected parameters, keeping defaults");
+        }
+    }
+
     /**
      * Transmits XfrBlock
      * 6.1.4 PC_to_RDR_XfrBlock
      *
      * @param payload payload to transmit
+     * @return data block, owning a copy of the response data
      */
     @WorkerThread
     public synchronized CcidDataBlock sendXfrBlock(byte[] payload) throws UsbTransportException {
+        return sendXfrBlock(payload, 0, payload.length).withDetachedData();
+    }
+
+    /**
+     * Transmits XfrBlock without intermediate allocations.
+     * 6.1.4 PC_to_RDR_XfrBlock
+     * <p>
+     * The header is written into a reused packet buffer directly in front of the payload, and
+     * the response is assembled in a reused receive buffer. The data of the returned block is
+     * therefore only valid until the next call to this transceiver, and only the first
+     * {@link CcidDataBlock#getDataLength()} bytes of it are meaningful.
+     *
+     * @param payload buffer containing the payload to transmit
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    @WorkerThread
+    public synchronized CcidDataBlock sendXfrBlock(byte[] payload, int offset, int length)
+            throws UsbTransportException {
+        ensureOutputBufferSize(length);
+        System.arraycopy(payload, offset, outputBuffer, CCID_HEADER_LENGTH, length);
+        return sendXfrBlockFromOutputBuffer(length);
+    }
+
+    /**
+     * Transmits a command APDU as XfrBlock, encoding it directly into the reused packet buffer
+     * instead of serializing it into an intermediate array first.
+     * 6.1.4 PC_to_RDR_XfrBlock
+     * <p>
+     * Like {@link #sendXfrBlock(byte[], int, int)}, the data of the returned block references the
+     * reused receive buffer, and is only valid until the next call to this transceiver.
+     *
+     * @param commandApdu command to transmit
+     */
+    @WorkerThread
+    public synchronized CcidDataBlock sendXfrBlock(CommandApdu commandApdu) throws UsbTransportException {
+        int length = commandApdu.encodedLength();
+        ensureOutputBufferSize(length);
+        commandApdu.encodeInto(ByteBuffer.wrap(outputBuffer, CCID_HEADER_LENGTH, length));
+        return sendXfrBlockFromOutputBuffer(length);
+    }
+
+    private void ensureOutputBufferSize(int dataLength) throws UsbTransportException {
+        if (dataLength > MAX_DATA_LENGTH) {
+            throw new UsbTransportException("USB-CCID error - data too long to send: " + dataLength);
+        }
+        int messageLength = CCID_HEADER_LENGTH + dataLength;
+        if (outputBuffer.length < messageLength) {
+            outputBuffer = new byte[growBufferSize(outputBuffer.length, messageLength)];
+        }
+    }
+
+    private CcidDataBlock sendXfrBlockFromOutputBuffer(int length) throws UsbTransportException {
         long startTime = SystemClock.elapsedRealtime();
 
-        int l = payload.length;
+        int messageLength = CCID_HEADER_LENGTH + length;
         byte sequenceNumber = currentSequenceNumber++;
-        byte[] headerData = {
-                MESSAGE_TYPE_PC_TO_RDR_XFR_BLOCK,
-                (byte) l, (byte) (l >> 8), (byte) (l >> 16), (byte) (l >> 24),
-                SLOT_NUMBER,
-                sequenceNumber,
-                0x00, // block waiting time
-                0x00, 0x00 // level parameters
-        };
-        byte[] data = Arrays.concatenate(headerData, payload);
+        byte[] data = outputBuffer;
+        data[0] = MESSAGE_TYPE_PC_TO_RDR_XFR_BLOCK;
+        data[1] = (byte) length;
+        data[2] = (byte) (length >> 8);
+        data[3] = (byte) (length >> 16);
+        data[4] = (byte) (length >> 24);
+        data[5] = SLOT_NUMBER;
+        data[6] = sequenceNumber;
+        data[7] = 0x00; // block waiting time
+        data[8] = 0x00; // level parameters
+        data[9] = 0x00;
 
         int sentBytes = 0;
-        while (sentBytes < data.length) {
-            int bytesToSend = Math.min(usbBulkOut.getMaxPacketSize(), data.length - sentBytes);
+        while (sentBytes < messageLength) {
+            int bytesToSend = Math.min(usbBulkOut.getMaxPacketSize(), messageLength - sentBytes);
             sendRaw(data, sentBytes, bytesToSend);
             sentBytes += bytesToSend;
         }
@@ -187,6 +334,18 @@ public class CcidTransceiver {
         return ccidDataBlock;
     }
 
+    /**
+     * Doubles the buffer size until the required size fits, but never beyond the largest possible message.
+     * Callers must have checked the required size against {@link #MAX_DATA_LENGTH}.
+     */
+    private static int growBufferSize(int currentSize, int requiredSize) {
+        long newSize = currentSize;
+        while (newSize < requiredSize) {
+            newSize *= 2;
+        }
+        return (int) Math.min(newSize, CCID_HEADER_LENGTH + MAX_DATA_LENGTH);
+    }
+
     private void skipAvailableInput() {
         int ignoredBytes;
         do {
@@ -200,9 +359,14 @@ public class CcidTransceiver {
     }
 
     private CcidDataBlock receiveDataBlock(byte expectedSequenceNumber) throws UsbTransportException {
+        return receiveDataBlock(expectedSequenceNumber, MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK);
+    }
+
+    private CcidDataBlock receiveDataBlock(byte expectedSequenceNumber, int expectedMessageType)
+            throws UsbTransportException {
         CcidDataBlock response;
         do {
-            response = receiveDataBlockImmediate(expectedSequenceNumber);
+            response = receiveDataBlockImmediate(expectedSequenceNumber, expectedMessageType);
         } while (response.isStatusTimeoutExtensionRequest());
 
         if (!response.isStatusSuccess()) {
@@ -212,15 +376,16 @@ public class CcidTransceiver {
         return response;
     }
 
-    private CcidDataBlock receiveDataBlockImmediate(byte expectedSequenceNumber) throws UsbTransportException {
+    private CcidDataBlock receiveDataBlockImmediate(byte expectedSequenceNumber, int expectedMessageType)
+            throws UsbTransportException {
         int readBytes = usbConnection.bulkTransfer(usbBulkIn, inputBuffer, inputBuffer.length, DEVICE_COMMUNICATE_TIMEOUT_MILLIS);
         if (readBytes < CCID_HEADER_LENGTH) {
             throw new UsbTransportException("USB-CCID error - failed to receive CCID header");
         }
-        if (inputBuffer[0] != (byte) MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK) {
+        if (inputBuffer[0] != (byte) expectedMessageType) {
             if (expectedSequenceNumber != inputBuffer[6]) {
                 throw new UsbTransportException("USB-CCID error - bad CCID header, type " + inputBuffer[0] + " (expected " +
-                        MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK + "), sequence number " + inputBuffer[6] + " (expected " +
+                        expectedMessageType + "), sequence number " + inputBuffer[6] + " (expected " +
                         expectedSequenceNumber + ")");
             }
 
@@ -233,22 +398,31 @@ public class CcidTransceiver {
                     expectedSequenceNumber + ", got " + result);
         }
 
-        byte[] dataBuffer = new byte[result.getDataLength()];
-        int bufferedBytes = readBytes - CCID_HEADER_LENGTH;
+        int dataLength = result.getDataLength();
+        if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
+            throw new UsbTransportException("USB-CCID error - invalid data length " + result);
+        }
+        if (dataLength == 0) {
+            return result.withData(EMPTY_DATA);
+        }
+        if (dataBuffer.length < dataLength) {
+            dataBuffer = new byte[growBufferSize(dataBuffer.length, dataLength)];
+        }
+
+        int bufferedBytes = Math.min(readBytes - CCID_HEADER_LENGTH, dataLength);
         System.arraycopy(inputBuffer, CCID_HEADER_LENGTH, dataBuffer, 0, bufferedBytes);
 
-        while (bufferedBytes < dataBuffer.length) {
+        while (bufferedBytes < dataLength) {
             readBytes = usbConnection.bulkTransfer(usbBulkIn, inputBuffer, inputBuffer.length, DEVICE_COMMUNICATE_TIMEOUT_MILLIS);
             if (readBytes < 0) {
                 throw new UsbTransportException("USB error - failed reading response data! Header: " + result);
             }
-            System.arraycopy(inputBuffer, 0, dataBuffer, bufferedBytes, readBytes);
-            bufferedBytes += readBytes;
+            int copyBytes = Math.min(readBytes, dataLength - bufferedBytes);
+            System.arraycopy(inputBuffer, 0, dataBuffer, bufferedBytes, copyBytes);
+            bufferedBytes += copyBytes;
         }
 
-        result = result.withData(dataBuffer);
-
-        return result;
+        return result.withData(dataBuffer);
     }
 
     private void sendRaw(byte[] data, int offset, int length) throws UsbTransportException {
@@ -269,7 +443,33 @@ public class CcidTransceiver {
         return usbCcidDescription.hasAutomaticPps();
     }
 
-    /** Corresponds to 6.2.1 RDR_to_PC_DataBlock. */
+    public boolean hasAutomaticIfsd() {
+        return usbCcidDescription.hasAutomaticIfsd();
+    }
+
+    public boolean hasAutomaticParameterNegotiation() {
+        return usbCcidDescription.hasAutomaticParameterNegotiation();
+    }
+
+    public byte selectFindexDindex(Atr atr) {
+        return usbCcidDescription.selectFindexDindex(atr);
+    }
+
+    /**
+     * Maximum IFSD supported by the reader for T=1, or 0 if the descriptor doesn't specify one.
+     */
+    public int getMaxIfsd() {
+        return usbCcidDescription.getMaxIfsd();
+    }
+
+    /**
+     * Corresponds to 6.2.1 RDR_to_PC_DataBlock. Also used for 6.2.3 RDR_to_PC_Parameters, where the
+     * chain parameter holds bProtocolNum.
+     * <p>
+     * Data blocks returned from the pooled transceive path reference a shared receive buffer, which
+     * may be longer than {@link #getDataLength()}. Use {@link #withDetachedData()} to obtain a copy
+     * that is safe to keep.
+     */
     @AutoValue
     public abstract static class CcidDataBlock {
         public abstract int getDataLength();
@@ -283,19 +483,20 @@ public class CcidTransceiver {
         public abstract byte[] getData();
 
         static CcidDataBlock parseHeaderFromBytes(byte[] headerBytes) {
-            ByteBuffer buf = ByteBuffer.wrap(headerBytes);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-
-            byte type = buf.get();
-            if (type != (byte) MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK) {
+            byte type = headerBytes[0];
+            if (type != (byte) MESSAGE_TYPE_RDR_TO_PC_DATA_BLOCK && type != (byte) MESSAGE_TYPE_RDR_TO_PC_PARAMETERS) {
                 throw new IllegalArgumentException("Header has incorrect type value!");
             }
-            int dwLength = buf.getInt();
-            byte bSlot = buf.get();
-            byte bSeq = buf.get();
-            byte bStatus = buf.get();
-            byte bError = buf.get();
-            byte bChainParameter = buf.get();
+            // dwLength is little endian
+            int dwLength = (headerBytes[1] & 0xff)
+                    | (headerBytes[2] & 0xff) << 8
+                    | (headerBytes[3] & 0xff) << 16
+                    | (headerBytes[4] & 0xff) << 24;
+            byte bSlot = headerBytes[5];
+            byte bSeq = headerBytes[6];
+            byte bStatus = headerBytes[7];
+            byte bError = headerBytes[8];
+            byte bChainParameter = headerBytes[9];
 
             return new AutoValue_CcidTransceiver_CcidDataBlock(
                     dwLength, bSlot, bSeq, bStatus, bError, bChainParameter, null);
@@ -310,6 +511,17 @@ public class CcidTransceiver {
                     getDataLength(), getSlot(), getSeq(), getStatus(), getError(), getChainParameter(), data);
         }
 
+        public CcidDataBlock withDetachedData() {
+            byte[] data = getData();
+            if (data == null || getDataLength() == 0) {
+                return this;
+            }
+
+            return new AutoValue_CcidTransceiver_CcidDataBlock(
+                    getDataLength(), getSlot(), getSeq(), getStatus(), getError(), getChainParameter(),
+                    Arrays.copyOfRange(data, 0, getDataLength()));
+        }
+
         byte getIccStatus() {
             return (byte) (getStatus() & 0x03);
         }
@@ -24,9 +24,13 @@
 
 package de.cotech.hw.internal.transport.usb.ccid;
 
+import java.io.IOException;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
 
 
@@ -34,4 +38,5 @@ import de.cotech.hw.internal.transport.usb.UsbTransportException;
 public interface CcidTransportProtocol {
     void connect(@NonNull CcidTransceiver transceiver) throws UsbTransportException;
     byte[] transceive(@NonNull byte[] apdu) throws UsbTransportException;
+    ResponseApdu transceive(@NonNull CommandApdu commandApdu) throws IOException;
 }
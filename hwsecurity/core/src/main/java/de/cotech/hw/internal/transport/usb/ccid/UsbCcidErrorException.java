@@ -32,7 +32,7 @@ import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver.CcidDataBlock;
 
 
 @RestrictTo(Scope.LIBRARY_GROUP)
-class UsbCcidErrorException extends UsbTransportException {
+public class UsbCcidErrorException extends UsbTransportException {
     private CcidDataBlock errorResponse;
 
     UsbCcidErrorException(String detailMessage, CcidDataBlock errorResponse) {
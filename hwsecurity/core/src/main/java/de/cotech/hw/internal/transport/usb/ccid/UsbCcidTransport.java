@@ -41,8 +41,8 @@ import androidx.annotation.RestrictTo.Scope;
 import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.internal.transport.usb.UsbSecurityKeyTypes;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
@@ -109,6 +109,12 @@ public class UsbCcidTransport implements Transport {
         return true;
     }
 
+    @Nullable
+    @Override
+    public String getDeviceIdentity() {
+        return UsbUtils.getDeviceIdentity(usbDevice, usbConnection);
+    }
+
     /**
      * Check if Transport supports persistent connections e.g connections which can
      * handle multiple operations in one session
@@ -154,15 +160,12 @@ public class UsbCcidTransport implements Transport {
         if (released) {
             throw new SecurityKeyDisconnectedException();
         }
-        byte[] rawCommand = commandApdu.toBytes();
         if (enableDebugLogging) {
             HwTimber.d("USB_CCID out: %s", commandApdu);
         }
 
         try {
-            byte[] rawResponse = ccidTransportProtocol.transceive(rawCommand);
-
-            ResponseApdu responseApdu = ResponseApdu.fromBytes(rawResponse);
+            ResponseApdu responseApdu = ccidTransportProtocol.transceive(commandApdu);
             if (enableDebugLogging) {
                 HwTimber.d("USB_CCID  in: %s", responseApdu);
             }
@@ -41,15 +41,27 @@ class Block {
     private static final int OFFSET_DATA = 3;
 
     private final byte[] blockData;
+    private final int blockLength;
     private final BlockChecksumAlgorithm checksumType;
 
     Block(BlockChecksumAlgorithm checksumType, byte[] data) throws UsbTransportException {
+        this(checksumType, data, data.length);
+    }
+
+    /**
+     * Parses a block from the first length bytes of data, without copying. The block references data,
+     * which must therefore not change while the block is in use.
+     */
+    Block(BlockChecksumAlgorithm checksumType, byte[] data, int length) throws UsbTransportException {
         this.checksumType = checksumType;
         this.blockData = data;
+        this.blockLength = length;
 
-        int checksumOffset = blockData.length - checksumType.getLength();
-        byte[] checksum = checksumType.computeChecksum(data, 0, checksumOffset);
-        if (!Arrays.areEqual(checksum, getEdc())) {
+        int checksumOffset = length - checksumType.getLength();
+        if (checksumOffset < OFFSET_DATA) {
+            throw new UsbTransportException("TPDU block too short");
+        }
+        if (!checksumType.verifyChecksum(data, 0, checksumOffset)) {
             throw new UsbTransportException("TPDU CRC doesn't match");
         }
     }
@@ -86,7 +98,8 @@ class Block {
         int lengthWithoutChecksum = length + 3;
         int checksumLength = this.checksumType.getLength();
 
-        blockData = new byte[lengthWithoutChecksum + checksumLength];
+        blockLength = lengthWithoutChecksum + checksumLength;
+        blockData = new byte[blockLength];
         blockData[0] = nad;
         blockData[1] = pcb;
         blockData[2] = (byte) length;
@@ -109,7 +122,7 @@ class Block {
     }
 
     public byte[] getEdc() {
-        return Arrays.copyOfRange(blockData, blockData.length - checksumType.getLength(), blockData.length);
+        return Arrays.copyOfRange(blockData, blockLength - checksumType.getLength(), blockLength);
     }
 
     public BlockChecksumAlgorithm getChecksumType() {
@@ -117,16 +130,36 @@ class Block {
     }
 
     public byte[] getApdu() {
-        return Arrays.copyOfRange(blockData, OFFSET_DATA, blockData.length - checksumType.getLength());
+        return Arrays.copyOfRange(blockData, OFFSET_DATA, blockLength - checksumType.getLength());
+    }
+
+    public int getApduLength() {
+        return blockLength - checksumType.getLength() - OFFSET_DATA;
     }
 
+    byte getApduByte(int index) {
+        return blockData[OFFSET_DATA + index];
+    }
+
+    void copyApduTo(byte[] buffer, int offset) {
+        System.arraycopy(blockData, OFFSET_DATA, buffer, offset, getApduLength());
+    }
+
+    /**
+     * Raw block, which is only the first {@link #getRawLength()} bytes of the returned array for
+     * blocks parsed in place.
+     */
     public byte[] getRawData() {
         return blockData;
     }
 
+    public int getRawLength() {
+        return blockLength;
+    }
+
     @Override
     public String toString() {
-        return Hex.encodeHexString(blockData);
+        return Hex.encodeHexString(Arrays.copyOfRange(blockData, 0, blockLength));
     }
 
 }
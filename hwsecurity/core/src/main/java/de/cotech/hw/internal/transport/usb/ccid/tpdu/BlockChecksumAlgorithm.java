@@ -33,6 +33,11 @@ import de.cotech.hw.internal.transport.usb.UsbTransportException;
 enum BlockChecksumAlgorithm {
     LRC(1), CRC(2);
 
+    // CRC-16 as specified in ISO 3309 (polynomial x^16 + x^12 + x^5 + 1, reflected), see ISO 7816-3, 11.2.3
+    private static final int CRC_POLYNOMIAL_REFLECTED = 0x8408;
+    private static final int CRC_INITIAL_VALUE = 0xFFFF;
+    private static final int[] CRC_TABLE = createCrcTable();
+
     private int mLength;
 
     BlockChecksumAlgorithm(int length) {
@@ -40,18 +45,56 @@ enum BlockChecksumAlgorithm {
     }
 
     public byte[] computeChecksum(byte[] data, int offset, int len) throws UsbTransportException {
+        int checksum = computeChecksumValue(data, offset, len);
+        if (this == LRC) {
+            return new byte[]{(byte) checksum};
+        } else {
+            return new byte[]{(byte) (checksum >> 8), (byte) checksum};
+        }
+    }
+
+    /**
+     * Checks the checksum that directly follows the given range, without allocating.
+     */
+    boolean verifyChecksum(byte[] data, int offset, int len) {
+        int checksum = computeChecksumValue(data, offset, len);
+        int checksumOffset = offset + len;
+        if (this == LRC) {
+            return data[checksumOffset] == (byte) checksum;
+        } else {
+            return data[checksumOffset] == (byte) (checksum >> 8) && data[checksumOffset + 1] == (byte) checksum;
+        }
+    }
+
+    private int computeChecksumValue(byte[] data, int offset, int len) {
         if (this == LRC) {
             byte res = 0;
-            for (int i = offset; i < len; i++) {
+            for (int i = offset; i < offset + len; i++) {
                 res ^= data[i];
             }
-            return new byte[]{res};
+            return res;
         } else {
-            throw new UsbTransportException("CRC checksum is not implemented");
+            int crc = CRC_INITIAL_VALUE;
+            for (int i = offset; i < offset + len; i++) {
+                crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xff];
+            }
+            return crc;
         }
     }
 
     public int getLength() {
         return mLength;
     }
+
+    private static int[] createCrcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ CRC_POLYNOMIAL_REFLECTED : crc >>> 1;
+            }
+            table[i] = crc;
+        }
+        return table;
+    }
 }
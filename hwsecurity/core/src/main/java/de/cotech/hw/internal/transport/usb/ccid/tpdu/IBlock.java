@@ -39,8 +39,8 @@ class IBlock extends Block {
     private static final byte BIT_SEQUENCE = 6;
     private static final byte BIT_CHAINING = 5;
 
-    IBlock(BlockChecksumAlgorithm checksumType, byte[] data) throws UsbTransportException {
-        super(checksumType, data);
+    IBlock(BlockChecksumAlgorithm checksumType, byte[] data, int length) throws UsbTransportException {
+        super(checksumType, data, length);
 
         if ((getPcb() & MASK_IBLOCK) != MASK_VALUE_IBLOCK) {
             throw new IllegalArgumentException("Data contained incorrect block type!");
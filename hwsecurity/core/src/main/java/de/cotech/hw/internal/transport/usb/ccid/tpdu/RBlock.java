@@ -37,14 +37,14 @@ class RBlock extends Block {
 
     private static final byte BIT_SEQUENCE = 4;
 
-    RBlock(BlockChecksumAlgorithm checksumType, byte[] data) throws UsbTransportException {
-        super(checksumType, data);
+    RBlock(BlockChecksumAlgorithm checksumType, byte[] data, int length) throws UsbTransportException {
+        super(checksumType, data, length);
 
         if ((getPcb() & MASK_RBLOCK) != MASK_VALUE_RBLOCK) {
             throw new IllegalArgumentException("Data contained incorrect block type!");
         }
 
-        if (getApdu().length != 0) {
+        if (getApduLength() != 0) {
             throw new UsbTransportException("Data in R-block");
         }
     }
@@ -36,11 +36,46 @@ class SBlock extends Block {
     static final byte MASK_SBLOCK = (byte) 0b11000000;
     static final byte MASK_VALUE_SBLOCK = (byte) 0b11000000;
 
-    SBlock(BlockChecksumAlgorithm checksumType, byte[] data) throws UsbTransportException {
-        super(checksumType, data);
+    private static final byte BIT_RESPONSE = 5;
+    private static final byte MASK_TYPE = 0b00011111;
+
+    static final byte TYPE_RESYNCH = 0;
+    static final byte TYPE_IFS = 1;
+    static final byte TYPE_ABORT = 2;
+    static final byte TYPE_WTX = 3;
+
+    SBlock(BlockChecksumAlgorithm checksumType, byte[] data, int length) throws UsbTransportException {
+        super(checksumType, data, length);
 
         if ((getPcb() & MASK_SBLOCK) != MASK_VALUE_SBLOCK) {
             throw new IllegalArgumentException("Data contained incorrect block type!");
         }
     }
+
+    SBlock(BlockChecksumAlgorithm checksumType, byte nad, byte type, boolean response, byte[] data)
+            throws UsbTransportException {
+        super(checksumType, nad, (byte) (MASK_VALUE_SBLOCK | (response ? 1 << BIT_RESPONSE : 0) | type),
+                data, 0, data.length);
+    }
+
+    byte getType() {
+        return (byte) (getPcb() & MASK_TYPE);
+    }
+
+    boolean isResponse() {
+        return ((getPcb() >> BIT_RESPONSE) & 1) != 0;
+    }
+
+    boolean isIfsRequest() {
+        return getType() == TYPE_IFS && !isResponse() && getApduLength() == 1;
+    }
+
+    boolean isIfsResponse() {
+        return getType() == TYPE_IFS && isResponse() && getApduLength() == 1;
+    }
+
+    /** Information field size, for S(IFS request) and S(IFS response) blocks. */
+    int getIfs() {
+        return getApduByte(0) & 0xff;
+    }
 }
@@ -25,10 +25,15 @@
 package de.cotech.hw.internal.transport.usb.ccid.tpdu;
 
 
+import java.io.IOException;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.usb.ccid.Atr;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver.CcidDataBlock;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransportProtocol;
@@ -40,7 +45,10 @@ public class T1ShortApduProtocol implements CcidTransportProtocol {
 
     public void connect(@NonNull CcidTransceiver transceiver) throws UsbTransportException {
         ccidTransceiver = transceiver;
-        ccidTransceiver.iccPowerOn();
+        CcidDataBlock atrBlock = ccidTransceiver.iccPowerOn();
+
+        Atr atr = Atr.fromBytes(atrBlock.getData());
+        ccidTransceiver.setFastestParametersForAutomaticPps(atr, Atr.PROTOCOL_T1);
     }
 
     @Override
@@ -48,4 +56,11 @@ public class T1ShortApduProtocol implements CcidTransportProtocol {
         CcidDataBlock response = ccidTransceiver.sendXfrBlock(apdu);
         return response.getData();
     }
+
+    @Override
+    public ResponseApdu transceive(@NonNull CommandApdu commandApdu) throws IOException {
+        // the response references the transceiver's receive buffer, parse it before the next transfer
+        CcidDataBlock response = ccidTransceiver.sendXfrBlock(commandApdu);
+        return ResponseApdu.fromBytes(response.getData(), 0, response.getDataLength());
+    }
 }
@@ -39,15 +39,21 @@ class T1TpduBlockFactory {
         this.checksumType = checksumType;
     }
 
-    Block fromBytes(byte[] data) throws UsbTransportException {
+    /**
+     * Parses the block in the first length bytes of data in place, see {@link Block#Block(BlockChecksumAlgorithm, byte[], int)}.
+     */
+    Block fromBytes(byte[] data, int length) throws UsbTransportException {
+        if (length <= Block.OFFSET_PCB) {
+            throw new UsbTransportException("TPDU block too short");
+        }
         byte pcbByte = data[Block.OFFSET_PCB];
 
         if ((pcbByte & IBlock.MASK_IBLOCK) == IBlock.MASK_VALUE_IBLOCK) {
-            return new IBlock(checksumType, data);
+            return new IBlock(checksumType, data, length);
         } else if ((pcbByte & SBlock.MASK_SBLOCK) == SBlock.MASK_VALUE_SBLOCK) {
-            return new SBlock(checksumType, data);
+            return new SBlock(checksumType, data, length);
         } else if ((pcbByte & RBlock.MASK_RBLOCK) == RBlock.MASK_VALUE_RBLOCK) {
-            return new RBlock(checksumType, data);
+            return new RBlock(checksumType, data, length);
         }
 
         throw new UsbTransportException("TPDU Unknown block type");
@@ -61,4 +67,12 @@ class T1TpduBlockFactory {
     RBlock createAckRBlock(byte receivedSeqNum) throws UsbTransportException {
         return new RBlock(checksumType, (byte) 0, (byte) (receivedSeqNum + 1));
     }
+
+    SBlock createIfsRequestSBlock(int ifsd) throws UsbTransportException {
+        return new SBlock(checksumType, (byte) 0, SBlock.TYPE_IFS, false, new byte[] { (byte) ifsd });
+    }
+
+    SBlock createIfsResponseSBlock(int ifsc) throws UsbTransportException {
+        return new SBlock(checksumType, (byte) 0, SBlock.TYPE_IFS, true, new byte[] { (byte) ifsc });
+    }
 }
@@ -25,12 +25,19 @@
 package de.cotech.hw.internal.transport.usb.ccid.tpdu;
 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.usb.ccid.Atr;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver.CcidDataBlock;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransportProtocol;
+import de.cotech.hw.internal.transport.usb.ccid.UsbCcidErrorException;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
 import de.cotech.hw.util.Arrays;
 import de.cotech.hw.util.HwTimber;
@@ -40,15 +47,25 @@ import de.cotech.hw.util.HwTimber;
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class T1TpduProtocol implements CcidTransportProtocol {
     private final static int MAX_FRAME_LEN = 254;
+    // ISO 7816-3, 11.4.2: IFSD defaults to 32 until announced otherwise
+    private final static int DEFAULT_IFSD = 32;
+    private final static int INITIAL_BUFFER_SIZE = 512;
 
     private static final byte PPS_PPPSS = (byte) 0xFF;
     private static final byte PPS_PPS0_T1 = 1;
-    private static final byte PPS_PCK = (byte) (PPS_PPPSS ^ PPS_PPS0_T1);
+    private static final byte PPS_PPS0_PPS1_PRESENT = 0x10;
 
     private CcidTransceiver ccidTransceiver;
     private T1TpduBlockFactory blockFactory;
 
     private byte sequenceCounter = 0;
+    private int ifsc = Atr.DEFAULT_IFSC;
+    private int ifsd = DEFAULT_IFSD;
+
+    // Reused across calls: encoded command APDU, and the response APDU assembled from I-blocks
+    private byte[] commandBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] responseBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int responseLength;
 
 
     public void connect(@NonNull CcidTransceiver ccidTransceiver) throws UsbTransportException {
@@ -57,50 +74,133 @@ public class T1TpduProtocol implements CcidTransportProtocol {
         }
         this.ccidTransceiver = ccidTransceiver;
 
-        this.ccidTransceiver.iccPowerOn();
+        CcidDataBlock atrBlock = this.ccidTransceiver.iccPowerOn();
+        Atr atr = Atr.fromBytes(atrBlock.getData());
+
+        ifsc = atr.getIfsc();
+        blockFactory = new T1TpduBlockFactory(
+                atr.isT1CrcChecksum() ? BlockChecksumAlgorithm.CRC : BlockChecksumAlgorithm.LRC);
 
-        // TODO: set checksum from atr
-        blockFactory = new T1TpduBlockFactory(BlockChecksumAlgorithm.LRC);
+        negotiateParameters(atr);
+
+        if (ccidTransceiver.hasAutomaticIfsd()) {
+            ifsd = MAX_FRAME_LEN;
+        } else {
+            performIfsExchange();
+        }
+        HwTimber.d("T=1 information field sizes: IFSC %d, IFSD %d", ifsc, ifsd);
+    }
 
-        boolean skipPpsExchange = ccidTransceiver.hasAutomaticPps();
-        if (!skipPpsExchange) {
-            performPpsExchange();
+    private void negotiateParameters(Atr atr) throws UsbTransportException {
+        if (ccidTransceiver.hasAutomaticParameterNegotiation()) {
+            return;
+        }
+
+        byte findexDindex = ccidTransceiver.selectFindexDindex(atr);
+        if (!ccidTransceiver.hasAutomaticPps() && !atr.isSpecificMode()) {
+            findexDindex = performPpsExchange(findexDindex);
+        }
+
+        // tell the reader about the new baud rate, readers with automatic PPS perform the PPS exchange now
+        if (findexDindex != Atr.DEFAULT_FINDEX_DINDEX) {
+            try {
+                ccidTransceiver.setParameters(atr, Atr.PROTOCOL_T1, findexDindex);
+            } catch (UsbCcidErrorException e) {
+                HwTimber.d("CCID: reader rejected parameters, keeping defaults");
+            }
         }
     }
 
-    private void performPpsExchange() throws UsbTransportException {
-        // Perform PPS, see ISO-7816, Part 9
-        byte[] pps = { PPS_PPPSS, PPS_PPS0_T1, PPS_PCK };
+    /**
+     * Performs PPS, see ISO-7816-3, Section 9.
+     *
+     * @param findexDindex requested Fi/Di, encoded as in TA1
+     * @return Fi/Di that is in effect after the exchange
+     */
+    private byte performPpsExchange(byte findexDindex) throws UsbTransportException {
+        byte[] defaultPps = createPps(Atr.DEFAULT_FINDEX_DINDEX);
+        byte[] pps = createPps(findexDindex);
 
         CcidDataBlock response = ccidTransceiver.sendXfrBlock(pps);
 
-        if (!Arrays.areEqual(pps, response.getData())) {
-            throw new UsbTransportException("Protocol and parameters (PPS) negotiation failed!");
+        if (Arrays.areEqual(pps, response.getData())) {
+            return findexDindex;
+        }
+        // the card may answer without PPS1, which keeps the default Fi/Di
+        if (Arrays.areEqual(defaultPps, response.getData())) {
+            HwTimber.d("Card did not accept Fi/Di %02x, using defaults", findexDindex);
+            return Atr.DEFAULT_FINDEX_DINDEX;
+        }
+
+        throw new UsbTransportException("Protocol and parameters (PPS) negotiation failed!");
+    }
+
+    private static byte[] createPps(byte findexDindex) {
+        if (findexDindex == Atr.DEFAULT_FINDEX_DINDEX) {
+            return new byte[] { PPS_PPPSS, PPS_PPS0_T1, (byte) (PPS_PPPSS ^ PPS_PPS0_T1) };
+        }
+
+        byte pps0 = PPS_PPS0_PPS1_PRESENT | PPS_PPS0_T1;
+        return new byte[] { PPS_PPPSS, pps0, findexDindex, (byte) (PPS_PPPSS ^ pps0 ^ findexDindex) };
+    }
+
+    private void performIfsExchange() throws UsbTransportException {
+        // Announce our IFSD, see ISO-7816-3, 11.4.2
+        int maxIfsd = ccidTransceiver.getMaxIfsd();
+        int requestedIfsd = maxIfsd > 0 ? Math.min(MAX_FRAME_LEN, maxIfsd) : MAX_FRAME_LEN;
+        if (requestedIfsd <= DEFAULT_IFSD) {
+            return;
+        }
+
+        Block requestBlock = blockFactory.createIfsRequestSBlock(requestedIfsd);
+        Block responseBlock = exchangeRawBlock(requestBlock);
+
+        if (responseBlock instanceof SBlock && ((SBlock) responseBlock).isIfsResponse() &&
+                ((SBlock) responseBlock).getIfs() == requestedIfsd) {
+            ifsd = requestedIfsd;
+        } else {
+            HwTimber.d("IFSD negotiation failed, keeping default. Response: %s", responseBlock);
         }
     }
 
     public byte[] transceive(@NonNull byte[] apdu) throws UsbTransportException {
+        transceiveIntoResponseBuffer(apdu, apdu.length);
+        return Arrays.copyOfRange(responseBuffer, 0, responseLength);
+    }
+
+    @Override
+    public ResponseApdu transceive(@NonNull CommandApdu commandApdu) throws IOException {
+        int length = commandApdu.encodedLength();
+        if (commandBuffer.length < length) {
+            commandBuffer = new byte[Math.max(length, 2 * commandBuffer.length)];
+        }
+        commandApdu.encodeInto(ByteBuffer.wrap(commandBuffer, 0, length));
+
+        transceiveIntoResponseBuffer(commandBuffer, length);
+        return ResponseApdu.fromBytes(responseBuffer, 0, responseLength);
+    }
+
+    private void transceiveIntoResponseBuffer(byte[] apdu, int apduLength) throws UsbTransportException {
         if (this.ccidTransceiver == null) {
             throw new IllegalStateException("Protocol not connected!");
         }
 
-        if (apdu.length == 0) {
+        if (apduLength == 0) {
             throw new UsbTransportException("Cant transcive zero-length apdu(tpdu)");
         }
 
-        IBlock responseBlock = sendChainedData(apdu);
-        return receiveChainedResponse(responseBlock);
+        IBlock responseBlock = sendChainedData(apdu, apduLength);
+        receiveChainedResponse(responseBlock);
     }
 
-    private IBlock sendChainedData(@NonNull byte[] apdu) throws UsbTransportException {
+    private IBlock sendChainedData(@NonNull byte[] apdu, int apduLength) throws UsbTransportException {
         int sentLength = 0;
-        while (sentLength < apdu.length) {
-            boolean hasMore = sentLength + MAX_FRAME_LEN < apdu.length;
-            int len = Math.min(MAX_FRAME_LEN, apdu.length - sentLength);
+        while (sentLength < apduLength) {
+            boolean hasMore = sentLength + ifsc < apduLength;
+            int len = Math.min(ifsc, apduLength - sentLength);
 
             Block sendBlock = blockFactory.newIBlock(sequenceCounter++, hasMore, apdu, sentLength, len);
-            CcidDataBlock response = ccidTransceiver.sendXfrBlock(sendBlock.getRawData());
-            Block responseBlock = blockFactory.fromBytes(response.getData());
+            Block responseBlock = exchangeBlock(sendBlock);
 
             sentLength += len;
 
@@ -113,7 +213,7 @@ public class T1TpduProtocol implements CcidTransportProtocol {
                     throw new UsbTransportException("R-Block reports error " + ((RBlock) responseBlock).getError());
                 }
             } else {  // I block
-                if (sentLength != apdu.length) {
+                if (sentLength != apduLength) {
                     throw new UsbTransportException("T1 frame response underflow");
                 }
                 return (IBlock) responseBlock;
@@ -123,15 +223,19 @@ public class T1TpduProtocol implements CcidTransportProtocol {
         throw new UsbTransportException("Invalid tpdu sequence state");
     }
 
-    private byte[] receiveChainedResponse(IBlock responseIBlock) throws UsbTransportException {
-        byte[] responseApdu = responseIBlock.getApdu();
+    /**
+     * Collects the response APDU in the response buffer. Response blocks are parsed in place from the
+     * transceiver's receive buffer, so each one is consumed before the next block is exchanged.
+     */
+    private void receiveChainedResponse(IBlock responseIBlock) throws UsbTransportException {
+        responseLength = 0;
+        appendToResponse(responseIBlock);
 
         while (responseIBlock.getChaining()) {
             byte receivedSeqNum = responseIBlock.getSequence();
 
             Block ackBlock = blockFactory.createAckRBlock(receivedSeqNum);
-            CcidDataBlock response = ccidTransceiver.sendXfrBlock(ackBlock.getRawData());
-            Block responseBlock = blockFactory.fromBytes(response.getData());
+            Block responseBlock = exchangeBlock(ackBlock);
 
             if (!(responseBlock instanceof IBlock)) {
                 HwTimber.e("Invalid response block received %s", responseBlock);
@@ -139,9 +243,52 @@ public class T1TpduProtocol implements CcidTransportProtocol {
             }
 
             responseIBlock = (IBlock) responseBlock;
-            responseApdu = Arrays.concatenate(responseApdu, responseBlock.getApdu());
+            appendToResponse(responseIBlock);
+        }
+    }
+
+    private void appendToResponse(IBlock responseIBlock) throws UsbTransportException {
+        int length = responseIBlock.getApduLength();
+        // ISO 7816-3, 11.4.2: the card must not send more information than our announced IFSD per block
+        if (length > ifsd) {
+            throw new UsbTransportException("I-Block exceeds IFSD " + ifsd + ": " + length + " bytes");
+        }
+        if (responseBuffer.length < responseLength + length) {
+            int newSize = Math.max(responseLength + length, 2 * responseBuffer.length);
+            responseBuffer = Arrays.copyOf(responseBuffer, newSize);
+        }
+        responseIBlock.copyApduTo(responseBuffer, responseLength);
+        responseLength += length;
+    }
+
+    /**
+     * Sends a block and returns the response, answering IFS adjustment requests of the card on the way.
+     * The returned block is only valid until the next exchange, see {@link #exchangeRawBlock(Block)}.
+     */
+    private Block exchangeBlock(Block sendBlock) throws UsbTransportException {
+        Block responseBlock = exchangeRawBlock(sendBlock);
+
+        while (responseBlock instanceof SBlock && ((SBlock) responseBlock).isIfsRequest()) {
+            int requestedIfsc = ((SBlock) responseBlock).getIfs();
+            HwTimber.d("Card requested IFSC %d", requestedIfsc);
+            if (requestedIfsc < 1 || requestedIfsc > MAX_FRAME_LEN) {
+                throw new UsbTransportException("Card requested invalid IFSC " + requestedIfsc);
+            }
+            ifsc = requestedIfsc;
+
+            Block ifsResponseBlock = blockFactory.createIfsResponseSBlock(requestedIfsc);
+            responseBlock = exchangeRawBlock(ifsResponseBlock);
         }
 
-        return responseApdu;
+        return responseBlock;
+    }
+
+    /**
+     * Sends a block and parses the response in place from the transceiver's receive buffer, so the
+     * returned block is only valid until the next transfer.
+     */
+    private Block exchangeRawBlock(Block sendBlock) throws UsbTransportException {
+        CcidDataBlock response = ccidTransceiver.sendXfrBlock(sendBlock.getRawData(), 0, sendBlock.getRawLength());
+        return blockFactory.fromBytes(response.getData(), response.getDataLength());
     }
 }
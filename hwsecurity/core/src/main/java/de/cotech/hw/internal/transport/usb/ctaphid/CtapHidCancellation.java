@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * Delivers cancellation requests to the transactions of one channel.
+ * <p>
+ * Transactions are registered before they wait for the device, so a request marks transactions that are
+ * waiting for another channel or thread as well as the one in progress. A request made while no transaction
+ * is registered is kept only if a {@link CtapHidOperation} is in progress, e.g. between two commands of one
+ * CTAP2 operation, and then marks its remaining transactions. Otherwise it is dropped, so it can't cancel an
+ * unrelated command sent later.
+ */
+final class CtapHidCancellation {
+    private final List<CtapHidTransaction> transactions = new ArrayList<>(1);
+    @Nullable
+    private CtapHidOperation operation;
+
+    @AnyThread
+    synchronized CtapHidOperation beginOperation() {
+        operation = new CtapHidOperation(this);
+        return operation;
+    }
+
+    @AnyThread
+    synchronized void endOperation(@NonNull CtapHidOperation operation) {
+        if (this.operation == operation) {
+            this.operation = null;
+        }
+    }
+
+    @AnyThread
+    synchronized void register(@NonNull CtapHidTransaction transaction) {
+        transactions.add(transaction);
+        if (operation != null && operation.isCancelRequested()) {
+            transaction.requestCancel();
+        }
+    }
+
+    @AnyThread
+    synchronized void unregister(@NonNull CtapHidTransaction transaction) {
+        transactions.remove(transaction);
+    }
+
+    @AnyThread
+    synchronized void cancel() {
+        if (operation != null) {
+            operation.requestCancel();
+        }
+        for (CtapHidTransaction transaction : transactions) {
+            transaction.requestCancel();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.util.Arrays;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.internal.transport.usb.UsbTransportException;
+
+
+/**
+ * A logical CTAPHID channel, allocated with its own channel identifier on a device that is shared with
+ * other channels.
+ * <p>
+ * Transactions on all channels of a device are serialized. A sequence of commands that must not be
+ * interleaved with other channels can be wrapped in {@link #lock(int)} and {@link #unlock()}. Keepalive
+ * messages and cancellation only concern the commands sent on this channel.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class CtapHidChannel {
+    @NonNull
+    private final CtapHidTransportProtocol protocol;
+    private final int channelId;
+    private final boolean supportsWink;
+    private final boolean supportsLock;
+    @NonNull
+    private final CtapHidCancellation cancellation = new CtapHidCancellation();
+    @Nullable
+    private volatile CtapHidKeepaliveListener keepaliveListener;
+
+    CtapHidChannel(@NonNull CtapHidTransportProtocol protocol, int channelId,
+            boolean supportsWink, boolean supportsLock) {
+        this.protocol = protocol;
+        this.channelId = channelId;
+        this.supportsWink = supportsWink;
+        this.supportsLock = supportsLock;
+    }
+
+    public int getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Sets a listener for keepalive messages received while a CTAP2 command on this channel is in progress.
+     */
+    public void setKeepaliveListener(@Nullable CtapHidKeepaliveListener keepaliveListener) {
+        this.keepaliveListener = keepaliveListener;
+    }
+
+    /**
+     * Cancels the CTAP2 command on this channel currently in progress or waiting for the device by sending
+     * CTAPHID_CANCEL with this channel's identifier. While an operation from {@link #beginOperation()} is in
+     * progress, its following commands are cancelled too.
+     */
+    @AnyThread
+    public void cancel() {
+        cancellation.cancel();
+    }
+
+    /**
+     * Begins an operation of several commands on this channel, which scopes cancel requests made between them.
+     */
+    @AnyThread
+    public CtapHidOperation beginOperation() {
+        return cancellation.beginOperation();
+    }
+
+    /**
+     * Sends a raw U2F message (CTAPHID_MSG).
+     */
+    @WorkerThread
+    public byte[] transceive(byte[] payload) throws UsbTransportException {
+        return protocol.performTransaction(channelId, CtapHidFrameFactory.CTAPHID_MSG, payload, cancellation, null);
+    }
+
+    /**
+     * Sends a CTAP2 CBOR command (CTAPHID_CBOR).
+     */
+    @WorkerThread
+    public byte[] transceiveCbor(byte[] payload) throws UsbTransportException {
+        return protocol.performTransaction(
+                channelId, CtapHidFrameFactory.CTAPHID_CBOR, payload, cancellation, keepaliveListener);
+    }
+
+    /**
+     * Sends CTAPHID_PING and checks that the same data is echoed back.
+     */
+    @WorkerThread
+    public void ping(byte[] data) throws UsbTransportException {
+        byte[] response = protocol.performTransaction(
+                channelId, CtapHidFrameFactory.CTAPHID_PING, data, cancellation, null);
+        if (!Arrays.equals(data, response)) {
+            throw new UsbTransportException("CTAPHID_PING response did not match request");
+        }
+    }
+
+    public boolean isWinkSupported() {
+        return supportsWink;
+    }
+
+    /**
+     * Asks the device to identify itself, e.g. by blinking an LED (CTAPHID_WINK).
+     *
+     * @return false if the device does not support wink
+     */
+    @WorkerThread
+    public boolean wink() throws UsbTransportException {
+        if (!supportsWink) {
+            return false;
+        }
+        protocol.performTransaction(channelId, CtapHidFrameFactory.CTAPHID_WINK, new byte[0], cancellation, null);
+        return true;
+    }
+
+    /**
+     * Locks the device to this channel for up to the given number of seconds (CTAPHID_LOCK), and holds back
+     * transactions on other channels until {@link #unlock()} is called from the same thread. On devices
+     * without lock support, only the latter applies.
+     *
+     * @param seconds lock time, between 1 and 10 seconds
+     */
+    @WorkerThread
+    public void lock(int seconds) throws UsbTransportException {
+        protocol.lockChannel(channelId, seconds, supportsLock, cancellation);
+    }
+
+    @WorkerThread
+    public void unlock() throws UsbTransportException {
+        protocol.unlockChannel(channelId, supportsLock, cancellation);
+    }
+}
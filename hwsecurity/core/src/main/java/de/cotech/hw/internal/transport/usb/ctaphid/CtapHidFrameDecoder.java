@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+import de.cotech.hw.internal.transport.usb.UsbTransportException;
+
+
+/**
+ * Decodes a CTAPHID message one packet at a time.
+ * <p>
+ * Channel, command and sequence number are checked as each packet arrives, and payload bytes are copied
+ * straight from the packet into a caller-provided destination. A decoder can be reused for any number of
+ * messages, each started with {@link #reset}.
+ */
+final class CtapHidFrameDecoder {
+    private int expectedChannelId = CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST;
+    private int channelId;
+    private byte cmdId;
+    private int payloadLength = -1;
+    private int payloadReceived;
+    private int nextSequenceIdx;
+    private byte[] destination;
+    private int destinationOffset;
+
+    void reset(int expectedChannelId) {
+        this.expectedChannelId = expectedChannelId;
+        this.payloadLength = -1;
+        this.payloadReceived = 0;
+        this.nextSequenceIdx = 0;
+        this.destination = null;
+    }
+
+    /**
+     * Reads the header of an init packet, leaving the buffer positioned at its payload.
+     * <p>
+     * Keepalive packets are passed through for any expected command, so the caller can tell them apart by the
+     * returned command identifier.
+     *
+     * @return the command identifier of the packet
+     * @throws CtapHidChangedChannelException if the packet belongs to a different channel
+     * @throws UsbTransportException if the packet is not an init packet, or carries an unexpected command
+     */
+    byte readInitPacketHeader(@NonNull ByteBuffer packet, byte expectedCmdId) throws UsbTransportException {
+        try {
+            int channelId = packet.getInt();
+            if (expectedChannelId != CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST && channelId != expectedChannelId) {
+                throw new CtapHidChangedChannelException(expectedChannelId, channelId);
+            }
+            byte cmdId = packet.get();
+            if ((cmdId & CtapHidFrameFactory.TYPE_INIT) == 0) {
+                throw new UsbTransportException("Expected init packet, got continuation packet");
+            }
+            if (cmdId == CtapHidFrameFactory.CTAPHID_ERROR) {
+                throw new UsbTransportException("CTAPHID error: 0x" + Integer.toHexString(packet.get() & 0xff));
+            }
+            if (cmdId != expectedCmdId && cmdId != CtapHidFrameFactory.CTAPHID_KEEPALIVE) {
+                throw new UsbTransportException("Command mismatch = " + (cmdId & 0xff) + " Tag = " + (expectedCmdId & 0xff));
+            }
+            int payloadLength = packet.getShort() & 0xffff;
+            if (payloadLength > CtapHidFrameFactory.MAX_LENGTH_PAYLOAD) {
+                throw new UsbTransportException("Invalid payload length: " + payloadLength);
+            }
+
+            this.channelId = channelId;
+            this.cmdId = cmdId;
+            this.payloadLength = payloadLength;
+            this.payloadReceived = 0;
+            this.nextSequenceIdx = 0;
+            return cmdId;
+        } catch (BufferUnderflowException e) {
+            throw new UsbTransportException(e);
+        }
+    }
+
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    byte getCmdId() {
+        return cmdId;
+    }
+
+    /**
+     * Copies the payload part of the init packet whose header was just read, and remembers the destination
+     * for all following continuation packets.
+     */
+    void readInitPacketPayload(@NonNull ByteBuffer packet, @NonNull byte[] destination, int destinationOffset)
+            throws UsbTransportException {
+        if (payloadLength < 0) {
+            throw new IllegalStateException("Init packet header must be read first");
+        }
+        if (destination.length - destinationOffset < payloadLength) {
+            throw new IllegalArgumentException("Destination too small for payload of " + payloadLength + " bytes");
+        }
+        this.destination = destination;
+        this.destinationOffset = destinationOffset;
+
+        copyPayload(packet, CtapHidFrameFactory.MAX_LENGTH_INIT_PACKET);
+    }
+
+    /**
+     * Reads a continuation packet of the current message.
+     *
+     * @throws CtapHidChangedChannelException if the packet belongs to a different channel
+     * @throws UsbTransportException if the packet is out of sequence
+     */
+    void readContinuationPacket(@NonNull ByteBuffer packet) throws UsbTransportException {
+        if (destination == null) {
+            throw new IllegalStateException("Init packet payload must be read first");
+        }
+        if (isComplete()) {
+            throw new IllegalStateException("Message already complete");
+        }
+
+        try {
+            int channelId = packet.getInt();
+            if (channelId != this.channelId) {
+                throw new CtapHidChangedChannelException(this.channelId, channelId);
+            }
+            byte sequenceIdx = packet.get();
+            if (sequenceIdx != nextSequenceIdx) {
+                throw new UsbTransportException(
+                        "Out of sequence packet. Sequence " + sequenceIdx + "; expected " + nextSequenceIdx);
+            }
+            nextSequenceIdx += 1;
+
+            copyPayload(packet, CtapHidFrameFactory.MAX_LENGTH_CONT_PACKET);
+        } catch (BufferUnderflowException e) {
+            throw new UsbTransportException(e);
+        }
+    }
+
+    private void copyPayload(ByteBuffer packet, int maxBlockSize) throws UsbTransportException {
+        int blockSize = Math.min(maxBlockSize, payloadLength - payloadReceived);
+        if (packet.remaining() < blockSize) {
+            throw new UsbTransportException("Packet too short");
+        }
+        packet.get(destination, destinationOffset + payloadReceived, blockSize);
+        payloadReceived += blockSize;
+    }
+
+    boolean isComplete() {
+        return payloadLength >= 0 && payloadReceived == payloadLength && destination != null;
+    }
+}
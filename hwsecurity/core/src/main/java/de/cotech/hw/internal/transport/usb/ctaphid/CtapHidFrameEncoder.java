@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+
+/**
+ * Encodes a CTAPHID message one packet at a time, directly into a caller-provided packet buffer.
+ * <p>
+ * An encoder can be reused for any number of messages, each started with {@link #begin}.
+ */
+final class CtapHidFrameEncoder {
+    private int channelId;
+    private byte cmdId;
+    private byte[] payload;
+    private int payloadOffset;
+    private int payloadEnd;
+    private int sequenceIdx;
+    private boolean initPacketWritten;
+
+    /**
+     * Starts encoding a message. The payload array is referenced, not copied, until the last packet
+     * has been written.
+     *
+     * @throws IllegalArgumentException if the command does not have bit 7 set, or the payload exceeds the
+     *                                  maximum CTAPHID message size
+     */
+    void begin(int channelId, byte cmdId, @NonNull byte[] payload) {
+        if ((cmdId & CtapHidFrameFactory.TYPE_INIT) == 0) {
+            throw new IllegalArgumentException(
+                    "Invalid command: 0x" + Integer.toHexString(cmdId) + " (expected bit 7 to be set)");
+        }
+        if (payload.length > CtapHidFrameFactory.MAX_LENGTH_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too large, CtapHid maximum is 7906 bytes!");
+        }
+
+        this.channelId = channelId;
+        this.cmdId = cmdId;
+        this.payload = payload;
+        this.payloadOffset = 0;
+        this.payloadEnd = payload.length;
+        this.sequenceIdx = 0;
+        this.initPacketWritten = false;
+    }
+
+    boolean hasNextPacket() {
+        return payload != null;
+    }
+
+    /**
+     * Writes the next init or continuation packet at the buffer's current position. Exactly
+     * {@link CtapHidFrameFactory#CTAPHID_BUFFER_SIZE} bytes are written, unused bytes are zeroed.
+     */
+    void writeNextPacket(@NonNull ByteBuffer packet) {
+        if (payload == null) {
+            throw new IllegalStateException("No packet left to encode");
+        }
+
+        int packetEnd = packet.position() + CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
+        int blockSize;
+        if (!initPacketWritten) {
+            blockSize = Math.min(CtapHidFrameFactory.MAX_LENGTH_INIT_PACKET, payloadEnd);
+            packet.putInt(channelId);
+            packet.put(cmdId);
+            packet.putShort((short) payloadEnd);
+            initPacketWritten = true;
+        } else {
+            blockSize = Math.min(CtapHidFrameFactory.MAX_LENGTH_CONT_PACKET, payloadEnd - payloadOffset);
+            packet.putInt(channelId);
+            packet.put((byte) sequenceIdx);
+            sequenceIdx += 1;
+        }
+        packet.put(payload, payloadOffset, blockSize);
+        payloadOffset += blockSize;
+
+        while (packet.position() < packetEnd) {
+            packet.put((byte) 0);
+        }
+
+        if (payloadOffset == payloadEnd) {
+            payload = null;
+        }
+    }
+}
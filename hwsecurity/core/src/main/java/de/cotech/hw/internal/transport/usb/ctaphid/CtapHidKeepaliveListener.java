@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.WorkerThread;
+
+
+/**
+ * Receives the status of CTAPHID_KEEPALIVE messages sent by the authenticator while a CTAP2 command is
+ * being processed.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public interface CtapHidKeepaliveListener {
+    /**
+     * Called for every keepalive message, on the thread performing the operation. Implementations must
+     * return quickly, the next packet is not read before this returns.
+     */
+    @WorkerThread
+    void onKeepalive(@NonNull KeepaliveType keepaliveType);
+
+    enum KeepaliveType {
+        /** The authenticator is still processing the current request. */
+        PROCESSING,
+        /** The authenticator is waiting for user presence, e.g. a touch. */
+        UPNEEDED,
+        UNKNOWN
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+
+/**
+ * Scope of an operation made of several commands on one channel, e.g. getting a PIN token before making a
+ * credential. A cancel request made between two of its commands cancels the following ones, until the
+ * operation is ended. Requests made while no operation is in progress only affect commands already sent or
+ * waiting to be sent, so they never carry over to unrelated commands sent later.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public final class CtapHidOperation {
+    private final CtapHidCancellation cancellation;
+    private volatile boolean cancelRequested;
+
+    CtapHidOperation(CtapHidCancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    @AnyThread
+    public void end() {
+        cancellation.endOperation(this);
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+}
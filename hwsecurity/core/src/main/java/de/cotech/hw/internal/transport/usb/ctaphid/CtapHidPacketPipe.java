@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.internal.transport.usb.UsbTransportException;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Packet-level I/O for a CTAPHID interface.
+ * <p>
+ * One IN and one OUT {@link UsbRequest} are initialized when the pipe is opened and re-queued for every
+ * packet until it is closed, each with its own 64 byte transfer buffer. All transfers run on the calling
+ * thread. Deadlines are enforced per operation rather than per packet, callers scale them with the number of
+ * packets they expect: on API 26+ with a timed {@link UsbDeviceConnection#requestWait(long)}, below that with
+ * a shared watchdog that cancels the in-flight request once the deadline of the current operation has passed.
+ */
+class CtapHidPacketPipe {
+    private static final long CANCEL_REAP_TIMEOUT_MS = 50;
+
+    private static ScheduledExecutorService watchdogExecutor;
+
+    @NonNull
+    private final UsbDeviceConnection usbConnection;
+    @NonNull
+    private final UsbRequest usbRequestIn;
+    @NonNull
+    private final UsbRequest usbRequestOut;
+    @NonNull
+    private final ByteBuffer inPacket;
+    @NonNull
+    private final ByteBuffer outPacket;
+
+    private long deadlineRealtime;
+    private ScheduledFuture<?> watchdog;
+    private volatile UsbRequest requestInFlight;
+    private volatile boolean deadlineExpired;
+    private boolean closed;
+
+    static CtapHidPacketPipe open(@NonNull UsbDeviceConnection usbConnection,
+            @NonNull UsbEndpoint usbEndpointIn, @NonNull UsbEndpoint usbEndpointOut,
+            @NonNull UsbRequest usbRequestIn, @NonNull UsbRequest usbRequestOut) throws UsbTransportException {
+        if (!usbRequestIn.initialize(usbConnection, usbEndpointIn)) {
+            usbRequestIn.close();
+            usbRequestOut.close();
+            throw new UsbTransportException("Read request could not be opened!");
+        }
+        if (!usbRequestOut.initialize(usbConnection, usbEndpointOut)) {
+            usbRequestIn.close();
+            usbRequestOut.close();
+            throw new UsbTransportException("Write request could not be opened!");
+        }
+        return new CtapHidPacketPipe(usbConnection, usbRequestIn, usbRequestOut);
+    }
+
+    private CtapHidPacketPipe(@NonNull UsbDeviceConnection usbConnection,
+            @NonNull UsbRequest usbRequestIn, @NonNull UsbRequest usbRequestOut) {
+        this.usbConnection = usbConnection;
+        this.usbRequestIn = usbRequestIn;
+        this.usbRequestOut = usbRequestOut;
+        // Allocating a direct buffer here *will break* on some android devices!
+        this.inPacket = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        this.outPacket = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+    }
+
+    /**
+     * Starts a new operation that must complete within the given timeout. Every packet transferred until
+     * {@link #endOperation()} is checked against the same deadline.
+     */
+    void beginOperation(int timeoutMs) {
+        endOperation();
+        deadlineExpired = false;
+        deadlineRealtime = SystemClock.elapsedRealtime() + timeoutMs;
+        if (!hasTimedRequestWait()) {
+            watchdog = getWatchdogExecutor().schedule(this::onDeadlineExpired, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void endOperation() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+    }
+
+    /**
+     * Returns the buffer the next outgoing packet should be written to. The buffer is cleared, and
+     * sent as a whole by {@link #writePacket()}.
+     */
+    @NonNull
+    ByteBuffer getOutPacket() {
+        outPacket.clear();
+        return outPacket;
+    }
+
+    @WorkerThread
+    void writePacket() throws UsbTransportException {
+        outPacket.clear();
+        transferPacket(usbRequestOut, outPacket, "Failed to send data!");
+    }
+
+    /**
+     * Receives a single packet. The returned buffer is only valid until the next call to this method.
+     */
+    @WorkerThread
+    @NonNull
+    ByteBuffer readPacket() throws UsbTransportException {
+        inPacket.clear();
+        transferPacket(usbRequestIn, inPacket, "Failed to receive data!");
+        inPacket.clear();
+        return inPacket;
+    }
+
+    private void transferPacket(UsbRequest usbRequest, ByteBuffer packet, String enqueueErrorMessage)
+            throws UsbTransportException {
+        if (closed) {
+            throw new UsbTransportException("Transport already closed");
+        }
+        checkDeadline();
+
+        requestInFlight = usbRequest;
+        try {
+            if (!usbRequest.queue(packet, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)) {
+                throw new CtapHidFailedEnqueueException(enqueueErrorMessage);
+            }
+            if (deadlineExpired) {
+                // the watchdog may have fired between the check above and queueing this request
+                usbRequest.cancel();
+            }
+            UsbRequest completedRequest = waitForRequest(usbRequest);
+            if (completedRequest != usbRequest) {
+                throw new UsbTransportException("Error transmitting data!");
+            }
+            checkDeadline();
+        } finally {
+            requestInFlight = null;
+        }
+    }
+
+    private UsbRequest waitForRequest(UsbRequest usbRequest) throws UsbTransportException {
+        if (!hasTimedRequestWait()) {
+            return usbConnection.requestWait();
+        }
+
+        long remainingMs = deadlineRealtime - SystemClock.elapsedRealtime();
+        try {
+            return usbConnection.requestWait(Math.max(remainingMs, 1));
+        } catch (TimeoutException e) {
+            usbRequest.cancel();
+            reapCancelledRequest();
+            throw new UsbTransportException("Timed out transmitting data");
+        }
+    }
+
+    private void reapCancelledRequest() {
+        try {
+            usbConnection.requestWait(CANCEL_REAP_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            HwTimber.d("Cancelled request did not complete");
+        }
+    }
+
+    private void checkDeadline() throws UsbTransportException {
+        if (deadlineExpired || SystemClock.elapsedRealtime() > deadlineRealtime) {
+            throw new UsbTransportException("Timed out transmitting data");
+        }
+    }
+
+    private void onDeadlineExpired() {
+        deadlineExpired = true;
+        UsbRequest usbRequest = requestInFlight;
+        if (usbRequest != null) {
+            usbRequest.cancel();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        endOperation();
+        usbRequestIn.close();
+        usbRequestOut.close();
+    }
+
+    private static boolean hasTimedRequestWait() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    private static synchronized ScheduledExecutorService getWatchdogExecutor() {
+        if (watchdogExecutor == null) {
+            watchdogExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CTAPHID watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return watchdogExecutor;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+
+/**
+ * A single request on a channel and the response it is waiting for. Cancellation is recorded on the
+ * transaction itself, so a request made while the transaction is still waiting for the device is not lost,
+ * and does not carry over to later transactions.
+ */
+final class CtapHidTransaction {
+    final int channelId;
+    final byte cmdId;
+    @NonNull
+    final byte[] payload;
+    @Nullable
+    final CtapHidKeepaliveListener keepaliveListener;
+
+    private volatile boolean cancelRequested;
+
+    CtapHidTransaction(int channelId, byte cmdId, @NonNull byte[] payload,
+            @Nullable CtapHidKeepaliveListener keepaliveListener) {
+        this.channelId = channelId;
+        this.cmdId = cmdId;
+        this.payload = payload;
+        this.keepaliveListener = keepaliveListener;
+    }
+
+    /**
+     * Only CTAP2 commands can be cancelled with CTAPHID_CANCEL, others are aborted on interrupt only.
+     */
+    boolean isCancellable() {
+        return cmdId == CtapHidFrameFactory.CTAPHID_CBOR;
+    }
+
+    @AnyThread
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    @AnyThread
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+}
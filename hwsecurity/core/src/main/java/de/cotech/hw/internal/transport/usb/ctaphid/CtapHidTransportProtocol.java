@@ -25,49 +25,66 @@
 package de.cotech.hw.internal.transport.usb.ctaphid;
 
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbRequest;
 
+import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
-import de.cotech.hw.internal.transport.usb.ctaphid.CtapHidFrameFactory.KeepaliveType;
+import de.cotech.hw.internal.transport.usb.ctaphid.CtapHidKeepaliveListener.KeepaliveType;
 import de.cotech.hw.util.HwTimber;
 
 
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class CtapHidTransportProtocol {
+    private static final int TIMEOUT_INIT_MS = 850;
+    private static final int TIMEOUT_WRITE_MS = 1000;
+    private static final int TIMEOUT_READ_MS = 2 * 1000;
+    // added per continuation packet, so large messages on slow interrupt endpoints do not time out
+    private static final int TIMEOUT_PER_PACKET_MS = 100;
+    private static final int MAX_LOCK_SECONDS = 10;
+
     @NonNull
     private final CtapHidInitStructFactory initStructFactory = new CtapHidInitStructFactory(new SecureRandom());
     @NonNull
     private final CtapHidFrameFactory frameFactory = new CtapHidFrameFactory();
     @NonNull
+    private final CtapHidFrameEncoder frameEncoder = new CtapHidFrameEncoder();
+    @NonNull
+    private final CtapHidFrameDecoder frameDecoder = new CtapHidFrameDecoder();
+    @NonNull
     private final UsbDeviceConnection usbCconnection;
     @NonNull
     private final UsbEndpoint usbEndpointIn;
     @NonNull
     private final UsbEndpoint usbEndpointOut;
+
+    /**
+     * The authenticator processes a single transaction at a time, across all channels. Held for the duration
+     * of each transaction, and across transactions while a channel is locked.
+     */
     @NonNull
-    private final ByteBuffer transferBuffer;
-    @NonNull
-    private final ExecutorService executor;
+    private final ReentrantLock transactionLock = new ReentrantLock(true);
 
+    private CtapHidPacketPipe packetPipe;
     private int channelId = CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST;
 
+    // keepalive listener and cancellation of the default channel, other channels keep their own
+    @Nullable
+    private volatile CtapHidKeepaliveListener keepaliveListener;
+    @NonNull
+    private final CtapHidCancellation cancellation = new CtapHidCancellation();
+
     CtapHidTransportProtocol(@NonNull UsbDeviceConnection usbCconnection,
                              @NonNull UsbEndpoint usbEndpointIn, @NonNull UsbEndpoint usbEndpointOut) {
         // noinspection ConstantConditions, checking method contract
@@ -86,173 +103,286 @@ public class CtapHidTransportProtocol {
         this.usbCconnection = usbCconnection;
         this.usbEndpointIn = usbEndpointIn;
         this.usbEndpointOut = usbEndpointOut;
-        // Allocating a direct buffer here *will break* on some android devices!
-        this.transferBuffer = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
-        this.executor = Executors.newSingleThreadExecutor();
     }
 
     @WorkerThread
     public void connect() throws UsbTransportException {
         HwTimber.d("Initializing CTAPHID transport…");
 
-        this.channelId = negotiateChannelId();
+        transactionLock.lock();
+        try {
+            if (packetPipe == null) {
+                packetPipe = CtapHidPacketPipe.open(
+                        usbCconnection, usbEndpointIn, usbEndpointOut, newUsbRequest(), newUsbRequest());
+            }
+            this.channelId = allocateChannel().channelId();
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * Allocates an additional logical channel on the same device, for callers that should not share the
+     * default channel used by {@link #transceive} and {@link #transceiveCbor}.
+     */
+    @WorkerThread
+    CtapHidChannel openChannel() throws UsbTransportException {
+        transactionLock.lock();
+        try {
+            CtapHidInitStructFactory.CtapHidInitResponse initResponse = allocateChannel();
+            return new CtapHidChannel(this, initResponse.channelId(),
+                    initResponse.supportsWink(), initResponse.supportsLock());
+        } finally {
+            transactionLock.unlock();
+        }
     }
 
-    private int negotiateChannelId() throws UsbTransportException {
-        byte[] initRequestBytes = initStructFactory.createInitRequest();
-        byte[] requestFrame = frameFactory.wrapFrame(channelId, CtapHidFrameFactory.CTAPHID_INIT, initRequestBytes);
-        writeHidPacketsToUsbDevice(requestFrame);
+    /**
+     * Releases the USB requests held for the lifetime of this connection.
+     */
+    public void close() {
+        if (packetPipe != null) {
+            packetPipe.close();
+        }
+    }
 
-        return performUsbRequestWithTimeout((thread, usbRequest) -> {
-            checkInterrupt(thread);
-            if (!usbRequest.initialize(usbCconnection, usbEndpointIn)) {
-                throw new IOException("Read request could not be opened!");
-            }
+    void setKeepaliveListener(@Nullable CtapHidKeepaliveListener keepaliveListener) {
+        this.keepaliveListener = keepaliveListener;
+    }
 
+    /**
+     * Requests cancellation of the CTAP2 command on the default channel currently in progress, or waiting to be
+     * sent. Commands on other channels are cancelled through {@link CtapHidChannel#cancel()}. If an operation
+     * from {@link #beginOperation()} is in progress, its later commands are cancelled as well, so a request
+     * between two of its commands is not lost. Without one, a request while no command is pending is dropped. The
+     * CTAPHID_CANCEL message is sent by the thread performing the operation right after its request, or as
+     * soon as the next packet arrives, which for an authenticator waiting for user presence is the next
+     * keepalive message. The operation then returns the authenticator's response, usually
+     * CTAP2_ERR_KEEPALIVE_CANCEL.
+     * <p>
+     * Interrupting the thread performing the operation has the same effect, but the operation then fails
+     * with an {@link InterruptedException} as cause.
+     */
+    @AnyThread
+    void cancel() {
+        cancellation.cancel();
+    }
+
+    /**
+     * Begins an operation on the default channel, which scopes cancel requests made between its commands.
+     */
+    @AnyThread
+    CtapHidOperation beginOperation() {
+        return cancellation.beginOperation();
+    }
+
+    private CtapHidInitStructFactory.CtapHidInitResponse allocateChannel() throws UsbTransportException {
+        int broadcastChannelId = CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST;
+        byte[] initRequestBytes = initStructFactory.createInitRequest();
+        writeMessage(broadcastChannelId, CtapHidFrameFactory.CTAPHID_INIT, initRequestBytes);
+
+        packetPipe.beginOperation(TIMEOUT_INIT_MS);
+        try {
             while (true) {
-                checkInterrupt(thread);
-                transferBuffer.clear();
-                if (!usbRequest.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)) {
-                    throw new CtapHidFailedEnqueueException("Failed to receive data!");
-                }
-                usbCconnection.requestWait();
+                // outside the try block below, running out of time must not be ignored
+                ByteBuffer packet = packetPipe.readPacket();
                 try {
-                    byte[] response = frameFactory.unwrapFrame(channelId, CtapHidFrameFactory.CTAPHID_INIT, transferBuffer.array());
+                    frameDecoder.reset(broadcastChannelId);
+                    frameDecoder.readInitPacketHeader(packet, CtapHidFrameFactory.CTAPHID_INIT);
+                    byte[] response = readMessagePayload(packet);
                     CtapHidInitStructFactory.CtapHidInitResponse initResponse = initStructFactory.parseInitResponse(response, initRequestBytes);
 
                     HwTimber.d("CTAPHID_INIT response: %s", initResponse);
-                    return initResponse.channelId();
+                    return initResponse;
                 } catch (UsbTransportException e) {
                     HwTimber.d("Ignoring unrelated INIT response");
                 }
             }
-        }, 850);
+        } finally {
+            packetPipe.endOperation();
+        }
     }
 
     @WorkerThread
     byte[] transceive(byte[] payload) throws UsbTransportException {
-        byte[] requestFrame = frameFactory.wrapFrame(channelId, CtapHidFrameFactory.CTAPHID_MSG, payload);
-        writeHidPacketsToUsbDevice(requestFrame);
-
-        byte[] responseFrame = readHidPacketsFromUsbDevice();
-        return frameFactory.unwrapFrame(channelId, CtapHidFrameFactory.CTAPHID_MSG, responseFrame);
+        return performTransaction(channelId, CtapHidFrameFactory.CTAPHID_MSG, payload, cancellation, null);
     }
 
     @WorkerThread
     byte[] transceiveCbor(byte[] payload) throws UsbTransportException {
-        byte[] requestFrame = frameFactory.wrapFrame(channelId, CtapHidFrameFactory.CTAPHID_CBOR, payload);
-        writeHidPacketsToUsbDevice(requestFrame);
-
-        while (true) {
-            byte[] responseFrame = readHidPacketsFromUsbDevice();
-            KeepaliveType keepalivePacketType = frameFactory.unwrapFrameAsKeepalivePacket(responseFrame);
-            if (keepalivePacketType != null) {
-                HwTimber.d("Received keepalive packet (%s), waiting for response..", keepalivePacketType);
-                continue;
+        return performTransaction(
+                channelId, CtapHidFrameFactory.CTAPHID_CBOR, payload, cancellation, keepaliveListener);
+    }
+
+    /**
+     * Sends a request on the given channel and reads its response. Transactions from different threads or
+     * channels are serialized, since the authenticator rejects requests on other channels as busy while a
+     * transaction is in progress.
+     *
+     * @param cancellation the cancellation of the channel, only its requests cancel this transaction
+     * @param keepaliveListener receives the keepalive messages of this transaction, or null
+     */
+    @WorkerThread
+    byte[] performTransaction(int channelId, byte cmdId, byte[] payload, @NonNull CtapHidCancellation cancellation,
+            @Nullable CtapHidKeepaliveListener keepaliveListener) throws UsbTransportException {
+        CtapHidTransaction transaction = new CtapHidTransaction(channelId, cmdId, payload, keepaliveListener);
+        // registered before waiting for the lock, so a cancel request in the meantime marks this transaction
+        cancellation.register(transaction);
+        try {
+            checkInterrupt();
+            transactionLock.lock();
+            try {
+                writeMessage(channelId, cmdId, payload);
+                return readMessage(transaction);
+            } finally {
+                transactionLock.unlock();
             }
-            return frameFactory.unwrapFrame(channelId, CtapHidFrameFactory.CTAPHID_CBOR, responseFrame);
+        } finally {
+            cancellation.unregister(transaction);
         }
     }
 
+    /**
+     * Locks the device to the given channel using CTAPHID_LOCK, for a sequence of commands that must not be
+     * interleaved with commands from other channels. Until {@link #unlockChannel} is called from the same
+     * thread, transactions from other threads are held back locally as well.
+     */
     @WorkerThread
-    private byte[] readHidPacketsFromUsbDevice() throws UsbTransportException {
-        return performUsbRequestWithTimeout((thread, usbRequest) -> {
-            checkInterrupt(thread);
+    void lockChannel(int channelId, int seconds, boolean deviceSupportsLock, @NonNull CtapHidCancellation cancellation)
+            throws UsbTransportException {
+        if (seconds < 1 || seconds > MAX_LOCK_SECONDS) {
+            throw new IllegalArgumentException("Lock time must be between 1 and " + MAX_LOCK_SECONDS + " seconds");
+        }
+        transactionLock.lock();
+        if (!deviceSupportsLock) {
+            HwTimber.d("Device does not support CTAPHID_LOCK, locking locally only");
+            return;
+        }
+        try {
+            performTransaction(channelId, CtapHidFrameFactory.CTAPHID_LOCK, new byte[] { (byte) seconds },
+                    cancellation, null);
+        } catch (UsbTransportException | RuntimeException e) {
+            transactionLock.unlock();
+            throw e;
+        }
+    }
 
-            if (!usbRequest.initialize(usbCconnection, usbEndpointIn)) {
-                throw new IOException("Read request could not be opened!");
+    @WorkerThread
+    void unlockChannel(int channelId, boolean deviceSupportsLock, @NonNull CtapHidCancellation cancellation)
+            throws UsbTransportException {
+        if (!transactionLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Channel is not locked by this thread");
+        }
+        try {
+            if (deviceSupportsLock) {
+                performTransaction(channelId, CtapHidFrameFactory.CTAPHID_LOCK, new byte[] { 0 }, cancellation, null);
             }
+        } finally {
+            transactionLock.unlock();
+        }
+    }
 
-            checkInterrupt(thread);
-            int expectedFrames = readUntilInitHeaderForChannel(usbRequest);
+    /**
+     * Reads the response to a command, discarding messages for other channels, e.g. late responses to
+     * abandoned transactions. Every keepalive message restarts the read timeout. CTAP2 commands are
+     * cancelled with CTAPHID_CANCEL when requested, others are aborted on interrupt.
+     */
+    @WorkerThread
+    private byte[] readMessage(CtapHidTransaction transaction) throws UsbTransportException {
+        int channelId = transaction.channelId;
+        byte expectedCmdId = transaction.cmdId;
+        boolean isCancellable = transaction.isCancellable();
+        boolean cancelSent = false;
 
-            byte[] data = new byte[expectedFrames * CtapHidFrameFactory.CTAPHID_BUFFER_SIZE];
-            transferBuffer.clear();
-            transferBuffer.get(data, 0, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        packetPipe.beginOperation(TIMEOUT_READ_MS);
+        try {
+            while (true) {
+                if (!isCancellable) {
+                    checkInterrupt();
+                } else if (!cancelSent && (transaction.isCancelRequested() || Thread.currentThread().isInterrupted())) {
+                    HwTimber.d("Cancelling CTAPHID operation");
+                    writeMessage(channelId, CtapHidFrameFactory.CTAPHID_CANCEL, new byte[0]);
+                    packetPipe.beginOperation(TIMEOUT_READ_MS);
+                    cancelSent = true;
+                }
 
-            int offset = CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
-            for (int i = 1; i < expectedFrames; i++) {
-                checkInterrupt(thread);
-                if (!usbRequest.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)) {
-                    throw new CtapHidFailedEnqueueException("Failed to receive data!");
+                ByteBuffer packet = packetPipe.readPacket();
+                frameDecoder.reset(channelId);
+                byte cmdId;
+                try {
+                    cmdId = frameDecoder.readInitPacketHeader(packet, expectedCmdId);
+                } catch (CtapHidChangedChannelException e) {
+                    HwTimber.d("Received message from wrong channel - ignoring");
+                    continue;
                 }
-                usbCconnection.requestWait();
-                transferBuffer.clear();
-                transferBuffer.get(data, offset, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
-                offset += CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
-            }
 
-            return data;
-        }, 2 * 1000);
-    }
+                byte[] payload = readMessagePayload(packet);
+                if (cmdId == CtapHidFrameFactory.CTAPHID_KEEPALIVE) {
+                    KeepaliveType keepaliveType = frameFactory.parseKeepalivePayload(payload);
+                    HwTimber.d("Received keepalive packet (%s), waiting for response..", keepaliveType);
+                    if (transaction.keepaliveListener != null) {
+                        transaction.keepaliveListener.onKeepalive(keepaliveType);
+                    }
+                    packetPipe.beginOperation(TIMEOUT_READ_MS);
+                    continue;
+                }
 
-    private int readUntilInitHeaderForChannel(UsbRequest usbRequest) throws IOException {
-        while (true) {
-            if (!usbRequest.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)) {
-                throw new CtapHidFailedEnqueueException("Failed to receive data!");
+                if (cancelSent) {
+                    checkInterrupt();
+                }
+                return payload;
             }
-            usbCconnection.requestWait();
+        } finally {
+            packetPipe.endOperation();
+        }
+    }
 
-            transferBuffer.clear();
+    /**
+     * Reads the payload of a message whose init packet header was just decoded, straight into the
+     * returned array. Once the length is known, the deadline is re-armed to cover the continuation packets.
+     * Packets of other channels that arrive in between, e.g. late responses to abandoned transactions, are
+     * skipped.
+     */
+    private byte[] readMessagePayload(ByteBuffer initPacket) throws UsbTransportException {
+        byte[] payload = new byte[frameDecoder.getPayloadLength()];
+        frameDecoder.readInitPacketPayload(initPacket, payload, 0);
+        if (!frameDecoder.isComplete()) {
+            int continuationPacketCount = frameFactory.calculatePacketCountForPayload(payload.length) - 1;
+            packetPipe.beginOperation(TIMEOUT_READ_MS + continuationPacketCount * TIMEOUT_PER_PACKET_MS);
+        }
+        while (!frameDecoder.isComplete()) {
             try {
-                return frameFactory.findExpectedFramesFromInitPacketHeader(channelId, transferBuffer);
+                frameDecoder.readContinuationPacket(packetPipe.readPacket());
             } catch (CtapHidChangedChannelException e) {
-                HwTimber.d("Received message from wrong channel - ignoring");
+                HwTimber.d("Received continuation packet from wrong channel - ignoring");
             }
         }
+        return payload;
     }
 
+    /**
+     * Encodes the message packet by packet straight into the transfer buffer of the USB pipe.
+     */
     @WorkerThread
-    private void writeHidPacketsToUsbDevice(byte[] hidFrame) throws UsbTransportException {
-        if ((hidFrame.length % CtapHidFrameFactory.CTAPHID_BUFFER_SIZE) != 0) {
-            throw new IllegalArgumentException("Invalid HID frame size!");
-        }
-
-        performUsbRequestWithTimeout((thread, usbRequest) -> {
-            checkInterrupt(thread);
+    private void writeMessage(int channelId, byte cmdId, byte[] payload) throws UsbTransportException {
+        frameEncoder.begin(channelId, cmdId, payload);
 
-            if (!usbRequest.initialize(usbCconnection, usbEndpointOut)) {
-                throw new IOException("Request could not be opened!");
-            }
-
-            int offset = 0;
-            while (offset < hidFrame.length) {
-                checkInterrupt(thread);
-                transferBuffer.clear();
-                transferBuffer.put(hidFrame, offset, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
-                if (!usbRequest.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)) {
-                    throw new CtapHidFailedEnqueueException("Failed to send data!");
-                }
-                usbCconnection.requestWait(); // blocking
-                offset += CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
+        int continuationPacketCount = frameFactory.calculatePacketCountForPayload(payload.length) - 1;
+        packetPipe.beginOperation(TIMEOUT_WRITE_MS + continuationPacketCount * TIMEOUT_PER_PACKET_MS);
+        try {
+            while (frameEncoder.hasNextPacket()) {
+                frameEncoder.writeNextPacket(packetPipe.getOutPacket());
+                packetPipe.writePacket();
             }
-
-            return null;
-        }, 1000);
+        } finally {
+            packetPipe.endOperation();
+        }
     }
 
-    @WorkerThread
-    private <T> T performUsbRequestWithTimeout(UsbRequestTask<T> task, int timeoutMs) throws UsbTransportException {
-        UsbRequest usbRequest = newUsbRequest();
-
-        Future<T> future = executor.submit(() -> {
-            Thread thread = Thread.currentThread();
-            try {
-                return task.performUsbRequest(thread, usbRequest);
-            } finally {
-                usbRequest.close();
-            }
-        });
-
-        try {
-            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
-        } catch (ExecutionException e) {
-            throw new UsbTransportException("Error transmitting data!", e.getCause());
-        } catch (InterruptedException e) {
-            future.cancel(true);
-            throw new UsbTransportException("Received interrupt during usb transaction", e);
-        } catch (TimeoutException e) {
-            throw new UsbTransportException("Timed out transmitting data");
+    private static void checkInterrupt() throws UsbTransportException {
+        if (Thread.currentThread().isInterrupted()) {
+            HwTimber.d("Received interrupt, canceling USB operation");
+            throw new UsbTransportException("Received interrupt during usb transaction", new InterruptedException());
         }
     }
 
@@ -265,16 +395,4 @@ public class CtapHidTransportProtocol {
     int getChannelId() {
         return channelId;
     }
-
-    interface UsbRequestTask<T> {
-        @WorkerThread
-        T performUsbRequest(Thread thread, UsbRequest request) throws IOException, InterruptedException;
-    }
-
-    private static void checkInterrupt(Thread thread) throws InterruptedException {
-        if (thread.isInterrupted()) {
-            HwTimber.d("Received interrupt, canceling USB operation");
-            throw new InterruptedException();
-        }
-    }
 }
@@ -38,16 +38,23 @@ import android.hardware.usb.UsbManager;
 import android.os.SystemClock;
 import android.util.Pair;
 
+import androidx.annotation.AnyThread;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.TransceiveCallback;
+import de.cotech.hw.internal.transport.TransceiveTask;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportScheduler;
 import de.cotech.hw.internal.transport.usb.UsbSecurityKeyTypes;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
 import de.cotech.hw.internal.transport.usb.UsbUtils;
@@ -73,7 +80,8 @@ public class UsbCtapHidTransport implements Transport {
     private final UsbDeviceConnection usbConnection;
     private final UsbInterface usbInterface;
     private boolean enableDebugLogging;
-    private CtapHidTransportProtocol ctapHidTransportProtocol;
+    private volatile CtapHidTransportProtocol ctapHidTransportProtocol;
+    private CtapHidKeepaliveListener keepaliveListener;
 
     private boolean released = false;
     private TransportReleasedCallback transportReleasedCallback;
@@ -84,9 +92,10 @@ public class UsbCtapHidTransport implements Transport {
         return new UsbCtapHidTransport(usbManager, usbDevice, usbConnection, usbInterface, enableDebugLogging);
     }
 
-    private UsbCtapHidTransport(UsbManager usbManager, UsbDevice usbDevice,
-                                UsbDeviceConnection usbConnection, UsbInterface usbInterface,
-                                boolean enableDebugLogging) {
+    @VisibleForTesting
+    UsbCtapHidTransport(UsbManager usbManager, UsbDevice usbDevice,
+                        UsbDeviceConnection usbConnection, UsbInterface usbInterface,
+                        boolean enableDebugLogging) {
         this.usbManager = usbManager;
         this.usbDevice = usbDevice;
         this.usbConnection = usbConnection;
@@ -145,12 +154,72 @@ public class UsbCtapHidTransport implements Transport {
 
         checkHidReportPrefix();
 
-        CtapHidTransportProtocol ctapHidTransportProtocol =
-                new CtapHidTransportProtocol(usbConnection, usbIntIn, usbIntOut);
+        CtapHidTransportProtocol ctapHidTransportProtocol = createTransportProtocol(usbIntIn, usbIntOut);
+        ctapHidTransportProtocol.setKeepaliveListener(keepaliveListener);
         ctapHidTransportProtocol.connect();
         this.ctapHidTransportProtocol = ctapHidTransportProtocol;
     }
 
+    /**
+     * Allocates an additional CTAPHID channel on this device. Callers holding their own channel share the
+     * device with the default channel used by {@link #transceive}, without reconnecting.
+     */
+    @WorkerThread
+    public CtapHidChannel openChannel() throws IOException {
+        if (released) {
+            throw new SecurityKeyDisconnectedException();
+        }
+        if (ctapHidTransportProtocol == null) {
+            throw new IllegalStateException("Not connected!");
+        }
+        return ctapHidTransportProtocol.openChannel();
+    }
+
+    /**
+     * Sets a listener for keepalive messages received while a CTAP2 command on the default channel is in
+     * progress, e.g. to prompt the user for touch as soon as the authenticator asks for user presence. Channels
+     * from {@link #openChannel()} take their own listener.
+     */
+    public void setKeepaliveListener(@Nullable CtapHidKeepaliveListener keepaliveListener) {
+        this.keepaliveListener = keepaliveListener;
+        if (ctapHidTransportProtocol != null) {
+            ctapHidTransportProtocol.setKeepaliveListener(keepaliveListener);
+        }
+    }
+
+    /**
+     * Cancels the CTAP2 command on the default channel currently in progress using CTAPHID_CANCEL. While an
+     * operation from {@link #beginOperation()} is in progress, its following commands are cancelled too, so a
+     * request between two of them is not lost. Otherwise nothing happens if no command is in progress. Commands
+     * on channels from {@link #openChannel()} are not affected. May be called from any thread.
+     */
+    @AnyThread
+    public void cancel() {
+        CtapHidTransportProtocol ctapHidTransportProtocol = this.ctapHidTransportProtocol;
+        if (ctapHidTransportProtocol != null) {
+            ctapHidTransportProtocol.cancel();
+        }
+    }
+
+    /**
+     * Begins an operation of several commands on the default channel, which must be ended once its last command
+     * returned. Returns null if the transport isn't connected.
+     */
+    @AnyThread
+    @Nullable
+    public CtapHidOperation beginOperation() {
+        CtapHidTransportProtocol ctapHidTransportProtocol = this.ctapHidTransportProtocol;
+        if (ctapHidTransportProtocol == null) {
+            return null;
+        }
+        return ctapHidTransportProtocol.beginOperation();
+    }
+
+    @VisibleForTesting
+    CtapHidTransportProtocol createTransportProtocol(UsbEndpoint usbIntIn, UsbEndpoint usbIntOut) {
+        return new CtapHidTransportProtocol(usbConnection, usbIntIn, usbIntOut);
+    }
+
     private void checkHidReportPrefix() throws IOException {
         byte[] hidReportDescriptor = UsbUtils.requestHidReportDescriptor(usbConnection, usbInterface.getId());
         String hidReportDescriptorHex = Hex.encodeHexString(hidReportDescriptor);
@@ -185,10 +254,22 @@ public class UsbCtapHidTransport implements Transport {
         }
     }
 
+    /**
+     * Transmit data without blocking the calling thread. Cancelling the returned task while a CTAP2 command
+     * is in progress sends CTAPHID_CANCEL, e.g. to stop waiting for user presence.
+     */
+    @AnyThread
+    @Override
+    public TransceiveTask transceiveAsync(CommandApdu commandApdu, TransceiveCallback callback) {
+        return TransportScheduler.getInstance().submit(this, commandApdu, callback, this::cancel);
+    }
+
     private ResponseApdu transceiveInternal(CommandApdu commandApdu) throws IOException {
         // "For the U2FHID protocol, all raw U2F messages are encoded using extended length APDU encoding."
         // https://fidoalliance.org/specs/fido-u2f-v1.2-ps-20170411/fido-u2f-hid-protocol-v1.2-ps-20170411.html
-        CommandApdu extendedCommandApdu = commandApdu.forceExtendedApduNe();
+        // Applet connections that learned extended length support already send Ne = 65536, skip the copy then.
+        CommandApdu extendedCommandApdu = commandApdu.getNe() == CommandApdu.MAX_APDU_NE_EXTENDED ?
+                commandApdu : commandApdu.forceExtendedApduNe();
 
         if (enableDebugLogging) {
             HwTimber.d("CTAPHID out: %s", extendedCommandApdu);
@@ -223,11 +304,27 @@ public class UsbCtapHidTransport implements Transport {
         return true;
     }
 
+    @Override
+    public TransportCapabilities queryTransportCapabilities() {
+        // U2F messages are framed by CTAPHID, so the message size limit applies rather than the APDU encoding
+        return TransportCapabilities.createExtended(
+                CtapHidFrameFactory.MAX_LENGTH_PAYLOAD, CtapHidFrameFactory.MAX_LENGTH_PAYLOAD);
+    }
+
+    @Nullable
+    @Override
+    public String getDeviceIdentity() {
+        return UsbUtils.getDeviceIdentity(usbDevice, usbConnection);
+    }
+
     @Override
     public void release() {
         if (!released) {
             HwTimber.d("Usb transport disconnected");
             this.released = true;
+            if (ctapHidTransportProtocol != null) {
+                ctapHidTransportProtocol.close();
+            }
             usbConnection.releaseInterface(usbInterface);
             if (transportReleasedCallback != null) {
                 transportReleasedCallback.onTransportReleased();
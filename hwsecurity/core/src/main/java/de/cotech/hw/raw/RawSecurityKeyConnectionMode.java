@@ -31,7 +31,7 @@ import java.util.List;
 import de.cotech.hw.SecurityKey;
 import de.cotech.hw.SecurityKeyConnectionMode;
 import de.cotech.hw.SecurityKeyManagerConfig;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 
 /**
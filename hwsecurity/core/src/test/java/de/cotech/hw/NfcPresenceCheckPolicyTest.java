@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class NfcPresenceCheckPolicyTest {
+    @Test
+    public void getNextIntervalMs_backsOffUpToMax() {
+        NfcPresenceCheckPolicy policy = NfcPresenceCheckPolicy.create(750, 6000, 2);
+
+        assertEquals(1500, policy.getNextIntervalMs(750));
+        assertEquals(3000, policy.getNextIntervalMs(1500));
+        assertEquals(6000, policy.getNextIntervalMs(3000));
+        assertEquals(6000, policy.getNextIntervalMs(6000));
+    }
+
+    @Test
+    public void getNextIntervalMs_capsAtMax() {
+        NfcPresenceCheckPolicy policy = NfcPresenceCheckPolicy.create(1000, 2500, 2);
+
+        assertEquals(2000, policy.getNextIntervalMs(1000));
+        assertEquals(2500, policy.getNextIntervalMs(2000));
+    }
+
+    @Test
+    public void getNextIntervalMs_fixedInterval() {
+        NfcPresenceCheckPolicy policy = NfcPresenceCheckPolicy.createFixedInterval(750);
+
+        assertEquals(750, policy.getNextIntervalMs(750));
+    }
+
+    @Test
+    public void getNextIntervalMs_doesNotOverflow() {
+        NfcPresenceCheckPolicy policy = NfcPresenceCheckPolicy.create(1, Long.MAX_VALUE, 4);
+
+        assertEquals(Long.MAX_VALUE, policy.getNextIntervalMs(Long.MAX_VALUE / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_maxBelowInitial() {
+        NfcPresenceCheckPolicy.create(1000, 500, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_invalidMultiplier() {
+        NfcPresenceCheckPolicy.create(1000, 5000, 0);
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+public class Iso7816CommunicatorTest {
+    static final int SW_SUCCESS = 0x9000;
+    static final byte[] EMPTY = new byte[0];
+    static final byte[] AID_1 = { (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01 };
+    static final byte[] AID_2 = { (byte) 0xA0, 0x00, 0x00, 0x03, 0x08 };
+
+    TransportCapabilitiesCache cache = new TransportCapabilitiesCache();
+    List<CommandApdu> sentCommands = new ArrayList<>();
+    Deque<ResponseApdu> responses = new ArrayDeque<>();
+
+    Transport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = mockTransport(TransportCapabilities.createShortOnly());
+    }
+
+    @Test
+    public void shortCommand_sentAsSingleApdu() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        respond(SW_SUCCESS);
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, new byte[10]));
+
+        assertEquals(SW_SUCCESS, response.getSw());
+        assertEquals(1, sentCommands.size());
+        assertFalse(sentCommands.get(0).isExtendedLength());
+    }
+
+    @Test
+    public void longCommand_chainedInShortApdus() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 254);
+        byte[] data = createData(600);
+        respond(SW_SUCCESS, SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(3, sentCommands.size());
+        assertEquals(0x10, sentCommands.get(0).getCLA());
+        assertEquals(0x10, sentCommands.get(1).getCLA());
+        assertEquals(0x00, sentCommands.get(2).getCLA());
+        assertEquals(254, sentCommands.get(0).getNc());
+        assertArrayEquals(data, concatenateData(sentCommands));
+    }
+
+    @Test
+    public void extendedLengthRejected_fallsBackToChaining_andIsRemembered() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        byte[] data = createData(300);
+        respond(Iso7816Communicator.SW_WRONG_LENGTH, SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(3, sentCommands.size());
+        assertTrue(sentCommands.get(0).isExtendedLength());
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+
+        sentCommands.clear();
+        respond(SW_SUCCESS, SW_SUCCESS);
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(2, sentCommands.size());
+        assertFalse(sentCommands.get(0).isExtendedLength());
+    }
+
+    @Test
+    public void extendedLengthRejected_retryFailsToo_isNotRemembered() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        respond(Iso7816Communicator.SW_WRONG_LENGTH, Iso7816Communicator.SW_WRONG_LENGTH);
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, 1024));
+
+        assertEquals(Iso7816Communicator.SW_WRONG_LENGTH, response.getSw());
+        assertEquals(2, sentCommands.size());
+        assertTrue(sentCommands.get(0).isExtendedLength());
+        assertFalse(sentCommands.get(1).isExtendedLength());
+        assertNull(cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+
+        sentCommands.clear();
+        respond(SW_SUCCESS);
+        communicator.communicate(CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, 1024));
+
+        assertEquals(1, sentCommands.size());
+        assertTrue(sentCommands.get(0).isExtendedLength());
+    }
+
+    @Test
+    public void extendedLengthAccepted_isRemembered() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        respond(SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+
+        assertEquals(1, sentCommands.size());
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void extendedLengthVerified_wrongLengthIsReturned() throws Exception {
+        transport = mockTransport(TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(transport, null, true);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        respond(Iso7816Communicator.SW_WRONG_LENGTH);
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+
+        assertEquals(Iso7816Communicator.SW_WRONG_LENGTH, response.getSw());
+        assertEquals(1, sentCommands.size());
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void extendedLengthHintFalse_neverSendsExtendedLength() throws Exception {
+        transport = mockTransport(TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(transport, null, true);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(false);
+        respond(SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+
+        assertEquals(2, sentCommands.size());
+    }
+
+    @Test
+    public void chainingNotSupported_isRemembered() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        respond(Iso7816Communicator.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+
+        try {
+            communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(cache.getAppletCapabilities(transport, null).isChainingSupported());
+
+        sentCommands.clear();
+        try {
+            communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(sentCommands.isEmpty());
+    }
+
+    @Test
+    public void chainedCommandTooLong_lowersLimit_andIsRemembered() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        byte[] data = createData(300);
+        respond(Iso7816Communicator.SW_WRONG_LENGTH, SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(3, sentCommands.size());
+        assertEquals(255, sentCommands.get(0).getNc());
+        assertEquals(254, sentCommands.get(1).getNc());
+        assertArrayEquals(data, concatenateData(sentCommands.subList(1, 3)));
+        assertEquals(254, cache.getAppletCapabilities(transport, null).getMaxChainedCommandDataLength());
+
+        sentCommands.clear();
+        respond(SW_SUCCESS, SW_SUCCESS);
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(2, sentCommands.size());
+        assertEquals(254, sentCommands.get(0).getNc());
+    }
+
+    @Test
+    public void incorrectLength_resendsWithNe() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        responses.add(ResponseApdu.create(0x6C10, EMPTY));
+        respond(SW_SUCCESS);
+
+        communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(2, sentCommands.size());
+        assertEquals(0x10, sentCommands.get(1).getNe());
+    }
+
+    @Test
+    public void responseAvailable_shortGetResponse() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        responses.add(ResponseApdu.create(0x6100, createData(256)));
+        responses.add(ResponseApdu.create(0x6110, createData(256)));
+        responses.add(ResponseApdu.create(SW_SUCCESS, createData(16)));
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(SW_SUCCESS, response.getSw());
+        assertEquals(256 + 256 + 16, response.getData().length);
+        assertEquals(0xC0, sentCommands.get(1).getINS());
+        assertEquals(256, sentCommands.get(1).getNe());
+        assertEquals(0x10, sentCommands.get(2).getNe());
+    }
+
+    @Test
+    public void responseAvailable_extendedGetResponse_isRemembered() throws Exception {
+        transport = mockTransport(TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(transport, null, true);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        responses.add(ResponseApdu.create(0x6100, createData(256)));
+        responses.add(ResponseApdu.create(SW_SUCCESS, createData(1000)));
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(1256, response.getData().length);
+        assertEquals(CommandApdu.MAX_APDU_NE_EXTENDED, sentCommands.get(1).getNe());
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, null).getExtendedGetResponseSupported());
+    }
+
+    @Test
+    public void responseAvailable_extendedGetResponseRejected_isRemembered() throws Exception {
+        transport = mockTransport(TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(transport, null, true);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        responses.add(ResponseApdu.create(0x6100, createData(256)));
+        responses.add(ResponseApdu.create(Iso7816Communicator.SW_WRONG_LENGTH, EMPTY));
+        responses.add(ResponseApdu.create(SW_SUCCESS, createData(100)));
+
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(356, response.getData().length);
+        assertEquals(CommandApdu.MAX_APDU_NE_SHORT, sentCommands.get(2).getNe());
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, null).getExtendedGetResponseSupported());
+
+        sentCommands.clear();
+        responses.add(ResponseApdu.create(0x6100, createData(256)));
+        responses.add(ResponseApdu.create(SW_SUCCESS, createData(100)));
+        communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(2, sentCommands.size());
+        assertEquals(CommandApdu.MAX_APDU_NE_SHORT, sentCommands.get(1).getNe());
+    }
+
+    @Test
+    public void selectedApplet_encodingIsLearnedPerAid() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        byte[] data = createData(300);
+
+        respond(SW_SUCCESS, Iso7816Communicator.SW_WRONG_LENGTH, SW_SUCCESS, SW_SUCCESS);
+        communicator.communicate(createSelect(AID_1));
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        respond(SW_SUCCESS, SW_SUCCESS);
+        communicator.communicate(createSelect(AID_2));
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(6, sentCommands.size());
+        assertTrue(sentCommands.get(5).isExtendedLength());
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, AID_1).getExtendedLengthSupported());
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, AID_2).getExtendedLengthSupported());
+        assertNull(cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void selectedApplet_rejectionByOtherAppletIsIgnored() throws Exception {
+        cache.learnExtendedLengthSupport(transport, AID_1, false);
+        cache.learnChainingUnsupported(transport, AID_1);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        respond(SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(createSelect(AID_2));
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+
+        assertEquals(2, sentCommands.size());
+        assertTrue(sentCommands.get(1).isExtendedLength());
+    }
+
+    @Test
+    public void selectedApplet_unverified_fallsBackDespiteOtherAppletAcceptingExtendedLength() throws Exception {
+        cache.learnExtendedLengthSupport(transport, AID_1, true);
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        byte[] data = createData(300);
+        respond(SW_SUCCESS, Iso7816Communicator.SW_WRONG_LENGTH, SW_SUCCESS, SW_SUCCESS);
+
+        communicator.communicate(createSelect(AID_2));
+        ResponseApdu response = communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, data));
+
+        assertEquals(SW_SUCCESS, response.getSw());
+        assertEquals(4, sentCommands.size());
+        assertTrue(sentCommands.get(1).isExtendedLength());
+        assertArrayEquals(data, concatenateData(sentCommands.subList(2, 4)));
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, AID_2).getExtendedLengthSupported());
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, AID_1).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void selectFailed_keepsPreviousApplet() throws Exception {
+        Iso7816Communicator communicator = new Iso7816Communicator(transport, cache, 255);
+        communicator.setExtendedLengthHint(true);
+        respond(SW_SUCCESS, 0x6A82, SW_SUCCESS);
+
+        communicator.communicate(createSelect(AID_1));
+        communicator.communicate(createSelect(AID_2));
+        communicator.communicate(CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, createData(300)));
+
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, AID_1).getExtendedLengthSupported());
+        assertNull(cache.getAppletCapabilities(transport, AID_2).getExtendedLengthSupported());
+    }
+
+    private static CommandApdu createSelect(byte[] aid) {
+        return CommandApdu.create(0x00, 0xA4, 0x04, 0x00, aid);
+    }
+
+    private Transport mockTransport(TransportCapabilities capabilities) throws IOException {
+        Transport transport = mock(Transport.class);
+        when(transport.getDeviceIdentity()).thenReturn("0102");
+        when(transport.getTransportType()).thenReturn(TransportType.NFC);
+        when(transport.queryTransportCapabilities()).thenReturn(capabilities);
+        when(transport.getTransportCapabilities()).thenAnswer(invocation -> cache.getCapabilities(transport));
+        when(transport.transceive(any())).thenAnswer(invocation -> {
+            sentCommands.add(invocation.getArgument(0));
+            return responses.remove();
+        });
+        return transport;
+    }
+
+    private void respond(int... sws) {
+        for (int sw : sws) {
+            responses.add(ResponseApdu.create(sw, EMPTY));
+        }
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] concatenateData(List<CommandApdu> commands) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (CommandApdu command : commands) {
+            byte[] data = command.getData();
+            result.write(data, 0, data.length);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.cotech.hw.util.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@SuppressWarnings("WeakerAccess")
+public class Iso7816TlvCursorTest {
+    // 6E { 4F(3) 5F52(2) 73 { C0(1) C5(2) } 7F74 { 81(1) } }, followed by filler and a primitive 9F8101(1)
+    static final byte[] DATA = Hex.decodeHexOrFail(
+            "6E19" + "4F03010203" + "5F52020405" + "7307" + "C00106" + "C5020708" + "7F7403810109" + "00FF" + "9F8101010A");
+
+    @Test
+    public void next_walksTopLevelOnly() throws Exception {
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(DATA).skipFillerBytes();
+
+        assertTrue(cursor.next());
+        assertEquals(0x6E, cursor.getTag());
+        assertTrue(cursor.isConstructed());
+        assertEquals(2, cursor.getValueOffset());
+        assertEquals(0x19, cursor.getValueLength());
+
+        assertTrue(cursor.next());
+        assertEquals(0x9F8101, cursor.getTag());
+        assertFalse(cursor.isConstructed());
+        assertArrayEquals(new byte[] { 0x0A }, cursor.getValue());
+
+        assertFalse(cursor.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void next_withoutSkipFillerBytes_parsesFiller() throws Exception {
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(DATA);
+        assertTrue(cursor.next());
+
+        // 00 FF is read as tag 0x00 with a length of 0xFF, which exceeds the remaining data
+        cursor.next();
+    }
+
+    @Test
+    public void children() throws Exception {
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(DATA);
+        assertTrue(cursor.next());
+        Iso7816TlvCursor children = cursor.children();
+
+        assertTrue(children.next());
+        assertEquals(0x4F, children.getTag());
+        assertArrayEquals(Hex.decodeHexOrFail("010203"), children.getValue());
+        assertTrue(children.next());
+        assertEquals(0x5F52, children.getTag());
+        assertTrue(children.next());
+        assertEquals(0x73, children.getTag());
+        Iso7816TlvCursor ddo = children.children();
+        assertTrue(ddo.find(0xC5));
+        assertEquals((byte) 0x08, ddo.getValueByte(1));
+        assertTrue(children.next());
+        assertEquals(0x7F74, children.getTag());
+        assertFalse(children.next());
+    }
+
+    @Test
+    public void find() throws Exception {
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(DATA).skipFillerBytes();
+
+        assertTrue(cursor.find(0x9F8101));
+        assertFalse(Iso7816TlvCursor.wrap(DATA).skipFillerBytes().find(0x4F));
+    }
+
+    @Test
+    public void wrap_slice() throws Exception {
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(DATA, 2, 5);
+
+        assertTrue(cursor.next());
+        assertEquals(0x4F, cursor.getTag());
+        assertSame(DATA, cursor.getBuffer());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void longLengths() throws Exception {
+        byte[] value = new byte[70000];
+        value[69999] = 0x42;
+
+        assertLength(value, "83011170");
+        assertLength(value, "8400011170");
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedValue() throws Exception {
+        Iso7816TlvCursor.wrap(Hex.decodeHexOrFail("4F030102")).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTag() throws Exception {
+        Iso7816TlvCursor.wrap(Hex.decodeHexOrFail("5F")).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void indefiniteLength() throws Exception {
+        Iso7816TlvCursor.wrap(Hex.decodeHexOrFail("738000")).next();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getTag_beforeNext() {
+        Iso7816TlvCursor.wrap(DATA).getTag();
+    }
+
+    @Test
+    public void index_findsFirstOccurrenceDepthFirst() throws Exception {
+        Iso7816TlvIndex index = Iso7816TlvIndex.build(Hex.decodeHexOrFail("7F490C" + "7303" + "810101" + "810102" + "00" + "810103"));
+
+        assertArrayEquals(new byte[] { 0x01 }, index.getValue(0x81));
+        assertEquals(3, index.size());
+        assertNull(index.getValue(0x82));
+        assertEquals(-1, index.getValueOffset(0x82));
+    }
+
+    @Test
+    public void index_children() throws Exception {
+        Iso7816TlvIndex index = Iso7816TlvIndex.build(DATA);
+
+        assertTrue(index.contains(0x9F8101));
+        assertArrayEquals(Hex.decodeHexOrFail("0708"), index.getValue(0xC5));
+        Iso7816TlvCursor ddo = index.children(0x73);
+        assertTrue(ddo.next());
+        assertEquals(0xC0, ddo.getTag());
+        assertNull(index.children(0x82));
+    }
+
+    @Test
+    public void index_children_skipsFillerBytes() throws Exception {
+        Iso7816TlvIndex index = Iso7816TlvIndex.build(Hex.decodeHexOrFail("7F490C" + "7303" + "810101" + "810102" + "00" + "810103"));
+
+        Iso7816TlvCursor children = index.children(0x7F49);
+        assertTrue(children.next());
+        assertEquals(0x73, children.getTag());
+        assertTrue(children.next());
+        assertTrue(children.next());
+        assertArrayEquals(new byte[] { 0x03 }, children.getValue());
+        assertFalse(children.next());
+    }
+
+    @Test
+    public void readList_skipsZeroFiller() throws Exception {
+        Iso7816TLV[] tlvs = Iso7816TLV.readList(Hex.decodeHexOrFail(
+                "6E19" + "4F03010203" + "5F52020405" + "7307" + "C00106" + "C5020708" + "7F7403810109" + "00" + "C0010A"),
+                true);
+
+        assertEquals(2, tlvs.length);
+        assertEquals(0x6E, tlvs[0].mT);
+        assertEquals(4, ((Iso7816TLV.Iso7816CompositeTLV) tlvs[0]).mSubs.length);
+        assertArrayEquals(Hex.decodeHexOrFail("0708"), Iso7816TLV.findRecursive(tlvs[0], 0xC5).mV);
+        assertEquals(0xC0, tlvs[1].mT);
+    }
+
+    @Test
+    public void readSingle_advancesBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(Hex.decodeHexOrFail("4F0101" + "C00102"));
+
+        assertEquals(0x4F, Iso7816TLV.readSingle(buffer, false).mT);
+        assertEquals(3, buffer.position());
+        assertEquals(0xC0, Iso7816TLV.readSingle(buffer, false).mT);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    static void assertLength(byte[] value, String encodedLengthHex) throws Exception {
+        byte[] header = Hex.decodeHexOrFail("04" + encodedLengthHex);
+        byte[] data = new byte[header.length + value.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(value, 0, data, header.length, value.length);
+
+        Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(data);
+        assertTrue(cursor.next());
+        assertEquals(value.length, cursor.getValueLength());
+        assertEquals(header.length, cursor.getValueOffset());
+        assertEquals(0x42, cursor.getValueByte(value.length - 1));
+        assertFalse(cursor.next());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.cotech.hw.util.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+public class ConnectionProbeCacheTest {
+    static final byte[] AID_1 = Hex.decodeHexOrFail("A0000006472F0001");
+    static final byte[] AID_2 = Hex.decodeHexOrFail("A0000006472F000100");
+    static final byte[] AID_3 = Hex.decodeHexOrFail("A0000005271002");
+    static final List<byte[]> AIDS = Arrays.asList(AID_1, AID_2, AID_3);
+
+    long elapsedMillis = 1000;
+    ConnectionProbeCache cache = new ConnectionProbeCache() {
+        @Override
+        long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    };
+
+    @Test
+    public void getAidsForProbing_unknownDevice() {
+        Transport transport = mockTransport("0102");
+
+        assertSame(AIDS, cache.getAidsForProbing(transport, AIDS));
+    }
+
+    @Test
+    public void getAidsForProbing_selectedFirstAndMissingSkipped() {
+        Transport first = mockTransport("0102");
+        cache.putAidNotFound(first, AID_1);
+        cache.putAidSelected(first, AID_3);
+
+        Transport second = mockTransport("0102");
+        assertEquals(Arrays.asList(AID_3, AID_2), cache.getAidsForProbing(second, AIDS));
+    }
+
+    @Test
+    public void getAidsForProbing_allMissing() {
+        Transport transport = mockTransport("0102");
+        for (byte[] aid : AIDS) {
+            cache.putAidNotFound(transport, aid);
+        }
+
+        assertTrue(cache.getAidsForProbing(transport, AIDS).isEmpty());
+    }
+
+    @Test
+    public void getAidsForProbing_missingExpired() {
+        Transport transport = mockTransport("0102");
+        cache.putAidNotFound(transport, AID_1);
+        elapsedMillis += ConnectionProbeCache.MISSING_AID_TTL_MILLIS - 1;
+        cache.putAidNotFound(transport, AID_2);
+
+        assertEquals(Arrays.asList(AID_3), cache.getAidsForProbing(transport, AIDS));
+        elapsedMillis += 1;
+        assertEquals(Arrays.asList(AID_1, AID_3), cache.getAidsForProbing(transport, AIDS));
+    }
+
+    @Test
+    public void putAidSelected_overridesNotFound() {
+        Transport transport = mockTransport("0102");
+        cache.putAidNotFound(transport, AID_2);
+        cache.putAidSelected(transport, AID_2);
+
+        assertEquals(Arrays.asList(AID_2, AID_1, AID_3), cache.getAidsForProbing(transport, AIDS));
+    }
+
+    @Test
+    public void getAidsForProbing_otherDevice() {
+        cache.putAidNotFound(mockTransport("0102"), AID_1);
+
+        assertSame(AIDS, cache.getAidsForProbing(mockTransport("0304"), AIDS));
+    }
+
+    @Test
+    public void getAidsForProbing_withoutIdentity_cachesPerTransport() {
+        Transport first = mockTransport(null);
+        Transport second = mockTransport(null);
+        cache.putAidNotFound(first, AID_1);
+
+        assertEquals(Arrays.asList(AID_2, AID_3), cache.getAidsForProbing(first, AIDS));
+        assertSame(AIDS, cache.getAidsForProbing(second, AIDS));
+    }
+
+    @Test
+    public void clear() {
+        Transport transport = mockTransport("0102");
+        cache.putAidNotFound(transport, AID_1);
+
+        cache.clear();
+
+        assertSame(AIDS, cache.getAidsForProbing(transport, AIDS));
+    }
+
+    static Transport mockTransport(String deviceIdentity) {
+        Transport transport = mock(Transport.class);
+        when(transport.getDeviceIdentity()).thenReturn(deviceIdentity);
+        when(transport.getTransportType()).thenReturn(TransportType.NFC);
+        return transport;
+    }
+}
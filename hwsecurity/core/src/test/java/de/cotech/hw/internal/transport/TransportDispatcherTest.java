@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+
+@SuppressWarnings("WeakerAccess")
+public class TransportDispatcherTest {
+    static final int WORK_COUNT = 100;
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    TransportDispatcher dispatcher = new TransportDispatcher(executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void post_sameTransport_keepsOrder() throws Exception {
+        Transport transport = mock(Transport.class);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger concurrentWork = new AtomicInteger();
+        AtomicInteger maxConcurrentWork = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(WORK_COUNT);
+
+        for (int i = 0; i < WORK_COUNT; i++) {
+            int index = i;
+            dispatcher.post(transport, () -> {
+                maxConcurrentWork.accumulateAndGet(concurrentWork.incrementAndGet(), Math::max);
+                order.add(index);
+                concurrentWork.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxConcurrentWork.get());
+        for (int i = 0; i < WORK_COUNT; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void post_differentTransports_runConcurrently() throws Exception {
+        Transport slowTransport = mock(Transport.class);
+        Transport otherTransport = mock(Transport.class);
+        CountDownLatch otherTransportDone = new CountDownLatch(1);
+        CountDownLatch slowTransportDone = new CountDownLatch(1);
+
+        dispatcher.post(slowTransport, () -> {
+            try {
+                // only completes if the other transport is not held back by this one
+                if (otherTransportDone.await(5, TimeUnit.SECONDS)) {
+                    slowTransportDone.countDown();
+                }
+            } catch (InterruptedException e) {
+                // fail below
+            }
+        });
+        dispatcher.post(otherTransport, otherTransportDone::countDown);
+
+        assertTrue(slowTransportDone.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void post_exceptionDoesNotStopQueue() throws Exception {
+        Transport transport = mock(Transport.class);
+        CountDownLatch done = new CountDownLatch(1);
+
+        dispatcher.post(transport, () -> {
+            throw new IllegalStateException("expected");
+        });
+        dispatcher.post(transport, done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void post_afterQueueDrained() throws Exception {
+        Transport transport = mock(Transport.class);
+        CountDownLatch first = new CountDownLatch(1);
+        dispatcher.post(transport, first::countDown);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch second = new CountDownLatch(1);
+        dispatcher.post(transport, second::countDown);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+}
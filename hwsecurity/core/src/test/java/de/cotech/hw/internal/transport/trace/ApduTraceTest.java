@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport.trace;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816Communicator;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.AppletCapabilities;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+public class ApduTraceTest {
+    static final CommandApdu SELECT = CommandApdu.create(0x00, 0xA4, 0x04, 0x00, new byte[] { 1, 2, 3 });
+    static final CommandApdu GET_DATA = CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 256);
+    static final ResponseApdu RESPONSE_OK = ResponseApdu.create(0x9000, new byte[0]);
+    static final ResponseApdu RESPONSE_DATA = ResponseApdu.create(0x9000, new byte[] { 0x6E, 0x01, 0x00 });
+
+    @Before
+    public void setUp() {
+        TransportCapabilitiesCache.getInstance().clear();
+    }
+
+    @After
+    public void tearDown() {
+        TransportCapabilitiesCache.getInstance().clear();
+    }
+
+    @Test
+    public void record_thenReplay() throws Exception {
+        Transport delegate = mockTransport(TransportType.USB_CCID, null, true);
+        when(delegate.getSecurityKeyTypeIfAvailable()).thenReturn(SecurityKeyType.YUBIKEY_4_5);
+        when(delegate.transceive(SELECT)).thenReturn(RESPONSE_OK);
+        when(delegate.transceive(GET_DATA)).thenReturn(RESPONSE_DATA);
+
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        TraceRecordingTransport recordingTransport = new TraceRecordingTransport(delegate, traceBytes);
+        assertEquals(RESPONSE_OK, recordingTransport.transceive(SELECT));
+        assertEquals(RESPONSE_DATA, recordingTransport.transceive(GET_DATA));
+        recordingTransport.release();
+
+        ApduTrace trace = ApduTrace.readFrom(new ByteArrayInputStream(traceBytes.toByteArray()));
+        assertEquals(TransportType.USB_CCID, trace.getTransportType());
+        assertEquals(SecurityKeyType.YUBIKEY_4_5, trace.getSecurityKeyType());
+        assertTrue(trace.isExtendedLengthSupported());
+        assertEquals(2, trace.getEntries().size());
+        assertTrue(trace.getEntries().get(1).getStartNanos() >= trace.getEntries().get(0).getStartNanos());
+
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+        assertEquals(TransportType.USB_CCID, replayTransport.getTransportType());
+        assertEquals(RESPONSE_OK, replayTransport.transceive(SELECT));
+        assertEquals(RESPONSE_DATA, replayTransport.transceive(GET_DATA));
+        assertTrue(replayTransport.isExhausted());
+    }
+
+    @Test
+    public void record_errors() throws Exception {
+        Transport delegate = mockTransport(TransportType.NFC, null, false);
+        when(delegate.transceive(SELECT)).thenThrow(new IOException("timeout"));
+        when(delegate.transceive(GET_DATA)).thenThrow(new SecurityKeyDisconnectedException());
+
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        TraceRecordingTransport recordingTransport = new TraceRecordingTransport(delegate, traceBytes);
+        expectException(recordingTransport, SELECT, IOException.class);
+        expectException(recordingTransport, GET_DATA, SecurityKeyDisconnectedException.class);
+
+        ApduTrace trace = ApduTrace.readFrom(new ByteArrayInputStream(traceBytes.toByteArray()));
+        assertNull(trace.getSecurityKeyType());
+        assertEquals(ApduTraceEntry.RESULT_IO_ERROR, trace.getEntries().get(0).getResultType());
+        assertEquals("timeout", trace.getEntries().get(0).getErrorMessage());
+        assertEquals(ApduTraceEntry.RESULT_DISCONNECTED, trace.getEntries().get(1).getResultType());
+
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+        expectException(replayTransport, SELECT, IOException.class);
+        expectException(replayTransport, GET_DATA, SecurityKeyDisconnectedException.class);
+        assertTrue(replayTransport.isReleased());
+    }
+
+    @Test
+    public void record_afterExtendedLengthDowngrade_thenReplay() throws Exception {
+        Transport delegate = mockTransport(TransportType.USB_CCID, "0102", true);
+        doAnswer(invocation -> respondShortOnly(invocation.getArgument(0))).when(delegate).transceive(any());
+        communicateWithExtendedLengthHint(delegate);
+        assertEquals(Boolean.FALSE, getAppletExtendedLengthSupport(delegate));
+
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        TraceRecordingTransport recordingTransport = new TraceRecordingTransport(delegate, traceBytes);
+        assertEquals(RESPONSE_DATA, communicateWithExtendedLengthHint(recordingTransport));
+        recordingTransport.release();
+
+        ApduTrace trace = ApduTrace.readFrom(new ByteArrayInputStream(traceBytes.toByteArray()));
+        assertEquals("0102", trace.getDeviceIdentity());
+        assertTrue(trace.isExtendedLengthSupported());
+        assertEquals(Boolean.FALSE, trace.getAppletCapabilities().get("").getExtendedLengthSupported());
+        assertEquals(1, trace.getEntries().size());
+
+        TransportCapabilitiesCache.getInstance().clear();
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+        assertEquals("0102", replayTransport.getDeviceIdentity());
+        assertEquals(Boolean.FALSE, getAppletExtendedLengthSupport(replayTransport));
+        assertEquals(RESPONSE_DATA, communicateWithExtendedLengthHint(replayTransport));
+        assertTrue(replayTransport.isExhausted());
+    }
+
+    @Test
+    public void record_extendedLengthDowngrade_thenReplayTwice() throws Exception {
+        Transport delegate = mockTransport(TransportType.USB_CCID, "0102", true);
+        doAnswer(invocation -> respondShortOnly(invocation.getArgument(0))).when(delegate).transceive(any());
+
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        TraceRecordingTransport recordingTransport = new TraceRecordingTransport(delegate, traceBytes);
+        assertEquals(RESPONSE_DATA, communicateWithExtendedLengthHint(recordingTransport));
+        recordingTransport.release();
+
+        ApduTrace trace = ApduTrace.readFrom(new ByteArrayInputStream(traceBytes.toByteArray()));
+        assertTrue(trace.getAppletCapabilities().isEmpty());
+        assertEquals(2, trace.getEntries().size());
+
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+        assertEquals(RESPONSE_DATA, communicateWithExtendedLengthHint(replayTransport));
+        assertTrue(replayTransport.isExhausted());
+
+        replayTransport.rewind();
+        assertEquals(RESPONSE_DATA, communicateWithExtendedLengthHint(replayTransport));
+        assertTrue(replayTransport.isExhausted());
+    }
+
+    @Test
+    public void record_redactsPinsAndDecipheredKeys() throws Exception {
+        byte[] pin = { '1', '2', '3', '4', '5', '6' };
+        byte[] sessionKey = new byte[300];
+        Arrays.fill(sessionKey, (byte) 0x5a);
+        CommandApdu verify = CommandApdu.create(0x00, 0x20, 0x00, 0x82, pin);
+        CommandApdu decipher = CommandApdu.create(0x00, 0x2A, 0x80, 0x86, new byte[] { 0x00, 0x01, 0x02 }, 256);
+        CommandApdu getResponse = CommandApdu.create(0x00, 0xC0, 0x00, 0x00, 256);
+        Transport delegate = mockTransport(TransportType.USB_CCID, null, false);
+        when(delegate.transceive(verify)).thenReturn(RESPONSE_OK);
+        when(delegate.transceive(decipher))
+                .thenReturn(ResponseApdu.create(0x6100, Arrays.copyOfRange(sessionKey, 0, 256)));
+        when(delegate.transceive(getResponse))
+                .thenReturn(ResponseApdu.create(0x9000, Arrays.copyOfRange(sessionKey, 256, 300)));
+        when(delegate.transceive(GET_DATA)).thenReturn(RESPONSE_DATA);
+
+        ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+        TraceRecordingTransport recordingTransport = new TraceRecordingTransport(delegate, traceBytes);
+        recordingTransport.transceive(verify);
+        recordingTransport.transceive(decipher);
+        recordingTransport.transceive(getResponse);
+        recordingTransport.transceive(GET_DATA);
+        recordingTransport.release();
+
+        ApduTrace trace = ApduTrace.readFrom(new ByteArrayInputStream(traceBytes.toByteArray()));
+        assertArrayEquals(CommandApdu.create(0x00, 0x20, 0x00, 0x82, new byte[pin.length]).toBytes(),
+                trace.getEntries().get(0).getCommand());
+        assertArrayEquals(decipher.toBytes(), trace.getEntries().get(1).getCommand());
+        assertArrayEquals(ResponseApdu.create(0x6100, new byte[256]).toBytes(),
+                trace.getEntries().get(1).getResponse());
+        assertArrayEquals(ResponseApdu.create(0x9000, new byte[44]).toBytes(),
+                trace.getEntries().get(2).getResponse());
+        assertArrayEquals(RESPONSE_DATA.toBytes(), trace.getEntries().get(3).getResponse());
+
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+        assertEquals(RESPONSE_OK, replayTransport.transceive(verify));
+        assertEquals(256, replayTransport.transceive(decipher).getData().length);
+        assertEquals(44, replayTransport.transceive(getResponse).getData().length);
+        assertEquals(RESPONSE_DATA, replayTransport.transceive(GET_DATA));
+        assertTrue(replayTransport.isExhausted());
+    }
+
+    @Test
+    public void writeTo_readFrom_roundTrip() throws Exception {
+        ApduTrace trace = new ApduTrace(TransportType.USB_CTAPHID, null, true, Arrays.asList(
+                ApduTraceEntry.createResponse(0, 1_500_000, SELECT.toBytes(), RESPONSE_OK.toBytes()),
+                ApduTraceEntry.createResponse(4_000_000_000L, 300, GET_DATA.toBytes(), RESPONSE_DATA.toBytes())));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        ApduTrace readTrace = ApduTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(trace.getEntries(), readTrace.getEntries());
+        assertEquals(TransportType.USB_CTAPHID, readTrace.getTransportType());
+        assertNull(readTrace.getDeviceIdentity());
+        assertEquals(trace.getTransportCapabilities(), readTrace.getTransportCapabilities());
+    }
+
+    @Test
+    public void writeTo_readFrom_learnedCapabilities() throws Exception {
+        TransportCapabilities capabilities = TransportCapabilities.fromExtendedLengthSupport(true)
+                .withChainingSupported(false).withSecureMessagingOverhead(16);
+        Map<String, AppletCapabilities> appletCapabilities = new HashMap<>();
+        appletCapabilities.put("", AppletCapabilities.createUnknown().withExtendedLengthSupported(false));
+        appletCapabilities.put("d27600012401", AppletCapabilities.create(true, true, 128, false));
+        appletCapabilities.put("a000000308", AppletCapabilities.create(null, false, 0, null));
+        ApduTrace trace = new ApduTrace(TransportType.NFC, null, true, "04a1b2", capabilities, appletCapabilities,
+                Collections.emptyList());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        ApduTrace readTrace = ApduTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("04a1b2", readTrace.getDeviceIdentity());
+        assertEquals(capabilities, readTrace.getTransportCapabilities());
+        assertEquals(appletCapabilities, readTrace.getAppletCapabilities());
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_badMagic() throws Exception {
+        ApduTrace.readFrom(new ByteArrayInputStream(new byte[] { 'H', 'W', 'T', 'X', 1 }));
+    }
+
+    @Test
+    public void replay_commandMismatch() throws Exception {
+        ApduTrace trace = new ApduTrace(TransportType.NFC, null, false, Collections.singletonList(
+                ApduTraceEntry.createResponse(0, 0, SELECT.toBytes(), RESPONSE_OK.toBytes())));
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0);
+        replayTransport.connect();
+
+        try {
+            replayTransport.transceive(GET_DATA);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("doesn't match"));
+        }
+        assertFalse(replayTransport.isExhausted());
+    }
+
+    @Test
+    public void replay_scaledTiming() throws Exception {
+        ApduTrace trace = new ApduTrace(TransportType.NFC, null, false, Collections.singletonList(
+                ApduTraceEntry.createResponse(0, 100_000_000L, SELECT.toBytes(), RESPONSE_OK.toBytes())));
+        TraceReplayTransport replayTransport = new TraceReplayTransport(trace, 0.5);
+        replayTransport.connect();
+
+        long startNanos = System.nanoTime();
+        replayTransport.transceive(SELECT);
+        long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        assertTrue(elapsedMs >= 50);
+        assertTrue(elapsedMs < 100);
+
+        replayTransport.rewind();
+        assertArrayEquals(RESPONSE_OK.toBytes(), replayTransport.transceive(SELECT).toBytes());
+    }
+
+    private static Transport mockTransport(TransportType transportType, String deviceIdentity,
+            boolean extendedLengthSupported) {
+        Transport transport = mock(Transport.class);
+        when(transport.getTransportType()).thenReturn(transportType);
+        when(transport.getDeviceIdentity()).thenReturn(deviceIdentity);
+        when(transport.isExtendedLengthSupported()).thenReturn(extendedLengthSupported);
+        when(transport.queryTransportCapabilities())
+                .thenReturn(TransportCapabilities.fromExtendedLengthSupport(extendedLengthSupported));
+        when(transport.getTransportCapabilities())
+                .thenAnswer(invocation -> TransportCapabilitiesCache.getInstance().getCapabilities(transport));
+        return transport;
+    }
+
+    private static ResponseApdu respondShortOnly(CommandApdu commandApdu) {
+        if (commandApdu.isExtendedLength()) {
+            return ResponseApdu.create(Iso7816Communicator.SW_WRONG_LENGTH, new byte[0]);
+        }
+        return RESPONSE_DATA;
+    }
+
+    private static ResponseApdu communicateWithExtendedLengthHint(Transport transport) throws IOException {
+        Iso7816Communicator communicator = Iso7816Communicator.create(transport, CommandApdu.MAX_APDU_NC_SHORT);
+        communicator.setExtendedLengthHint(true);
+        return communicator.communicate(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 1024));
+    }
+
+    private static Boolean getAppletExtendedLengthSupport(Transport transport) {
+        return TransportCapabilitiesCache.getInstance().getAppletCapabilities(transport, null)
+                .getExtendedLengthSupported();
+    }
+
+    private static void expectException(Transport transport, CommandApdu commandApdu,
+            Class<? extends IOException> exceptionClass) {
+        try {
+            transport.transceive(commandApdu);
+            fail();
+        } catch (IOException e) {
+            assertEquals(exceptionClass, e.getClass());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.app.Application;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.Looper;
+
+import de.cotech.hw.internal.transport.usb.UsbDeviceMonitor.UsbDeviceMonitorCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 24)
+public class UsbDeviceMonitorTest {
+    private static final long TIMEOUT_MS = 1000;
+
+    private Application context;
+    private UsbManager usbManager;
+    private UsbDeviceMonitorCallback callback;
+    private HashMap<String, UsbDevice> deviceList;
+
+    private UsbDevice usbDevice;
+    private UsbDeviceConnection usbConnection;
+    private UsbInterface usbInterface;
+    private UsbEndpoint interruptEndpoint;
+
+    private final LinkedList<byte[]> interruptMessages = new LinkedList<>();
+    private final BlockingQueue<UsbRequest> completedRequests = new LinkedBlockingQueue<>();
+    private final List<UsbRequest> createdRequests = new ArrayList<>();
+    private boolean failQueue;
+
+    private UsbDeviceMonitor usbDeviceMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        usbManager = mock(UsbManager.class);
+        callback = mock(UsbDeviceMonitorCallback.class);
+
+        usbDevice = mock(UsbDevice.class);
+        when(usbDevice.getDeviceName()).thenReturn("/dev/bus/usb/001/002");
+        deviceList = new HashMap<>();
+        deviceList.put(usbDevice.getDeviceName(), usbDevice);
+        when(usbManager.getDeviceList()).thenReturn(deviceList);
+
+        usbConnection = mock(UsbDeviceConnection.class);
+        when(usbConnection.requestWait()).thenAnswer(invocation -> completedRequests.take());
+        usbInterface = mock(UsbInterface.class);
+        interruptEndpoint = mock(UsbEndpoint.class);
+        when(interruptEndpoint.getMaxPacketSize()).thenReturn(8);
+
+        usbDeviceMonitor = new UsbDeviceMonitor(context, usbManager, callback) {
+            @Override
+            UsbRequest createUsbRequest() {
+                return createMockUsbRequest();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        usbDeviceMonitor.stopMonitoringAll();
+    }
+
+    @Test
+    public void simpleDevice_connectsImmediately() {
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.emptyMap());
+
+        verify(callback).onIccConnect(usbDevice, usbInterface);
+        assertTrue(usbDeviceMonitor.isMonitoring(usbDevice));
+    }
+
+    @Test
+    public void detachedBroadcast_reportsDeviceLost() {
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.emptyMap());
+
+        sendDetachedBroadcast(usbDevice);
+
+        verify(callback).onUsbDeviceLost(usbDevice);
+        assertFalse(usbDeviceMonitor.isMonitoring(usbDevice));
+    }
+
+    @Test
+    public void detachedBroadcast_ignoresOtherDevices() {
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.emptyMap());
+
+        UsbDevice otherUsbDevice = mock(UsbDevice.class);
+        sendDetachedBroadcast(otherUsbDevice);
+
+        verify(callback, never()).onUsbDeviceLost(any(UsbDevice.class));
+        assertTrue(usbDeviceMonitor.isMonitoring(usbDevice));
+    }
+
+    @Test
+    public void detachedBeforeMonitoring_reportsDeviceLost() {
+        deviceList.clear();
+
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.emptyMap());
+
+        verify(callback).onUsbDeviceLost(usbDevice);
+        assertFalse(usbDeviceMonitor.isMonitoring(usbDevice));
+    }
+
+    @Test
+    public void slotChange_connectAndDisconnect() {
+        interruptMessages.add(new byte[] { 0x50, 0x03 });
+        interruptMessages.add(new byte[] { 0x00, 0x00 });
+        interruptMessages.add(new byte[] { 0x50, 0x02 });
+
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.singletonMap(interruptEndpoint, usbInterface));
+
+        verify(callback, timeout(TIMEOUT_MS)).onIccConnect(usbDevice, usbInterface);
+        verify(callback, timeout(TIMEOUT_MS)).onIccDisconnect(usbDevice, usbInterface);
+        verify(callback, never()).onUsbDeviceLost(any(UsbDevice.class));
+    }
+
+    @Test
+    public void slotChange_stopMonitoringCancelsRequests() throws Exception {
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.singletonMap(interruptEndpoint, usbInterface));
+        verify(usbConnection, timeout(TIMEOUT_MS)).requestWait();
+
+        usbDeviceMonitor.stopMonitoring(usbDevice);
+
+        verify(createdRequests.get(0), timeout(TIMEOUT_MS)).close();
+        verify(callback, never()).onUsbDeviceLost(any(UsbDevice.class));
+    }
+
+    @Test
+    public void slotChange_requestError_reportsDeviceLost() {
+        doReturn(null).when(usbConnection).requestWait();
+
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.singletonMap(interruptEndpoint, usbInterface));
+
+        verify(callback, timeout(TIMEOUT_MS)).onUsbDeviceLost(usbDevice);
+        verify(callback, never()).onIccConnect(any(UsbDevice.class), any(UsbInterface.class));
+    }
+
+    @Test
+    public void slotChange_queueFailure_assumesIccConnected() {
+        failQueue = true;
+
+        usbDeviceMonitor.startMonitoring(usbDevice, usbConnection, Collections.singletonList(usbInterface),
+                Collections.singletonMap(interruptEndpoint, usbInterface));
+
+        verify(callback, timeout(TIMEOUT_MS)).onIccConnect(usbDevice, usbInterface);
+        verify(createdRequests.get(0), timeout(TIMEOUT_MS)).close();
+        verify(usbConnection, never()).requestWait();
+        verify(callback, never()).onUsbDeviceLost(any(UsbDevice.class));
+        assertTrue(usbDeviceMonitor.isMonitoring(usbDevice));
+    }
+
+    private void sendDetachedBroadcast(UsbDevice usbDevice) {
+        Intent intent = new Intent(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        intent.putExtra(UsbManager.EXTRA_DEVICE, usbDevice);
+        context.sendBroadcast(intent);
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private UsbRequest createMockUsbRequest() {
+        UsbRequest usbRequest = mock(UsbRequest.class);
+        Object[] clientData = new Object[1];
+        doAnswer(invocation -> clientData[0] = invocation.getArgument(0)).when(usbRequest).setClientData(any());
+        when(usbRequest.getClientData()).thenAnswer(invocation -> clientData[0]);
+        when(usbRequest.getEndpoint()).thenReturn(interruptEndpoint);
+        when(usbRequest.initialize(any(UsbDeviceConnection.class), any(UsbEndpoint.class))).thenReturn(true);
+        when(usbRequest.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation -> {
+            if (failQueue) {
+                return false;
+            }
+            byte[] message;
+            synchronized (interruptMessages) {
+                message = interruptMessages.poll();
+            }
+            if (message != null) {
+                ByteBuffer buffer = invocation.getArgument(0);
+                buffer.put(message);
+                completedRequests.add(usbRequest);
+            }
+            return true;
+        });
+        when(usbRequest.cancel()).thenAnswer(invocation -> completedRequests.add(usbRequest));
+        createdRequests.add(usbRequest);
+        return usbRequest;
+    }
+}
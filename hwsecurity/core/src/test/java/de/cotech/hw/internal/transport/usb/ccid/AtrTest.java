@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ccid;
+
+
+import de.cotech.hw.util.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@SuppressWarnings("WeakerAccess")
+public class AtrTest {
+    static final String ATR_SPECIFIC_MODE = "3b9013918131fe45";
+    static final String ATR_T1 = "3bda11ff81b1fe551f0300318473800180009000e4";
+    static final String ATR_T0_FAST = "3b9596801f0380318065b0";
+
+    @Test
+    public void fromBytes_t1() {
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail(ATR_T1));
+
+        assertTrue(atr.isValid());
+        assertFalse(atr.isInverseConvention());
+        assertEquals(0x11, atr.getFindexDindex());
+        assertEquals(0xff, atr.getGuardTime());
+        assertFalse(atr.isSpecificMode());
+        assertTrue(atr.supportsProtocol(Atr.PROTOCOL_T1));
+        assertFalse(atr.supportsProtocol(Atr.PROTOCOL_T0));
+        assertEquals(254, atr.getIfsc());
+        assertEquals(0x55, atr.getT1WaitingIntegers());
+        assertFalse(atr.isT1CrcChecksum());
+        assertArrayEquals(Hex.decodeHexOrFail("00318473800180009000"), atr.getHistoricalBytes());
+    }
+
+    @Test
+    public void fromBytes_fiDi() {
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail(ATR_T0_FAST));
+
+        assertEquals(9, atr.getFindex());
+        assertEquals(6, atr.getDindex());
+        assertEquals(512, Atr.getFi(atr.getFindex()));
+        assertEquals(32, Atr.getDi(atr.getDindex()));
+        assertTrue(atr.supportsProtocol(Atr.PROTOCOL_T0));
+        assertEquals(Atr.DEFAULT_IFSC, atr.getIfsc());
+    }
+
+    @Test
+    public void fromBytes_crcChecksum() {
+        // TD1 = T=1, TD2 = T=1 with TC3 = 0x01
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail("3b80814101"));
+
+        assertTrue(atr.isT1CrcChecksum());
+    }
+
+    @Test
+    public void fromBytes_specificMode() {
+        // TA2 = 0x81 (T=1, not changeable)
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail(ATR_SPECIFIC_MODE));
+
+        assertTrue(atr.isSpecificMode());
+        assertEquals(0x13, atr.getFindexDindex());
+    }
+
+    @Test
+    public void fromBytes_truncated() {
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail("3bda11"));
+
+        assertEquals(0x11, atr.getFindexDindex());
+        assertEquals(Atr.DEFAULT_IFSC, atr.getIfsc());
+        assertFalse(Atr.fromBytes(new byte[0]).isValid());
+    }
+
+    @Test
+    public void selectFindexDindex() {
+        Atr atr = Atr.fromBytes(Hex.decodeHexOrFail(ATR_T0_FAST));
+
+        // 4 MHz, Fi = 512: Di = 32 gives 250000 bps, Di = 20 gives 156250 bps
+        CcidDescriptor fastReader = CcidDescriptor.fromValues((byte) 0, (byte) 1, 3, 0, 254, 4000, 344086);
+        CcidDescriptor slowReader = CcidDescriptor.fromValues((byte) 0, (byte) 1, 3, 0, 254, 4000, 200000);
+        CcidDescriptor unknownReader = CcidDescriptor.fromValues((byte) 0, (byte) 1, 3, 0);
+
+        assertEquals((byte) 0x96, fastReader.selectFindexDindex(atr));
+        assertEquals((byte) 0x99, slowReader.selectFindexDindex(atr));
+        assertEquals(Atr.DEFAULT_FINDEX_DINDEX, unknownReader.selectFindexDindex(atr));
+    }
+}
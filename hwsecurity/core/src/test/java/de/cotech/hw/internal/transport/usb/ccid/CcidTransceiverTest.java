@@ -32,6 +32,7 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.os.Build.VERSION_CODES;
 
+import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
 import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver.CcidDataBlock;
 import de.cotech.hw.util.Arrays;
@@ -46,9 +47,11 @@ import org.robolectric.annotation.Config;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
@@ -215,6 +218,19 @@ public class CcidTransceiverTest {
         ccidTransceiver.sendXfrBlock(Hex.decodeHexOrFail(commandData));
     }
 
+    @Test(expected = UsbTransportException.class)
+    public void testXfer_oversizedLengthReply() throws Exception {
+        CcidTransceiver ccidTransceiver = new CcidTransceiver(usbConnection, usbBulkIn, usbBulkOut, null);
+
+        String commandData = "010203";
+        byte[] command = Hex.decodeHexOrFail("6F030000000000000000" + commandData);
+        // dwLength of 0x7FFFFFFF must be rejected before any buffer is sized for it
+        byte[] response = Hex.decodeHexOrFail("80FFFFFF7F0000000000" + "0304");
+        expect(command, response);
+
+        ccidTransceiver.sendXfrBlock(Hex.decodeHexOrFail(commandData));
+    }
+
     @Test
     public void testXfer_errorReply() throws Exception {
         CcidTransceiver ccidTransceiver = new CcidTransceiver(usbConnection, usbBulkIn, usbBulkOut, null);
@@ -291,6 +307,70 @@ public class CcidTransceiverTest {
         assertArrayEquals(Hex.decodeHexOrFail(responseData), ccidDataBlock.getData());
     }
 
+    @Test
+    public void testXfer_reusesBuffers() throws Exception {
+        CcidTransceiver ccidTransceiver = new CcidTransceiver(usbConnection, usbBulkIn, usbBulkOut, null);
+
+        String commandData = "010203";
+        byte[] commandSeq1 = Hex.decodeHexOrFail("6F030000000000000000" + commandData);
+        byte[] commandSeq2 = Hex.decodeHexOrFail("6F030000000001000000" + commandData);
+        String responseData = "0304";
+        byte[] responseSeq1 = Hex.decodeHexOrFail("80020000000000000000" + responseData);
+        byte[] responseSeq2 = Hex.decodeHexOrFail("80020000000001000000" + responseData);
+        expect(commandSeq1, responseSeq1);
+        expect(commandSeq2, responseSeq2);
+
+        byte[] payload = Hex.decodeHexOrFail("ff" + commandData + "ff");
+        CcidDataBlock firstBlock = ccidTransceiver.sendXfrBlock(payload, 1, 3);
+        byte[] firstData = firstBlock.getData();
+        CcidDataBlock secondBlock = ccidTransceiver.sendXfrBlock(payload, 1, 3);
+
+        verifyDialog();
+        assertSame(firstData, secondBlock.getData());
+        assertEquals(2, secondBlock.getDataLength());
+        assertArrayEquals(Hex.decodeHexOrFail(responseData), secondBlock.withDetachedData().getData());
+    }
+
+    @Test
+    public void testXfer_largeChainedCommandAndReply() throws Exception {
+        CcidTransceiver ccidTransceiver = new CcidTransceiver(usbConnection, usbBulkIn, usbBulkOut, null);
+
+        byte[] commandData = new byte[1500];
+        byte[] responseData = new byte[1200];
+        for (int i = 0; i < commandData.length; i++) {
+            commandData[i] = (byte) i;
+        }
+        for (int i = 0; i < responseData.length; i++) {
+            responseData[i] = (byte) (i * 3);
+        }
+        byte[] command = Arrays.concatenate(Hex.decodeHexOrFail("6FDC0500000000000000"), commandData);
+        byte[] response = Arrays.concatenate(Hex.decodeHexOrFail("80B00400000000000000"), responseData);
+        expectChained(command, response);
+
+        CcidDataBlock ccidDataBlock = ccidTransceiver.sendXfrBlock(commandData);
+
+        verifyDialog();
+        assertArrayEquals(responseData, ccidDataBlock.getData());
+    }
+
+    @Test
+    public void testXfer_commandApdu() throws Exception {
+        CcidTransceiver ccidTransceiver = new CcidTransceiver(usbConnection, usbBulkIn, usbBulkOut, null);
+
+        byte[] buffer = Hex.decodeHexOrFail("ff010203ff");
+        CommandApdu commandApdu = CommandApdu.wrap(0x00, 0xDA, 0x00, 0xF9, buffer, 1, 3, 256, null);
+        byte[] command = Hex.decodeHexOrFail("6F090000000000000000" + "00DA00F903010203" + "00");
+        String responseData = "9000";
+        byte[] response = Hex.decodeHexOrFail("80020000000000000000" + responseData);
+        expect(command, response);
+
+        CcidDataBlock ccidDataBlock = ccidTransceiver.sendXfrBlock(commandApdu);
+
+        verifyDialog();
+        assertEquals(2, ccidDataBlock.getDataLength());
+        assertArrayEquals(Hex.decodeHexOrFail(responseData), ccidDataBlock.withDetachedData().getData());
+    }
+
     @Test
     public void testReturnsCorrectAutoPpsFlag() {
         CcidDescriptor description = CcidDescriptor.fromValues((byte) 0, (byte) 7, 3, 65722);
@@ -321,7 +401,7 @@ public class CcidTransceiverTest {
     private void expectChained(byte[] command, byte[] reply) {
         for (int i = 0; i < command.length; i+= MAX_PACKET_LENGTH_OUT) {
             int len = Math.min(MAX_PACKET_LENGTH_OUT, command.length - i);
-            when(usbConnection.bulkTransfer(same(usbBulkOut), aryEq(command), eq(i), eq(len),
+            when(usbConnection.bulkTransfer(same(usbBulkOut), startsWith(command), eq(i), eq(len),
                     any(Integer.class))).thenReturn(len);
         }
         if (reply != null) {
@@ -332,7 +412,7 @@ public class CcidTransceiverTest {
 
     private void expect(byte[] command, byte[] reply) {
         if (command != null) {
-            when(usbConnection.bulkTransfer(same(usbBulkOut), aryEq(command), eq(0), eq(command.length),
+            when(usbConnection.bulkTransfer(same(usbBulkOut), startsWith(command), eq(0), eq(command.length),
                     any(Integer.class))).thenReturn(command.length);
         }
         if (reply != null) {
@@ -340,4 +420,10 @@ public class CcidTransceiverTest {
             expectRepliesVerify.add(null);
         }
     }
+
+    // outgoing messages are assembled in a reused buffer, which may be longer than the message
+    private static byte[] startsWith(byte[] expected) {
+        return argThat(actual -> actual != null && actual.length >= expected.length &&
+                Arrays.areEqual(expected, Arrays.copyOfRange(actual, 0, expected.length)));
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ccid.tpdu;
+
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.usb.ccid.Atr;
+import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver;
+import de.cotech.hw.internal.transport.usb.ccid.CcidTransceiver.CcidDataBlock;
+import de.cotech.hw.internal.transport.usb.ccid.UsbCcidErrorException;
+import de.cotech.hw.internal.transport.usb.UsbTransportException;
+import de.cotech.hw.util.Arrays;
+import de.cotech.hw.util.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 24)
+public class T1TpduProtocolTest {
+    // announces IFSC = 0xFE in TA3
+    static final String ATR = "3bda11ff81b1fe551f0300318473800180009000e4";
+    static final String ATR_WITHOUT_IFSC = "3b88010031738001809000";
+
+    CcidTransceiver ccidTransceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        ccidTransceiver = mock(CcidTransceiver.class);
+        when(ccidTransceiver.hasAutomaticPps()).thenReturn(true);
+        when(ccidTransceiver.hasAutomaticIfsd()).thenReturn(false);
+        when(ccidTransceiver.getMaxIfsd()).thenReturn(254);
+        when(ccidTransceiver.selectFindexDindex(any(Atr.class))).thenReturn(Atr.DEFAULT_FINDEX_DINDEX);
+    }
+
+    @Test
+    public void crcChecksum() throws Exception {
+        byte[] checksum = BlockChecksumAlgorithm.CRC.computeChecksum("123456789".getBytes(), 0, 9);
+
+        assertArrayEquals(Hex.decodeHexOrFail("6f91"), checksum);
+    }
+
+    @Test
+    public void connect_performsPpsWithFastestFiDi() throws Exception {
+        when(ccidTransceiver.hasAutomaticPps()).thenReturn(false);
+        when(ccidTransceiver.selectFindexDindex(any(Atr.class))).thenReturn((byte) 0x13);
+        expectPowerOn(ATR);
+        expectRaw("FF1113FD", "FF1113FD");
+        expect("00C101FE", "00E101FE");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver).setParameters(any(Atr.class), eq(Atr.PROTOCOL_T1), eq((byte) 0x13));
+    }
+
+    @Test
+    public void connect_ppsDeclinedByCard_keepsDefaults() throws Exception {
+        when(ccidTransceiver.hasAutomaticPps()).thenReturn(false);
+        when(ccidTransceiver.selectFindexDindex(any(Atr.class))).thenReturn((byte) 0x13);
+        expectPowerOn(ATR);
+        expectRaw("FF1113FD", "FF01FE");
+        expect("00C101FE", "00E101FE");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver, never()).setParameters(any(Atr.class), any(Integer.class), any(Byte.class));
+    }
+
+    @Test
+    public void connect_automaticPps_setsParameters() throws Exception {
+        when(ccidTransceiver.selectFindexDindex(any(Atr.class))).thenReturn((byte) 0x13);
+        expectPowerOn(ATR);
+        expect("00C101FE", "00E101FE");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver).setParameters(any(Atr.class), eq(Atr.PROTOCOL_T1), eq((byte) 0x13));
+    }
+
+    @Test
+    public void connect_parametersRejectedByReader_keepsDefaults() throws Exception {
+        when(ccidTransceiver.selectFindexDindex(any(Atr.class))).thenReturn((byte) 0x13);
+        doThrow(mock(UsbCcidErrorException.class))
+                .when(ccidTransceiver).setParameters(any(Atr.class), eq(Atr.PROTOCOL_T1), eq((byte) 0x13));
+        expectPowerOn(ATR);
+        expect("00C101FE", "00E101FE");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver).sendXfrBlock(aryEq(withLrc("00C101FE")), eq(0), eq(5));
+    }
+
+    @Test
+    public void connect_crcFromAtr() throws Exception {
+        // TC3 = 0x01 selects CRC
+        expectPowerOn("3b80814101");
+        CcidDataBlock ifsResponse = dataBlock(withCrc("00E101FE"));
+        when(ccidTransceiver.sendXfrBlock(aryEq(withCrc("00C101FE")), eq(0), eq(6))).thenReturn(ifsResponse);
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver).sendXfrBlock(aryEq(withCrc("00C101FE")), eq(0), eq(6));
+    }
+
+    @Test
+    public void connect_negotiatesIfsd() throws Exception {
+        expectPowerOn(ATR);
+        expect("00C101FE", "00E101FE");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver).sendXfrBlock(aryEq(withLrc("00C101FE")), eq(0), eq(5));
+    }
+
+    @Test
+    public void connect_automaticIfsd_skipsNegotiation() throws Exception {
+        when(ccidTransceiver.hasAutomaticIfsd()).thenReturn(true);
+        expectPowerOn(ATR);
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+
+        verify(ccidTransceiver, never()).sendXfrBlock(aryEq(withLrc("00C101FE")), anyInt(), anyInt());
+    }
+
+    @Test
+    public void transceive_chainedResponse() throws Exception {
+        expectPowerOn(ATR);
+        expect("00C101FE", "00E101FE");
+        expect("000004" + "00CA006E", "002003" + "010203");
+        expect("009000", "004004" + "04059000");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+        byte[] response = protocol.transceive(Hex.decodeHexOrFail("00CA006E"));
+
+        assertArrayEquals(Hex.decodeHexOrFail("01020304059000"), response);
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void transceive_responseExceedsIfsd() throws Exception {
+        expectPowerOn(ATR);
+        // the card doesn't confirm our IFSD, so the default of 32 bytes stays in effect
+        expect("00C101FE", "00E10120");
+        String responseData = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+        expect("000004" + "00CA006E", "000021" + responseData + "90");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+        protocol.transceive(Hex.decodeHexOrFail("00CA006E"));
+    }
+
+    @Test
+    public void transceive_chainedCommand_usesIfsc() throws Exception {
+        expectPowerOn(ATR_WITHOUT_IFSC);
+        expect("00C101FE", "00E101FE");
+        String commandData = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+        expect("002020" + commandData, "009000");
+        expect("004002" + "3233", "000002" + "9000");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+        byte[] response = protocol.transceive(Hex.decodeHexOrFail(commandData + "3233"));
+
+        assertArrayEquals(Hex.decodeHexOrFail("9000"), response);
+    }
+
+    @Test
+    public void transceive_answersIfsRequestOfCard() throws Exception {
+        expectPowerOn(ATR_WITHOUT_IFSC);
+        expect("00C101FE", "00E101FE");
+        expect("000004" + "00CA006E", "00C10140");
+        expect("00E10140", "000002" + "9000");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+        byte[] response = protocol.transceive(Hex.decodeHexOrFail("00CA006E"));
+
+        assertArrayEquals(Hex.decodeHexOrFail("9000"), response);
+    }
+
+    @Test
+    public void transceive_commandApdu() throws Exception {
+        expectPowerOn(ATR);
+        expect("00C101FE", "00E101FE");
+        expect("000004" + "00CA006E", "002003" + "010203");
+        expect("009000", "004004" + "04059000");
+
+        T1TpduProtocol protocol = new T1TpduProtocol();
+        protocol.connect(ccidTransceiver);
+        ResponseApdu response = protocol.transceive(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E));
+
+        assertEquals(0x9000, response.getSw());
+        assertArrayEquals(Hex.decodeHexOrFail("0102030405"), response.getData());
+    }
+
+    private void expectPowerOn(String atr) throws Exception {
+        CcidDataBlock atrBlock = dataBlock(Hex.decodeHexOrFail(atr));
+        when(ccidTransceiver.iccPowerOn()).thenReturn(atrBlock);
+    }
+
+    private void expect(String command, String reply) throws Exception {
+        CcidDataBlock replyBlock = pooledDataBlock(withLrc(reply));
+        byte[] commandBlock = withLrc(command);
+        when(ccidTransceiver.sendXfrBlock(aryEq(commandBlock), eq(0), eq(commandBlock.length))).thenReturn(replyBlock);
+    }
+
+    private void expectRaw(String command, String reply) throws Exception {
+        CcidDataBlock replyBlock = dataBlock(Hex.decodeHexOrFail(reply));
+        when(ccidTransceiver.sendXfrBlock(aryEq(Hex.decodeHexOrFail(command)))).thenReturn(replyBlock);
+    }
+
+    private static CcidDataBlock dataBlock(byte[] data) {
+        CcidDataBlock dataBlock = mock(CcidDataBlock.class);
+        when(dataBlock.getData()).thenReturn(data);
+        when(dataBlock.getDataLength()).thenReturn(data.length);
+        return dataBlock;
+    }
+
+    // like blocks from the transceiver's receive buffer, the data is longer than the block
+    private static CcidDataBlock pooledDataBlock(byte[] data) {
+        CcidDataBlock dataBlock = mock(CcidDataBlock.class);
+        when(dataBlock.getData()).thenReturn(Arrays.concatenate(data, new byte[] { (byte) 0xee, (byte) 0xee }));
+        when(dataBlock.getDataLength()).thenReturn(data.length);
+        return dataBlock;
+    }
+
+    private static byte[] withLrc(String blockWithoutEdc) {
+        byte[] block = Hex.decodeHexOrFail(blockWithoutEdc + "00");
+        byte lrc = 0;
+        for (int i = 0; i < block.length - 1; i++) {
+            lrc ^= block[i];
+        }
+        block[block.length - 1] = lrc;
+        return block;
+    }
+
+    private static byte[] withCrc(String blockWithoutEdc) throws Exception {
+        byte[] block = Hex.decodeHexOrFail(blockWithoutEdc);
+        return Arrays.concatenate(block, BlockChecksumAlgorithm.CRC.computeChecksum(block, 0, block.length));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.cotech.hw.internal.transport.usb.UsbTransportException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+@SuppressWarnings("WeakerAccess")
+public class CtapHidFrameDecoderTest {
+    static final int CHANNEL_ID = 12345678;
+    static final byte[] MESSAGE_LONG = CtapHidFrameFactoryTest.repeat(CtapHidFrameFactoryTest.MESSAGE_SHORT, 40);
+
+    CtapHidFrameFactory factory = new CtapHidFrameFactory();
+    CtapHidFrameEncoder encoder = new CtapHidFrameEncoder();
+    CtapHidFrameDecoder decoder = new CtapHidFrameDecoder();
+
+    @Test
+    public void encoder_matchesWrapFrame() throws Exception {
+        byte[] expected = factory.wrapFrame(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+
+        ByteBuffer packet = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(expected.length);
+        encoder.begin(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+        while (encoder.hasNextPacket()) {
+            // leave garbage in the reused packet buffer, it must be overwritten
+            packet.clear();
+            packet.put(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            packet.clear();
+            encoder.writeNextPacket(packet);
+            assertEquals(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE, packet.position());
+            output.put(packet.array());
+        }
+
+        assertArrayEquals(expected, output.array());
+    }
+
+    @Test
+    public void encoder_emptyPayload() {
+        ByteBuffer packet = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        encoder.begin(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_PING, new byte[0]);
+
+        assertTrue(encoder.hasNextPacket());
+        encoder.writeNextPacket(packet);
+        assertFalse(encoder.hasNextPacket());
+    }
+
+    @Test
+    public void decoder_writesIntoDestination() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+        byte[] destination = new byte[MESSAGE_LONG.length + 3];
+
+        decoder.reset(CHANNEL_ID);
+        ByteBuffer initPacket = packet(frame, 0);
+        assertEquals(CtapHidFrameFactory.CTAPHID_MSG,
+                decoder.readInitPacketHeader(initPacket, CtapHidFrameFactory.CTAPHID_MSG));
+        assertEquals(MESSAGE_LONG.length, decoder.getPayloadLength());
+        decoder.readInitPacketPayload(initPacket, destination, 3);
+        for (int i = 1; !decoder.isComplete(); i++) {
+            decoder.readContinuationPacket(packet(frame, i));
+        }
+
+        assertArrayEquals(MESSAGE_LONG, Arrays.copyOfRange(destination, 3, destination.length));
+    }
+
+    @Test
+    public void decoder_failsFastOnSequenceMismatch() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+
+        decoder.reset(CHANNEL_ID);
+        readInitPacket(frame);
+        decoder.readContinuationPacket(packet(frame, 1));
+        try {
+            decoder.readContinuationPacket(packet(frame, 3));
+            fail();
+        } catch (UsbTransportException e) {
+            assertFalse(decoder.isComplete());
+        }
+    }
+
+    @Test(expected = CtapHidChangedChannelException.class)
+    public void decoder_failsFastOnChannelMismatch() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+        ByteBuffer otherChannel = ByteBuffer.wrap(
+                factory.wrapFrame(CHANNEL_ID + 1, CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG));
+
+        decoder.reset(CHANNEL_ID);
+        readInitPacket(frame);
+        decoder.readContinuationPacket(packet(otherChannel, 1));
+    }
+
+    @Test(expected = CtapHidChangedChannelException.class)
+    public void decoder_initPacketForOtherChannel() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+
+        decoder.reset(CHANNEL_ID + 1);
+        decoder.readInitPacketHeader(packet(frame, 0), CtapHidFrameFactory.CTAPHID_MSG);
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void decoder_failsFastOnCommandMismatch() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+
+        decoder.reset(CHANNEL_ID);
+        decoder.readInitPacketHeader(packet(frame, 0), CtapHidFrameFactory.CTAPHID_CBOR);
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void decoder_continuationInsteadOfInitPacket() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_MSG, MESSAGE_LONG);
+
+        decoder.reset(CHANNEL_ID);
+        decoder.readInitPacketHeader(packet(frame, 1), CtapHidFrameFactory.CTAPHID_MSG);
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void decoder_errorMessage() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_ERROR, new byte[] { 0x06 });
+
+        decoder.reset(CHANNEL_ID);
+        decoder.readInitPacketHeader(packet(frame, 0), CtapHidFrameFactory.CTAPHID_CBOR);
+    }
+
+    @Test
+    public void decoder_passesKeepalive() throws Exception {
+        ByteBuffer frame = wrap(CtapHidFrameFactory.CTAPHID_KEEPALIVE, new byte[] { 0x02 });
+
+        decoder.reset(CHANNEL_ID);
+        ByteBuffer initPacket = packet(frame, 0);
+        byte cmdId = decoder.readInitPacketHeader(initPacket, CtapHidFrameFactory.CTAPHID_CBOR);
+        byte[] payload = new byte[decoder.getPayloadLength()];
+        decoder.readInitPacketPayload(initPacket, payload, 0);
+
+        assertEquals(CtapHidFrameFactory.CTAPHID_KEEPALIVE, cmdId);
+        assertTrue(decoder.isComplete());
+        assertEquals(CtapHidKeepaliveListener.KeepaliveType.UPNEEDED, factory.parseKeepalivePayload(payload));
+    }
+
+    private void readInitPacket(ByteBuffer frame) throws UsbTransportException {
+        ByteBuffer initPacket = packet(frame, 0);
+        decoder.readInitPacketHeader(initPacket, CtapHidFrameFactory.CTAPHID_MSG);
+        decoder.readInitPacketPayload(initPacket, new byte[decoder.getPayloadLength()], 0);
+    }
+
+    private ByteBuffer wrap(byte cmdId, byte[] payload) throws UsbTransportException {
+        return ByteBuffer.wrap(factory.wrapFrame(CHANNEL_ID, cmdId, payload));
+    }
+
+    private static ByteBuffer packet(ByteBuffer frame, int index) {
+        ByteBuffer packet = frame.duplicate();
+        packet.position(index * CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        packet.limit((index + 1) * CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        return packet.slice();
+    }
+}
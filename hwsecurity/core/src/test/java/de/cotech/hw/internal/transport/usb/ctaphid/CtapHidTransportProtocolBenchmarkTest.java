@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build.VERSION_CODES;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Microbenchmark comparing per-packet latency of the persistent-request I/O loop against the previous
+ * executor based implementation, reproduced in {@link LegacyExecutorIo}. Both run against the same fake
+ * {@link UsbDeviceConnection}, which completes every request immediately, so the numbers only reflect
+ * host side overhead. The legacy numbers are a lower bound: they reuse a single {@link UsbRequest} mock
+ * instead of allocating and initializing a native request per operation.
+ * <p>
+ * Only runs if the system property hwsecurity.benchmark is set, e.g., gradle test -Dhwsecurity.benchmark=true.
+ */
+@SuppressWarnings("SameParameterValue")
+@TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 24)
+public class CtapHidTransportProtocolBenchmarkTest {
+    private static final String BENCHMARK_PROPERTY = "hwsecurity.benchmark";
+    private static final int CHANNEL_ID = 12345678;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 200;
+
+    private static final byte[] REQUEST = new byte[32];
+    private static final byte[] RESPONSE_SHORT = new byte[16];
+    private static final byte[] RESPONSE_LONG = new byte[7000];
+
+    private final CtapHidFrameFactory frameFactory = new CtapHidFrameFactory();
+
+    private UsbDeviceConnection usbConnection;
+    private UsbEndpoint usbIntIn;
+    private UsbEndpoint usbIntOut;
+    private FakeCtapHidDevice fakeDevice;
+
+    private CtapHidTransportProtocol protocol;
+    private LegacyExecutorIo legacyIo;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+        new Random(1).nextBytes(RESPONSE_LONG);
+
+        usbConnection = mock(UsbDeviceConnection.class);
+        usbIntIn = mock(UsbEndpoint.class);
+        usbIntOut = mock(UsbEndpoint.class);
+        fakeDevice = new FakeCtapHidDevice();
+
+        UsbRequest usbRequestIn = fakeDevice.createUsbRequest(true);
+        UsbRequest usbRequestOut = fakeDevice.createUsbRequest(false);
+        when(usbConnection.requestWait()).thenAnswer(invocation -> fakeDevice.lastQueuedRequest);
+
+        UsbRequest[] requests = { usbRequestIn, usbRequestOut };
+        protocol = new CtapHidTransportProtocol(usbConnection, usbIntIn, usbIntOut) {
+            int requestIndex = 0;
+
+            @Override
+            UsbRequest newUsbRequest() {
+                return requests[requestIndex++];
+            }
+        };
+        protocol.connect();
+
+        legacyIo = new LegacyExecutorIo(usbRequestIn, usbRequestOut);
+    }
+
+    @After
+    public void tearDown() {
+        if (protocol != null) {
+            protocol.close();
+            legacyIo.close();
+        }
+    }
+
+    @Test
+    public void benchmarkPerPacketLatency() throws Exception {
+        report("short", RESPONSE_SHORT);
+        report("long", RESPONSE_LONG);
+    }
+
+    private void report(String name, byte[] response) throws Exception {
+        fakeDevice.response = response;
+        int packetsPerIteration = frameFactory.calculatePacketCountForPayload(REQUEST.length)
+                + frameFactory.calculatePacketCountForPayload(response.length);
+
+        long legacyNanos = measure(() -> legacyIo.transceive(REQUEST), response);
+        long persistentNanos = measure(() -> protocol.transceive(REQUEST), response);
+
+        long totalPackets = (long) packetsPerIteration * MEASURED_ITERATIONS;
+        System.out.println(String.format(Locale.ENGLISH,
+                "CTAPHID %s (%d packets): executor %d ns/packet, persistent requests %d ns/packet",
+                name, packetsPerIteration, legacyNanos / totalPackets, persistentNanos / totalPackets));
+    }
+
+    private long measure(Transceiver transceiver, byte[] expectedResponse) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            assertArrayEquals(expectedResponse, transceiver.transceive());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            transceiver.transceive();
+        }
+        return System.nanoTime() - start;
+    }
+
+    interface Transceiver {
+        byte[] transceive() throws Exception;
+    }
+
+    /** Answers CTAPHID_INIT and echoes a fixed response to every CTAPHID_MSG request. */
+    class FakeCtapHidDevice {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        byte[] output;
+        int outputOffset;
+        byte[] response;
+        UsbRequest lastQueuedRequest;
+
+        UsbRequest createUsbRequest(boolean in) {
+            UsbRequest usbRequest = mock(UsbRequest.class);
+            when(usbRequest.initialize(any(UsbDeviceConnection.class), any(UsbEndpoint.class))).thenReturn(true);
+            when(usbRequest.queue(any(ByteBuffer.class), anyInt())).thenAnswer((Answer<Boolean>) invocation -> {
+                ByteBuffer buffer = invocation.getArgument(0);
+                if (in) {
+                    readPacket(buffer);
+                } else {
+                    input.write(buffer.array(), 0, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                }
+                lastQueuedRequest = usbRequest;
+                return true;
+            });
+            return usbRequest;
+        }
+
+        private void readPacket(ByteBuffer buffer) throws Exception {
+            if (output == null || outputOffset == output.length) {
+                output = processInput(input.toByteArray());
+                outputOffset = 0;
+                input.reset();
+            }
+            buffer.clear();
+            buffer.put(output, outputOffset, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+            outputOffset += CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
+        }
+
+        private byte[] processInput(byte[] frame) throws Exception {
+            if (frame[4] == CtapHidFrameFactory.CTAPHID_INIT) {
+                byte[] nonce = frameFactory.unwrapFrame(
+                        CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST, CtapHidFrameFactory.CTAPHID_INIT, frame);
+                byte[] initResponse = ByteBuffer.allocate(17).order(ByteOrder.BIG_ENDIAN)
+                        .put(nonce).putInt(CHANNEL_ID).put(new byte[] { 2, 1, 0, 0, 0 }).array();
+                return frameFactory.wrapFrame(
+                        CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST, CtapHidFrameFactory.CTAPHID_INIT, initResponse);
+            }
+            frameFactory.unwrapFrame(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, frame);
+            return frameFactory.wrapFrame(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, response);
+        }
+    }
+
+    /**
+     * The I/O loop as implemented before persistent requests: each read and write operation is handed to a
+     * single thread executor, re-initializes its request, and is awaited through a {@link Future}.
+     */
+    class LegacyExecutorIo {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ByteBuffer transferBuffer = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        final UsbRequest usbRequestIn;
+        final UsbRequest usbRequestOut;
+
+        LegacyExecutorIo(UsbRequest usbRequestIn, UsbRequest usbRequestOut) {
+            this.usbRequestIn = usbRequestIn;
+            this.usbRequestOut = usbRequestOut;
+        }
+
+        byte[] transceive(byte[] payload) throws Exception {
+            byte[] requestFrame = frameFactory.wrapFrame(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, payload);
+            performWithTimeout(() -> {
+                usbRequestOut.initialize(usbConnection, usbIntOut);
+                for (int offset = 0; offset < requestFrame.length; offset += CtapHidFrameFactory.CTAPHID_BUFFER_SIZE) {
+                    transferBuffer.clear();
+                    transferBuffer.put(requestFrame, offset, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                    usbRequestOut.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                    usbConnection.requestWait();
+                }
+                return null;
+            }, 1000);
+
+            byte[] responseFrame = performWithTimeout(() -> {
+                usbRequestIn.initialize(usbConnection, usbIntIn);
+                usbRequestIn.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                usbConnection.requestWait();
+                transferBuffer.clear();
+                int expectedFrames = frameFactory.calculatePacketCountForPayload(transferBuffer.getShort(5));
+
+                byte[] data = new byte[expectedFrames * CtapHidFrameFactory.CTAPHID_BUFFER_SIZE];
+                transferBuffer.get(data, 0, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                for (int i = 1; i < expectedFrames; i++) {
+                    usbRequestIn.queue(transferBuffer, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                    usbConnection.requestWait();
+                    transferBuffer.clear();
+                    transferBuffer.get(data, i * CtapHidFrameFactory.CTAPHID_BUFFER_SIZE,
+                            CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+                }
+                return data;
+            }, 2000);
+            return frameFactory.unwrapFrame(CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, responseFrame);
+        }
+
+        <T> T performWithTimeout(Callable<T> task, int timeoutMs) throws Exception {
+            Future<T> future = executor.submit(task);
+            try {
+                return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+
+        void close() {
+            executor.shutdown();
+        }
+    }
+}
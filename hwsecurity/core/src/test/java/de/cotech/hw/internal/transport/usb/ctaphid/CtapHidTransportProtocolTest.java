@@ -28,15 +28,21 @@ package de.cotech.hw.internal.transport.usb.ctaphid;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 
 import android.annotation.TargetApi;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbRequest;
 import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
 
 import de.cotech.hw.internal.transport.usb.UsbTransportException;
+import de.cotech.hw.internal.transport.usb.ctaphid.CtapHidKeepaliveListener.KeepaliveType;
 import de.cotech.hw.util.Hex;
 import org.junit.Before;
 import org.junit.Test;
@@ -47,10 +53,14 @@ import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -60,16 +70,25 @@ import static org.mockito.Mockito.when;
 @Config(sdk = 24)
 public class CtapHidTransportProtocolTest {
     static final int CHANNEL_ID = 12345678;
+    static final int CHANNEL_ID_2 = 23456789;
     static final byte[] DATA_IN = Hex.decodeHexOrFail("1a2b3d4e5f");
     static final byte[] DATA_OUT = Hex.decodeHexOrFail("5f4e3d2c1b");
     static final byte[] DATA_IN_LONG = new byte[200];
     static final byte[] DATA_OUT_LONG = new byte[199];
+    static final byte[] CTAP2_ERR_KEEPALIVE_CANCEL = { 0x2D };
+    static final byte KEEPALIVE_PROCESSING = 1;
+    static final byte KEEPALIVE_UPNEEDED = 2;
 
     UsbDeviceConnection usbConnection;
     UsbEndpoint usbIntIn;
     UsbEndpoint usbIntOut;
 
+    UsbRequest usbRequestIn;
+    UsbRequest usbRequestOut;
+    UsbRequest lastQueuedRequest;
+
     LinkedList<UsbRequest> requestQueue;
+    LinkedList<RequestState> exchangeQueue;
 
     CtapHidTransportProtocol protocol;
     CtapHidFrameFactory frameFactory = new CtapHidFrameFactory();
@@ -80,7 +99,12 @@ public class CtapHidTransportProtocolTest {
         usbIntIn = mock(UsbEndpoint.class);
         usbIntOut = mock(UsbEndpoint.class);
 
+        exchangeQueue = new LinkedList<>();
+        setUpUsbRequests();
+
         requestQueue = new LinkedList<>();
+        requestQueue.add(usbRequestIn);
+        requestQueue.add(usbRequestOut);
 
         protocol = new CtapHidTransportProtocol(usbConnection, usbIntIn, usbIntOut) {
             @Override
@@ -186,31 +210,412 @@ public class CtapHidTransportProtocolTest {
         verifyDialog();
     }
 
+    @Test
+    public void transceiveCbor_reportsKeepalive() throws Exception {
+        connect();
+
+        List<KeepaliveType> keepalives = new ArrayList<>();
+        protocol.setKeepaliveListener(keepalives::add);
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_PROCESSING, KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        byte[] response = protocol.transceiveCbor(DATA_IN);
+
+        assertArrayEquals(DATA_OUT, response);
+        assertEquals(Arrays.asList(KeepaliveType.PROCESSING, KeepaliveType.UPNEEDED, KeepaliveType.UPNEEDED),
+                keepalives);
+        assertFalse(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_cancel() throws Exception {
+        connect();
+
+        List<KeepaliveType> keepalives = new ArrayList<>();
+        protocol.setKeepaliveListener(keepaliveType -> {
+            keepalives.add(keepaliveType);
+            if (keepaliveType == KeepaliveType.UPNEEDED) {
+                protocol.cancel();
+            }
+        });
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_PROCESSING, KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        byte[] response = protocol.transceiveCbor(DATA_IN);
+
+        assertArrayEquals(CTAP2_ERR_KEEPALIVE_CANCEL, response);
+        assertEquals(Arrays.asList(KeepaliveType.PROCESSING, KeepaliveType.UPNEEDED), keepalives);
+        assertTrue(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_interruptSendsCancel() throws Exception {
+        connect();
+
+        protocol.setKeepaliveListener(keepaliveType -> Thread.currentThread().interrupt());
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        try {
+            protocol.transceiveCbor(DATA_IN);
+            fail();
+        } catch (UsbTransportException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        } finally {
+            // clear interrupt flag
+            Thread.interrupted();
+        }
+
+        assertTrue(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_cancelBetweenCommandsOfOperation() throws Exception {
+        connect();
+        CtapHidOperation operation = protocol.beginOperation();
+
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        protocol.cancel();
+        byte[] response = protocol.transceiveCbor(DATA_IN);
+        operation.end();
+
+        assertArrayEquals(CTAP2_ERR_KEEPALIVE_CANCEL, response);
+        assertTrue(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_cancelWhileIdle_doesNotAffectNextCommand() throws Exception {
+        connect();
+
+        protocol.cancel();
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        byte[] response = protocol.transceiveCbor(DATA_IN);
+
+        assertArrayEquals(DATA_OUT, response);
+        assertFalse(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_cancelWhileWaitingForLock() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 2);
+        CtapHidChannel channel = protocol.openChannel();
+
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_LOCK, data -> new byte[0]);
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_LOCK, data -> new byte[0]);
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        channel.lock(5);
+
+        byte[][] otherResponse = new byte[1][];
+        Thread otherThread = new Thread(() -> {
+            try {
+                otherResponse[0] = protocol.transceiveCbor(DATA_IN);
+            } catch (UsbTransportException e) {
+                throw new AssertionError(e);
+            }
+        });
+        otherThread.start();
+        otherThread.join(100);
+        assertTrue(otherThread.isAlive());
+
+        protocol.cancel();
+        channel.unlock();
+        otherThread.join(2000);
+
+        assertFalse(otherThread.isAlive());
+        assertArrayEquals(CTAP2_ERR_KEEPALIVE_CANCEL, otherResponse[0]);
+        assertTrue(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void transceiveCbor_cancelDoesNotOutliveOperation() throws Exception {
+        transceiveCbor_cancelBetweenCommandsOfOperation();
+
+        RequestState state = expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        byte[] response = protocol.transceiveCbor(DATA_IN);
+
+        assertArrayEquals(DATA_OUT, response);
+        assertFalse(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void openChannel() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 0);
+
+        CtapHidChannel channel = protocol.openChannel();
+
+        assertEquals(CHANNEL_ID_2, channel.getChannelId());
+        assertEquals(CHANNEL_ID, protocol.getChannelId());
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_ping() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 0);
+        CtapHidChannel channel = protocol.openChannel();
+
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_PING, data -> data);
+        channel.ping(DATA_IN_LONG);
+
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_wink() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 1);
+        CtapHidChannel channel = protocol.openChannel();
+
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_WINK, data -> {
+            assertEquals(0, data.length);
+            return data;
+        });
+
+        assertTrue(channel.isWinkSupported());
+        assertTrue(channel.wink());
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_winkUnsupported() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 0);
+        CtapHidChannel channel = protocol.openChannel();
+
+        assertFalse(channel.wink());
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_lockHoldsBackOtherChannels() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 2);
+        CtapHidChannel channel = protocol.openChannel();
+
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_LOCK, data -> {
+            assertArrayEquals(new byte[] { 5 }, data);
+            return new byte[0];
+        });
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_PING, data -> data);
+        expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_LOCK, data -> {
+            assertArrayEquals(new byte[] { 0 }, data);
+            return new byte[0];
+        });
+        expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, data -> DATA_OUT);
+
+        channel.lock(5);
+
+        byte[][] otherResponse = new byte[1][];
+        Thread otherThread = new Thread(() -> {
+            try {
+                otherResponse[0] = protocol.transceive(DATA_IN);
+            } catch (UsbTransportException e) {
+                throw new AssertionError(e);
+            }
+        });
+        otherThread.start();
+        otherThread.join(100);
+        assertTrue(otherThread.isAlive());
+
+        channel.ping(DATA_IN);
+        channel.unlock();
+        otherThread.join(2000);
+
+        assertFalse(otherThread.isAlive());
+        assertArrayEquals(DATA_OUT, otherResponse[0]);
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_cancelOnlyAffectsOwnChannel() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 0);
+        CtapHidChannel channel = protocol.openChannel();
+
+        List<KeepaliveType> defaultChannelKeepalives = new ArrayList<>();
+        protocol.setKeepaliveListener(defaultChannelKeepalives::add);
+        List<KeepaliveType> keepalives = new ArrayList<>();
+        channel.setKeepaliveListener(keepaliveType -> {
+            keepalives.add(keepaliveType);
+            channel.cancel();
+        });
+        RequestState state = expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_CBOR, data -> DATA_OUT);
+        state.keepalives = new byte[] { KEEPALIVE_UPNEEDED, KEEPALIVE_UPNEEDED };
+
+        // a request for the default channel must not cancel commands on other channels
+        CtapHidOperation operation = protocol.beginOperation();
+        protocol.cancel();
+        byte[] response = channel.transceiveCbor(DATA_IN);
+        operation.end();
+
+        assertArrayEquals(CTAP2_ERR_KEEPALIVE_CANCEL, response);
+        assertEquals(Collections.singletonList(KeepaliveType.UPNEEDED), keepalives);
+        assertTrue(defaultChannelKeepalives.isEmpty());
+        assertTrue(state.cancelled);
+        verifyDialog();
+    }
+
+    @Test
+    public void channel_skipsContinuationPacketsOfOtherChannels() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 0);
+        CtapHidChannel channel = protocol.openChannel();
+
+        RequestState state = expect(CHANNEL_ID_2, CHANNEL_ID_2, CtapHidFrameFactory.CTAPHID_MSG, data -> DATA_OUT_LONG);
+        state.interleavedChannelId = CHANNEL_ID;
+
+        byte[] response = channel.transceive(DATA_IN);
+
+        assertArrayEquals(DATA_OUT_LONG, response);
+        verifyDialog();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void channel_unlockWithoutLock() throws Exception {
+        connect();
+        expectInit(CHANNEL_ID_2, (byte) 2);
+        CtapHidChannel channel = protocol.openChannel();
+
+        channel.unlock();
+    }
+
+    @Test
+    public void transceive_reusesUsbRequests() throws Exception {
+        connect();
+        transceive_short();
+        transceive_long();
+
+        verify(usbRequestIn, times(1)).initialize(usbConnection, usbIntIn);
+        verify(usbRequestOut, times(1)).initialize(usbConnection, usbIntOut);
+        verify(usbRequestIn, times(0)).close();
+        verify(usbRequestOut, times(0)).close();
+    }
+
+    @Test
+    public void close_releasesUsbRequests() throws Exception {
+        connect();
+
+        protocol.close();
+
+        verify(usbRequestIn).close();
+        verify(usbRequestOut).close();
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void transceive_afterClose() throws Exception {
+        connect();
+        protocol.close();
+
+        protocol.transceive(DATA_IN);
+    }
+
+    @Test(expected = UsbTransportException.class)
+    public void transceive_deadlineExceeded() throws Exception {
+        connect();
+
+        expect(CHANNEL_ID, CHANNEL_ID, CtapHidFrameFactory.CTAPHID_MSG, data -> DATA_OUT_LONG);
+        when(usbConnection.requestWait()).thenAnswer(invocation -> {
+            if (lastQueuedRequest == usbRequestIn) {
+                SystemClock.sleep(1000);
+            }
+            return lastQueuedRequest;
+        });
+
+        protocol.transceive(DATA_IN);
+    }
+
+    private void expectInit(int channelId, byte capabilityFlags) {
+        expect(CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST, CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST,
+                CtapHidFrameFactory.CTAPHID_INIT, nonce ->
+                        ByteBuffer
+                                .allocate(17)
+                                .order(ByteOrder.BIG_ENDIAN)
+                                .put(nonce)
+                                .putInt(channelId)
+                                .put((byte) 2) // versionInterface
+                                .put((byte) 7) // versionMajor
+                                .put((byte) 1) // versionMinor
+                                .put((byte) 3) // versionBuild
+                                .put(capabilityFlags)
+                                .array());
+    }
+
     private void verifyDialog() {
         assertTrue(requestQueue.isEmpty());
+        assertTrue(exchangeQueue.isEmpty());
     }
 
-    private void expect(int inputChannelId, int outputChannelId, byte cmdId, CtapCommunicationCallback callback) {
-        RequestState state = new RequestState();
-
-        UsbRequest usbRequestOut = mock(UsbRequest.class);
+    private void setUpUsbRequests() {
+        usbRequestOut = mock(UsbRequest.class);
         when(usbRequestOut.initialize(usbConnection, usbIntOut)).thenReturn(true);
         when(usbRequestOut.queue(any(ByteBuffer.class), eq(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE))).thenAnswer(
                 (Answer<Boolean>) invocation -> {
-                    state.inputAccumulator.write(invocation.<ByteBuffer>getArgument(0).array());
+                    lastQueuedRequest = usbRequestOut;
+                    byte[] packet = invocation.<ByteBuffer>getArgument(0).array();
+                    if (packet[4] == CtapHidFrameFactory.CTAPHID_CANCEL) {
+                        // answer the pending request right away, dropping keepalives not yet read
+                        RequestState state = exchangeQueue.getFirst();
+                        assertEquals(state.inputChannelId, ByteBuffer.wrap(packet).getInt());
+                        state.cancelled = true;
+                        if (state.output != null) {
+                            state.output = concat(Arrays.copyOf(state.output, state.outputOffset),
+                                    frameFactory.wrapFrame(state.outputChannelId, state.cmdId, CTAP2_ERR_KEEPALIVE_CANCEL));
+                        }
+                        return true;
+                    }
+                    RequestState state = findPendingInputExchange();
+                    state.inputAccumulator.write(packet);
                     return true;
                 });
-        requestQueue.add(usbRequestOut);
 
-        UsbRequest usbRequestIn = mock(UsbRequest.class);
+        usbRequestIn = mock(UsbRequest.class);
         when(usbRequestIn.initialize(usbConnection, usbIntIn)).thenReturn(true);
         when(usbRequestIn.queue(any(ByteBuffer.class), eq(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE))).thenAnswer(
                 (Answer<Boolean>) invocation -> {
+                    lastQueuedRequest = usbRequestIn;
+                    if (exchangeQueue.isEmpty()) {
+                        // nothing left to answer, let the current operation time out
+                        SystemClock.sleep(5000);
+                        return true;
+                    }
+                    RequestState state = exchangeQueue.getFirst();
                     if (!state.inputFinished) {
                         state.inputFinished = true;
-                        byte[] inputFrame = frameFactory.unwrapFrame(inputChannelId, cmdId, state.inputAccumulator.toByteArray());
-                        byte[] responseBytes = callback.communicate(inputFrame);
-                        state.output = frameFactory.wrapFrame(outputChannelId, cmdId, responseBytes);
+                        byte[] inputFrame = frameFactory.unwrapFrame(
+                                state.inputChannelId, state.cmdId, state.inputAccumulator.toByteArray());
+                        byte[] responseBytes = state.callback.communicate(inputFrame);
+                        state.output = new byte[0];
+                        if (state.cancelled) {
+                            // cancelled before the first packet was read
+                            responseBytes = CTAP2_ERR_KEEPALIVE_CANCEL;
+                        } else {
+                            for (byte keepalive : state.keepalives) {
+                                state.output = concat(state.output, frameFactory.wrapFrame(state.outputChannelId,
+                                        CtapHidFrameFactory.CTAPHID_KEEPALIVE, new byte[] { keepalive }));
+                            }
+                        }
+                        byte[] responseFrame = frameFactory.wrapFrame(state.outputChannelId, state.cmdId, responseBytes);
+                        if (state.interleavedChannelId != 0) {
+                            byte[] interleavedPacket = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)
+                                    .putInt(state.interleavedChannelId).put((byte) 0).array();
+                            int splitOffset = CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
+                            responseFrame = concat(concat(Arrays.copyOf(responseFrame, splitOffset), interleavedPacket),
+                                    Arrays.copyOfRange(responseFrame, splitOffset, responseFrame.length));
+                        }
+                        state.output = concat(state.output, responseFrame);
                         state.inputAccumulator = null;
                         state.outputOffset = 0;
                     }
@@ -219,12 +624,48 @@ public class CtapHidTransportProtocolTest {
                     buf.clear();
                     buf.put(state.output, state.outputOffset, CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
                     state.outputOffset += CtapHidFrameFactory.CTAPHID_BUFFER_SIZE;
+                    if (state.outputOffset == state.output.length) {
+                        exchangeQueue.removeFirst();
+                    }
                     return true;
                 });
-        requestQueue.add(usbRequestIn);
+
+        when(usbConnection.requestWait()).thenAnswer(invocation -> lastQueuedRequest);
+    }
+
+    private RequestState findPendingInputExchange() {
+        for (RequestState state : exchangeQueue) {
+            if (!state.inputFinished) {
+                return state;
+            }
+        }
+        throw new AssertionError("Unexpected write");
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private RequestState expect(int inputChannelId, int outputChannelId, byte cmdId, CtapCommunicationCallback callback) {
+        RequestState state = new RequestState();
+        state.inputChannelId = inputChannelId;
+        state.outputChannelId = outputChannelId;
+        state.cmdId = cmdId;
+        state.callback = callback;
+        exchangeQueue.add(state);
+        return state;
     }
 
     static class RequestState {
+        int inputChannelId;
+        int outputChannelId;
+        byte cmdId;
+        CtapCommunicationCallback callback;
+        byte[] keepalives = new byte[0];
+        int interleavedChannelId;
+        boolean cancelled;
         ByteArrayOutputStream inputAccumulator = new ByteArrayOutputStream();
         boolean inputFinished;
         public byte[] output;
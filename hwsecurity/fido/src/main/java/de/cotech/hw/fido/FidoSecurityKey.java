@@ -40,8 +40,8 @@ import de.cotech.hw.SecurityKeyManagerConfig;
 import de.cotech.hw.fido.exceptions.FidoWrongKeyHandleException;
 import de.cotech.hw.fido.internal.FidoU2fAppletConnection;
 import de.cotech.hw.fido.internal.async.FidoAsyncOperationManager;
-import de.cotech.hw.fido.internal.async.FidoAuthenticateOperationThread;
-import de.cotech.hw.fido.internal.async.FidoRegisterOperationThread;
+import de.cotech.hw.fido.internal.async.FidoAuthenticateOperation;
+import de.cotech.hw.fido.internal.async.FidoRegisterOperation;
 import de.cotech.hw.fido.internal.operations.AuthenticateOp;
 import de.cotech.hw.fido.internal.operations.RegisterOp;
 import de.cotech.hw.internal.HwSentry;
@@ -88,9 +88,9 @@ public class FidoSecurityKey extends SecurityKey {
     public void registerAsync(FidoRegisterRequest registerRequest,
             FidoRegisterCallback callback, Handler handler, LifecycleOwner lifecycleOwner) {
         HwSentry.addBreadcrumb("Performing async FIDO U2F operation: register");
-        FidoRegisterOperationThread fidoOperationThread = new FidoRegisterOperationThread(
+        FidoRegisterOperation fidoOperation = new FidoRegisterOperation(
                 fidoU2fAppletConnection, handler, callback, registerRequest, USER_PRESENCE_CHECK_DELAY_MS);
-        fidoAsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperationThread);
+        fidoAsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperation);
     }
 
     @WorkerThread
@@ -129,9 +129,9 @@ public class FidoSecurityKey extends SecurityKey {
     public void authenticateAsync(FidoAuthenticateRequest authenticateRequest,
             FidoAuthenticateCallback callback, Handler handler, LifecycleOwner lifecycleOwner) {
         HwSentry.addBreadcrumb("Performing async FIDO U2F operation: authenticate");
-        FidoAuthenticateOperationThread fidoOperationThread = new FidoAuthenticateOperationThread(
+        FidoAuthenticateOperation fidoOperation = new FidoAuthenticateOperation(
                 fidoU2fAppletConnection, handler, callback, authenticateRequest, USER_PRESENCE_CHECK_DELAY_MS);
-        fidoAsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperationThread);
+        fidoAsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperation);
     }
 
     @AnyThread
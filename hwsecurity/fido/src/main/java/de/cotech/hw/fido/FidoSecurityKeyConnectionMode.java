@@ -32,7 +32,7 @@ import de.cotech.hw.SecurityKeyConnectionMode;
 import de.cotech.hw.SecurityKeyManagerConfig;
 import de.cotech.hw.fido.internal.FidoU2fAppletConnection;
 import de.cotech.hw.fido.internal.async.FidoAsyncOperationManager;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 
 
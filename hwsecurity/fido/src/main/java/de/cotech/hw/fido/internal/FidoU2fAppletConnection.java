@@ -45,8 +45,10 @@ import de.cotech.hw.fido.exceptions.FidoU2fNotSupportedException;
 import de.cotech.hw.fido.exceptions.FidoWrongKeyHandleException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import de.cotech.hw.internal.transport.TransportCapabilitiesCache;
 import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 
@@ -72,6 +74,8 @@ public class FidoU2fAppletConnection {
     private final FidoU2fCommandApduFactory commandFactory;
 
     private boolean isFidoAppletConnected;
+    // null while no applet is selected, as with CTAPHID
+    private byte[] selectedAid;
 
     public static FidoU2fAppletConnection getInstanceForTransport(@NonNull Transport transport) {
         return new FidoU2fAppletConnection(transport, new FidoU2fCommandApduFactory());
@@ -99,7 +103,7 @@ public class FidoU2fAppletConnection {
                 byte[] versionBytes = readVersion();
                 checkVersionOrThrow(versionBytes);
             } else {
-                byte[] selectedAid = selectFilesFromPrefixOrFail();
+                selectedAid = selectFilesFromPrefixOrFail();
                 HwTimber.d("Connected to AID %s", Hex.encodeHexString(selectedAid));
             }
 
@@ -207,22 +211,45 @@ public class FidoU2fAppletConnection {
          * In the best case, extended length is supported by device and authenticator, so we don't need to
          * parse chained APDUs coming from the authenticator.
          *
-         * We do *not* check for `transport.isExtendedLengthSupported()` here! There are phones (including
+         * We do *not* rely on `transport.isExtendedLengthSupported()` here! There are phones (including
          * the Nexus 5X, Nexus 6P) that return "false" to this, but some Security Keys (like Yubikey Neo) still
          * require us to send extended APDUs. So what we do is, send an extended APDU, and if that doesn't
-         * work, fall back to a short one.
+         * work, fall back to a short one. The outcome is remembered for this applet on the device, so later
+         * commands and connections use the working encoding right away.
          */
-        if (!transport.isExtendedLengthSupported()) {
-            HwTimber.w("Transport protocol does not support extended length. Probably an old device with NFC, such as Nexus 5X, Nexus 6P. We still try sending extended length!");
-        }
+        TransportCapabilities capabilities = transport.getTransportCapabilities();
+        TransportCapabilitiesCache capabilitiesCache = TransportCapabilitiesCache.getInstance();
+        Boolean extendedLengthSupported =
+                capabilitiesCache.getAppletCapabilities(transport, selectedAid).getExtendedLengthSupported();
+        if (!Boolean.FALSE.equals(extendedLengthSupported)) {
+            if (!capabilities.isExtendedLengthSupported()) {
+                HwTimber.w("Transport protocol does not support extended length. Probably an old device with NFC, such as Nexus 5X, Nexus 6P. We still try sending extended length!");
+            }
+
+            CommandApdu extendedCommandApdu = commandApdu.withExtendedApduNe();
+            ResponseApdu response = transport.transceive(extendedCommandApdu);
+            if (response.getSw() != WrongRequestLengthException.SW_WRONG_REQUEST_LENGTH) {
+                if (extendedLengthSupported == null && extendedCommandApdu.isExtendedLength()) {
+                    capabilitiesCache.learnExtendedLengthSupport(transport, selectedAid, true);
+                }
+                return response;
+            }
 
-        ResponseApdu response = transport.transceive(commandApdu.withExtendedApduNe());
-        if (response.getSw() != WrongRequestLengthException.SW_WRONG_REQUEST_LENGTH) {
-            return response;
-        } else {
             HwTimber.d("Received WRONG_REQUEST_LENGTH error. Retrying with short APDU Ne.");
+            ResponseApdu shortResponse = sendShortWithChaining(commandApdu);
+            // only blame the encoding if the same command is accepted without extended length
+            if (extendedCommandApdu.isExtendedLength()
+                    && shortResponse.getSw() != WrongRequestLengthException.SW_WRONG_REQUEST_LENGTH) {
+                capabilitiesCache.learnExtendedLengthSupport(transport, selectedAid, false);
+            }
+            return shortResponse;
         }
 
+        return sendShortWithChaining(commandApdu);
+    }
+
+    @NonNull
+    private ResponseApdu sendShortWithChaining(CommandApdu commandApdu) throws IOException {
         if (commandFactory.isSuitableForSingleShortApdu(commandApdu)) {
             return transport.transceive(commandApdu.withShortApduNe());
         }
@@ -295,4 +322,9 @@ public class FidoU2fAppletConnection {
     public boolean isConnected() {
         return transport.isConnected();
     }
+
+    @NonNull
+    public Transport getTransport() {
+        return transport;
+    }
 }
@@ -108,9 +108,9 @@ public class FidoU2fCommandApduFactory {
             if (last) {
                 // TODO: Check this!
                 int ne = Math.min(apdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT);
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, ne, DESCRIBER);
+                cmd = CommandApdu.wrap(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, ne, DESCRIBER);
             } else {
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, 0, DESCRIBER);
+                cmd = CommandApdu.wrap(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, 0, DESCRIBER);
             }
             result.add(cmd);
 
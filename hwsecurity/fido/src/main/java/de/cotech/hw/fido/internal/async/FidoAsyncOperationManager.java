@@ -37,24 +37,24 @@ import de.cotech.hw.fido.internal.utils.AndroidUtils;
 public class FidoAsyncOperationManager {
     private final Object asyncOperationLock;
     @VisibleForTesting
-    FidoOperationThread<?> asyncOperationThread;
+    FidoOperation<?> asyncOperation;
 
     public FidoAsyncOperationManager() {
         asyncOperationLock = new Object();
     }
 
     @AnyThread
-    public void startAsyncOperation(LifecycleOwner lifecycleOwner, FidoOperationThread<?> operationThread) {
+    public void startAsyncOperation(LifecycleOwner lifecycleOwner, FidoOperation<?> operation) {
         synchronized (asyncOperationLock) {
-            if (asyncOperationThread != null) {
-                asyncOperationThread.interrupt();
-                asyncOperationThread = null;
+            if (asyncOperation != null) {
+                asyncOperation.cancel();
+                asyncOperation = null;
             }
 
-            asyncOperationThread = operationThread;
-            asyncOperationThread.setFidoAsyncOperationManager(this);
-            asyncOperationThread.start();
-            AndroidUtils.addLifecycleObserver(lifecycleOwner, asyncOperationThread);
+            asyncOperation = operation;
+            asyncOperation.setFidoAsyncOperationManager(this);
+            asyncOperation.start();
+            AndroidUtils.addLifecycleObserver(lifecycleOwner, asyncOperation);
         }
     }
 
@@ -64,18 +64,18 @@ public class FidoAsyncOperationManager {
     }
 
     @AnyThread
-    void clearAsyncOperation(boolean interrupt, Thread specificThread) {
+    void clearAsyncOperation(boolean cancel, FidoOperation<?> specificOperation) {
         synchronized (asyncOperationLock) {
-            if (specificThread != null && asyncOperationThread != specificThread) {
-                if (interrupt) {
-                    specificThread.interrupt();
+            if (specificOperation != null && asyncOperation != specificOperation) {
+                if (cancel) {
+                    specificOperation.cancel();
                 }
                 return;
             }
-            if (asyncOperationThread != null && asyncOperationThread.isAlive() && interrupt) {
-                asyncOperationThread.interrupt();
+            if (asyncOperation != null && !asyncOperation.isDone() && cancel) {
+                asyncOperation.cancel();
             }
-            asyncOperationThread = null;
+            asyncOperation = null;
         }
     }
 }
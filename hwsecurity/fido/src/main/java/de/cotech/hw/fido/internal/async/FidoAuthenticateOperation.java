@@ -49,7 +49,7 @@ import de.cotech.hw.util.HwTimber;
 
 
 @RestrictTo(Scope.LIBRARY_GROUP)
-public class FidoAuthenticateOperationThread extends FidoOperationThread<FidoAuthenticateResponse> {
+public class FidoAuthenticateOperation extends FidoOperation<FidoAuthenticateResponse> {
     private final FidoAuthenticateCallback callback;
     private final FidoAuthenticateRequest authenticateRequest;
 
@@ -58,7 +58,7 @@ public class FidoAuthenticateOperationThread extends FidoOperationThread<FidoAut
     private byte[] applicationParam;
     private byte[] acceptedKeyHandle;
 
-    public FidoAuthenticateOperationThread(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
+    public FidoAuthenticateOperation(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
             FidoAuthenticateCallback callback, FidoAuthenticateRequest authenticateRequest,
             int userPresenceCheckDelayMs) {
         super(fidoU2fAppletConnection, handler, userPresenceCheckDelayMs);
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.fido.internal.async;
+
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.Handler;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.UiThread;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.Lifecycle.Event;
+import androidx.lifecycle.LifecycleObserver;
+import androidx.lifecycle.OnLifecycleEvent;
+
+import de.cotech.hw.exceptions.SecurityKeyDisconnectedException;
+import de.cotech.hw.fido.exceptions.FidoPresenceRequiredException;
+import de.cotech.hw.fido.internal.FidoU2fAppletConnection;
+import de.cotech.hw.internal.transport.TransportScheduler;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * A FIDO operation that runs on the {@link TransportScheduler} of its transport instead of a thread of its own.
+ * <p>
+ * Each attempt to perform the operation is queued on the transport's I/O queue. While the key waits for the
+ * user to confirm presence, the next attempt is queued after a delay, so no thread is held in between.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+abstract class FidoOperation<T> implements LifecycleObserver {
+    private FidoAsyncOperationManager fidoAsyncOperationManager;
+    private final Handler handler;
+    private final int presenceCheckDelayMs;
+    final FidoU2fAppletConnection fidoU2fAppletConnection;
+
+    private final Object stateLock = new Object();
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private boolean isPrepared;
+    private boolean isCancelled;
+    private Thread attemptThread;
+
+    FidoOperation(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler, int presenceCheckDelayMs) {
+        this.fidoU2fAppletConnection = fidoU2fAppletConnection;
+        this.handler = handler;
+        this.presenceCheckDelayMs = presenceCheckDelayMs;
+    }
+
+    @WorkerThread
+    abstract void prepareOperation() throws InterruptedException;
+    @WorkerThread
+    abstract T performOperation() throws IOException, InterruptedException;
+    @UiThread
+    abstract void deliverResponse(T response);
+    @UiThread
+    abstract void deliverIoException(IOException e);
+
+    void setFidoAsyncOperationManager(FidoAsyncOperationManager fidoAsyncOperationManager) {
+        this.fidoAsyncOperationManager = fidoAsyncOperationManager;
+    }
+
+    @AnyThread
+    void start() {
+        TransportScheduler.getInstance().execute(fidoU2fAppletConnection.getTransport(), this::runAttempt);
+    }
+
+    /**
+     * Cancels the operation. An attempt in progress is interrupted, no further attempts are made and no
+     * result is delivered.
+     */
+    @AnyThread
+    void cancel() {
+        synchronized (stateLock) {
+            isCancelled = true;
+            if (attemptThread != null) {
+                attemptThread.interrupt();
+            }
+        }
+    }
+
+    @AnyThread
+    boolean isCancelled() {
+        synchronized (stateLock) {
+            return isCancelled;
+        }
+    }
+
+    @AnyThread
+    boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    @VisibleForTesting
+    void awaitDone() throws InterruptedException {
+        doneLatch.await();
+    }
+
+    @WorkerThread
+    private void runAttempt() {
+        boolean isRunning;
+        synchronized (stateLock) {
+            isRunning = !isCancelled;
+            if (isRunning) {
+                attemptThread = Thread.currentThread();
+            }
+        }
+        boolean retry = false;
+        try {
+            if (isRunning) {
+                retry = performAttempt();
+            }
+        } finally {
+            synchronized (stateLock) {
+                attemptThread = null;
+            }
+            // the I/O thread is shared, an interrupt meant for this operation must not affect any later work
+            Thread.interrupted();
+        }
+        if (retry && !isCancelled()) {
+            TransportScheduler.getInstance().executeDelayed(
+                    fidoU2fAppletConnection.getTransport(), this::runAttempt, presenceCheckDelayMs);
+        } else {
+            doneLatch.countDown();
+            fidoAsyncOperationManager.clearAsyncOperation(false, this);
+        }
+    }
+
+    /**
+     * @return true if the operation should be attempted again, because the key requires user presence
+     */
+    @WorkerThread
+    private boolean performAttempt() {
+        if (!isPrepared) {
+            try {
+                prepareOperation();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            isPrepared = true;
+        }
+        if (!fidoU2fAppletConnection.isConnected()) {
+            return false;
+        }
+        try {
+            T response = performOperation();
+            postToHandler(() -> deliverResponse(response));
+        } catch (InterruptedException e) {
+            HwTimber.e("Fido operation was interrupted");
+        } catch (SecurityKeyDisconnectedException e) {
+            HwTimber.e("Transport gone during fido operation");
+        } catch (FidoPresenceRequiredException e) {
+            return true;
+        } catch (IOException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                HwTimber.e("Fido operation was interrupted");
+            } else {
+                postToHandler(() -> deliverIoException(e));
+            }
+        }
+        return false;
+    }
+
+    private void postToHandler(Runnable runnable) {
+        if (isCancelled()) {
+            return;
+        }
+        handler.post(() -> {
+            if (!isCancelled()) {
+                runnable.run();
+            }
+        });
+    }
+
+    @OnLifecycleEvent(Event.ON_STOP)
+    public void onDestroy() {
+        if (!isDone() && !isCancelled()) {
+            fidoAsyncOperationManager.clearAsyncOperation(true, this);
+        }
+    }
+}
@@ -45,7 +45,7 @@ import de.cotech.hw.util.HwTimber;
 
 
 @RestrictTo(Scope.LIBRARY_GROUP)
-public class FidoRegisterOperationThread extends FidoOperationThread<FidoRegisterResponse> {
+public class FidoRegisterOperation extends FidoOperation<FidoRegisterResponse> {
     private final FidoRegisterCallback callback;
     private final FidoRegisterRequest registerRequest;
 
@@ -53,7 +53,7 @@ public class FidoRegisterOperationThread extends FidoOperationThread<FidoRegiste
     private byte[] challengeParam;
     private byte[] applicationParam;
 
-    public FidoRegisterOperationThread(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
+    public FidoRegisterOperation(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
             FidoRegisterCallback callback, FidoRegisterRequest registerRequest, int userPresenceCheckDelayMs) {
         super(fidoU2fAppletConnection, handler, userPresenceCheckDelayMs);
         this.callback = callback;
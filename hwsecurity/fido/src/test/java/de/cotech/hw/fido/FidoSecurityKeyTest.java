@@ -130,7 +130,7 @@ public class FidoSecurityKeyTest {
                         countDownLatch.countDown();
                     }
                 },null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -155,7 +155,7 @@ public class FidoSecurityKeyTest {
                         countDownLatch.countDown();
                     }
                 },null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -232,7 +232,7 @@ public class FidoSecurityKeyTest {
                         fail("Unexpected IOException!");
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -259,7 +259,7 @@ public class FidoSecurityKeyTest {
                         fail("Unexpected IOException!");
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -285,7 +285,7 @@ public class FidoSecurityKeyTest {
                         fail("Unexpected IOException!");
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -312,7 +312,7 @@ public class FidoSecurityKeyTest {
                         fail("Unexpected IOException!");
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
     }
@@ -339,7 +339,7 @@ public class FidoSecurityKeyTest {
                         countDownLatch.countDown();
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
         assertEquals(FidoWrongKeyHandleException.class, thrownException[0].getClass());
@@ -366,7 +366,7 @@ public class FidoSecurityKeyTest {
                         countDownLatch.countDown();
                     }
                 }, null);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         shadowOf(Looper.getMainLooper()).idle();
         assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
         assertEquals(FidoU2fDisabledException.class, thrownException[0].getClass());
@@ -37,6 +37,8 @@ import de.cotech.hw.util.Hex;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.fail;
+
 
 @SuppressWarnings("WeakerAccess")
 public class FidoU2fAppletConnectionTest {
@@ -67,6 +69,32 @@ public class FidoU2fAppletConnectionTest {
         connection.communicateOrThrow(PING_APDU);
     }
 
+    @Test
+    public void communicateOrThrow_wrongLength_rememberedForNextCommand() throws Exception {
+        transport.expect(PING_APDU_EXTENDED, ResponseApduUtils.createError(0x6700));
+        transport.expect(PING_APDU_SHORT, ResponseApdu.fromBytes(Hex.decodeHexOrFail("9000")));
+        connection.communicateOrThrow(PING_APDU);
+
+        // extended length was rejected by this device and the short retry succeeded, no need to try again
+        transport.expect(PING_APDU_SHORT, ResponseApdu.fromBytes(Hex.decodeHexOrFail("9000")));
+        connection.communicateOrThrow(PING_APDU);
+    }
+
+    @Test
+    public void communicateOrThrow_wrongLengthForBoth_notRemembered() throws Exception {
+        transport.expect(PING_APDU_EXTENDED, ResponseApduUtils.createError(0x6700));
+        transport.expect(PING_APDU_SHORT, ResponseApduUtils.createError(0x6700));
+        try {
+            connection.communicateOrThrow(PING_APDU);
+            fail();
+        } catch (WrongRequestLengthException e) {
+            // the command itself has a wrong length, this says nothing about extended length support
+        }
+
+        transport.expect(PING_APDU_EXTENDED, ResponseApdu.fromBytes(Hex.decodeHexOrFail("9000")));
+        connection.communicateOrThrow(PING_APDU);
+    }
+
     @Test(expected = WrongDataException.class)
     public void communicateOrThrow_wrongData() throws Exception {
         transport.expect(PING_APDU_EXTENDED, ResponseApduUtils.createError(0x6A80));
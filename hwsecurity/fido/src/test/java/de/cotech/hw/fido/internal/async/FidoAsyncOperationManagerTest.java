@@ -57,23 +57,23 @@ public class FidoAsyncOperationManagerTest {
 
     @Test
     public void startAsyncOperation() throws Exception {
-        TestFidoOperationThread thread = new TestFidoOperationThread();
-        fidoAsyncOperationManager.startAsyncOperation(null, thread);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        TestFidoOperation operation = new TestFidoOperation();
+        fidoAsyncOperationManager.startAsyncOperation(null, operation);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertNotEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
-        thread.assertLatchOk();
+        operation.assertLatchOk();
     }
 
     @Test
     public void startAsyncOperation_thenClear() throws Exception {
         CountDownLatch delayLatch = new CountDownLatch(1);
-        TestFidoOperationThread thread = new TestFidoOperationThread(delayLatch);
-        fidoAsyncOperationManager.startAsyncOperation(null, thread);
+        TestFidoOperation operation = new TestFidoOperation(delayLatch);
+        fidoAsyncOperationManager.startAsyncOperation(null, operation);
         fidoAsyncOperationManager.clearAsyncOperation();
-        FidoAsyncOperationManagerUtil.joinRunningThread(fidoAsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fidoAsyncOperationManager);
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
@@ -26,12 +26,13 @@ package de.cotech.hw.fido.internal.async;
 
 
 public class FidoAsyncOperationManagerUtil {
-    public static void joinRunningThread(FidoAsyncOperationManager asyncOperationManager) throws InterruptedException {
-        Thread thread = asyncOperationManager.asyncOperationThread;
-        if (thread == null) {
+    public static void awaitRunningOperation(FidoAsyncOperationManager asyncOperationManager)
+            throws InterruptedException {
+        FidoOperation<?> operation = asyncOperationManager.asyncOperation;
+        if (operation == null) {
             return;
         }
-        thread.join();
+        operation.awaitDone();
     }
 
 }
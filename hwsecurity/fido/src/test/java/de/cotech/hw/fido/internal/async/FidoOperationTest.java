@@ -43,20 +43,20 @@ import java.time.Duration;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 24)
-public class FidoOperationThreadTest {
+public class FidoOperationTest {
 
     @Test
-    public void testThread() throws Exception {
-        TestFidoOperationThread thread = new TestFidoOperationThread();
+    public void testOperation() throws Exception {
+        TestFidoOperation operation = new TestFidoOperation();
 
-        thread.start();
-        thread.join();
+        operation.start();
+        operation.awaitDone();
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertNotEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
 
-        thread.assertLatchOk();
+        operation.assertLatchOk();
     }
 
 }
\ No newline at end of file
@@ -42,19 +42,19 @@ import static org.junit.Assert.fail;
 
 
 @SuppressWarnings("unused")
-class TestFidoOperationThread extends FidoOperationThread<Integer> {
+class TestFidoOperation extends FidoOperation<Integer> {
     private final CountDownLatch countDownLatch;
     private final CountDownLatch delayLatch;
 
-    TestFidoOperationThread() throws Exception {
+    TestFidoOperation() throws Exception {
         this(FakeU2fFidoAppletConnection.create().connection, new Handler(), null);
     }
 
-    TestFidoOperationThread(CountDownLatch delayLatch) throws Exception {
+    TestFidoOperation(CountDownLatch delayLatch) throws Exception {
         this(FakeU2fFidoAppletConnection.create().connection, new Handler(), delayLatch);
     }
 
-    private TestFidoOperationThread(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
+    private TestFidoOperation(FidoU2fAppletConnection fidoU2fAppletConnection, Handler handler,
             CountDownLatch delayLatch) {
         super(fidoU2fAppletConnection, handler, 10);
         this.countDownLatch = new CountDownLatch(3);
@@ -89,7 +89,7 @@ class TestFidoOperationThread extends FidoOperationThread<Integer> {
 
     void assertLatchOk() {
         try {
-            assertTrue("Timeout waiting for thread!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
+            assertTrue("Timeout waiting for operation!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
         } catch (InterruptedException e) {
             fail("got interrupted unexpectedly");
         }
@@ -97,7 +97,7 @@ class TestFidoOperationThread extends FidoOperationThread<Integer> {
 
     void assertLatchTimeout() {
         try {
-            assertFalse("Thread unexpectedly returned!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
+            assertFalse("Operation unexpectedly returned!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
         } catch (InterruptedException e) {
             fail("got interrupted unexpectedly");
         }
@@ -38,9 +38,9 @@ import de.cotech.hw.SecurityKeyManagerConfig;
 import de.cotech.hw.fido2.domain.create.PublicKeyCredentialCreationOptions;
 import de.cotech.hw.fido2.domain.get.PublicKeyCredentialRequestOptions;
 import de.cotech.hw.fido2.internal.Fido2AppletConnection;
-import de.cotech.hw.fido2.internal.async.Ctap2Fido2OperationThread;
+import de.cotech.hw.fido2.internal.async.Ctap2Fido2Operation;
 import de.cotech.hw.fido2.internal.async.Fido2AsyncOperationManager;
-import de.cotech.hw.fido2.internal.async.WebauthnFido2OperationThread;
+import de.cotech.hw.fido2.internal.async.WebauthnFido2Operation;
 import de.cotech.hw.fido2.internal.ctap2.Ctap2Command;
 import de.cotech.hw.fido2.internal.ctap2.Ctap2Response;
 import de.cotech.hw.fido2.internal.json.JsonPublicKeyCredentialSerializer;
@@ -163,10 +163,10 @@ public class Fido2SecurityKey extends SecurityKey {
             WC command, WebauthnCallback<WR> callback, Handler handler,
             LifecycleOwner lifecycleOwner) {
         HwSentry.addBreadcrumb("Performing async FIDO2 operation: ", command.getClass().getSimpleName());
-        WebauthnFido2OperationThread<WR, WC>
-                fidoOperationThread = new WebauthnFido2OperationThread<>(
+        WebauthnFido2Operation<WR, WC>
+                fidoOperation = new WebauthnFido2Operation<>(
                 fido2AppletConnection, operationFactory, handler, callback, command, USER_PRESENCE_CHECK_DELAY_MS);
-        fido2AsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperationThread);
+        fido2AsyncOperationManager.startAsyncOperation(lifecycleOwner, fidoOperation);
     }
 
     @WorkerThread
@@ -185,9 +185,9 @@ public class Fido2SecurityKey extends SecurityKey {
     @AnyThread
     public <CR extends Ctap2Response> void ctap2RawCommandAsync(Ctap2Command<CR> command,
             Ctap2Callback<CR> callback, Handler handler, LifecycleOwner lifecycleOwner) {
-        Ctap2Fido2OperationThread<CR> ctap2Fido2OperationThread = new Ctap2Fido2OperationThread<>(
+        Ctap2Fido2Operation<CR> ctap2Fido2Operation = new Ctap2Fido2Operation<>(
                 fido2AppletConnection, handler, command, callback, USER_PRESENCE_CHECK_DELAY_MS);
-        fido2AsyncOperationManager.startAsyncOperation(lifecycleOwner, ctap2Fido2OperationThread);
+        fido2AsyncOperationManager.startAsyncOperation(lifecycleOwner, ctap2Fido2Operation);
     }
 
     @AnyThread
@@ -36,7 +36,7 @@ import de.cotech.hw.fido2.internal.operations.WebauthnSecurityKeyOperationFactor
 import de.cotech.hw.fido2.internal.pinauth.PinAuthCryptoUtil;
 import de.cotech.hw.fido2.internal.pinauth.PinProtocolV1;
 import de.cotech.hw.internal.HwSentry;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 
 
@@ -25,12 +25,12 @@
 package de.cotech.hw.fido2.internal;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 
+import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
@@ -53,9 +53,14 @@ import de.cotech.hw.fido2.internal.ctap2.commands.getInfo.AuthenticatorGetInfoRe
 import de.cotech.hw.fido2.internal.pinauth.PinToken;
 import de.cotech.hw.internal.HwSentry;
 import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816Communicator;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.ConnectionProbeCache;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.usb.ctaphid.CtapHidKeepaliveListener;
+import de.cotech.hw.internal.transport.usb.ctaphid.CtapHidOperation;
+import de.cotech.hw.internal.transport.usb.ctaphid.UsbCtapHidTransport;
 import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 
@@ -64,9 +69,6 @@ import de.cotech.hw.util.HwTimber;
 public class Fido2AppletConnection {
     public static final String SENTRY_TAG_FIDO2_AAGUID = "fido2-aaguid";
 
-    private static final int APDU_SW1_RESPONSE_AVAILABLE = 0x61;
-    private static final int RESPONSE_SW1_INCORRECT_LENGTH = 0x6C;
-
     private static final List<byte[]> FIDO_AID_PREFIXES = Arrays.asList(
             // see to "FIDO U2F NFC protocol", Section 5. Applet selection
             // https://fidoalliance.org/specs/fido-u2f-v1.2-ps-20170411/fido-u2f-nfc-protocol-v1.2-ps-20170411.html
@@ -80,6 +82,8 @@ public class Fido2AppletConnection {
     @NonNull
     private final Transport transport;
     @NonNull
+    private final Iso7816Communicator communicator;
+    @NonNull
     private final Fido2CommandApduFactory commandFactory;
     @NonNull
     private final Ctap2CommandApduTransformer ctap2CommandApduTransformer;
@@ -97,6 +101,28 @@ public class Fido2AppletConnection {
     private Fido2AppletConnection(@NonNull Transport transport, @NonNull Fido2CommandApduFactory commandFactory,
             @NonNull Ctap2CommandApduTransformer ctap2CommandApduTransformer) {
         this.transport = transport;
+        /* CTAP2 Spec:
+         * "If the request was encoded using extended length APDU encoding,
+         * the authenticator MUST respond using the extended length APDU response format."
+         *
+         * "If the request was encoded using short APDU encoding,
+         * the authenticator MUST respond using ISO 7816-4 APDU chaining."
+         *
+         * https://fidoalliance.org/specs/fido-v2.0-ps-20190130/fido-client-to-authenticator-protocol-v2.0-ps-20190130.html#nfc-fragmentation
+         *
+         * In the best case, extended length is supported by device and authenticator, so we don't need to
+         * parse chained APDUs coming from the authenticator.
+         *
+         * We do *not* rely on `transport.isExtendedLengthSupported()` here! There are phones (including
+         * the Nexus 5X, Nexus 6P) that return "false" to this, but some Security Keys (like Yubikey Neo) still
+         * require us to send extended APDUs. So what we do is, send an extended APDU, and if that doesn't
+         * work, fall back to a short one. The outcome is remembered for this device, so later commands and
+         * connections use the working encoding right away.
+         */
+        this.communicator = Iso7816Communicator.create(transport, CommandApdu.MAX_APDU_NC_SHORT);
+        communicator.setPreferExtendedLength(true);
+        communicator.setExtendedLengthHint(true);
+        communicator.setRequestMaxResponseLength(true);
         this.commandFactory = commandFactory;
         this.ctap2CommandApduTransformer = ctap2CommandApduTransformer;
     }
@@ -169,11 +195,14 @@ public class Fido2AppletConnection {
     }
 
     private byte[] selectFilesFromPrefixOrFail() throws IOException {
-        for (byte[] fileAid : FIDO_AID_PREFIXES) {
+        ConnectionProbeCache probeCache = ConnectionProbeCache.getInstance();
+        for (byte[] fileAid : probeCache.getAidsForProbing(transport, FIDO_AID_PREFIXES)) {
             byte[] initializedAid = selectFileOrFail(fileAid);
             if (initializedAid != null) {
+                probeCache.putAidSelected(transport, fileAid);
                 return initializedAid;
             }
+            probeCache.putAidNotFound(transport, fileAid);
         }
         throw new Fido2AndU2fNotSupportedException();
     }
@@ -211,7 +240,7 @@ public class Fido2AppletConnection {
     // see "FIDO U2F Raw Message Formats", Section 3.3 Status Codes
     // https://fidoalliance.org/specs/fido-u2f-v1.2-ps-20170411/fido-u2f-raw-message-formats-v1.2-ps-20170411.html
     public ResponseApdu communicateOrThrow(CommandApdu commandApdu) throws IOException {
-        ResponseApdu response = communicate(commandApdu);
+        ResponseApdu response = communicator.communicate(commandApdu);
 
         if (response.isSuccess()) {
             return response;
@@ -235,99 +264,6 @@ public class Fido2AppletConnection {
         }
     }
 
-    // ISO/IEC 7816-4
-    private ResponseApdu communicate(CommandApdu commandApdu) throws IOException {
-        ResponseApdu lastResponse;
-
-        lastResponse = sendWithChaining(commandApdu);
-        if (lastResponse.getSw1() == RESPONSE_SW1_INCORRECT_LENGTH && lastResponse.getSw2() != 0) {
-            commandApdu = commandApdu.withNe(lastResponse.getSw2());
-            lastResponse = sendWithChaining(commandApdu);
-        }
-        lastResponse = readChainedResponseIfAvailable(lastResponse);
-
-        return lastResponse;
-    }
-
-    // ISO/IEC 7816-4
-    @NonNull
-    private ResponseApdu sendWithChaining(CommandApdu commandApdu) throws IOException {
-        /* CTAP2 Spec:
-         * "If the request was encoded using extended length APDU encoding,
-         * the authenticator MUST respond using the extended length APDU response format."
-         *
-         * "If the request was encoded using short APDU encoding,
-         * the authenticator MUST respond using ISO 7816-4 APDU chaining."
-         *
-         * https://fidoalliance.org/specs/fido-v2.0-ps-20190130/fido-client-to-authenticator-protocol-v2.0-ps-20190130.html#nfc-fragmentation
-         *
-         * In the best case, extended length is supported by device and authenticator, so we don't need to
-         * parse chained APDUs coming from the authenticator.
-         *
-         * We do *not* check for `transport.isExtendedLengthSupported()` here! There are phones (including
-         * the Nexus 5X, Nexus 6P) that return "false" to this, but some Security Keys (like Yubikey Neo) still
-         * require us to send extended APDUs. So what we do is, send an extended APDU, and if that doesn't
-         * work, fall back to a short one.
-         */
-        if (!transport.isExtendedLengthSupported()) {
-            HwTimber.w("Transport protocol does not support extended length. Probably an old device with NFC, such as Nexus 5X, Nexus 6P. We still try sending extended length!");
-        }
-
-        ResponseApdu response = transport.transceive(commandApdu.withExtendedApduNe());
-        if (response.getSw() != WrongRequestLengthException.SW_WRONG_REQUEST_LENGTH) {
-            return response;
-        } else {
-            HwTimber.d("Received WRONG_REQUEST_LENGTH error. Retrying with short APDU Ne.");
-        }
-
-        if (commandFactory.isSuitableForSingleShortApdu(commandApdu)) {
-            return transport.transceive(commandApdu.withShortApduNe());
-        }
-
-        ResponseApdu lastResponse = null;
-        List<CommandApdu> chainedApdus = commandFactory.createChainedApdus(commandApdu);
-        for (int i = 0, totalCommands = chainedApdus.size(); i < totalCommands; i++) {
-            CommandApdu chainedApdu = chainedApdus.get(i);
-            lastResponse = transport.transceive(chainedApdu);
-
-            boolean isLastCommand = (i == totalCommands - 1);
-            if (!isLastCommand && !lastResponse.isSuccess()) {
-                throw new IOException("Failed to chain apdu " +
-                        "(" + i + "/" + (totalCommands - 1) + ", last SW: " + Integer.toHexString(lastResponse.getSw()) + ")");
-            }
-        }
-
-        if (lastResponse == null) {
-            throw new IllegalStateException();
-        }
-
-        return lastResponse;
-    }
-
-    // ISO/IEC 7816-4
-    @NonNull
-    private ResponseApdu readChainedResponseIfAvailable(ResponseApdu lastResponse) throws
-            IOException {
-        if (lastResponse.getSw1() != APDU_SW1_RESPONSE_AVAILABLE) {
-            return lastResponse;
-        }
-
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        result.write(lastResponse.getData());
-
-        do {
-            // GET RESPONSE ISO/IEC 7816-4 par.7.6.1
-            CommandApdu getResponse = commandFactory.createGetResponseCommand(lastResponse.getSw2());
-            lastResponse = transport.transceive(getResponse);
-            result.write(lastResponse.getData());
-        } while (lastResponse.getSw1() == APDU_SW1_RESPONSE_AVAILABLE);
-
-        result.write(lastResponse.getSw1());
-        result.write(lastResponse.getSw2());
-
-        return ResponseApdu.fromBytes(result.toByteArray());
-    }
-
     // endregion
 
     @NonNull
@@ -353,6 +289,46 @@ public class Fido2AppletConnection {
         return transport.isConnected();
     }
 
+    @NonNull
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets a listener for keepalive status reported by the authenticator during CTAP2 commands. Only USB
+     * CTAPHID authenticators report keepalive status, the listener is ignored for other transports.
+     */
+    public void setKeepaliveListener(@Nullable CtapHidKeepaliveListener keepaliveListener) {
+        if (transport instanceof UsbCtapHidTransport) {
+            ((UsbCtapHidTransport) transport).setKeepaliveListener(keepaliveListener);
+        }
+    }
+
+    /**
+     * Begins an operation of several CTAP2 commands, so that {@link #cancelPendingOperation()} between two of
+     * them cancels the following ones. The returned operation must be ended after its last command, a cancel
+     * request made afterwards doesn't affect later commands. Returns null if the transport can't cancel commands.
+     */
+    @AnyThread
+    @Nullable
+    public CtapHidOperation beginOperation() {
+        if (transport instanceof UsbCtapHidTransport) {
+            return ((UsbCtapHidTransport) transport).beginOperation();
+        }
+        return null;
+    }
+
+    /**
+     * Cancels the CTAP2 command currently in progress, if the transport supports it. This frees an
+     * authenticator waiting for user presence without waiting for its own timeout.
+     */
+    @AnyThread
+    public void cancelPendingOperation() {
+        if (transport instanceof UsbCtapHidTransport) {
+            ((UsbCtapHidTransport) transport).cancel();
+        }
+    }
+
     public boolean isSupportResidentKeys() {
         return ctap2Info != null && ctap2Info.options().rk();
     }
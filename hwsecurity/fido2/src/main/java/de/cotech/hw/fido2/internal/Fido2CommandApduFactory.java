@@ -25,9 +25,6 @@
 package de.cotech.hw.fido2.internal;
 
 
-import java.util.ArrayList;
-import java.util.List;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
@@ -42,12 +39,9 @@ import de.cotech.hw.internal.iso7816.CommandApdu;
 public class Fido2CommandApduFactory {
     private static final Fido2CommandApduDescriber DESCRIBER = new Fido2CommandApduDescriber();
 
-    private static final int MASK_CLA_CHAINING = 1 << 4;
-
     private static final int CLA = 0x00;
     private static final int INS_SELECT_FILE = 0xA4;
     private static final int P1_SELECT_FILE = 0x04;
-    private static final int INS_GET_RESPONSE = 0xC0;
 
     private static final int P1_EMPTY = 0x00;
     private static final int P2_EMPTY = 0x00;
@@ -85,42 +79,4 @@ public class Fido2CommandApduFactory {
         return CommandApdu.create(CLA, INS_SELECT_FILE, P1_SELECT_FILE, P2_EMPTY, fileAid, CommandApdu.MAX_APDU_NE_SHORT).withDescriber(DESCRIBER);
     }
 
-    // GET RESPONSE ISO/IEC 7816-4 par.7.6.1
-    @NonNull
-    public CommandApdu createGetResponseCommand(int lastResponseSw2) {
-        return CommandApdu.create(CLA, INS_GET_RESPONSE, P1_EMPTY, P2_EMPTY, lastResponseSw2).withDescriber(DESCRIBER);
-    }
-
-    // ISO/IEC 7816-4
-    @NonNull
-    public List<CommandApdu> createChainedApdus(CommandApdu apdu) {
-        ArrayList<CommandApdu> result = new ArrayList<>();
-
-        int offset = 0;
-        byte[] data = apdu.getData();
-        while (offset < data.length) {
-            int curLen = Math.min(CommandApdu.MAX_APDU_NC_SHORT, data.length - offset);
-            boolean last = offset + curLen >= data.length;
-            int cla = apdu.getCLA() + (last ? 0 : MASK_CLA_CHAINING);
-
-            CommandApdu cmd;
-            if (last) {
-                // TODO: check this!
-                int ne = Math.min(apdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT);
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, ne, DESCRIBER);
-            } else {
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, 0, DESCRIBER);
-            }
-            result.add(cmd);
-
-            offset += curLen;
-        }
-
-        return result;
-    }
-
-    public boolean isSuitableForSingleShortApdu(CommandApdu apdu) {
-        return apdu.getNc() <= CommandApdu.MAX_APDU_NC_SHORT;
-    }
-
 }
@@ -37,11 +37,11 @@ import de.cotech.hw.fido2.internal.ctap2.Ctap2Command;
 import de.cotech.hw.fido2.internal.ctap2.Ctap2Response;
 
 
-public class Ctap2Fido2OperationThread<CR extends Ctap2Response> extends Fido2OperationThread<CR> {
+public class Ctap2Fido2Operation<CR extends Ctap2Response> extends Fido2Operation<CR> {
     private final Ctap2Command<CR> ctap2Command;
     private final Ctap2Callback<CR> callback;
 
-    public Ctap2Fido2OperationThread(
+    public Ctap2Fido2Operation(
             Fido2AppletConnection fido2AppletConnection, Handler handler,
             Ctap2Command<CR> ctap2Command, Ctap2Callback<CR> callback, int userPresenceCheckDelayMs) {
         super(fido2AppletConnection, handler, userPresenceCheckDelayMs);
@@ -37,24 +37,24 @@ import de.cotech.hw.fido2.internal.utils.AndroidUtils;
 public class Fido2AsyncOperationManager {
     private final Object asyncOperationLock;
     @VisibleForTesting
-    Fido2OperationThread<?> asyncOperationThread;
+    Fido2Operation<?> asyncOperation;
 
     public Fido2AsyncOperationManager() {
         asyncOperationLock = new Object();
     }
 
     @AnyThread
-    public void startAsyncOperation(LifecycleOwner lifecycleOwner, Fido2OperationThread<?> operationThread) {
+    public void startAsyncOperation(LifecycleOwner lifecycleOwner, Fido2Operation<?> operation) {
         synchronized (asyncOperationLock) {
-            if (asyncOperationThread != null) {
-                asyncOperationThread.interrupt();
-                asyncOperationThread = null;
+            if (asyncOperation != null) {
+                asyncOperation.cancel();
+                asyncOperation = null;
             }
 
-            asyncOperationThread = operationThread;
-            asyncOperationThread.setFido2AsyncOperationManager(this);
-            asyncOperationThread.start();
-            AndroidUtils.addLifecycleObserver(lifecycleOwner, asyncOperationThread);
+            asyncOperation = operation;
+            asyncOperation.setFido2AsyncOperationManager(this);
+            asyncOperation.start();
+            AndroidUtils.addLifecycleObserver(lifecycleOwner, asyncOperation);
         }
     }
 
@@ -64,18 +64,18 @@ public class Fido2AsyncOperationManager {
     }
 
     @AnyThread
-    void clearAsyncOperation(boolean interrupt, Thread specificThread) {
+    void clearAsyncOperation(boolean cancel, Fido2Operation<?> specificOperation) {
         synchronized (asyncOperationLock) {
-            if (specificThread != null && asyncOperationThread != specificThread) {
-                if (interrupt) {
-                    specificThread.interrupt();
+            if (specificOperation != null && asyncOperation != specificOperation) {
+                if (cancel) {
+                    specificOperation.cancel();
                 }
                 return;
             }
-            if (asyncOperationThread != null && asyncOperationThread.isAlive() && interrupt) {
-                asyncOperationThread.interrupt();
+            if (asyncOperation != null && !asyncOperation.isDone() && cancel) {
+                asyncOperation.cancel();
             }
-            asyncOperationThread = null;
+            asyncOperation = null;
         }
     }
 }
@@ -57,23 +57,23 @@ public class Fido2AsyncOperationManagerTest {
 
     @Test
     public void startAsyncOperation() throws Exception {
-        TestFido2OperationThread thread = new TestFido2OperationThread();
-        fido2AsyncOperationManager.startAsyncOperation(null, thread);
-        FidoAsyncOperationManagerUtil.joinRunningThread(fido2AsyncOperationManager);
+        TestFido2Operation operation = new TestFido2Operation();
+        fido2AsyncOperationManager.startAsyncOperation(null, operation);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fido2AsyncOperationManager);
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertNotEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
-        thread.assertLatchOk();
+        operation.assertLatchOk();
     }
 
     @Test
     public void startAsyncOperation_thenClear() throws Exception {
         CountDownLatch delayLatch = new CountDownLatch(1);
-        TestFido2OperationThread thread = new TestFido2OperationThread(delayLatch);
-        fido2AsyncOperationManager.startAsyncOperation(null, thread);
+        TestFido2Operation operation = new TestFido2Operation(delayLatch);
+        fido2AsyncOperationManager.startAsyncOperation(null, operation);
         fido2AsyncOperationManager.clearAsyncOperation();
-        FidoAsyncOperationManagerUtil.joinRunningThread(fido2AsyncOperationManager);
+        FidoAsyncOperationManagerUtil.awaitRunningOperation(fido2AsyncOperationManager);
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
@@ -43,20 +43,20 @@ import java.time.Duration;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 24)
-public class Fido2OperationThreadTest {
+public class Fido2OperationTest {
 
     @Test
-    public void testThread() throws Exception {
-        TestFido2OperationThread thread = new TestFido2OperationThread();
+    public void testOperation() throws Exception {
+        TestFido2Operation operation = new TestFido2Operation();
 
-        thread.start();
-        thread.join();
+        operation.start();
+        operation.awaitDone();
         final ShadowLooper looper = shadowOf(Looper.getMainLooper());
         assertNotEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
         looper.idle();
         assertEquals(looper.getNextScheduledTaskTime(), Duration.ZERO);
 
-        thread.assertLatchOk();
+        operation.assertLatchOk();
     }
 
 }
\ No newline at end of file
@@ -26,12 +26,13 @@ package de.cotech.hw.fido2.internal.async;
 
 
 public class FidoAsyncOperationManagerUtil {
-    public static void joinRunningThread(Fido2AsyncOperationManager asyncOperationManager) throws InterruptedException {
-        Thread thread = asyncOperationManager.asyncOperationThread;
-        if (thread == null) {
+    public static void awaitRunningOperation(Fido2AsyncOperationManager asyncOperationManager)
+            throws InterruptedException {
+        Fido2Operation<?> operation = asyncOperationManager.asyncOperation;
+        if (operation == null) {
             return;
         }
-        thread.join();
+        operation.awaitDone();
     }
 
 }
@@ -42,19 +42,19 @@ import static org.junit.Assert.fail;
 
 
 @SuppressWarnings("unused")
-class TestFido2OperationThread extends Fido2OperationThread<Integer> {
+class TestFido2Operation extends Fido2Operation<Integer> {
     private final CountDownLatch countDownLatch;
     private final CountDownLatch delayLatch;
 
-    TestFido2OperationThread() throws Exception {
+    TestFido2Operation() throws Exception {
         this(FakeFido2AppletConnection.create(false).connection, new Handler(), null);
     }
 
-    TestFido2OperationThread(CountDownLatch delayLatch) throws Exception {
+    TestFido2Operation(CountDownLatch delayLatch) throws Exception {
         this(FakeFido2AppletConnection.create(false).connection, new Handler(), delayLatch);
     }
 
-    private TestFido2OperationThread(Fido2AppletConnection fido2AppletConnection, Handler handler,
+    private TestFido2Operation(Fido2AppletConnection fido2AppletConnection, Handler handler,
             CountDownLatch delayLatch) {
         super(fido2AppletConnection, handler, 10);
         this.countDownLatch = new CountDownLatch(3);
@@ -89,7 +89,7 @@ class TestFido2OperationThread extends Fido2OperationThread<Integer> {
 
     void assertLatchOk() {
         try {
-            assertTrue("Timeout waiting for thread!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
+            assertTrue("Timeout waiting for operation!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
         } catch (InterruptedException e) {
             fail("got interrupted unexpectedly");
         }
@@ -97,7 +97,7 @@ class TestFido2OperationThread extends Fido2OperationThread<Integer> {
 
     void assertLatchTimeout() {
         try {
-            assertFalse("Thread unexpectedly returned!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
+            assertFalse("Operation unexpectedly returned!", countDownLatch.await(500, TimeUnit.MILLISECONDS));
         } catch (InterruptedException e) {
             fail("got interrupted unexpectedly");
         }
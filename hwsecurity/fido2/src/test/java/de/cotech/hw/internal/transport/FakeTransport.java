@@ -32,8 +32,6 @@ import androidx.annotation.Nullable;
 
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
 import de.cotech.hw.util.Hex;
 import org.junit.Assert;
 
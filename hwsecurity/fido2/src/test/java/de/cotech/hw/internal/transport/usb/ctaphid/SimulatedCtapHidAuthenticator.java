@@ -0,0 +1,1014 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+
+import de.cotech.hw.fido2.internal.cbor_java.CborDecoder;
+import de.cotech.hw.fido2.internal.cbor_java.CborException;
+import de.cotech.hw.fido2.internal.cbor_java.model.Array;
+import de.cotech.hw.fido2.internal.cbor_java.model.ByteString;
+import de.cotech.hw.fido2.internal.cbor_java.model.DataItem;
+import de.cotech.hw.fido2.internal.cbor_java.model.Map;
+import de.cotech.hw.fido2.internal.cbor_java.model.Number;
+import de.cotech.hw.fido2.internal.cbor_java.model.SimpleValue;
+import de.cotech.hw.fido2.internal.cbor_java.model.UnicodeString;
+import de.cotech.hw.fido2.internal.cbor_java.model.UnsignedInteger;
+import de.cotech.hw.fido2.internal.cbor.CborUtils;
+import de.cotech.hw.fido2.internal.cose.CoseIdentifiers.CoseAlg;
+import de.cotech.hw.fido2.internal.cose.CosePublicKeyUtils;
+import de.cotech.hw.fido2.internal.crypto.P256;
+import de.cotech.hw.fido2.internal.ctap2.CtapErrorResponse;
+import de.cotech.hw.util.HashUtil;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * A CTAP2 authenticator behind a fake {@link UsbDeviceConnection}, speaking CTAPHID packet by packet.
+ * <p>
+ * Every {@link UsbRequest} queued by {@link CtapHidTransportProtocol} is completed synchronously on the
+ * calling thread: OUT packets are reassembled into messages and processed, IN packets are served from
+ * the queued response packets. Supported are CTAPHID_INIT, PING, WINK, LOCK, CANCEL, MSG with the U2F
+ * VERSION command, and CBOR with authenticatorGetInfo, MakeCredential, GetAssertion, GetNextAssertion,
+ * ClientPIN (PIN protocol v1: getRetries, getKeyAgreement and getPinToken) and Reset.
+ * <p>
+ * Commands requiring user presence wait for {@link #setUserPresenceDelayMs the configured delay}, sending
+ * CTAPHID_KEEPALIVE packets with status UPNEEDED meanwhile, and can be aborted with CTAPHID_CANCEL.
+ * Packet counts, and the time and bytes allocated by the simulated device itself are recorded, so benchmarks
+ * can tell host side costs apart from the simulation.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SimulatedCtapHidAuthenticator {
+    public static final byte[] AAGUID = {
+            (byte) 0xc0, 0x7e, (byte) 0xc4, 0x00, 0x5e, 0x11, 0x4a, (byte) 0x7f,
+            (byte) 0x81, 0x3f, 0x00, 0x5e, 0x11, 0x4a, (byte) 0xc0, 0x7e };
+    public static final int MAX_MSG_SIZE = 1200;
+    public static final int PIN_RETRIES = 8;
+
+    static final byte CTAP2_MAKE_CREDENTIAL = 0x01;
+    static final byte CTAP2_GET_ASSERTION = 0x02;
+    static final byte CTAP2_GET_INFO = 0x04;
+    static final byte CTAP2_CLIENT_PIN = 0x06;
+    static final byte CTAP2_RESET = 0x07;
+    static final byte CTAP2_GET_NEXT_ASSERTION = 0x08;
+
+    private static final int KEEPALIVE_INTERVAL_MS = 100;
+
+    private static final byte[] HID_REPORT_DESCRIPTOR_FIDO = {
+            0x06, (byte) 0xd0, (byte) 0xf1, 0x09, 0x01, (byte) 0xa1, 0x01 };
+
+    private static final int U2F_INS_VERSION = 0x03;
+    private static final byte[] U2F_VERSION = "U2F_V2".getBytes(Charset.forName("ASCII"));
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+    private static final byte CTAPHID_ERR_INVALID_CMD = 0x01;
+    private static final byte CTAPHID_ERR_INVALID_LEN = 0x03;
+    private static final byte CTAPHID_ERR_INVALID_SEQ = 0x04;
+    private static final byte CTAPHID_ERR_INVALID_CHANNEL = 0x0B;
+    private static final byte KEEPALIVE_STATUS_UPNEEDED = 2;
+    // CAPABILITY_WINK | CAPABILITY_LOCK | CAPABILITY_CBOR
+    private static final byte CAPABILITY_FLAGS = 0x07;
+
+    private static final byte FLAG_USER_PRESENT = 0x01;
+    private static final byte FLAG_USER_VERIFIED = 0x04;
+    private static final byte FLAG_ATTESTED_CREDENTIAL_DATA = 0x40;
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final UsbDeviceConnection usbConnection;
+    private final UsbInterface usbInterface;
+    private final UsbEndpoint usbEndpointIn;
+    private final UsbEndpoint usbEndpointOut;
+    private UsbRequest lastQueuedRequest;
+
+    private final HashMap<Integer, IncomingMessage> incomingMessages = new HashMap<>();
+    private final ArrayDeque<byte[]> outgoingPackets = new ArrayDeque<>();
+    private PendingUserPresence pendingUserPresence;
+    private int nextChannelId = 1;
+
+    private final List<Credential> credentials = new ArrayList<>();
+    private List<Credential> nextAssertionCredentials;
+    private byte[] nextAssertionClientDataHash;
+    private boolean nextAssertionUserVerified;
+    private int signatureCounter;
+
+    private KeyPair keyAgreementKeyPair;
+    private byte[] pinToken;
+    private byte[] pinHash;
+    private int pinRetries = PIN_RETRIES;
+
+    private volatile long userPresenceDelayMs;
+
+    private final AtomicInteger packetsReceived = new AtomicInteger();
+    private final AtomicInteger packetsSent = new AtomicInteger();
+    private final AtomicInteger keepalivesSent = new AtomicInteger();
+    private volatile long deviceAllocatedBytes;
+    private volatile long deviceNanos;
+
+    public SimulatedCtapHidAuthenticator() {
+        usbConnection = mock(UsbDeviceConnection.class);
+        usbInterface = mock(UsbInterface.class);
+        usbEndpointIn = createUsbEndpoint(UsbConstants.USB_DIR_IN);
+        usbEndpointOut = createUsbEndpoint(UsbConstants.USB_DIR_OUT);
+
+        when(usbInterface.getEndpointCount()).thenReturn(2);
+        when(usbInterface.getEndpoint(0)).thenReturn(usbEndpointIn);
+        when(usbInterface.getEndpoint(1)).thenReturn(usbEndpointOut);
+        when(usbConnection.requestWait()).thenAnswer(invocation -> lastQueuedRequest);
+        when(usbConnection.controlTransfer(anyInt(), anyInt(), anyInt(), anyInt(), any(byte[].class), anyInt(),
+                anyInt())).thenAnswer(invocation -> {
+            byte[] buffer = invocation.getArgument(4);
+            System.arraycopy(HID_REPORT_DESCRIPTOR_FIDO, 0, buffer, 0, HID_REPORT_DESCRIPTOR_FIDO.length);
+            return HID_REPORT_DESCRIPTOR_FIDO.length;
+        });
+
+        powerCycle();
+    }
+
+    public UsbDeviceConnection getUsbConnection() {
+        return usbConnection;
+    }
+
+    public UsbInterface getUsbInterface() {
+        return usbInterface;
+    }
+
+    /**
+     * Returns a protocol instance talking to this authenticator, as created by {@link UsbCtapHidTransport}.
+     */
+    public CtapHidTransportProtocol createTransportProtocol() {
+        return new CtapHidTransportProtocol(usbConnection, usbEndpointIn, usbEndpointOut) {
+            @Override
+            UsbRequest newUsbRequest() {
+                return createUsbRequest();
+            }
+        };
+    }
+
+    /**
+     * Sets how long commands requiring user presence wait for the simulated touch. Zero completes them
+     * immediately, without keepalive messages.
+     */
+    public void setUserPresenceDelayMs(long userPresenceDelayMs) {
+        this.userPresenceDelayMs = userPresenceDelayMs;
+    }
+
+    /**
+     * Sets the client PIN, as if done through authenticatorClientPIN setPIN.
+     */
+    public synchronized void setPin(String pin) {
+        pinHash = Arrays.copyOf(HashUtil.sha256(pin.getBytes(Charset.forName("UTF-8"))), 16);
+        pinRetries = PIN_RETRIES;
+    }
+
+    public synchronized int getPinRetries() {
+        return pinRetries;
+    }
+
+    public synchronized int getResidentCredentialCount(String rpId) {
+        return findResidentCredentials(rpId).size();
+    }
+
+    public synchronized int getSignatureCounter() {
+        return signatureCounter;
+    }
+
+    /**
+     * Regenerates the key agreement key and pinToken, as on power-up of a real authenticator.
+     */
+    public synchronized void powerCycle() {
+        try {
+            keyAgreementKeyPair = P256.newKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        pinToken = new byte[32];
+        random.nextBytes(pinToken);
+        nextAssertionCredentials = null;
+        incomingMessages.clear();
+        outgoingPackets.clear();
+        pendingUserPresence = null;
+    }
+
+    /** Packets sent by the host. */
+    public int getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    /** Packets sent to the host, including keepalive messages. */
+    public int getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public int getKeepalivesSent() {
+        return keepalivesSent.get();
+    }
+
+    /**
+     * Bytes allocated on the calling thread while the simulated device was processing packets, or zero if
+     * the JVM doesn't support measuring thread allocations.
+     */
+    public long getDeviceAllocatedBytes() {
+        return deviceAllocatedBytes;
+    }
+
+    /**
+     * Time spent by the simulated device processing packets, including any simulated user presence delay.
+     */
+    public long getDeviceNanos() {
+        return deviceNanos;
+    }
+
+    public void resetStatistics() {
+        packetsReceived.set(0);
+        packetsSent.set(0);
+        keepalivesSent.set(0);
+        deviceAllocatedBytes = 0;
+        deviceNanos = 0;
+    }
+
+    private static UsbEndpoint createUsbEndpoint(int direction) {
+        UsbEndpoint usbEndpoint = mock(UsbEndpoint.class);
+        when(usbEndpoint.getType()).thenReturn(UsbConstants.USB_ENDPOINT_XFER_INT);
+        when(usbEndpoint.getDirection()).thenReturn(direction);
+        when(usbEndpoint.getMaxPacketSize()).thenReturn(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE);
+        return usbEndpoint;
+    }
+
+    private UsbRequest createUsbRequest() {
+        UsbRequest usbRequest = mock(UsbRequest.class);
+        UsbEndpoint[] endpoint = new UsbEndpoint[1];
+        when(usbRequest.initialize(any(UsbDeviceConnection.class), any(UsbEndpoint.class))).thenAnswer(invocation -> {
+            endpoint[0] = invocation.getArgument(1);
+            return true;
+        });
+        when(usbRequest.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation -> {
+            ByteBuffer buffer = invocation.getArgument(0);
+            boolean queued = endpoint[0] == usbEndpointIn ? onInPacketRequested(buffer) : onOutPacket(buffer);
+            if (queued) {
+                lastQueuedRequest = usbRequest;
+            }
+            return queued;
+        });
+        return usbRequest;
+    }
+
+    // region packet level
+
+    private synchronized boolean onOutPacket(ByteBuffer buffer) throws Exception {
+        long allocatedBefore = getThreadAllocatedBytes();
+        long startNanos = System.nanoTime();
+        try {
+            packetsReceived.incrementAndGet();
+            byte[] packet = new byte[CtapHidFrameFactory.CTAPHID_BUFFER_SIZE];
+            buffer.duplicate().get(packet);
+            processPacket(ByteBuffer.wrap(packet).order(ByteOrder.BIG_ENDIAN));
+            return true;
+        } finally {
+            deviceNanos += System.nanoTime() - startNanos;
+            deviceAllocatedBytes += getThreadAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    private synchronized boolean onInPacketRequested(ByteBuffer buffer) throws Exception {
+        long allocatedBefore = getThreadAllocatedBytes();
+        long startNanos = System.nanoTime();
+        try {
+            if (outgoingPackets.isEmpty() && pendingUserPresence != null) {
+                awaitUserPresence();
+            }
+            byte[] packet = outgoingPackets.poll();
+            if (packet == null) {
+                // nothing to read: a real device would let the request time out
+                return false;
+            }
+            packetsSent.incrementAndGet();
+            buffer.clear();
+            buffer.put(packet);
+            return true;
+        } finally {
+            deviceNanos += System.nanoTime() - startNanos;
+            deviceAllocatedBytes += getThreadAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    private void processPacket(ByteBuffer packet) throws Exception {
+        int channelId = packet.getInt();
+        byte cmdOrSeq = packet.get();
+
+        if ((cmdOrSeq & CtapHidFrameFactory.TYPE_INIT) == 0) {
+            IncomingMessage message = incomingMessages.get(channelId);
+            if (message == null) {
+                // continuation packet without a message in progress, ignored per spec
+                return;
+            }
+            if (cmdOrSeq != message.nextSequence++) {
+                incomingMessages.remove(channelId);
+                sendError(channelId, CTAPHID_ERR_INVALID_SEQ);
+                return;
+            }
+            message.append(packet);
+        } else {
+            if (cmdOrSeq == CtapHidFrameFactory.CTAPHID_CANCEL) {
+                onCancel(channelId);
+                return;
+            }
+            int length = packet.getShort() & 0xffff;
+            if (length > MAX_MSG_SIZE + 7) {
+                sendError(channelId, CTAPHID_ERR_INVALID_LEN);
+                return;
+            }
+            IncomingMessage message = new IncomingMessage(cmdOrSeq, length);
+            message.append(packet);
+            incomingMessages.put(channelId, message);
+        }
+
+        IncomingMessage message = incomingMessages.get(channelId);
+        if (message.isComplete()) {
+            incomingMessages.remove(channelId);
+            processMessage(channelId, message.cmd, message.payload);
+        }
+    }
+
+    private void processMessage(int channelId, byte cmd, byte[] payload) throws Exception {
+        if (cmd == CtapHidFrameFactory.CTAPHID_INIT) {
+            int allocatedChannelId = nextChannelId++;
+            byte[] response = ByteBuffer.allocate(17).order(ByteOrder.BIG_ENDIAN)
+                    .put(payload, 0, 8).putInt(allocatedChannelId).put(new byte[] { 2, 1, 0, 0, CAPABILITY_FLAGS }).array();
+            sendMessage(channelId, CtapHidFrameFactory.CTAPHID_INIT, response);
+            return;
+        }
+        if (channelId == CtapHidFrameFactory.CTAPHID_CHANNEL_ID_BROADCAST || channelId == 0
+                || channelId >= nextChannelId) {
+            sendError(channelId, CTAPHID_ERR_INVALID_CHANNEL);
+            return;
+        }
+
+        switch (cmd) {
+            case CtapHidFrameFactory.CTAPHID_PING:
+                sendMessage(channelId, cmd, payload);
+                break;
+            case CtapHidFrameFactory.CTAPHID_WINK:
+            case CtapHidFrameFactory.CTAPHID_LOCK:
+                sendMessage(channelId, cmd, new byte[0]);
+                break;
+            case CtapHidFrameFactory.CTAPHID_MSG:
+                sendMessage(channelId, cmd, processU2fApdu(payload));
+                break;
+            case CtapHidFrameFactory.CTAPHID_CBOR:
+                processCtap2Command(channelId, payload);
+                break;
+            default:
+                sendError(channelId, CTAPHID_ERR_INVALID_CMD);
+        }
+    }
+
+    private void onCancel(int channelId) {
+        if (pendingUserPresence != null && pendingUserPresence.channelId == channelId) {
+            pendingUserPresence = null;
+            sendMessage(channelId, CtapHidFrameFactory.CTAPHID_CBOR,
+                    new byte[] { CtapErrorResponse.CTAP2_ERR_KEEPALIVE_CANCEL });
+        }
+    }
+
+    /**
+     * Waits for the next keepalive interval, or until the simulated touch. Any packets written by the host
+     * meanwhile, e.g. CTAPHID_CANCEL, are processed on the next read.
+     */
+    private void awaitUserPresence() throws Exception {
+        PendingUserPresence pending = pendingUserPresence;
+        long remainingNanos = pending.deadlineNanos - System.nanoTime();
+        if (remainingNanos > 0) {
+            long sleepNanos = Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(KEEPALIVE_INTERVAL_MS));
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+        if (System.nanoTime() < pending.deadlineNanos) {
+            keepalivesSent.incrementAndGet();
+            sendMessage(pending.channelId, CtapHidFrameFactory.CTAPHID_KEEPALIVE,
+                    new byte[] { KEEPALIVE_STATUS_UPNEEDED });
+            return;
+        }
+        pendingUserPresence = null;
+        sendMessage(pending.channelId, CtapHidFrameFactory.CTAPHID_CBOR, pending.command.call());
+    }
+
+    private void sendError(int channelId, byte errorCode) {
+        sendMessage(channelId, CtapHidFrameFactory.CTAPHID_ERROR, new byte[] { errorCode });
+    }
+
+    private void sendMessage(int channelId, byte cmd, byte[] payload) {
+        int offset = Math.min(payload.length, CtapHidFrameFactory.MAX_LENGTH_INIT_PACKET);
+        ByteBuffer initPacket = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)
+                .order(ByteOrder.BIG_ENDIAN);
+        initPacket.putInt(channelId).put(cmd).putShort((short) payload.length).put(payload, 0, offset);
+        outgoingPackets.add(initPacket.array());
+
+        for (byte sequence = 0; offset < payload.length; sequence++) {
+            int length = Math.min(payload.length - offset, CtapHidFrameFactory.MAX_LENGTH_CONT_PACKET);
+            ByteBuffer continuationPacket = ByteBuffer.allocate(CtapHidFrameFactory.CTAPHID_BUFFER_SIZE)
+                    .order(ByteOrder.BIG_ENDIAN);
+            continuationPacket.putInt(channelId).put(sequence).put(payload, offset, length);
+            outgoingPackets.add(continuationPacket.array());
+            offset += length;
+        }
+    }
+
+    private long getThreadAllocatedBytes() {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // endregion
+
+    // region U2F
+
+    private byte[] processU2fApdu(byte[] apdu) {
+        if (apdu.length < 4 || apdu[0] != 0) {
+            return statusWord(SW_CLA_NOT_SUPPORTED);
+        }
+        if (apdu[1] == U2F_INS_VERSION) {
+            byte[] response = Arrays.copyOf(U2F_VERSION, U2F_VERSION.length + 2);
+            System.arraycopy(statusWord(SW_SUCCESS), 0, response, U2F_VERSION.length, 2);
+            return response;
+        }
+        return statusWord(SW_INS_NOT_SUPPORTED);
+    }
+
+    private static byte[] statusWord(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    // endregion
+
+    // region CTAP2
+
+    private void processCtap2Command(int channelId, byte[] payload) throws Exception {
+        if (payload.length == 0) {
+            sendMessage(channelId, CtapHidFrameFactory.CTAPHID_CBOR,
+                    new byte[] { CtapErrorResponse.CTAP1_ERR_INVALID_LENGTH });
+            return;
+        }
+        byte command = payload[0];
+        Map parameters = null;
+        if (payload.length > 1) {
+            try {
+                DataItem dataItem = new CborDecoder(new ByteArrayInputStream(payload, 1, payload.length - 1))
+                        .decodeNext();
+                parameters = (Map) dataItem;
+            } catch (CborException | ClassCastException e) {
+                sendMessage(channelId, CtapHidFrameFactory.CTAPHID_CBOR,
+                        new byte[] { CtapErrorResponse.CTAP2_ERR_INVALID_CBOR });
+                return;
+            }
+        }
+        if (command != CTAP2_GET_NEXT_ASSERTION) {
+            nextAssertionCredentials = null;
+        }
+
+        Ctap2Command ctap2Command;
+        try {
+            ctap2Command = prepareCtap2Command(command, parameters);
+        } catch (Ctap2Error e) {
+            sendMessage(channelId, CtapHidFrameFactory.CTAPHID_CBOR, new byte[] { e.errorCode });
+            return;
+        }
+
+        if (ctap2Command.requiresUserPresence && userPresenceDelayMs > 0) {
+            pendingUserPresence = new PendingUserPresence(channelId, ctap2Command,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(userPresenceDelayMs));
+        } else {
+            sendMessage(channelId, CtapHidFrameFactory.CTAPHID_CBOR, ctap2Command.call());
+        }
+    }
+
+    /**
+     * Validates the request and returns the command to run once user presence, if required, is given.
+     */
+    private Ctap2Command prepareCtap2Command(byte command, Map parameters) throws Exception {
+        switch (command) {
+            case CTAP2_GET_INFO:
+                return new Ctap2Command(false, this::getInfo);
+            case CTAP2_MAKE_CREDENTIAL:
+                return prepareMakeCredential(requireParameters(parameters));
+            case CTAP2_GET_ASSERTION:
+                return prepareGetAssertion(requireParameters(parameters));
+            case CTAP2_GET_NEXT_ASSERTION:
+                if (nextAssertionCredentials == null || nextAssertionCredentials.isEmpty()) {
+                    throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_NOT_ALLOWED);
+                }
+                Credential credential = nextAssertionCredentials.remove(0);
+                byte[] response = createAssertion(
+                        credential, nextAssertionClientDataHash, nextAssertionUserVerified, null, true);
+                return new Ctap2Command(false, () -> response);
+            case CTAP2_CLIENT_PIN: {
+                byte[] clientPinResponse = clientPin(requireParameters(parameters));
+                return new Ctap2Command(false, () -> clientPinResponse);
+            }
+            case CTAP2_RESET:
+                return new Ctap2Command(true, this::reset);
+            default:
+                throw new Ctap2Error(CtapErrorResponse.CTAP1_ERR_INVALID_COMMAND);
+        }
+    }
+
+    private byte[] getInfo() throws CborException {
+        Array versions = new Array()
+                .add(new UnicodeString("U2F_V2"))
+                .add(new UnicodeString("FIDO_2_0"));
+        Map options = new Map()
+                .put(new UnicodeString("plat"), SimpleValue.FALSE)
+                .put(new UnicodeString("rk"), SimpleValue.TRUE)
+                .put(new UnicodeString("clientPin"), pinHash != null ? SimpleValue.TRUE : SimpleValue.FALSE)
+                .put(new UnicodeString("up"), SimpleValue.TRUE);
+        Map response = new Map()
+                .put(new UnsignedInteger(1), versions)
+                .put(new UnsignedInteger(3), new ByteString(AAGUID))
+                .put(new UnsignedInteger(4), options)
+                .put(new UnsignedInteger(5), new UnsignedInteger(MAX_MSG_SIZE))
+                .put(new UnsignedInteger(6), new Array().add(new UnsignedInteger(1)));
+        return success(response);
+    }
+
+    private Ctap2Command prepareMakeCredential(Map parameters) throws Exception {
+        byte[] clientDataHash = requireBytes(parameters, 1);
+        Map rp = (Map) require(parameters, 2);
+        Map user = (Map) require(parameters, 3);
+        Array pubKeyCredParams = (Array) require(parameters, 4);
+        String rpId = ((UnicodeString) require(rp, "id")).getString();
+        byte[] userId = ((ByteString) require(user, "id")).getBytes();
+
+        boolean es256Supported = false;
+        for (DataItem params : pubKeyCredParams.getDataItems()) {
+            es256Supported |= CoseAlg.ES256.cborLabel.equals(((Map) params).get(new UnicodeString("alg")));
+        }
+        if (!es256Supported) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_UNSUPPORTED_ALGORITHM);
+        }
+
+        Array excludeList = (Array) parameters.get(new UnsignedInteger(5));
+        if (excludeList != null) {
+            for (DataItem descriptor : excludeList.getDataItems()) {
+                Credential excluded = findCredential(rpId, ((ByteString) require((Map) descriptor, "id")).getBytes());
+                if (excluded != null) {
+                    return new Ctap2Command(true,
+                            () -> new byte[] { CtapErrorResponse.CTAP2_ERR_CREDENTIAL_EXCLUDED });
+                }
+            }
+        }
+
+        Map options = (Map) parameters.get(new UnsignedInteger(7));
+        boolean residentKey = options != null && SimpleValue.TRUE.equals(options.get(new UnicodeString("rk")));
+        boolean userVerified = verifyPinAuth(parameters, 8, 9, clientDataHash);
+
+        return new Ctap2Command(true, () -> {
+            KeyPair keyPair = P256.newKeyPair();
+            byte[] credentialId = new byte[residentKey ? 16 : 64];
+            random.nextBytes(credentialId);
+            Credential credential = new Credential(rpId, credentialId, keyPair, user, residentKey);
+            if (residentKey) {
+                // a new resident credential replaces any other for the same user
+                removeResidentCredential(rpId, userId);
+            }
+            credentials.add(credential);
+
+            byte[] cosePublicKey = CosePublicKeyUtils.encodex962PublicKeyAsCose(
+                    P256.serializePublicKey(keyPair.getPublic()), CoseAlg.ES256);
+            ByteBuffer authData = ByteBuffer.allocate(37 + 18 + credentialId.length + cosePublicKey.length)
+                    .order(ByteOrder.BIG_ENDIAN);
+            writeAuthDataHeader(authData, rpId, (byte) (FLAG_USER_PRESENT | FLAG_ATTESTED_CREDENTIAL_DATA
+                    | (userVerified ? FLAG_USER_VERIFIED : 0)));
+            authData.put(AAGUID).putShort((short) credentialId.length).put(credentialId).put(cosePublicKey);
+
+            // packed self attestation, signed with the credential key itself
+            Map attStmt = new Map()
+                    .put(new UnicodeString("alg"), CoseAlg.ES256.cborLabel)
+                    .put(new UnicodeString("sig"), new ByteString(sign(credential, authData.array(), clientDataHash)));
+            Map response = new Map()
+                    .put(new UnsignedInteger(1), new UnicodeString("packed"))
+                    .put(new UnsignedInteger(2), new ByteString(authData.array()))
+                    .put(new UnsignedInteger(3), attStmt);
+            return success(response);
+        });
+    }
+
+    private Ctap2Command prepareGetAssertion(Map parameters) throws Exception {
+        String rpId = ((UnicodeString) require(parameters, 1)).getString();
+        byte[] clientDataHash = requireBytes(parameters, 2);
+        Array allowList = (Array) parameters.get(new UnsignedInteger(3));
+        boolean userVerified = verifyPinAuth(parameters, 6, 7, clientDataHash);
+
+        List<Credential> matchingCredentials;
+        boolean residentKeyRequest = allowList == null || allowList.getDataItems().isEmpty();
+        if (residentKeyRequest) {
+            matchingCredentials = findResidentCredentials(rpId);
+        } else {
+            matchingCredentials = new ArrayList<>();
+            for (DataItem descriptor : allowList.getDataItems()) {
+                Credential credential = findCredential(rpId, ((ByteString) require((Map) descriptor, "id")).getBytes());
+                if (credential != null) {
+                    matchingCredentials.add(credential);
+                }
+            }
+        }
+        if (matchingCredentials.isEmpty()) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_NO_CREDENTIALS);
+        }
+
+        return new Ctap2Command(true, () -> {
+            Credential credential = matchingCredentials.remove(0);
+            Integer numberOfCredentials = null;
+            if (residentKeyRequest && !matchingCredentials.isEmpty()) {
+                numberOfCredentials = matchingCredentials.size() + 1;
+                nextAssertionCredentials = matchingCredentials;
+                nextAssertionClientDataHash = clientDataHash;
+                nextAssertionUserVerified = userVerified;
+            }
+            return createAssertion(credential, clientDataHash, userVerified, numberOfCredentials, residentKeyRequest);
+        });
+    }
+
+    private byte[] createAssertion(Credential credential, byte[] clientDataHash, boolean userVerified,
+            Integer numberOfCredentials, boolean includeUser) throws Exception {
+        ByteBuffer authData = ByteBuffer.allocate(37).order(ByteOrder.BIG_ENDIAN);
+        writeAuthDataHeader(authData, credential.rpId,
+                (byte) (FLAG_USER_PRESENT | (userVerified ? FLAG_USER_VERIFIED : 0)));
+
+        Map descriptor = new Map()
+                .put(new UnicodeString("type"), new UnicodeString("public-key"))
+                .put(new UnicodeString("id"), new ByteString(credential.credentialId));
+        Map response = new Map()
+                .put(new UnsignedInteger(1), descriptor)
+                .put(new UnsignedInteger(2), new ByteString(authData.array()))
+                .put(new UnsignedInteger(3), new ByteString(sign(credential, authData.array(), clientDataHash)));
+        if (includeUser && credential.residentKey) {
+            Map user = new Map().put(new UnicodeString("id"), require(credential.user, "id"));
+            if (userVerified) {
+                // user identifiable information is only returned after user verification
+                copyIfPresent(credential.user, user, "name");
+                copyIfPresent(credential.user, user, "displayName");
+            }
+            response.put(new UnsignedInteger(4), user);
+        }
+        if (numberOfCredentials != null) {
+            response.put(new UnsignedInteger(5), new UnsignedInteger(numberOfCredentials));
+        }
+        return success(response);
+    }
+
+    private byte[] reset() {
+        credentials.clear();
+        pinHash = null;
+        pinRetries = PIN_RETRIES;
+        signatureCounter = 0;
+        powerCycle();
+        return new byte[] { CtapErrorResponse.CTAP2_OK };
+    }
+
+    // endregion
+
+    // region PIN protocol v1
+
+    private byte[] clientPin(Map parameters) throws Exception {
+        Number pinProtocol = (Number) require(parameters, 1);
+        if (pinProtocol.getValue().intValue() != 1) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP1_ERR_INVALID_PARAMETER);
+        }
+        int subCommand = ((Number) require(parameters, 2)).getValue().intValue();
+        switch (subCommand) {
+            case 0x01:
+                return success(new Map().put(new UnsignedInteger(3), new UnsignedInteger(pinRetries)));
+            case 0x02: {
+                byte[] cosePublicKey = CosePublicKeyUtils.encodex962PublicKeyAsCose(
+                        P256.serializePublicKey(keyAgreementKeyPair.getPublic()), CoseAlg.ECDH_ES_w_HKDF_256);
+                DataItem keyAgreement = new CborDecoder(new ByteArrayInputStream(cosePublicKey)).decodeNext();
+                return success(new Map().put(new UnsignedInteger(1), keyAgreement));
+            }
+            case 0x05:
+                return getPinToken(parameters);
+            default:
+                throw new Ctap2Error(CtapErrorResponse.CTAP1_ERR_INVALID_PARAMETER);
+        }
+    }
+
+    private byte[] getPinToken(Map parameters) throws Exception {
+        if (pinHash == null) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_NOT_SET);
+        }
+        if (pinRetries == 0) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_BLOCKED);
+        }
+        byte[] platformKeyAgreement = CborUtils.writeCborDataToBytes(require(parameters, 3));
+        byte[] pinHashEnc = requireBytes(parameters, 6);
+
+        byte[] sharedSecret = generateSharedSecret(platformKeyAgreement);
+        pinRetries--;
+        byte[] receivedPinHash = aes256Cbc(Cipher.DECRYPT_MODE, sharedSecret, pinHashEnc);
+        if (!MessageDigest.isEqual(receivedPinHash, pinHash)) {
+            keyAgreementKeyPair = P256.newKeyPair();
+            throw new Ctap2Error(pinRetries == 0 ?
+                    CtapErrorResponse.CTAP2_ERR_PIN_BLOCKED : CtapErrorResponse.CTAP2_ERR_PIN_INVALID);
+        }
+        pinRetries = PIN_RETRIES;
+
+        byte[] pinTokenEnc = aes256Cbc(Cipher.ENCRYPT_MODE, sharedSecret, pinToken);
+        return success(new Map().put(new UnsignedInteger(2), new ByteString(pinTokenEnc)));
+    }
+
+    /**
+     * Checks the pinAuth parameter of MakeCredential and GetAssertion, returns true if the user was verified.
+     */
+    private boolean verifyPinAuth(Map parameters, int pinAuthKey, int pinProtocolKey, byte[] clientDataHash)
+            throws Exception {
+        ByteString pinAuth = (ByteString) parameters.get(new UnsignedInteger(pinAuthKey));
+        if (pinAuth == null) {
+            if (pinHash != null) {
+                throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_REQUIRED);
+            }
+            return false;
+        }
+        Number pinProtocol = (Number) parameters.get(new UnsignedInteger(pinProtocolKey));
+        if (pinProtocol == null || pinProtocol.getValue().intValue() != 1) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_AUTH_INVALID);
+        }
+        if (pinHash == null) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_NOT_SET);
+        }
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(pinToken, "HmacSHA256"));
+        byte[] expectedPinAuth = Arrays.copyOf(hmac.doFinal(clientDataHash), 16);
+        if (!MessageDigest.isEqual(expectedPinAuth, pinAuth.getBytes())) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_PIN_AUTH_INVALID);
+        }
+        return true;
+    }
+
+    private byte[] generateSharedSecret(byte[] platformKeyAgreement) throws Exception {
+        PublicKey platformPublicKey;
+        try {
+            platformPublicKey = P256.deserializePublicKey(
+                    CosePublicKeyUtils.encodeCosePublicKeyAsX962(platformKeyAgreement));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP1_ERR_INVALID_PARAMETER);
+        }
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(keyAgreementKeyPair.getPrivate());
+        keyAgreement.doPhase(platformPublicKey, true);
+        return HashUtil.sha256(keyAgreement.generateSecret());
+    }
+
+    private static byte[] aes256Cbc(int mode, byte[] key, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        return cipher.doFinal(data);
+    }
+
+    // endregion
+
+    // region credentials
+
+    private Credential findCredential(String rpId, byte[] credentialId) {
+        for (Credential credential : credentials) {
+            if (credential.rpId.equals(rpId) && Arrays.equals(credential.credentialId, credentialId)) {
+                return credential;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the resident credentials for a relying party, most recently created first.
+     */
+    private List<Credential> findResidentCredentials(String rpId) {
+        List<Credential> result = new ArrayList<>();
+        for (Credential credential : credentials) {
+            if (credential.residentKey && credential.rpId.equals(rpId)) {
+                result.add(0, credential);
+            }
+        }
+        return result;
+    }
+
+    private void removeResidentCredential(String rpId, byte[] userId) {
+        Iterator<Credential> iterator = credentials.iterator();
+        while (iterator.hasNext()) {
+            Credential credential = iterator.next();
+            if (credential.residentKey && credential.rpId.equals(rpId)
+                    && Arrays.equals(((ByteString) credential.user.get(new UnicodeString("id"))).getBytes(), userId)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void writeAuthDataHeader(ByteBuffer authData, String rpId, byte flags) {
+        authData.put(HashUtil.sha256(rpId.getBytes(Charset.forName("UTF-8"))));
+        authData.put(flags);
+        authData.putInt(++signatureCounter);
+    }
+
+    private static byte[] sign(Credential credential, byte[] authData, byte[] clientDataHash)
+            throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(credential.keyPair.getPrivate());
+        signature.update(authData);
+        signature.update(clientDataHash);
+        return signature.sign();
+    }
+
+    // endregion
+
+    // region CBOR helpers
+
+    private static byte[] success(Map response) throws CborException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(CtapErrorResponse.CTAP2_OK);
+        byte[] cbor = CborUtils.writeCborDataToBytes(response);
+        outputStream.write(cbor, 0, cbor.length);
+        return outputStream.toByteArray();
+    }
+
+    private static Map requireParameters(Map parameters) throws Ctap2Error {
+        if (parameters == null) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_MISSING_PARAMETER);
+        }
+        return parameters;
+    }
+
+    private static DataItem require(Map map, int key) throws Ctap2Error {
+        return require(map, new UnsignedInteger(key));
+    }
+
+    private static DataItem require(Map map, String key) throws Ctap2Error {
+        return require(map, new UnicodeString(key));
+    }
+
+    private static DataItem require(Map map, DataItem key) throws Ctap2Error {
+        DataItem value = map.get(key);
+        if (value == null) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_MISSING_PARAMETER);
+        }
+        return value;
+    }
+
+    private static byte[] requireBytes(Map map, int key) throws Ctap2Error {
+        DataItem value = require(map, key);
+        if (!(value instanceof ByteString)) {
+            throw new Ctap2Error(CtapErrorResponse.CTAP2_ERR_CBOR_UNEXPECTED_TYPE);
+        }
+        return ((ByteString) value).getBytes();
+    }
+
+    private static void copyIfPresent(Map from, Map to, String key) {
+        DataItem value = from.get(new UnicodeString(key));
+        if (value != null) {
+            to.put(new UnicodeString(key), value);
+        }
+    }
+
+    // endregion
+
+    private static class IncomingMessage {
+        final byte cmd;
+        final byte[] payload;
+        int offset;
+        byte nextSequence;
+
+        IncomingMessage(byte cmd, int length) {
+            this.cmd = cmd;
+            this.payload = new byte[length];
+        }
+
+        void append(ByteBuffer packet) {
+            int length = Math.min(packet.remaining(), payload.length - offset);
+            packet.get(payload, offset, length);
+            offset += length;
+        }
+
+        boolean isComplete() {
+            return offset == payload.length;
+        }
+    }
+
+    private static class Credential {
+        final String rpId;
+        final byte[] credentialId;
+        final KeyPair keyPair;
+        final Map user;
+        final boolean residentKey;
+
+        Credential(String rpId, byte[] credentialId, KeyPair keyPair, Map user, boolean residentKey) {
+            this.rpId = rpId;
+            this.credentialId = credentialId;
+            this.keyPair = keyPair;
+            this.user = user;
+            this.residentKey = residentKey;
+        }
+    }
+
+    private interface Ctap2Operation {
+        byte[] call() throws Exception;
+    }
+
+    private static class Ctap2Command {
+        final boolean requiresUserPresence;
+        final Ctap2Operation operation;
+
+        Ctap2Command(boolean requiresUserPresence, Ctap2Operation operation) {
+            this.requiresUserPresence = requiresUserPresence;
+            this.operation = operation;
+        }
+
+        byte[] call() throws Exception {
+            try {
+                return operation.call();
+            } catch (Ctap2Error e) {
+                return new byte[] { e.errorCode };
+            }
+        }
+    }
+
+    private static class PendingUserPresence {
+        final int channelId;
+        final Ctap2Command command;
+        final long deadlineNanos;
+
+        PendingUserPresence(int channelId, Ctap2Command command, long deadlineNanos) {
+            this.channelId = channelId;
+            this.command = command;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static class Ctap2Error extends Exception {
+        final byte errorCode;
+
+        Ctap2Error(byte errorCode) {
+            this.errorCode = errorCode;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+
+import de.cotech.hw.fido2.domain.PublicKeyCredentialDescriptor;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialParameters;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialRpEntity;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialType;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialUserEntity;
+import de.cotech.hw.fido2.internal.Fido2AppletConnection;
+import de.cotech.hw.fido2.internal.ctap2.commands.getAssertion.AuthenticatorGetAssertion;
+import de.cotech.hw.fido2.internal.ctap2.commands.getAssertion.AuthenticatorGetAssertionResponse;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredential;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredential.AuthenticatorMakeCredentialOptions;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredentialResponse;
+import de.cotech.hw.fido2.internal.ctap2.commands.rawCommand.RawCtap2Command;
+import de.cotech.hw.fido2.internal.pinauth.PinAuthCryptoUtil;
+import de.cotech.hw.fido2.internal.pinauth.PinProtocolV1;
+import de.cotech.hw.fido2.internal.pinauth.PinToken;
+import de.cotech.hw.util.HashUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * End to end benchmark of the FIDO2 stack over USB, from {@link Fido2AppletConnection} and
+ * {@link PinProtocolV1} down to the CTAPHID packets, against a {@link SimulatedCtapHidAuthenticator}.
+ * Time and allocations of the simulated device are subtracted, so the numbers reflect host side costs
+ * only. They still include the overhead of the mocked USB requests.
+ * <p>
+ * Only runs if the system property hwsecurity.benchmark is set, e.g., gradle test -Dhwsecurity.benchmark=true.
+ */
+@TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 24)
+public class SimulatedCtapHidAuthenticatorBenchmarkTest {
+    private static final String BENCHMARK_PROPERTY = "hwsecurity.benchmark";
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 100;
+    private static final int RESIDENT_CREDENTIALS = 5;
+
+    private static final String RP_ID = "example.com";
+    private static final byte[] CLIENT_DATA_HASH = HashUtil.sha256("client data");
+    private static final String PIN = "1234";
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final PinProtocolV1 pinProtocolV1 = new PinProtocolV1(new PinAuthCryptoUtil());
+
+    private SimulatedCtapHidAuthenticator authenticator;
+    private UsbCtapHidTransport transport;
+    private Fido2AppletConnection fido2AppletConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+        authenticator = new SimulatedCtapHidAuthenticator();
+        authenticator.setPin(PIN);
+        transport = SimulatedCtapHidAuthenticatorTest.createUsbCtapHidTransport(authenticator);
+        transport.connect();
+        fido2AppletConnection = Fido2AppletConnection.getInstanceForTransport(transport);
+        fido2AppletConnection.connectIfNecessary();
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.release();
+        }
+    }
+
+    @Test
+    public void benchmarkOperations() throws Exception {
+        PinToken pinToken = pinProtocolV1.clientPinAuthenticate(fido2AppletConnection, PIN, false);
+        byte[] pinAuth = pinProtocolV1.calculatePinAuth(pinToken, CLIENT_DATA_HASH);
+
+        byte[] credentialId = getCredentialId(makeCredential(new byte[] { 0 }, false, pinAuth));
+        for (int i = 1; i <= RESIDENT_CREDENTIALS; i++) {
+            makeCredential(new byte[] { (byte) i }, true, pinAuth);
+        }
+
+        report("clientPinAuthenticate", () -> pinProtocolV1.clientPinAuthenticate(fido2AppletConnection, PIN, false));
+        report("makeCredential", () -> makeCredential(new byte[] { 0 }, false, pinAuth));
+        report("getAssertion", () -> fido2AppletConnection.ctap2CommunicateOrThrow(AuthenticatorGetAssertion.create(
+                RP_ID, CLIENT_DATA_HASH, "{}", Collections.singletonList(
+                        PublicKeyCredentialDescriptor.create(PublicKeyCredentialType.PUBLIC_KEY, credentialId, null)),
+                null, pinAuth, PinProtocolV1.PIN_PROTOCOL)));
+        report("getAssertion with " + RESIDENT_CREDENTIALS + " resident credentials", () -> {
+            AuthenticatorGetAssertionResponse response = fido2AppletConnection.ctap2CommunicateOrThrow(
+                    AuthenticatorGetAssertion.create(
+                            RP_ID, CLIENT_DATA_HASH, "{}", null, null, pinAuth, PinProtocolV1.PIN_PROTOCOL));
+            assertEquals(Integer.valueOf(RESIDENT_CREDENTIALS), response.numberOfCredentials());
+            for (int i = 1; i < RESIDENT_CREDENTIALS; i++) {
+                assertNotNull(fido2AppletConnection.ctap2CommunicateOrThrow(RawCtap2Command.create(
+                        SimulatedCtapHidAuthenticator.CTAP2_GET_NEXT_ASSERTION, new byte[0])));
+            }
+            return response;
+        });
+    }
+
+    private void report(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.perform();
+        }
+
+        authenticator.resetStatistics();
+        long allocatedBefore = getThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            operation.perform();
+        }
+        long totalNanos = System.nanoTime() - start;
+        long allocatedBytes = getThreadAllocatedBytes() - allocatedBefore;
+
+        long hostNanos = (totalNanos - authenticator.getDeviceNanos()) / MEASURED_ITERATIONS;
+        long hostBytes = (allocatedBytes - authenticator.getDeviceAllocatedBytes()) / MEASURED_ITERATIONS;
+        System.out.println(String.format(Locale.ENGLISH,
+                "CTAP2 %s: %d packets out, %d packets in, host %d us, %d bytes allocated",
+                name,
+                authenticator.getPacketsReceived() / MEASURED_ITERATIONS,
+                authenticator.getPacketsSent() / MEASURED_ITERATIONS,
+                hostNanos / 1000, hostBytes));
+    }
+
+    private AuthenticatorMakeCredentialResponse makeCredential(byte[] userId, boolean residentKey, byte[] pinAuth)
+            throws Exception {
+        return fido2AppletConnection.ctap2CommunicateOrThrow(AuthenticatorMakeCredential.create(
+                CLIENT_DATA_HASH, "{}", PublicKeyCredentialRpEntity.create(RP_ID, "Example", null),
+                PublicKeyCredentialUserEntity.create(userId, "user", "User", null),
+                PublicKeyCredentialParameters.createDefaultEs256List(), null,
+                AuthenticatorMakeCredentialOptions.create(residentKey, null), pinAuth, PinProtocolV1.PIN_PROTOCOL));
+    }
+
+    private static byte[] getCredentialId(AuthenticatorMakeCredentialResponse response) {
+        byte[] authData = response.authData();
+        int credentialIdLength = ((authData[53] & 0xff) << 8) | (authData[54] & 0xff);
+        byte[] credentialId = new byte[credentialIdLength];
+        System.arraycopy(authData, 55, credentialId, 0, credentialIdLength);
+        return credentialId;
+    }
+
+    private long getThreadAllocatedBytes() {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    interface Operation {
+        Object perform() throws Exception;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport.usb.ctaphid;
+
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbManager;
+import android.os.Build.VERSION_CODES;
+
+import de.cotech.hw.fido2.domain.PublicKeyCredentialDescriptor;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialParameters;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialRpEntity;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialType;
+import de.cotech.hw.fido2.domain.PublicKeyCredentialUserEntity;
+import de.cotech.hw.fido2.domain.create.AuthenticatorData;
+import de.cotech.hw.fido2.exceptions.FidoClientPinInvalidException;
+import de.cotech.hw.fido2.internal.Fido2AppletConnection;
+import de.cotech.hw.fido2.internal.cbor_java.CborDecoder;
+import de.cotech.hw.fido2.internal.cbor_java.model.ByteString;
+import de.cotech.hw.fido2.internal.cbor_java.model.Map;
+import de.cotech.hw.fido2.internal.cbor_java.model.UnicodeString;
+import de.cotech.hw.fido2.internal.cbor_java.model.UnsignedInteger;
+import de.cotech.hw.fido2.internal.cose.CosePublicKeyUtils;
+import de.cotech.hw.fido2.internal.crypto.P256;
+import de.cotech.hw.fido2.internal.ctap2.Ctap2Exception;
+import de.cotech.hw.fido2.internal.ctap2.CtapErrorResponse;
+import de.cotech.hw.fido2.internal.ctap2.commands.getAssertion.AuthenticatorGetAssertion;
+import de.cotech.hw.fido2.internal.ctap2.commands.getAssertion.AuthenticatorGetAssertionResponse;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredential;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredential.AuthenticatorMakeCredentialOptions;
+import de.cotech.hw.fido2.internal.ctap2.commands.makeCredential.AuthenticatorMakeCredentialResponse;
+import de.cotech.hw.fido2.internal.ctap2.commands.rawCommand.RawCtap2Command;
+import de.cotech.hw.fido2.internal.pinauth.PinAuthCryptoUtil;
+import de.cotech.hw.fido2.internal.pinauth.PinProtocolV1;
+import de.cotech.hw.fido2.internal.pinauth.PinToken;
+import de.cotech.hw.util.HashUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+
+@TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 24)
+public class SimulatedCtapHidAuthenticatorTest {
+    private static final String RP_ID = "example.com";
+    private static final byte[] CLIENT_DATA_HASH = HashUtil.sha256("client data");
+    private static final String PIN = "1234";
+    private static final int FLAG_USER_VERIFIED = 1 << 2;
+
+    private SimulatedCtapHidAuthenticator authenticator;
+    private UsbCtapHidTransport transport;
+    private Fido2AppletConnection fido2AppletConnection;
+
+    @Before
+    public void setUp() {
+        authenticator = new SimulatedCtapHidAuthenticator();
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.release();
+        }
+    }
+
+    @Test
+    public void connect() throws Exception {
+        connectFido2AppletConnection();
+
+        assertTrue(fido2AppletConnection.isCtap2Capable());
+        assertTrue(fido2AppletConnection.isSupportResidentKeys());
+        assertTrue(fido2AppletConnection.isSupportClientPin());
+        assertFalse(fido2AppletConnection.isClientPinSet());
+        // INIT, U2F VERSION and authenticatorGetInfo requests fit into one packet each, the info response takes two
+        assertEquals(3, authenticator.getPacketsReceived());
+        assertEquals(4, authenticator.getPacketsSent());
+    }
+
+    @Test
+    public void makeCredential_thenGetAssertion() throws Exception {
+        connectFido2AppletConnection();
+
+        AuthenticatorMakeCredentialResponse credential = makeCredential(new byte[] { 1 }, false, null);
+        assertEquals("packed", credential.fmt());
+        byte[] credentialId = getCredentialId(credential.authData());
+        PublicKey publicKey = getCredentialPublicKey(credential.authData());
+        assertEquals(0, authenticator.getResidentCredentialCount(RP_ID));
+
+        AuthenticatorGetAssertionResponse assertion = fido2AppletConnection.ctap2CommunicateOrThrow(
+                AuthenticatorGetAssertion.create(RP_ID, CLIENT_DATA_HASH, "{}", Collections.singletonList(
+                        PublicKeyCredentialDescriptor.create(PublicKeyCredentialType.PUBLIC_KEY, credentialId, null)),
+                        null));
+
+        assertArrayEquals(HashUtil.sha256(RP_ID.getBytes(Charset.forName("UTF-8"))),
+                Arrays.copyOf(assertion.authData(), 32));
+        assertEquals(AuthenticatorData.FLAG_USER_PRESENT, assertion.authData()[32]);
+        assertTrue(verify(publicKey, assertion.authData(), assertion.signature()));
+        assertNull(assertion.user());
+        assertNull(assertion.numberOfCredentials());
+    }
+
+    @Test
+    public void getAssertion_withResidentCredentials_thenGetNextAssertion() throws Exception {
+        connectFido2AppletConnection();
+        makeCredential(new byte[] { 1 }, true, null);
+        makeCredential(new byte[] { 2 }, true, null);
+        makeCredential(new byte[] { 3 }, true, null);
+        // replaces the first credential for the same user
+        makeCredential(new byte[] { 1 }, true, null);
+        assertEquals(3, authenticator.getResidentCredentialCount(RP_ID));
+
+        AuthenticatorGetAssertionResponse assertion = fido2AppletConnection.ctap2CommunicateOrThrow(
+                AuthenticatorGetAssertion.create(RP_ID, CLIENT_DATA_HASH, "{}", null, null));
+        assertEquals(Integer.valueOf(3), assertion.numberOfCredentials());
+        assertArrayEquals(new byte[] { 1 }, assertion.user().id());
+
+        byte[] nextAssertion = getNextAssertion();
+        assertArrayEquals(new byte[] { 3 }, getUserId(nextAssertion));
+        nextAssertion = getNextAssertion();
+        assertArrayEquals(new byte[] { 2 }, getUserId(nextAssertion));
+
+        try {
+            getNextAssertion();
+            fail();
+        } catch (Ctap2Exception e) {
+            assertEquals(CtapErrorResponse.CTAP2_ERR_NOT_ALLOWED, e.ctapErrorResponse.errorCode());
+        }
+    }
+
+    @Test
+    public void getAssertion_withoutCredentials() throws Exception {
+        connectFido2AppletConnection();
+
+        try {
+            fido2AppletConnection.ctap2CommunicateOrThrow(
+                    AuthenticatorGetAssertion.create(RP_ID, CLIENT_DATA_HASH, "{}", null, null));
+            fail();
+        } catch (Ctap2Exception e) {
+            assertEquals(CtapErrorResponse.CTAP2_ERR_NO_CREDENTIALS, e.ctapErrorResponse.errorCode());
+        }
+    }
+
+    @Test
+    public void clientPinAuthenticate_thenMakeCredential() throws Exception {
+        authenticator.setPin(PIN);
+        connectFido2AppletConnection();
+        assertTrue(fido2AppletConnection.isClientPinSet());
+
+        PinProtocolV1 pinProtocolV1 = new PinProtocolV1(new PinAuthCryptoUtil());
+        PinToken pinToken = pinProtocolV1.clientPinAuthenticate(fido2AppletConnection, PIN, false);
+        AuthenticatorMakeCredentialResponse credential = makeCredential(new byte[] { 1 }, true,
+                pinProtocolV1.calculatePinAuth(pinToken, CLIENT_DATA_HASH));
+
+        byte flags = credential.authData()[32];
+        assertEquals(FLAG_USER_VERIFIED, flags & FLAG_USER_VERIFIED);
+        assertEquals(SimulatedCtapHidAuthenticator.PIN_RETRIES, authenticator.getPinRetries());
+    }
+
+    @Test
+    public void clientPinAuthenticate_withWrongPin() throws Exception {
+        authenticator.setPin(PIN);
+        connectFido2AppletConnection();
+
+        PinProtocolV1 pinProtocolV1 = new PinProtocolV1(new PinAuthCryptoUtil());
+        try {
+            pinProtocolV1.clientPinAuthenticate(fido2AppletConnection, "4321", false);
+            fail();
+        } catch (FidoClientPinInvalidException e) {
+            assertEquals(SimulatedCtapHidAuthenticator.PIN_RETRIES - 1, e.getRetriesLeft());
+        }
+        assertEquals(SimulatedCtapHidAuthenticator.PIN_RETRIES - 1, authenticator.getPinRetries());
+    }
+
+    @Test
+    public void makeCredential_withPinSet_requiresPinAuth() throws Exception {
+        authenticator.setPin(PIN);
+        connectFido2AppletConnection();
+
+        try {
+            makeCredential(new byte[] { 1 }, false, null);
+            fail();
+        } catch (Ctap2Exception e) {
+            assertEquals(CtapErrorResponse.CTAP2_ERR_PIN_REQUIRED, e.ctapErrorResponse.errorCode());
+        }
+    }
+
+    @Test
+    public void makeCredential_waitsForUserPresence() throws Exception {
+        connectFido2AppletConnection();
+        authenticator.setUserPresenceDelayMs(250);
+        AtomicInteger keepalives = new AtomicInteger();
+        fido2AppletConnection.setKeepaliveListener(keepaliveType -> {
+            assertEquals(CtapHidKeepaliveListener.KeepaliveType.UPNEEDED, keepaliveType);
+            keepalives.incrementAndGet();
+        });
+
+        makeCredential(new byte[] { 1 }, false, null);
+
+        assertEquals(2, keepalives.get());
+        assertEquals(2, authenticator.getKeepalivesSent());
+    }
+
+    @Test
+    public void makeCredential_cancelledWhileWaitingForUserPresence() throws Exception {
+        connectFido2AppletConnection();
+        authenticator.setUserPresenceDelayMs(60 * 1000);
+        fido2AppletConnection.setKeepaliveListener(
+                keepaliveType -> fido2AppletConnection.cancelPendingOperation());
+
+        try {
+            makeCredential(new byte[] { 1 }, false, null);
+            fail();
+        } catch (Ctap2Exception e) {
+            assertEquals(CtapErrorResponse.CTAP2_ERR_KEEPALIVE_CANCEL, e.ctapErrorResponse.errorCode());
+        }
+        assertEquals(1, authenticator.getKeepalivesSent());
+        assertEquals(0, authenticator.getResidentCredentialCount(RP_ID));
+    }
+
+    private void connectFido2AppletConnection() throws Exception {
+        transport = createUsbCtapHidTransport(authenticator);
+        transport.connect();
+        fido2AppletConnection = Fido2AppletConnection.getInstanceForTransport(transport);
+        fido2AppletConnection.connectIfNecessary();
+    }
+
+    static UsbCtapHidTransport createUsbCtapHidTransport(SimulatedCtapHidAuthenticator authenticator) {
+        return new UsbCtapHidTransport(mock(UsbManager.class), mock(UsbDevice.class),
+                authenticator.getUsbConnection(), authenticator.getUsbInterface(), false) {
+            @Override
+            CtapHidTransportProtocol createTransportProtocol(UsbEndpoint usbIntIn, UsbEndpoint usbIntOut) {
+                return authenticator.createTransportProtocol();
+            }
+        };
+    }
+
+    private AuthenticatorMakeCredentialResponse makeCredential(byte[] userId, boolean residentKey, byte[] pinAuth)
+            throws Exception {
+        return fido2AppletConnection.ctap2CommunicateOrThrow(AuthenticatorMakeCredential.create(
+                CLIENT_DATA_HASH, "{}", PublicKeyCredentialRpEntity.create(RP_ID, "Example", null),
+                PublicKeyCredentialUserEntity.create(userId, "user", "User", null),
+                PublicKeyCredentialParameters.createDefaultEs256List(), null,
+                AuthenticatorMakeCredentialOptions.create(residentKey, null),
+                pinAuth, pinAuth != null ? PinProtocolV1.PIN_PROTOCOL : null));
+    }
+
+    private byte[] getNextAssertion() throws Exception {
+        return fido2AppletConnection.ctap2CommunicateOrThrow(
+                RawCtap2Command.create(SimulatedCtapHidAuthenticator.CTAP2_GET_NEXT_ASSERTION, new byte[0])).data();
+    }
+
+    private static byte[] getUserId(byte[] assertion) throws Exception {
+        Map response = (Map) new CborDecoder(new ByteArrayInputStream(assertion)).decodeNext();
+        Map user = (Map) response.get(new UnsignedInteger(4));
+        return ((ByteString) user.get(new UnicodeString("id"))).getBytes();
+    }
+
+    private static byte[] getCredentialId(byte[] authData) {
+        ByteBuffer buffer = ByteBuffer.wrap(authData);
+        buffer.position(37 + 16);
+        byte[] credentialId = new byte[buffer.getShort()];
+        buffer.get(credentialId);
+        return credentialId;
+    }
+
+    private static PublicKey getCredentialPublicKey(byte[] authData) throws Exception {
+        int offset = 37 + 16 + 2 + getCredentialId(authData).length;
+        byte[] cosePublicKey = Arrays.copyOfRange(authData, offset, authData.length);
+        return P256.deserializePublicKey(CosePublicKeyUtils.encodeCosePublicKeyAsX962(cosePublicKey));
+    }
+
+    private static boolean verify(PublicKey publicKey, byte[] authData, byte[] signature) throws Exception {
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(publicKey);
+        verifier.update(authData);
+        verifier.update(CLIENT_DATA_HASH);
+        return verifier.verify(signature);
+    }
+}
@@ -31,10 +31,12 @@ import java.util.Arrays;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
 
 import com.google.auto.value.AutoValue;
 
-import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvCursor;
 import de.cotech.hw.openpgp.internal.openpgp.KeyFormat;
 import de.cotech.hw.openpgp.internal.openpgp.KeyType;
 import de.cotech.hw.openpgp.internal.openpgp.OpenPgpAid;
@@ -102,8 +104,17 @@ public abstract class OpenPgpCapabilities {
     abstract int getMaxSpecialDoLength();
 
     public static OpenPgpCapabilities fromBytes(byte[] rawOpenPgpCapabilities) throws IOException {
-        Iso7816TLV[] parsedTlvData = Iso7816TLV.readList(rawOpenPgpCapabilities, true);
-        return new AutoValue_OpenPgpCapabilities.Builder().updateWithTLV(parsedTlvData).build();
+        return new AutoValue_OpenPgpCapabilities.Builder().updateWithTLV(rawOpenPgpCapabilities).build();
+    }
+
+    abstract Builder toBuilder();
+
+    /**
+     * Returns a copy with PW status bytes read separately via GET DATA, e.g. to update retry counters.
+     */
+    @RestrictTo(Scope.LIBRARY_GROUP)
+    public OpenPgpCapabilities withPwStatusBytes(byte[] pwStatusBytes) {
+        return toBuilder().pwStatusBytes(pwStatusBytes).build();
     }
 
     public KeyFormat getFormatForKeyType(@NonNull KeyType keyType) {
@@ -219,74 +230,59 @@ public abstract class OpenPgpCapabilities {
             maxSpecialDoLength(0);
         }
 
-        Builder updateWithTLV(Iso7816TLV[] tlvs) {
-            if (tlvs.length == 1 && tlvs[0].mT == 0x6E) {
-                tlvs = ((Iso7816TLV.Iso7816CompositeTLV) tlvs[0]).mSubs;
+        Builder updateWithTLV(byte[] rawOpenPgpCapabilities) throws IOException {
+            // Application Related Data is usually wrapped in a single 0x6E template
+            Iso7816TlvCursor cursor = Iso7816TlvCursor.wrap(rawOpenPgpCapabilities).skipFillerBytes();
+            if (cursor.next() && cursor.getTag() == 0x6E) {
+                Iso7816TlvCursor children = cursor.children();
+                if (!cursor.next()) {
+                    parseDataObjects(children);
+                    return this;
+                }
             }
 
-            for (Iso7816TLV tlv : tlvs) {
-                switch (tlv.mT) {
+            parseDataObjects(Iso7816TlvCursor.wrap(rawOpenPgpCapabilities).skipFillerBytes());
+            return this;
+        }
+
+        private void parseDataObjects(Iso7816TlvCursor cursor) throws IOException {
+            while (cursor.next()) {
+                switch (cursor.getTag()) {
                     case 0x4F:
-                        aid(tlv.mV);
-                        openPgpAid(OpenPgpAid.create(tlv.mV));
+                        byte[] aid = cursor.getValue();
+                        aid(aid);
+                        openPgpAid(OpenPgpAid.create(aid));
                         break;
                     case 0x5F52:
-                        historicalBytes(tlv.mV);
+                        historicalBytes(cursor.getValue());
                         break;
                     case 0x73:
-                        parseDdo((Iso7816TLV.Iso7816CompositeTLV) tlv);
-                        break;
-                    case 0xC0:
-                        parseExtendedCaps(tlv.mV);
-                        break;
-                    case 0xC1:
-                        signKeyFormat(KeyFormat.fromBytes(tlv.mV));
-                        break;
-                    case 0xC2:
-                        encryptKeyFormat(KeyFormat.fromBytes(tlv.mV));
+                        parseDataObjects(cursor.children());
                         break;
-                    case 0xC3:
-                        authKeyFormat(KeyFormat.fromBytes(tlv.mV));
-                        break;
-                    case 0xC4:
-                        pwStatusBytes(tlv.mV);
-                        break;
-                    case 0xC5:
-                        parseFingerprints(tlv.mV);
-                        break;
-                }
-            }
-
-            return this;
-        }
-
-        private void parseDdo(Iso7816TLV.Iso7816CompositeTLV tlvs) {
-            for (Iso7816TLV tlv : tlvs.mSubs) {
-                switch (tlv.mT) {
                     case 0xC0:
-                        parseExtendedCaps(tlv.mV);
+                        parseExtendedCaps(cursor.getValue());
                         break;
                     case 0xC1:
-                        signKeyFormat(KeyFormat.fromBytes(tlv.mV));
+                        signKeyFormat(KeyFormat.fromBytes(cursor.getValue()));
                         break;
                     case 0xC2:
-                        encryptKeyFormat(KeyFormat.fromBytes(tlv.mV));
+                        encryptKeyFormat(KeyFormat.fromBytes(cursor.getValue()));
                         break;
                     case 0xC3:
-                        authKeyFormat(KeyFormat.fromBytes(tlv.mV));
+                        authKeyFormat(KeyFormat.fromBytes(cursor.getValue()));
                         break;
                     case 0xC4:
-                        pwStatusBytes(tlv.mV);
+                        pwStatusBytes(cursor.getValue());
                         break;
                     case 0xC5:
-                        parseFingerprints(tlv.mV);
+                        parseFingerprints(cursor.getBuffer(), cursor.getValueOffset(), cursor.getValueLength());
                         break;
                 }
             }
         }
 
-        private void parseFingerprints(byte[] mV) {
-            ByteBuffer fpBuf = ByteBuffer.wrap(mV);
+        private void parseFingerprints(byte[] buffer, int offset, int length) {
+            ByteBuffer fpBuf = ByteBuffer.wrap(buffer, offset, length);
 
             byte[] buf;
 
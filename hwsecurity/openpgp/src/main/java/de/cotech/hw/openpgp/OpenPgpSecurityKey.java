@@ -40,12 +40,13 @@ import java.security.PublicKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import de.cotech.hw.SecurityKey;
 import de.cotech.hw.SecurityKeyAuthenticator;
 import de.cotech.hw.SecurityKeyException;
 import de.cotech.hw.SecurityKeyManagerConfig;
-import de.cotech.hw.internal.transport.SecurityKeyInfo;
+import de.cotech.hw.internal.transport.SecurityKeyType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.internal.transport.usb.UsbSecurityKeyTypes;
 import de.cotech.hw.openpgp.exceptions.OpenPgpPublicKeyUnavailableException;
@@ -59,6 +60,7 @@ import de.cotech.hw.openpgp.internal.openpgp.RsaKeyFormat;
 import de.cotech.hw.openpgp.internal.operations.ChangeKeyEccOp;
 import de.cotech.hw.openpgp.internal.operations.ChangeKeyRsaOp;
 import de.cotech.hw.openpgp.internal.operations.ModifyPinOp;
+import de.cotech.hw.openpgp.internal.operations.PsoSignOp;
 import de.cotech.hw.openpgp.internal.operations.ResetAndWipeOp;
 import de.cotech.hw.openpgp.pairedkey.PairedSecurityKey;
 import de.cotech.hw.openpgp.util.RsaEncryptionUtil;
@@ -317,7 +319,7 @@ public class OpenPgpSecurityKey extends SecurityKey {
         String hardwareName = null;
 
         // get name from USB device info
-        SecurityKeyInfo.SecurityKeyType securityKeyType = transport.getSecurityKeyTypeIfAvailable();
+        SecurityKeyType securityKeyType = transport.getSecurityKeyTypeIfAvailable();
         if (securityKeyType != null) {
             hardwareName = UsbSecurityKeyTypes.getSecurityKeyName(securityKeyType);
         }
@@ -400,4 +402,46 @@ public class OpenPgpSecurityKey extends SecurityKey {
         }
         return retrievePublicKey(KeyType.AUTH);
     }
+
+    @WorkerThread
+    public PublicKey retrieveSigningPublicKey() throws IOException {
+        if (!openPgpAppletConnection.getOpenPgpCapabilities().hasSignKey()) {
+            throw new OpenPgpPublicKeyUnavailableException("No signature key available!");
+        }
+        return retrievePublicKey(KeyType.SIGN);
+    }
+
+    /**
+     * Signs a digest with the signature key of the security key.
+     * <p>
+     * RSA signatures are PKCS#1 v1.5 signatures over a DigestInfo for {@code hashAlgo}, ECDSA signatures are DER
+     * encoded, and EdDSA signatures are returned as-is. For EdDSA, the message itself is passed as digest.
+     * <p>
+     * This method directly performs IO with the security token, and should therefore not be called on the UI thread.
+     *
+     * @param hashAlgo name of the hash algorithm used for the digest, e.g. "SHA-256"
+     * @see #signDigests(PinProvider, List, String)
+     */
+    @WorkerThread
+    public byte[] signDigest(PinProvider pinProvider, byte[] digest, String hashAlgo) throws IOException {
+        ByteSecret pin = pinProvider.getPin(getOpenPgpInstanceAid());
+        return PsoSignOp.create(openPgpAppletConnection).calculateSignature(pin, digest, hashAlgo);
+    }
+
+    /**
+     * Signs a list of digests with the signature key of the security key, returning the signatures in the same
+     * order. This is much faster than connecting for every digest: the PIN is verified once if the security key
+     * allows multiple signatures per verification, see {@link OpenPgpCapabilities#isPw1ValidForMultipleSignatures()},
+     * and before every signature otherwise.
+     * <p>
+     * This method directly performs IO with the security token, and should therefore not be called on the UI thread.
+     *
+     * @see #signDigest(PinProvider, byte[], String)
+     */
+    @WorkerThread
+    public List<byte[]> signDigests(PinProvider pinProvider, List<byte[]> digests, String hashAlgo)
+            throws IOException {
+        ByteSecret pin = pinProvider.getPin(getOpenPgpInstanceAid());
+        return PsoSignOp.create(openPgpAppletConnection).calculateSignatures(pin, digests, hashAlgo);
+    }
 }
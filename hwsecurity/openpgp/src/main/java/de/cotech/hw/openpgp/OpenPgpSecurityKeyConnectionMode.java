@@ -25,13 +25,18 @@
 package de.cotech.hw.openpgp;
 
 
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import de.cotech.hw.SecurityKey;
 import de.cotech.hw.SecurityKeyConnectionMode;
 import de.cotech.hw.SecurityKeyManagerConfig;
-import de.cotech.hw.internal.transport.SecurityKeyInfo;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.OpenPgpCapabilitiesCache;
+import de.cotech.hw.openpgp.internal.openpgp.DerivedPinCache;
+import de.cotech.hw.openpgp.storage.OpenPgpCapabilitiesStorage;
 import de.cotech.hw.util.HwTimber;
 
 import java.io.IOException;
@@ -55,6 +60,31 @@ public class OpenPgpSecurityKeyConnectionMode extends SecurityKeyConnectionMode<
         return new OpenPgpSecurityKeyConnectionMode(config);
     }
 
+    /**
+     * Sets a storage to persist the capabilities of security keys, such as fingerprints and algorithm attributes.
+     * This allows to skip reading them when connecting to a known security key after the app was restarted.
+     * <p>
+     * Changes made by this library invalidate the stored capabilities. Changes made elsewhere, e.g. by importing
+     * keys with GnuPG, are only detected once a key operation fails or the security key no longer matches a
+     * {@link de.cotech.hw.openpgp.pairedkey.PairedSecurityKey}. The next connection then reads the capabilities
+     * from the security key again.
+     *
+     * @see de.cotech.hw.openpgp.storage.AndroidPreferencesOpenPgpCapabilitiesStorage
+     */
+    public static void setCapabilitiesStorage(@Nullable OpenPgpCapabilitiesStorage storage) {
+        OpenPgpCapabilitiesCache.getInstance().setStorage(storage);
+    }
+
+    /**
+     * Clears all PINs derived with the KDF-DO of security keys from memory.
+     *
+     * @see OpenPgpSecurityKeyConnectionModeConfig.Builder#setDerivedPinCacheEnabled(boolean)
+     */
+    @AnyThread
+    public static void clearDerivedPinCache() {
+        DerivedPinCache.getInstance().clear();
+    }
+
     private OpenPgpSecurityKeyConnectionMode(OpenPgpSecurityKeyConnectionModeConfig config) {
         this.config = config;
     }
@@ -65,13 +95,13 @@ public class OpenPgpSecurityKeyConnectionMode extends SecurityKeyConnectionMode<
     @WorkerThread
     public OpenPgpSecurityKey establishSecurityKeyConnection(SecurityKeyManagerConfig securityKeyManagerConfig,
                                                              Transport transport) throws IOException {
-        if (transport.getTransportType() == SecurityKeyInfo.TransportType.USB_CTAPHID) {
+        if (transport.getTransportType() == TransportType.USB_CTAPHID) {
             HwTimber.d("USB CTAPHID is available but not supported by OPENPGP.");
             return null;
         }
 
         OpenPgpAppletConnection openPgpAppletConnection = OpenPgpAppletConnection.getInstanceForTransport(
-                transport, config.getOpenPgpAidPrefixes());
+                transport, config.getOpenPgpAidPrefixes(), config.isDerivedPinCacheEnabled());
         openPgpAppletConnection.connectIfNecessary();
 
         return new OpenPgpSecurityKey(securityKeyManagerConfig, transport, openPgpAppletConnection);
@@ -79,11 +109,16 @@ public class OpenPgpSecurityKeyConnectionMode extends SecurityKeyConnectionMode<
 
     @Override
     protected boolean isRelevantTransport(Transport transport) {
-        return transport.getTransportType() != SecurityKeyInfo.TransportType.USB_CTAPHID;
+        return transport.getTransportType() != TransportType.USB_CTAPHID;
     }
 
     @Override
     protected boolean isRelevantSecurityKey(SecurityKey securityKey) {
         return securityKey instanceof OpenPgpSecurityKey;
     }
+
+    @Override
+    protected void clearCachedSecrets() {
+        clearDerivedPinCache();
+    }
 }
@@ -46,6 +46,7 @@ public abstract class OpenPgpSecurityKeyConnectionModeConfig implements Parcelab
     private static final byte[] AID_SELECT_FILE_OPENPGP = Hex.decodeHexOrFail("D27600012401");
 
     public abstract List<byte[]> getOpenPgpAidPrefixes();
+    public abstract boolean isDerivedPinCacheEnabled();
 
     static OpenPgpSecurityKeyConnectionModeConfig getDefaultConfig() {
         return new Builder()
@@ -59,6 +60,7 @@ public abstract class OpenPgpSecurityKeyConnectionModeConfig implements Parcelab
     @SuppressWarnings({ "unused" })
     public static class Builder {
         private ArrayList<byte[]> openPgpAidPrefixes = new ArrayList<>();
+        private boolean derivedPinCacheEnabled = false;
 
         /**
          * This adds the default OpenPGP-Card AID prefix to the list of accepted prefixes.
@@ -92,6 +94,20 @@ public abstract class OpenPgpSecurityKeyConnectionModeConfig implements Parcelab
             return this;
         }
 
+        /**
+         * This enables caching of PINs derived with the KDF-DO of a security key, so verifying the same PIN again
+         * does not repeat the iterated hashing. Derived PINs are PIN-equivalent. They are kept in memory for up to
+         * five minutes, also after the security key was disconnected, and can be cleared at any time with
+         * {@link OpenPgpSecurityKeyConnectionMode#clearDerivedPinCache()} or
+         * {@link de.cotech.hw.SecurityKeyManager#clearConnectedSecurityKeys()}.
+         *
+         * This is disabled by default.
+         */
+        public Builder setDerivedPinCacheEnabled(boolean derivedPinCacheEnabled) {
+            this.derivedPinCacheEnabled = derivedPinCacheEnabled;
+            return this;
+        }
+
         /**
          * Constructs a SecurityKeyManagerConfig from the Builder.
          */
@@ -100,7 +116,8 @@ public abstract class OpenPgpSecurityKeyConnectionModeConfig implements Parcelab
                 addDefaultOpenPgpAidPrefixes();
             }
             return new AutoValue_OpenPgpSecurityKeyConnectionModeConfig(
-                    Collections.unmodifiableList(openPgpAidPrefixes)
+                    Collections.unmodifiableList(openPgpAidPrefixes),
+                    derivedPinCacheEnabled
             );
         }
     }
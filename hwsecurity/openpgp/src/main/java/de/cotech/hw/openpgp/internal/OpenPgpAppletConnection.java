@@ -33,7 +33,6 @@ import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import androidx.annotation.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.KeyStore;
@@ -50,10 +49,13 @@ import de.cotech.hw.exceptions.FileInTerminationStateException;
 import de.cotech.hw.exceptions.InsNotSupportedException;
 import de.cotech.hw.exceptions.SelectAppletException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816Communicator;
+import de.cotech.hw.internal.iso7816.Iso7816TlvIndex;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.ConnectionProbeCache;
 import de.cotech.hw.internal.transport.SecurityKeyInfo;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.openpgp.CardCapabilities;
 import de.cotech.hw.openpgp.OpenPgpCapabilities;
@@ -61,6 +63,7 @@ import de.cotech.hw.openpgp.exceptions.OpenPgpLockedException;
 import de.cotech.hw.openpgp.exceptions.OpenPgpPinTooShortException;
 import de.cotech.hw.openpgp.exceptions.OpenPgpWrongPinException;
 import de.cotech.hw.openpgp.exceptions.SecurityKeyTerminatedException;
+import de.cotech.hw.openpgp.internal.openpgp.DerivedPinCache;
 import de.cotech.hw.openpgp.internal.openpgp.KdfCalculator;
 import de.cotech.hw.openpgp.internal.openpgp.KeyType;
 import de.cotech.hw.openpgp.internal.openpgp.KdfParameters;
@@ -83,9 +86,6 @@ import de.cotech.hw.util.HwTimber;
  */
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class OpenPgpAppletConnection {
-    private static final int APDU_SW1_RESPONSE_AVAILABLE = 0x61;
-    private static final int RESPONSE_SW1_INCORRECT_LENGTH = 0x6c;
-
     @NonNull
     private final Transport transport;
     @NonNull
@@ -93,6 +93,13 @@ public class OpenPgpAppletConnection {
     @Nullable
     private final KeyStore smKeyStore;
     private final OpenPgpCommandApduFactory commandFactory;
+    @NonNull
+    private final Iso7816Communicator communicator;
+    @NonNull
+    private final OpenPgpCapabilitiesCache capabilitiesCache;
+    @NonNull
+    private final DerivedPinCache derivedPinCache;
+    private final boolean isDerivedPinCacheEnabled;
 
     private SecurityKeyType securityKeyType;
     private CardCapabilities cardCapabilities;
@@ -102,6 +109,10 @@ public class OpenPgpAppletConnection {
     private SecureMessaging secureMessaging;
 
     private boolean isOpenPgpAppletConnected;
+    private boolean isCachedCapabilitiesInvalid;
+    // whether openPgpCapabilities were taken from the cache instead of read from the card on this connection
+    private boolean isUsingCachedCapabilities;
+    private byte[] selectedFileAid;
 
     private boolean isPw1ValidatedForSignature; // Mode 81
     private boolean isPw1ValidatedForOther; // Mode 82
@@ -111,23 +122,42 @@ public class OpenPgpAppletConnection {
     public static OpenPgpAppletConnection getInstanceForTransport(
             @NonNull Transport transport,
             @NonNull List<byte[]> aidPrefixes) {
-        return new OpenPgpAppletConnection(transport, aidPrefixes, null, new OpenPgpCommandApduFactory());
+        return getInstanceForTransport(transport, aidPrefixes, false);
+    }
+
+    /**
+     * @param isDerivedPinCacheEnabled keep PINs derived with the KDF-DO in the {@link DerivedPinCache}
+     */
+    public static OpenPgpAppletConnection getInstanceForTransport(
+            @NonNull Transport transport,
+            @NonNull List<byte[]> aidPrefixes,
+            boolean isDerivedPinCacheEnabled) {
+        return new OpenPgpAppletConnection(transport, aidPrefixes, null, new OpenPgpCommandApduFactory(),
+                isDerivedPinCacheEnabled);
     }
 
 
     private OpenPgpAppletConnection(@NonNull Transport transport, @NonNull List<byte[]> aidPrefixes,
-                                    @Nullable KeyStore smKeyStore, OpenPgpCommandApduFactory commandFactory) {
+                                    @Nullable KeyStore smKeyStore, OpenPgpCommandApduFactory commandFactory,
+                                    boolean isDerivedPinCacheEnabled) {
         this.transport = transport;
         this.aidPrefixes = aidPrefixes;
         this.smKeyStore = smKeyStore;
         this.commandFactory = commandFactory;
+        this.communicator = Iso7816Communicator.create(transport, OpenPgpCommandApduFactory.MAX_APDU_NC_SHORT_OPENPGP_WORKAROUND);
+        this.capabilitiesCache = OpenPgpCapabilitiesCache.getInstance();
+        // used for invalidation even if disabled, other connections to the same security key might use it
+        this.derivedPinCache = DerivedPinCache.getInstance();
+        this.isDerivedPinCacheEnabled = isDerivedPinCacheEnabled;
     }
 
     // region connection management
 
     public void connectIfNecessary() throws IOException {
         if (isOpenPgpAppletConnected) {
-            refreshConnectionCapabilities();
+            if (!loadCachedConnectionCapabilities(openPgpCapabilities.getAid())) {
+                refreshConnectionCapabilities();
+            }
             return;
         }
 
@@ -140,14 +170,14 @@ public class OpenPgpAppletConnection {
     private void connectToDevice() throws IOException {
         try {
             // dummy instance for initial communicate() calls
-            cardCapabilities = new CardCapabilities();
+            setCardCapabilities(new CardCapabilities());
 
             determineSecurityKeyType();
 
             byte[] selectedAid = selectFilesFromPrefixOrFail();
 
             try {
-                refreshConnectionCapabilities();
+                loadConnectionCapabilities();
             } catch (ConditionsNotSatisfiedException e) {
                 HwTimber.d("Got conditions of use not satisfied while establishing connection");
                 attemptReactivate(selectedAid);
@@ -176,9 +206,11 @@ public class OpenPgpAppletConnection {
     }
 
     private byte[] selectFilesFromPrefixOrFail() throws IOException {
-        for (byte[] fileAid : aidPrefixes) {
+        ConnectionProbeCache probeCache = ConnectionProbeCache.getInstance();
+        for (byte[] fileAid : probeCache.getAidsForProbing(transport, aidPrefixes)) {
             byte[] initializedAid = selectFileOrReactivateOrFail(fileAid);
             if (initializedAid != null) {
+                probeCache.putAidSelected(transport, fileAid);
                 return initializedAid;
             }
         }
@@ -188,10 +220,13 @@ public class OpenPgpAppletConnection {
     private byte[] selectFileOrReactivateOrFail(byte[] fileAid) throws IOException {
         CommandApdu select = commandFactory.createSelectFileCommand(fileAid);
 
+        selectedFileAid = null;
         try {
-            communicateOrThrow(select);
+            ResponseApdu response = communicateOrThrow(select);
+            selectedFileAid = getAidFromFileControlInformation(response.getData());
             return fileAid;
         } catch (AppletFileNotFoundException e) {
+            ConnectionProbeCache.getInstance().putAidNotFound(transport, fileAid);
             return null;
         } catch (FileInTerminationStateException e) {
             if (attemptReactivate(fileAid)) {
@@ -227,14 +262,75 @@ public class OpenPgpAppletConnection {
         securityKeyType = SecurityKeyType.UNKNOWN;
     }
 
+    /**
+     * Uses capabilities cached for this security key if the SELECT response identified it, and reads them from the
+     * card otherwise. Asking the card for its AID just for the cache lookup would cost as much as it saves.
+     */
+    private void loadConnectionCapabilities() throws IOException {
+        if (selectedFileAid != null && !isCachedCapabilitiesInvalid
+                && loadCachedConnectionCapabilities(selectedFileAid)) {
+            return;
+        }
+        refreshConnectionCapabilities();
+    }
+
+    /**
+     * Returns the full AID if the card answered SELECT with an FCI template (6F) containing the DF name (84).
+     */
+    @Nullable
+    private static byte[] getAidFromFileControlInformation(byte[] fci) {
+        try {
+            return Iso7816TlvIndex.build(fci).getValue(0x84);
+        } catch (IOException e) {
+            HwTimber.d("Ignoring malformed FCI in SELECT response");
+            return null;
+        }
+    }
+
+    private boolean loadCachedConnectionCapabilities(byte[] aid) throws IOException {
+        OpenPgpCapabilities cachedCapabilities = capabilitiesCache.get(aid);
+        if (cachedCapabilities == null) {
+            return false;
+        }
+
+        HwTimber.d("Using cached application related data");
+        setConnectionCapabilities(cachedCapabilities);
+        isUsingCachedCapabilities = true;
+        // retry counters change without invalidating the cache
+        refreshPwStatusBytes();
+        return true;
+    }
+
     public void refreshConnectionCapabilities() throws IOException {
+        long generation = capabilitiesCache.getGeneration();
         CommandApdu getDataApplicationRelatedData = commandFactory.createGetDataApplicationRelatedData();
         byte[] rawOpenPgpCapabilities = readData(getDataApplicationRelatedData);
 
         OpenPgpCapabilities openPgpCapabilities = OpenPgpCapabilities.fromBytes(rawOpenPgpCapabilities);
+        capabilitiesCache.put(generation, rawOpenPgpCapabilities, openPgpCapabilities);
+        isCachedCapabilitiesInvalid = false;
+        isUsingCachedCapabilities = false;
         setConnectionCapabilities(openPgpCapabilities);
     }
 
+    /**
+     * Reads the capabilities from the card if the current ones were taken from the cache, which may predate keys
+     * changed by other apps or devices. Returns false if they were already read from the card.
+     */
+    public boolean refreshCachedConnectionCapabilities() throws IOException {
+        if (!isUsingCachedCapabilities) {
+            return false;
+        }
+        HwTimber.d("Reading application related data to check cached data");
+        refreshConnectionCapabilities();
+        return true;
+    }
+
+    private void refreshPwStatusBytes() throws IOException {
+        byte[] pwStatusBytes = readData(commandFactory.createGetDataPwStatusBytes());
+        openPgpCapabilities = openPgpCapabilities.withPwStatusBytes(pwStatusBytes);
+    }
+
     private void logAidInformation() {
         if (BuildConfig.DEBUG) {
             HwTimber.d("capabilities: %s", openPgpCapabilities);
@@ -244,7 +340,13 @@ public class OpenPgpAppletConnection {
 
     private void setConnectionCapabilities(OpenPgpCapabilities openPgpCapabilities) throws IOException {
         this.openPgpCapabilities = openPgpCapabilities;
-        this.cardCapabilities = new CardCapabilities(openPgpCapabilities.getHistoricalBytes());
+        setCardCapabilities(new CardCapabilities(openPgpCapabilities.getHistoricalBytes()));
+    }
+
+    private void setCardCapabilities(CardCapabilities cardCapabilities) {
+        this.cardCapabilities = cardCapabilities;
+        communicator.setExtendedLengthHint(cardCapabilities.hasExtended());
+        communicator.setChainingHint(cardCapabilities.hasChaining());
     }
 
     // endregion
@@ -260,20 +362,25 @@ public class OpenPgpAppletConnection {
      * @return response from the card
      */
     public ResponseApdu communicate(CommandApdu commandApdu) throws IOException {
-        commandApdu = smEncryptIfAvailable(commandApdu);
-
-        ResponseApdu lastResponse;
-
-        lastResponse = transceiveWithChaining(commandApdu);
-        if (lastResponse.getSw1() == RESPONSE_SW1_INCORRECT_LENGTH && lastResponse.getSw2() != 0) {
-            commandApdu = commandApdu.withNe(lastResponse.getSw2());
-            lastResponse = transceiveWithChaining(commandApdu);
+        boolean modifiesApplicationRelatedData = commandFactory.isApplicationRelatedDataModifiedBy(commandApdu);
+        boolean modifiesReferenceData = commandFactory.isReferenceDataModifiedBy(commandApdu);
+        boolean usesKey = commandFactory.isKeyUsedBy(commandApdu);
+        try {
+            commandApdu = smEncryptIfAvailable(commandApdu);
+            ResponseApdu lastResponse = communicator.communicate(commandApdu);
+            ResponseApdu response = smDecryptIfAvailable(lastResponse);
+            if (usesKey && !response.isSuccess()) {
+                invalidateStaleCachedCapabilities();
+            }
+            return response;
+        } finally {
+            if (modifiesApplicationRelatedData) {
+                invalidateCachedCapabilities();
+            }
+            if (modifiesApplicationRelatedData || modifiesReferenceData) {
+                invalidateDerivedPins();
+            }
         }
-        lastResponse = readChainedResponseIfAvailable(lastResponse);
-
-        lastResponse = smDecryptIfAvailable(lastResponse);
-
-        return lastResponse;
     }
 
     public ResponseApdu communicateOrThrow(CommandApdu commandApdu) throws IOException {
@@ -287,8 +394,10 @@ public class OpenPgpAppletConnection {
             case OpenPgpWrongPinException.SW_WRONG_PIN:
             case OpenPgpWrongPinException.SW_WRONG_PIN_YKNEO_1:
             case OpenPgpWrongPinException.SW_WRONG_PIN_YKNEO_2:
-                // get current number of retries (capabilities must be refreshed for USB!)
-                refreshConnectionCapabilities();
+                // do not keep the derivation of a wrong PIN around
+                invalidateDerivedPins();
+                // get current number of retries (PW status must be refreshed for USB!)
+                refreshPwStatusBytes();
                 int pinRetriesLeft = getOpenPgpCapabilities().getPw1TriesLeft();
                 int pukRetriesLeft = getOpenPgpCapabilities().getPw3TriesLeft();
                 throw new OpenPgpWrongPinException(pinRetriesLeft, pukRetriesLeft);
@@ -313,58 +422,35 @@ public class OpenPgpAppletConnection {
         }
     }
 
-    @NonNull
-    private ResponseApdu transceiveWithChaining(CommandApdu commandApdu) throws IOException {
-        if (cardCapabilities.hasExtended()) {
-            return transport.transceive(commandApdu);
-        } else if (commandFactory.isSuitableForShortApdu(commandApdu)) {
-            CommandApdu shortApdu = commandFactory.createShortApdu(commandApdu);
-            return transport.transceive(shortApdu);
-        } else if (cardCapabilities.hasChaining()) {
-            ResponseApdu lastResponse = null;
-
-            List<CommandApdu> chainedApdus = commandFactory.createChainedApdus(commandApdu);
-            for (int i = 0, totalCommands = chainedApdus.size(); i < totalCommands; i++) {
-                CommandApdu chainedApdu = chainedApdus.get(i);
-                lastResponse = transport.transceive(chainedApdu);
-
-                boolean isLastCommand = (i == totalCommands - 1);
-                if (!isLastCommand && !lastResponse.isSuccess()) {
-                    throw new IOException("Failed to chain apdu " +
-                            "(" + i + "/" + (totalCommands - 1) + ", last SW: " + Integer.toHexString(lastResponse.getSw()) + ")");
-                }
-            }
-
-            if (lastResponse == null) {
-                throw new IllegalStateException();
-            }
-
-            return lastResponse;
+    private void invalidateCachedCapabilities() {
+        // the KDF-DO is application related data as well
+        kdfParameters = null;
+        if (openPgpCapabilities != null) {
+            capabilitiesCache.invalidate(openPgpCapabilities.getAid());
         } else {
-            throw new IOException("Command too long, and chaining unavailable");
+            // AID is not known yet, make sure capabilities are read from the card
+            isCachedCapabilitiesInvalid = true;
         }
     }
 
-    @NonNull
-    private ResponseApdu readChainedResponseIfAvailable(ResponseApdu lastResponse) throws IOException {
-        if (lastResponse.getSw1() != APDU_SW1_RESPONSE_AVAILABLE) {
-            return lastResponse;
+    /**
+     * Cached capabilities are trusted on connect, since keys changed by other apps or devices are rare. A failed key
+     * operation may be caused by such a change, so the next connection reads them from the card.
+     */
+    private void invalidateStaleCachedCapabilities() {
+        if (isUsingCachedCapabilities) {
+            HwTimber.d("Key operation failed with cached application related data, invalidating it");
+            capabilitiesCache.invalidate(openPgpCapabilities.getAid());
+            isUsingCachedCapabilities = false;
         }
+    }
 
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        result.write(lastResponse.getData());
-
-        do {
-            // GET RESPONSE ISO/IEC 7816-4 par.7.6.1
-            CommandApdu getResponse = commandFactory.createGetResponseCommand(lastResponse.getSw2());
-            lastResponse = transport.transceive(getResponse);
-            result.write(lastResponse.getData());
-        } while (lastResponse.getSw1() == APDU_SW1_RESPONSE_AVAILABLE);
-
-        result.write(lastResponse.getSw1());
-        result.write(lastResponse.getSw2());
-
-        return ResponseApdu.fromBytes(result.toByteArray());
+    private void invalidateDerivedPins() {
+        if (openPgpCapabilities != null) {
+            derivedPinCache.invalidate(openPgpCapabilities.getAid());
+        } else {
+            derivedPinCache.clear();
+        }
     }
 
     // endregion
@@ -435,7 +521,10 @@ public class OpenPgpAppletConnection {
             return pin;
         } else {
             HwTimber.d("KDF supported and retrieved: %s", kdfParameters);
-            return KdfCalculator.calculateKdf(kdfParameters.forType(type), pin);
+            if (!isDerivedPinCacheEnabled) {
+                return KdfCalculator.calculateKdf(kdfParameters.forType(type), pin);
+            }
+            return derivedPinCache.calculateKdf(openPgpCapabilities.getAid(), kdfParameters.forType(type), pin);
         }
     }
 
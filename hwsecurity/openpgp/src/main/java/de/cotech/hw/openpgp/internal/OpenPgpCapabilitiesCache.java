@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal;
+
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import de.cotech.hw.openpgp.OpenPgpCapabilities;
+import de.cotech.hw.openpgp.storage.OpenPgpCapabilitiesStorage;
+import de.cotech.hw.util.Hex;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Remembers {@link OpenPgpCapabilities} across connections, keyed by the AID of the security key, which includes
+ * its serial number.
+ * <p>
+ * Fingerprints, algorithm attributes and extended capabilities change when keys are generated or imported.
+ * Commands sent by this library call {@link #invalidate(byte[])}. Every invalidation starts a new generation, and
+ * application related data read during an older generation is not stored. Other apps, or gpg on another device,
+ * may change the security key without this cache noticing. Cached entries are still used on connect, and
+ * invalidated once a key operation fails or the fingerprints don't match a paired security key. The PW status
+ * bytes change with every VERIFY, so the cached values must not be relied upon.
+ * <p>
+ * If an {@link OpenPgpCapabilitiesStorage} is set, application related data is also persisted there.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class OpenPgpCapabilitiesCache {
+    private static final int MAX_CACHED_SECURITY_KEYS = 16;
+
+    private static final OpenPgpCapabilitiesCache INSTANCE = new OpenPgpCapabilitiesCache();
+
+    private final Map<String, OpenPgpCapabilities> capabilitiesByAid =
+            new LinkedHashMap<String, OpenPgpCapabilities>(MAX_CACHED_SECURITY_KEYS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, OpenPgpCapabilities> eldest) {
+                    return size() > MAX_CACHED_SECURITY_KEYS;
+                }
+            };
+
+    @Nullable
+    private OpenPgpCapabilitiesStorage storage;
+    private long generation;
+
+    public static OpenPgpCapabilitiesCache getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    public OpenPgpCapabilitiesCache() {
+    }
+
+    @AnyThread
+    public synchronized void setStorage(@Nullable OpenPgpCapabilitiesStorage storage) {
+        this.storage = storage;
+    }
+
+    @AnyThread
+    @Nullable
+    public synchronized OpenPgpCapabilities get(byte[] aid) {
+        String key = Hex.encodeHexString(aid);
+        OpenPgpCapabilities capabilities = capabilitiesByAid.get(key);
+        if (capabilities != null || storage == null) {
+            return capabilities;
+        }
+
+        byte[] applicationRelatedData = storage.getApplicationRelatedData(aid);
+        if (applicationRelatedData == null) {
+            return null;
+        }
+        try {
+            capabilities = OpenPgpCapabilities.fromBytes(applicationRelatedData);
+        } catch (IOException | RuntimeException e) {
+            HwTimber.e(e, "Failed to parse stored application related data, removing");
+            storage.removeApplicationRelatedData(aid);
+            return null;
+        }
+        capabilitiesByAid.put(key, capabilities);
+        return capabilities;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} for data that is read afterwards.
+     */
+    @AnyThread
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores capabilities parsed from application related data. This is ignored if the security key was modified
+     * since {@code generation} was obtained, because the data might have been read before the modification.
+     */
+    @AnyThread
+    public synchronized void put(long generation, byte[] applicationRelatedData, OpenPgpCapabilities capabilities) {
+        if (generation != this.generation) {
+            HwTimber.d("Not caching capabilities read before the security key was modified");
+            return;
+        }
+        byte[] aid = capabilities.getAid();
+        capabilitiesByAid.put(Hex.encodeHexString(aid), capabilities);
+        if (storage != null) {
+            storage.setApplicationRelatedData(aid, applicationRelatedData);
+        }
+    }
+
+    /**
+     * Drops the capabilities of a security key after a command that changes its application related data.
+     */
+    @AnyThread
+    public synchronized void invalidate(byte[] aid) {
+        generation++;
+        capabilitiesByAid.remove(Hex.encodeHexString(aid));
+        if (storage != null) {
+            storage.removeApplicationRelatedData(aid);
+        }
+    }
+
+    @AnyThread
+    public synchronized void clear() {
+        generation++;
+        capabilitiesByAid.clear();
+    }
+}
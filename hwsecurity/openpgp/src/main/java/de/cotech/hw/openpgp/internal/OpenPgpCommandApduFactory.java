@@ -34,9 +34,6 @@ import de.cotech.hw.internal.iso7816.CommandApdu;
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.encoders.Hex;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class OpenPgpCommandApduFactory {
@@ -44,10 +41,9 @@ public class OpenPgpCommandApduFactory {
 
     // The spec allows 255, but for compatibility with non-compliant security keys we use 254 here
     // See https://github.com/open-keychain/open-keychain/issues/2049
-    private static final int MAX_APDU_NC_SHORT_OPENPGP_WORKAROUND = CommandApdu.MAX_APDU_NC_SHORT - 1;
+    static final int MAX_APDU_NC_SHORT_OPENPGP_WORKAROUND = CommandApdu.MAX_APDU_NC_SHORT - 1;
 
     private static final int CLA = 0x00;
-    private static final int MASK_CLA_CHAINING = 1 << 4;
 
     static final int INS_SELECT_FILE = 0xA4;
     private static final int P1_SELECT_FILE = 0x04;
@@ -89,6 +85,7 @@ public class OpenPgpCommandApduFactory {
     static final int DO_GET_DATA_CARDHOLDER_RELATED_DATA = 0x0065;
     static final int DO_GET_DATA_APPLICATION_RELATED_DATA = 0x006E;
     static final int DO_GET_DATA_KDF = 0x00f9;
+    static final int DO_GET_DATA_PW_STATUS_BYTES = 0x00C4;
 
     static final int INS_PUT_DATA = 0xDA;
 
@@ -237,58 +234,62 @@ public class OpenPgpCommandApduFactory {
     }
 
     @NonNull
-    public CommandApdu createGetDataKdf() {
-        return createGetDataCommand(DO_GET_DATA_KDF).withDescriber(DESCRIBER);
+    public CommandApdu createGetDataPwStatusBytes() {
+        return createGetDataCommand(DO_GET_DATA_PW_STATUS_BYTES).withDescriber(DESCRIBER);
     }
 
-    // ISO/IEC 7816-4
-    // SELECT command always as short APDU
     @NonNull
-    public CommandApdu createSelectFileCommand(byte[] fileAid) {
-        return CommandApdu.create(CLA, INS_SELECT_FILE, P1_SELECT_FILE, P2_EMPTY, fileAid, CommandApdu.MAX_APDU_NE_SHORT).withDescriber(DESCRIBER);
+    public CommandApdu createGetDataKdf() {
+        return createGetDataCommand(DO_GET_DATA_KDF).withDescriber(DESCRIBER);
     }
 
-    // ISO/IEC 7816-4 par.7.6.1
-    @NonNull
-    public CommandApdu createGetResponseCommand(int lastResponseSw2) {
-        return CommandApdu.create(CLA, INS_GET_RESPONSE, P1_EMPTY, P2_EMPTY, lastResponseSw2).withDescriber(DESCRIBER);
+    /**
+     * Returns true if the command may change application related data, e.g. fingerprints or algorithm attributes.
+     */
+    public boolean isApplicationRelatedDataModifiedBy(CommandApdu command) {
+        switch (command.getINS()) {
+            case INS_PUT_DATA:
+            case INS_PUT_DATA_ODD:
+            case INS_TERMINATE_DF:
+            case INS_ACTIVATE_FILE:
+                return true;
+            case INS_GENERATE_RETRIEVE_ASYMMETRIC_KEY:
+                return command.getP1() == P1_GAKP_GENERATE;
+            default:
+                return false;
+        }
     }
 
-    // ISO/IEC 7816-4
-    @NonNull
-    public CommandApdu createShortApdu(CommandApdu apdu) {
-        int ne = Math.min(apdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT);
-        return apdu.withNe(ne);
+    /**
+     * Returns true if the command uses one of the private keys on the card.
+     */
+    public boolean isKeyUsedBy(CommandApdu command) {
+        switch (command.getINS()) {
+            case INS_PERFORM_SECURITY_OPERATION:
+            case INS_INTERNAL_AUTHENTICATE:
+                return true;
+            default:
+                return false;
+        }
     }
 
-    // ISO/IEC 7816-4
-    @NonNull
-    public List<CommandApdu> createChainedApdus(CommandApdu apdu) {
-        ArrayList<CommandApdu> result = new ArrayList<>();
-
-        int offset = 0;
-        byte[] data = apdu.getData();
-        while (offset < data.length) {
-            int curLen = Math.min(MAX_APDU_NC_SHORT_OPENPGP_WORKAROUND, data.length - offset);
-            boolean last = offset + curLen >= data.length;
-            int cla = apdu.getCLA() + (last ? 0 : MASK_CLA_CHAINING);
-
-            CommandApdu cmd;
-            if (last) {
-                int ne = Math.min(apdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT);
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, ne, DESCRIBER);
-            } else {
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, 0, DESCRIBER);
-            }
-            result.add(cmd);
-
-            offset += curLen;
+    /**
+     * Returns true if the command changes a PIN, after which previously derived PINs should be dropped.
+     */
+    public boolean isReferenceDataModifiedBy(CommandApdu command) {
+        switch (command.getINS()) {
+            case INS_CHANGE_REFERENCE_DATA:
+            case INS_RESET_RETRY_COUNTER:
+                return true;
+            default:
+                return false;
         }
-
-        return result;
     }
 
-    public boolean isSuitableForShortApdu(CommandApdu apdu) {
-        return apdu.getNc() <= MAX_APDU_NC_SHORT_OPENPGP_WORKAROUND;
+    // ISO/IEC 7816-4
+    // SELECT command always as short APDU
+    @NonNull
+    public CommandApdu createSelectFileCommand(byte[] fileAid) {
+        return CommandApdu.create(CLA, INS_SELECT_FILE, P1_SELECT_FILE, P2_EMPTY, fileAid, CommandApdu.MAX_APDU_NE_SHORT).withDescriber(DESCRIBER);
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.Hex;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * Remembers PINs derived by {@link KdfCalculator} for a short time, so verifying the same PIN on the same
+ * security key again does not repeat the iterated hashing.
+ * <p>
+ * Entries are keyed by the AID of the security key, which includes its serial number, the KDF parameters and
+ * the PIN. The key is a MAC under a random per-process key, so neither the PIN nor a plain hash of it is kept
+ * in memory. Derived PINs are held as {@link ByteSecret} and cleared from memory as soon as they expire, are
+ * evicted, or are invalidated.
+ * <p>
+ * Connections only put derived PINs into the cache if enabled with
+ * {@link de.cotech.hw.openpgp.OpenPgpSecurityKeyConnectionModeConfig.Builder#setDerivedPinCacheEnabled(boolean)}.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class DerivedPinCache {
+    private static final long DEFAULT_TIME_TO_LIVE_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CACHED_PINS = 8;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final DerivedPinCache INSTANCE = new DerivedPinCache(DEFAULT_TIME_TO_LIVE_MS);
+
+    private final long timeToLiveNanos;
+    private final SecretKeySpec macKey;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_CACHED_PINS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_CACHED_PINS) {
+                eldest.getValue().derivedPin.removeFromMemory();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public static DerivedPinCache getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    public DerivedPinCache(long timeToLiveMs) {
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMs);
+
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.macKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+
+    /**
+     * Returns the PIN derived with the given arguments, calculating it only if it is not cached. The caller
+     * owns the returned array and should clear it after use.
+     */
+    @AnyThread
+    public byte[] calculateKdf(byte[] aid, KdfCalculator.KdfCalculatorArguments arguments, byte[] pin) {
+        String key = calculateKey(aid, arguments, pin);
+        synchronized (this) {
+            removeExpiredEntries();
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                HwTimber.d("Using cached derived PIN");
+                return entry.derivedPin.unsafeGetByteCopy();
+            }
+        }
+
+        byte[] derivedPin = KdfCalculator.calculateKdf(arguments, pin);
+
+        synchronized (this) {
+            if (timeToLiveNanos > 0) {
+                Entry previous = entries.put(key, new Entry(Hex.encodeHexString(aid),
+                        ByteSecret.fromByteArrayTakeOwnership(derivedPin.clone()),
+                        System.nanoTime() + timeToLiveNanos));
+                if (previous != null) {
+                    previous.derivedPin.removeFromMemory();
+                }
+            }
+        }
+        return derivedPin;
+    }
+
+    /**
+     * Drops all derived PINs of a security key, e.g., after its PINs or KDF parameters were changed.
+     */
+    @AnyThread
+    public synchronized void invalidate(byte[] aid) {
+        String aidHex = Hex.encodeHexString(aid);
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.aidHex.equals(aidHex)) {
+                entry.derivedPin.removeFromMemory();
+                iterator.remove();
+            }
+        }
+    }
+
+    @AnyThread
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.derivedPin.removeFromMemory();
+        }
+        entries.clear();
+    }
+
+    @VisibleForTesting
+    public synchronized int size() {
+        removeExpiredEntries();
+        return entries.size();
+    }
+
+    private void removeExpiredEntries() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.expiresAtNanos >= 0) {
+                entry.derivedPin.removeFromMemory();
+                iterator.remove();
+            }
+        }
+    }
+
+    private String calculateKey(byte[] aid, KdfCalculator.KdfCalculatorArguments arguments, byte[] pin) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(macKey);
+            // length prefixes keep the variable length fields apart
+            mac.update(ByteBuffer.allocate(16)
+                    .putInt(aid.length)
+                    .putInt(arguments.digestAlgorithm.ordinal())
+                    .putInt(arguments.iterations)
+                    .putInt(arguments.salt.length)
+                    .array());
+            mac.update(aid);
+            mac.update(arguments.salt);
+            mac.update(pin);
+            return Hex.encodeHexString(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final String aidHex;
+        final ByteSecret derivedPin;
+        final long expiresAtNanos;
+
+        Entry(String aidHex, ByteSecret derivedPin, long expiresAtNanos) {
+            this.aidHex = aidHex;
+            this.derivedPin = derivedPin;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
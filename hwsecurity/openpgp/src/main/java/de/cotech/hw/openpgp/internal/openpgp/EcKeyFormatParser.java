@@ -43,7 +43,7 @@ import java.security.spec.ECPoint;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 
-import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvIndex;
 import de.cotech.hw.util.Hex;
 import de.cotech.hw.util.HwTimber;
 import de.cotech.hw.util.Hwsecurity25519PublicKey;
@@ -62,12 +62,10 @@ public class EcKeyFormatParser implements KeyFormatParser {
 
     @Override
     public PublicKey parseKey(byte[] publicKeyBytes) throws IOException {
-        Iso7816TLV publicKeyTlv = Iso7816TLV.readSingle(publicKeyBytes, true);
-        Iso7816TLV eccEncodedPoints = Iso7816TLV.findRecursive(publicKeyTlv, DO_ECC_PUBKEY_TAG);
-        if (eccEncodedPoints == null) {
+        byte[] pEnc = Iso7816TlvIndex.build(publicKeyBytes).getValue(DO_ECC_PUBKEY_TAG);
+        if (pEnc == null) {
             throw new IOException("Missing ECC public key data (tag 0x86)");
         }
-        byte[] pEnc = eccEncodedPoints.mV;
 
         if (EcObjectIdentifiers.X25519.equals(curveOid)) {
             Hwsecurity25519PublicKey publicKey = new Hwsecurity25519PublicKey(pEnc, "X25519");
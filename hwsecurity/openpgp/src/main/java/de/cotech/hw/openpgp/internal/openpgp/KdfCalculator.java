@@ -26,16 +26,18 @@ package de.cotech.hw.openpgp.internal.openpgp;
 
 import androidx.annotation.RestrictTo;
 
-import org.bouncycastle.crypto.Digest;
-import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.digests.SHA512Digest;
-
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 // References:
 // [0] RFC 4880 `OpenPGP Message Format`
 @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
 public class KdfCalculator {
+    // salt and PIN are repeated up to this size, so the digest is fed in large blocks rather than one
+    // update call per iteration
+    private static final int MIN_BLOCK_SIZE = 4096;
+
     public static class KdfCalculatorArguments {
         public KdfParameters.HashType digestAlgorithm;
         public byte[] salt;
@@ -43,17 +45,7 @@ public class KdfCalculator {
     }
 
     public static byte[] calculateKdf(KdfCalculatorArguments kdfCalculatorArguments, byte[] pin) {
-        Digest digester;
-        switch (kdfCalculatorArguments.digestAlgorithm) {
-            case SHA256:
-                digester = new SHA256Digest();
-                break;
-            case SHA512:
-                digester = new SHA512Digest();
-                break;
-            default:
-                throw new RuntimeException("Unknown hash algorithm!");
-        }
+        MessageDigest digester = getDigest(kdfCalculatorArguments.digestAlgorithm);
         byte[] salt = kdfCalculatorArguments.salt;
         int iterations = kdfCalculatorArguments.iterations;
 
@@ -65,19 +57,45 @@ public class KdfCalculator {
         // hash data repeatedly
         // the iteration count is actually the number of octets to be hashed
         // see 3.7.1.2 of [0]
-        int q = iterations / data.length;
-        int r = iterations % data.length;
-        for (int i = 0; i < q; i++) {
-            digester.update(data, 0, data.length);
+        // the block holds a whole number of copies of data, so every update starts at the beginning of
+        // data, and the last update hashes the remaining octets as a prefix of the block
+        int copiesPerBlock = Math.max(1, MIN_BLOCK_SIZE / data.length);
+        byte[] block = new byte[copiesPerBlock * data.length];
+        for (int i = 0; i < copiesPerBlock; i++) {
+            System.arraycopy(data, 0, block, i * data.length, data.length);
+        }
+        int remaining = iterations;
+        while (remaining >= block.length) {
+            digester.update(block, 0, block.length);
+            remaining -= block.length;
         }
-        digester.update(data, 0, r);
+        digester.update(block, 0, remaining);
 
-        byte[] digest = new byte[digester.getDigestSize()];
-        digester.doFinal(digest, 0);
+        byte[] digest = digester.digest();
 
         // delete secrets from memory
         Arrays.fill(data, (byte) 0);
+        Arrays.fill(block, (byte) 0);
 
         return digest;
     }
-}
\ No newline at end of file
+
+    private static MessageDigest getDigest(KdfParameters.HashType digestAlgorithm) {
+        String algorithm;
+        switch (digestAlgorithm) {
+            case SHA256:
+                algorithm = "SHA-256";
+                break;
+            case SHA512:
+                algorithm = "SHA-512";
+                break;
+            default:
+                throw new RuntimeException("Unknown hash algorithm!");
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -32,7 +32,7 @@ import com.google.auto.value.AutoValue;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvIndex;
 
 @SuppressWarnings("unused") // just expose all included data
 @AutoValue
@@ -70,9 +70,9 @@ public abstract class KdfParameters {
 
 
     public static KdfParameters fromKdfDo(byte[] kdfDo) throws IOException {
-        // parse elements of KDF-DO
-        Iso7816TLV[] tlvs = Iso7816TLV.readList(kdfDo, false);
-        return new AutoValue_KdfParameters.Builder().parseKdfTLVs(tlvs).build();
+        // parse elements of KDF-DO, only the salts and hashes present are copied
+        Iso7816TlvIndex index = Iso7816TlvIndex.build(kdfDo);
+        return new AutoValue_KdfParameters.Builder().parseKdfDataObjects(index).build();
     }
 
     public KdfCalculator.KdfCalculatorArguments forType(PasswordType passwordType) {
@@ -127,59 +127,65 @@ public abstract class KdfParameters {
             hashAdmin(new byte[0]);
         }
 
-        Builder parseKdfTLVs(Iso7816TLV[] tlvs) throws IOException {
-            for (Iso7816TLV tlv : tlvs) {
-                switch (tlv.mT) {
-                    case 0x81:
-                        switch (tlv.mV[0]) {
-                            case (byte) 0x00:
-                                // no KDF, plain password
-                                hasUsesKdf(false);
-                                break;
-                            case (byte) 0x03:
-                                // using KDF
-                                hasUsesKdf(true);
-                                break;
-                            default:
-                                throw new IOException("Unknown KDF algorithm!");
-                        }
+        Builder parseKdfDataObjects(Iso7816TlvIndex index) throws IOException {
+            if (index.contains(0x81)) {
+                switch (getFirstValueByte(index, 0x81)) {
+                    case (byte) 0x00:
+                        // no KDF, plain password
+                        hasUsesKdf(false);
                         break;
-                    case 0x82:
-                        // hash algorithm
-                        switch (tlv.mV[0]) {
-                            case (byte) 0x08: // SHA256
-                                digestAlgorithm(HashType.SHA256);
-                                break;
-                            case (byte) 0x0a: // SHA512
-                                digestAlgorithm(HashType.SHA512);
-                                break;
-                            default:
-                                throw new IOException("Unknown hash algorithm!");
-                        }
+                    case (byte) 0x03:
+                        // using KDF
+                        hasUsesKdf(true);
                         break;
-                    case 0x83:
-                        // iteration count
-                        ByteBuffer buf = ByteBuffer.wrap(tlv.mV);
-                        iterations(buf.getInt());
-                        break;
-                    case 0x84:
-                        saltPw1(tlv.mV);
-                        break;
-                    case 0x85:
-                        saltPw2(tlv.mV);
-                        break;
-                    case 0x86:
-                        saltPw3(tlv.mV);
-                        break;
-                    case 0x87:
-                        hashUser(tlv.mV);
+                    default:
+                        throw new IOException("Unknown KDF algorithm!");
+                }
+            }
+            if (index.contains(0x82)) {
+                // hash algorithm
+                switch (getFirstValueByte(index, 0x82)) {
+                    case (byte) 0x08: // SHA256
+                        digestAlgorithm(HashType.SHA256);
                         break;
-                    case 0x88:
-                        hashAdmin(tlv.mV);
+                    case (byte) 0x0a: // SHA512
+                        digestAlgorithm(HashType.SHA512);
                         break;
+                    default:
+                        throw new IOException("Unknown hash algorithm!");
+                }
+            }
+            if (index.contains(0x83)) {
+                // iteration count
+                if (index.getValueLength(0x83) < 4) {
+                    throw new IOException("Invalid iteration count!");
                 }
+                ByteBuffer buf = ByteBuffer.wrap(index.getBuffer(), index.getValueOffset(0x83), 4);
+                iterations(buf.getInt());
+            }
+            if (index.contains(0x84)) {
+                saltPw1(index.getValue(0x84));
+            }
+            if (index.contains(0x85)) {
+                saltPw2(index.getValue(0x85));
+            }
+            if (index.contains(0x86)) {
+                saltPw3(index.getValue(0x86));
+            }
+            if (index.contains(0x87)) {
+                hashUser(index.getValue(0x87));
+            }
+            if (index.contains(0x88)) {
+                hashAdmin(index.getValue(0x88));
             }
             return this;
         }
+
+        private static byte getFirstValueByte(Iso7816TlvIndex index, int tag) throws IOException {
+            if (index.getValueLength(tag) < 1) {
+                throw new IOException("Empty KDF-DO element " + Integer.toHexString(tag));
+            }
+            return index.getBuffer()[index.getValueOffset(tag)];
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+
+/**
+ * Reads the body of a single OpenPGP packet from an underlying stream, without reading past its end. Partial body
+ * lengths and indeterminate lengths are resolved while reading, so bodies of any size are streamed.
+ * <p>
+ * References:
+ * [0] RFC 4880 `OpenPGP Message Format`, 4.2. Packet Headers
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class PacketBodyInputStream extends InputStream {
+    public static final int TAG_PUBLIC_KEY_ENCRYPTED_SESSION_KEY = 1;
+    public static final int TAG_SIGNATURE = 2;
+    public static final int TAG_ONE_PASS_SIGNATURE = 4;
+    public static final int TAG_COMPRESSED_DATA = 8;
+    public static final int TAG_SYMMETRICALLY_ENCRYPTED_DATA = 9;
+    public static final int TAG_MARKER = 10;
+    public static final int TAG_LITERAL_DATA = 11;
+    public static final int TAG_SYM_ENCRYPTED_INTEGRITY_PROTECTED_DATA = 18;
+    public static final int TAG_MODIFICATION_DETECTION_CODE = 19;
+
+    private final InputStream in;
+    private final int tag;
+    private final boolean isIndeterminateLength;
+    private final byte[] singleByte = new byte[1];
+
+    private long remainingChunkLength;
+    private boolean isPartialChunk;
+    private boolean isFinished;
+
+    /**
+     * Reads the header of the next packet, and returns a stream of its body. Returns null if the underlying stream
+     * ended before a new packet.
+     */
+    @Nullable
+    public static PacketBodyInputStream readPacket(InputStream in) throws IOException {
+        int header = in.read();
+        if (header == -1) {
+            return null;
+        }
+        if ((header & 0x80) == 0) {
+            throw new IOException("Invalid OpenPGP packet header: " + Integer.toHexString(header));
+        }
+
+        PacketBodyInputStream packet;
+        if ((header & 0x40) != 0) {
+            // new format, see 4.2.2 of [0]
+            packet = new PacketBodyInputStream(in, header & 0x3f, false);
+            packet.readNewFormatLength();
+        } else {
+            // old format, see 4.2.1 of [0]
+            int lengthType = header & 0x03;
+            packet = new PacketBodyInputStream(in, (header >> 2) & 0x0f, lengthType == 3);
+            switch (lengthType) {
+                case 0:
+                    packet.remainingChunkLength = readUnsigned(in, 1);
+                    break;
+                case 1:
+                    packet.remainingChunkLength = readUnsigned(in, 2);
+                    break;
+                case 2:
+                    packet.remainingChunkLength = readUnsigned(in, 4);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return packet;
+    }
+
+    private PacketBodyInputStream(InputStream in, int tag, boolean isIndeterminateLength) {
+        this.in = in;
+        this.tag = tag;
+        this.isIndeterminateLength = isIndeterminateLength;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * Reads the remaining body, which must not be longer than maxLength. This is meant for small packets like
+     * session keys, not for data packets.
+     */
+    public byte[] readFully(int maxLength) throws IOException {
+        byte[] buffer = new byte[maxLength + 1];
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        if (length > maxLength) {
+            throw new IOException("OpenPGP packet too long");
+        }
+        byte[] body = new byte[length];
+        System.arraycopy(buffer, 0, body, 0, length);
+        return body;
+    }
+
+    /**
+     * Skips the remaining body, so the underlying stream is positioned at the next packet.
+     */
+    public void skipRemaining() throws IOException {
+        byte[] buffer = new byte[4096];
+        //noinspection StatementWithEmptyBody
+        while (read(buffer, 0, buffer.length) != -1) {
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (isIndeterminateLength) {
+            return isFinished ? -1 : readIndeterminate(b, off, len);
+        }
+        while (remainingChunkLength == 0) {
+            if (!isPartialChunk) {
+                isFinished = true;
+                return -1;
+            }
+            readNewFormatLength();
+        }
+
+        int read = in.read(b, off, (int) Math.min(len, remainingChunkLength));
+        if (read == -1) {
+            throw new EOFException("Truncated OpenPGP packet");
+        }
+        remainingChunkLength -= read;
+        return read;
+    }
+
+    private int readIndeterminate(byte[] b, int off, int len) throws IOException {
+        // the packet extends to the end of the underlying stream
+        int read = in.read(b, off, len);
+        if (read == -1) {
+            isFinished = true;
+        }
+        return read;
+    }
+
+    private void readNewFormatLength() throws IOException {
+        int first = (int) readUnsigned(in, 1);
+        if (first < 192) {
+            remainingChunkLength = first;
+            isPartialChunk = false;
+        } else if (first < 224) {
+            remainingChunkLength = ((first - 192) << 8) + readUnsigned(in, 1) + 192;
+            isPartialChunk = false;
+        } else if (first == 255) {
+            remainingChunkLength = readUnsigned(in, 4);
+            isPartialChunk = false;
+        } else {
+            remainingChunkLength = 1L << (first & 0x1f);
+            isPartialChunk = true;
+        }
+    }
+
+    private static long readUnsigned(InputStream in, int length) throws IOException {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated OpenPGP packet header");
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+}
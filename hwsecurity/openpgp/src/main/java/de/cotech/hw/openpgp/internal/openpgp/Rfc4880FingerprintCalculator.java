@@ -93,6 +93,24 @@ public class Rfc4880FingerprintCalculator {
         }
     }
 
+    /**
+     * Returns the parameters for the KDF of ECDH session key encryption, see RFC6637 8. ECDH Algorithm, using the
+     * same KDF parameters as assumed for fingerprints.
+     */
+    public static byte[] calculateEcdhUserKeyingMaterial(EcKeyFormat ecKeyFormat, byte[] fingerprint) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(encodeOid(ecKeyFormat.curveOid()));
+            out.write(PublicKeyAlgorithmTags.ECDH);
+            out.write(encodeKdf());
+            out.write("Anonymous Sender    ".getBytes("US-ASCII"));
+            out.write(fingerprint);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     private static void writeVersionTimeAlgorithm(ByteArrayOutputStream out, Date timestamp, int algorithmId) {
         // b) version number = 4 (1 octet);
         // c) timestamp of key creation (4 octets);
@@ -36,7 +36,7 @@ import java.security.spec.RSAPublicKeySpec;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 
-import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvIndex;
 import de.cotech.hw.util.HwTimber;
 
 
@@ -48,17 +48,17 @@ class RsaKeyFormatParser implements KeyFormatParser {
 
     @Override
     public RSAPublicKey parseKey(byte[] publicKeyBytes) throws IOException {
-        Iso7816TLV publicKeyTlv = Iso7816TLV.readSingle(publicKeyBytes, true);
-        Iso7816TLV rsaModulusMpiTlv = Iso7816TLV.findRecursive(publicKeyTlv, DO_RSA_MODULUS_TAG);
-        Iso7816TLV rsaPublicExponentMpiTlv = Iso7816TLV.findRecursive(publicKeyTlv, DO_RSA_EXPONENT_TAG);
+        Iso7816TlvIndex publicKeyTlvIndex = Iso7816TlvIndex.build(publicKeyBytes);
+        byte[] rsaModulusMpi = publicKeyTlvIndex.getValue(DO_RSA_MODULUS_TAG);
+        byte[] rsaPublicExponentMpi = publicKeyTlvIndex.getValue(DO_RSA_EXPONENT_TAG);
 
-        if (rsaModulusMpiTlv == null || rsaPublicExponentMpiTlv == null) {
+        if (rsaModulusMpi == null || rsaPublicExponentMpi == null) {
             throw new IOException("Missing required data for RSA public key (tags 0x81 and 0x82)");
         }
 
         try {
-            BigInteger rsaModulus = new BigInteger(1, rsaModulusMpiTlv.mV);
-            BigInteger rsaPublicExponent = new BigInteger(1, rsaPublicExponentMpiTlv.mV);
+            BigInteger rsaModulus = new BigInteger(1, rsaModulusMpi);
+            BigInteger rsaPublicExponent = new BigInteger(1, rsaPublicExponentMpi);
             RSAPublicKeySpec rsaPublicKeySpec = new RSAPublicKeySpec(rsaModulus, rsaPublicExponent);
             RSAPublicKey publicKey = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(rsaPublicKeySpec);
 
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.secrets.ByteSecret;
+
+
+/**
+ * Decrypts the body of a Symmetrically Encrypted Integrity Protected Data packet and verifies its Modification
+ * Detection Code, in constant memory.
+ * <p>
+ * Plaintext is released while reading, so it is only authenticated once this stream returned its end. The final
+ * read throws an {@link IOException} if the MDC does not match, and callers must discard everything they read
+ * before in that case.
+ * <p>
+ * Cipher, digest and buffers are taken from a small pool and returned on {@link #close()}, so decrypting many
+ * messages does not allocate them again. Before a cipher goes back to the pool, it is initialized with a
+ * throwaway key and the plaintext buffer is cleared, so no session key stays in pooled state.
+ * <p>
+ * References:
+ * [0] RFC 4880 `OpenPGP Message Format`, 5.13. Sym. Encrypted Integrity Protected Data Packet (Tag 18)
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class SeipdDecryptingInputStream extends InputStream {
+    private static final int SYMMETRIC_ALGORITHM_AES_128 = 7;
+    private static final int SYMMETRIC_ALGORITHM_AES_192 = 8;
+    private static final int SYMMETRIC_ALGORITHM_AES_256 = 9;
+
+    private static final int SEIPD_VERSION = 1;
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int PREFIX_LENGTH = AES_BLOCK_SIZE + 2;
+    // new format MDC packet header, see 5.14 of [0]
+    private static final byte[] MDC_PACKET_HEADER = { (byte) 0xD3, (byte) 0x14 };
+    private static final int MDC_PACKET_LENGTH = MDC_PACKET_HEADER.length + 20;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_STATES = 4;
+    private static final ArrayDeque<CipherState> CIPHER_STATE_POOL = new ArrayDeque<>();
+    // OpenPGP CFB uses an IV of zeros, the prefix takes its role, see 13.9 of [0]
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[AES_BLOCK_SIZE]);
+    private static final SecretKeySpec DISCARDED_KEY = new SecretKeySpec(new byte[AES_BLOCK_SIZE], "AES");
+
+    private final InputStream in;
+    private final byte[] singleByte = new byte[1];
+    private CipherState state;
+
+    // decrypted bytes in state.plaintext[position, limit), of which the last MDC_PACKET_LENGTH are held back
+    private int position;
+    private int limit;
+    private boolean isCiphertextFinished;
+    private boolean isVerified;
+
+    /**
+     * Starts decrypting a SEIPD packet body.
+     *
+     * @param sessionData decrypted session data of the PKESK packet: algorithm, key, and checksum, see 5.1 of [0]
+     */
+    public static SeipdDecryptingInputStream create(InputStream body, ByteSecret sessionData) throws IOException {
+        int version = body.read();
+        if (version != SEIPD_VERSION) {
+            throw new IOException("Unsupported SEIPD packet version: " + version);
+        }
+
+        byte[] sessionDataBytes = sessionData.unsafeGetByteCopy();
+        try {
+            SecretKeySpec key = parseSessionKey(sessionDataBytes);
+            SeipdDecryptingInputStream stream = new SeipdDecryptingInputStream(body, acquireCipherState(key));
+            try {
+                stream.readPrefix();
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            return stream;
+        } finally {
+            Arrays.fill(sessionDataBytes, (byte) 0);
+        }
+    }
+
+    private SeipdDecryptingInputStream(InputStream in, CipherState state) {
+        this.in = in;
+        this.state = state;
+    }
+
+    private static SecretKeySpec parseSessionKey(byte[] sessionData) throws IOException {
+        if (sessionData.length < 3) {
+            throw new IOException("Invalid session key");
+        }
+        int keyLength;
+        switch (sessionData[0]) {
+            case SYMMETRIC_ALGORITHM_AES_128:
+                keyLength = 16;
+                break;
+            case SYMMETRIC_ALGORITHM_AES_192:
+                keyLength = 24;
+                break;
+            case SYMMETRIC_ALGORITHM_AES_256:
+                keyLength = 32;
+                break;
+            default:
+                throw new IOException("Unsupported symmetric algorithm: " + sessionData[0]);
+        }
+        if (sessionData.length != 1 + keyLength + 2) {
+            throw new IOException("Invalid session key length");
+        }
+
+        // checksum is the sum of all key octets mod 65536
+        int checksum = 0;
+        for (int i = 1; i <= keyLength; i++) {
+            checksum += sessionData[i] & 0xff;
+        }
+        int expectedChecksum = ((sessionData[keyLength + 1] & 0xff) << 8) | (sessionData[keyLength + 2] & 0xff);
+        if ((checksum & 0xffff) != expectedChecksum) {
+            throw new IOException("Invalid session key checksum");
+        }
+        return new SecretKeySpec(sessionData, 1, keyLength, "AES");
+    }
+
+    private void readPrefix() throws IOException {
+        // the prefix is one block of random data, with its last two octets repeated, see 5.7 of [0]
+        while (limit - position < PREFIX_LENGTH + MDC_PACKET_LENGTH && !isCiphertextFinished) {
+            fill();
+        }
+        if (limit - position < PREFIX_LENGTH + MDC_PACKET_LENGTH) {
+            throw new EOFException("Truncated SEIPD packet");
+        }
+        byte[] plaintext = state.plaintext;
+        if (plaintext[position + AES_BLOCK_SIZE - 2] != plaintext[position + AES_BLOCK_SIZE]
+                || plaintext[position + AES_BLOCK_SIZE - 1] != plaintext[position + AES_BLOCK_SIZE + 1]) {
+            throw new IOException("Session key does not match encrypted data");
+        }
+        state.mdcDigest.update(plaintext, position, PREFIX_LENGTH);
+        position += PREFIX_LENGTH;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (state == null) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (limit - position <= MDC_PACKET_LENGTH && !isCiphertextFinished) {
+            fill();
+        }
+        int releasable = limit - position - MDC_PACKET_LENGTH;
+        if (releasable <= 0) {
+            verifyMdc();
+            return -1;
+        }
+
+        int count = Math.min(len, releasable);
+        System.arraycopy(state.plaintext, position, b, off, count);
+        state.mdcDigest.update(state.plaintext, position, count);
+        position += count;
+        return count;
+    }
+
+    private void fill() throws IOException {
+        byte[] plaintext = state.plaintext;
+        if (position > 0) {
+            System.arraycopy(plaintext, position, plaintext, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        try {
+            int read = in.read(state.ciphertext, 0, Math.min(state.ciphertext.length, plaintext.length - limit - AES_BLOCK_SIZE));
+            if (read == -1) {
+                isCiphertextFinished = true;
+                limit += state.cipher.doFinal(plaintext, limit);
+            } else {
+                limit += state.cipher.update(state.ciphertext, 0, read, plaintext, limit);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void verifyMdc() throws IOException {
+        if (isVerified) {
+            return;
+        }
+        byte[] plaintext = state.plaintext;
+        if (limit - position != MDC_PACKET_LENGTH
+                || plaintext[position] != MDC_PACKET_HEADER[0] || plaintext[position + 1] != MDC_PACKET_HEADER[1]) {
+            throw new IOException("Missing modification detection code");
+        }
+        state.mdcDigest.update(MDC_PACKET_HEADER);
+        byte[] expectedMdc = state.mdcDigest.digest();
+        byte[] mdc = Arrays.copyOfRange(plaintext, position + MDC_PACKET_HEADER.length, limit);
+        if (!MessageDigest.isEqual(expectedMdc, mdc)) {
+            throw new IOException("Modification detected, encrypted data has been tampered with");
+        }
+        isVerified = true;
+    }
+
+    @Override
+    public void close() {
+        if (state != null) {
+            releaseCipherState(state);
+            state = null;
+        }
+    }
+
+    private static CipherState acquireCipherState(SecretKeySpec key) throws IOException {
+        CipherState state;
+        synchronized (CIPHER_STATE_POOL) {
+            state = CIPHER_STATE_POOL.poll();
+        }
+        try {
+            if (state == null) {
+                state = new CipherState();
+            }
+            state.cipher.init(Cipher.DECRYPT_MODE, key, ZERO_IV);
+            state.mdcDigest.reset();
+            return state;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void releaseCipherState(CipherState state) {
+        Arrays.fill(state.plaintext, (byte) 0);
+        state.mdcDigest.reset();
+        try {
+            // drop the key schedule of the session key
+            state.cipher.init(Cipher.DECRYPT_MODE, DISCARDED_KEY, ZERO_IV);
+        } catch (GeneralSecurityException e) {
+            // not pooled, so the cipher is not kept around either
+            return;
+        }
+        synchronized (CIPHER_STATE_POOL) {
+            if (CIPHER_STATE_POOL.size() < MAX_POOLED_STATES) {
+                CIPHER_STATE_POOL.push(state);
+            }
+        }
+    }
+
+    private static class CipherState {
+        final Cipher cipher;
+        final MessageDigest mdcDigest;
+        final byte[] ciphertext = new byte[BUFFER_SIZE];
+        // room for a full buffer, the held back MDC packet and a block buffered inside the cipher
+        final byte[] plaintext = new byte[BUFFER_SIZE + MDC_PACKET_LENGTH + PREFIX_LENGTH + 2 * AES_BLOCK_SIZE];
+
+        CipherState() throws GeneralSecurityException {
+            cipher = Cipher.getInstance("AES/CFB/NoPadding");
+            mdcDigest = MessageDigest.getInstance("SHA-1");
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.bouncycastle.util.encoders.Hex;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 
 import de.cotech.hw.openpgp.internal.openpgp.EcKeyFormat;
@@ -128,21 +129,13 @@ class OpenPgpSignatureUtils {
         if (signature.length % 2 != 0) {
             throw new IOException("Bad signature length!");
         }
-        byte[] br = new byte[signature.length / 2];
-        byte[] bs = new byte[signature.length / 2];
-        for (int i = 0; i < br.length; ++i) {
-            br[i] = signature[i];
-            bs[i] = signature[br.length + i];
-        }
-        if (br[0] == 0x00 && (br[1] & 0x80) == 0) {
-            br = Arrays.copyOfRange(br, 1, br.length);
-        }
-        if (bs[0] == 0x00 && (bs[1] & 0x80) == 0) {
-            bs = Arrays.copyOfRange(bs, 1, bs.length);
-        }
+        // r and s are unsigned, leading zero bytes must not be kept and a set high bit must not make them negative
+        int length = signature.length / 2;
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, 0, length));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, length, signature.length));
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ASN1OutputStream out = ASN1OutputStream.create(baos);
-        out.writeObject(new DERSequence(new ASN1Encodable[]{new ASN1Integer(br), new ASN1Integer(bs)}));
+        out.writeObject(new DERSequence(new ASN1Encodable[]{new ASN1Integer(r), new ASN1Integer(s)}));
         out.flush();
         return baos.toByteArray();
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.operations;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.openpgp.OpenPgpCapabilities;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.openpgp.KeyFormat;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.HwTimber;
+
+
+/**
+ * This class implements the PSO:COMPUTE DIGITAL SIGNATURE operation, as specified in OpenPGP card spec / 7.2.10
+ * (p48 in v3.0.1).
+ * <p>
+ * PW1 is verified once for all digests if the PW status bytes allow multiple signatures, and before every
+ * signature otherwise.
+ * <p>
+ * See https://www.g10code.com/docs/openpgp-card-3.0.pdf
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class PsoSignOp {
+    private final OpenPgpAppletConnection connection;
+    private final OpenPgpSignatureUtils signatureUtils = OpenPgpSignatureUtils.getInstance();
+
+    public static PsoSignOp create(OpenPgpAppletConnection connection) {
+        return new PsoSignOp(connection);
+    }
+
+    private PsoSignOp(OpenPgpAppletConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Call PSO:COMPUTE DIGITAL SIGNATURE command and returns the encoded signature
+     *
+     * @param digest the hash for signing
+     */
+    public byte[] calculateSignature(ByteSecret pin, byte[] digest, String hashAlgo) throws IOException {
+        return calculateSignatures(pin, Collections.singletonList(digest), hashAlgo).get(0);
+    }
+
+    /**
+     * Signs all digests in order, returning their encoded signatures in the same order.
+     */
+    public List<byte[]> calculateSignatures(ByteSecret pin, List<byte[]> digests, String hashAlgo)
+            throws IOException {
+        OpenPgpCapabilities openPgpCapabilities = connection.getOpenPgpCapabilities();
+        KeyFormat signKeyFormat = openPgpCapabilities.getSignKeyFormat();
+        if (!openPgpCapabilities.isPw1ValidForMultipleSignatures() && digests.size() > 1) {
+            HwTimber.d("PW1 is only valid for a single signature, verifying %d times", digests.size());
+        }
+
+        List<byte[]> signatures = new ArrayList<>(digests.size());
+        for (byte[] digest : digests) {
+            // prepare data before verifying, so a bad digest does not use up a verification
+            byte[] data = signatureUtils.prepareData(digest, hashAlgo, signKeyFormat);
+
+            // no-op while PW1 is still valid
+            connection.verifyPinForSignature(pin);
+
+            CommandApdu command = connection.getCommandFactory().createComputeDigitalSignatureCommand(data);
+            ResponseApdu response;
+            try {
+                response = connection.communicateOrThrow(command);
+            } finally {
+                connection.invalidateSingleUsePw1();
+            }
+
+            signatures.add(signatureUtils.encodeSignature(response.getData(), signKeyFormat));
+        }
+        return signatures;
+    }
+}
@@ -79,7 +79,11 @@ public class PairedDecryptor {
      */
     public ByteSecret decryptSessionSecret(byte[] encryptedData) throws IOException {
         if (!openPgpSecurityKey.matchesPairedSecurityKey(pairedSecurityKey)) {
-            throw new PairedSecurityKeyException();
+            // cached capabilities may predate keys changed elsewhere
+            if (!openPgpSecurityKey.openPgpAppletConnection.refreshCachedConnectionCapabilities()
+                    || !openPgpSecurityKey.matchesPairedSecurityKey(pairedSecurityKey)) {
+                throw new PairedSecurityKeyException();
+            }
         }
 
         ByteSecret pairedPin = pinProvider.getPin(openPgpSecurityKey.getOpenPgpInstanceAid());
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.storage;
+
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+import de.cotech.hw.util.Hex;
+
+
+/**
+ * A simple, {@link SharedPreferences} based {@link OpenPgpCapabilitiesStorage}.
+ */
+public class AndroidPreferencesOpenPgpCapabilitiesStorage implements OpenPgpCapabilitiesStorage {
+    private static final String PREFS_FILENAME = "openpgp_capabilities.prefs";
+    private static final int PREFS_MODE = Context.MODE_PRIVATE;
+
+    private static final String PREF_PREFIX = "application_related_data_";
+
+    public static AndroidPreferencesOpenPgpCapabilitiesStorage getInstance(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFS_FILENAME, PREFS_MODE);
+        return new AndroidPreferencesOpenPgpCapabilitiesStorage(sharedPreferences);
+    }
+
+    private final SharedPreferences sharedPreferences;
+
+    private AndroidPreferencesOpenPgpCapabilitiesStorage(SharedPreferences sharedPreferences) {
+        this.sharedPreferences = sharedPreferences;
+    }
+
+
+    @Nullable
+    @Override
+    public byte[] getApplicationRelatedData(byte[] aid) {
+        String prefKey = getPrefKeyForSecurityKeyAid(aid);
+        String applicationRelatedDataHex = sharedPreferences.getString(prefKey, null);
+        if (applicationRelatedDataHex == null) {
+            return null;
+        }
+        return Hex.decodeHexOrFail(applicationRelatedDataHex);
+    }
+
+    @Override
+    public void setApplicationRelatedData(byte[] aid, byte[] applicationRelatedData) {
+        String prefKey = getPrefKeyForSecurityKeyAid(aid);
+        sharedPreferences.edit()
+                .putString(prefKey, Hex.encodeHexString(applicationRelatedData))
+                .apply();
+    }
+
+    @Override
+    public void removeApplicationRelatedData(byte[] aid) {
+        String prefKey = getPrefKeyForSecurityKeyAid(aid);
+        sharedPreferences.edit()
+                .remove(prefKey)
+                .apply();
+    }
+
+    private String getPrefKeyForSecurityKeyAid(byte[] aid) {
+        return PREF_PREFIX + Hex.encodeHexString(aid);
+    }
+}
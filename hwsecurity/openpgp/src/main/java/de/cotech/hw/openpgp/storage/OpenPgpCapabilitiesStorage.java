@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.storage;
+
+
+import androidx.annotation.Nullable;
+
+
+/**
+ * Interface for storage of OpenPGP application related data across process restarts.
+ * <p>
+ * The application related data contains the fingerprints, algorithm attributes and extended capabilities of a
+ * security key. Storing it allows to skip reading it when connecting to a known security key.
+ *
+ * @see de.cotech.hw.openpgp.OpenPgpSecurityKeyConnectionMode#setCapabilitiesStorage(OpenPgpCapabilitiesStorage)
+ */
+public interface OpenPgpCapabilitiesStorage {
+    /** Returns the application related data stored for the security key with the given AID, or null. */
+    @Nullable
+    byte[] getApplicationRelatedData(byte[] aid);
+
+    void setApplicationRelatedData(byte[] aid, byte[] applicationRelatedData);
+
+    void removeApplicationRelatedData(byte[] aid);
+}
@@ -1,4 +1,5 @@
 /**
- * Storage for {@link de.cotech.hw.openpgp.pairedkey.PairedSecurityKey} instances and encrypted session secrets.
+ * Storage for {@link de.cotech.hw.openpgp.pairedkey.PairedSecurityKey} instances, encrypted session secrets, and
+ * OpenPGP application related data.
  */
 package de.cotech.hw.openpgp.storage;
\ No newline at end of file
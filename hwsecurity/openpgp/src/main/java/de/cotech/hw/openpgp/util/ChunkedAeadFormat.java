@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.util;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import androidx.annotation.Nullable;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+
+/**
+ * Segmented AES-GCM format used by {@link EncryptingFileOutputStream} and {@link DecryptingFileInputStream}.
+ * <p>
+ * The plaintext is split into segments of equal size, only the last one may be shorter, and each segment is
+ * encrypted on its own. Segments can therefore be authenticated and released one at a time, decrypted in any
+ * order, and processed in parallel.
+ * <pre>
+ * header:  0x00 | version (1) | segment size (4) | salt (16) | nonce prefix (7)
+ * segment: AES-GCM ciphertext | tag (16)
+ * </pre>
+ * The leading 0x00 tells this format apart from the single GCM stream written by earlier versions, which starts
+ * with the non-zero length of its IV. The segment key is derived from the secret and salt with HKDF-SHA256, so
+ * random nonce prefixes do not repeat across files. The nonce of each segment is the nonce prefix, the segment
+ * index (4), and a flag (1) set only for the last segment, which makes truncation at a segment boundary fail
+ * authentication. The header is authenticated as associated data of every segment.
+ * <p>
+ * GCM is done with the BouncyCastle lightweight API, since GCMParameterSpec and associated data in
+ * {@link javax.crypto.Cipher} are only available from API 19.
+ */
+class ChunkedAeadFormat {
+    static final int FORMAT_MARKER = 0x00;
+    static final int VERSION_1 = 1;
+    static final int HEADER_LENGTH = 2 + 4 + 16 + 7;
+    static final int TAG_LENGTH = 16;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int MIN_SEGMENT_SIZE = 1024;
+    static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    // segments in flight when an ExecutorService is used
+    static final int PARALLEL_SEGMENTS = 4;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 4 + 1;
+    private static final byte[] HKDF_INFO = "hwsecurity segmented AES-GCM v1".getBytes(Charset.forName("US-ASCII"));
+
+    private final byte[] header;
+    private final int segmentSize;
+    private final KeyParameter segmentKey;
+
+    static ChunkedAeadFormat createRandom(byte[] secret, int segmentSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between " + MIN_SEGMENT_SIZE + " and " +
+                    MAX_SEGMENT_SIZE + " bytes");
+        }
+        byte[] saltAndNoncePrefix = new byte[SALT_LENGTH + NONCE_PREFIX_LENGTH];
+        new SecureRandom().nextBytes(saltAndNoncePrefix);
+
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH)
+                .put((byte) FORMAT_MARKER)
+                .put((byte) VERSION_1)
+                .putInt(segmentSize)
+                .put(saltAndNoncePrefix)
+                .array();
+        return new ChunkedAeadFormat(header, segmentSize, secret);
+    }
+
+    static ChunkedAeadFormat fromHeader(byte[] header, byte[] secret) throws IOException {
+        if (header.length != HEADER_LENGTH || header[0] != FORMAT_MARKER) {
+            throw new IOException("Invalid header");
+        }
+        if (header[1] != VERSION_1) {
+            throw new IOException("Unsupported format version: " + header[1]);
+        }
+        int segmentSize = ByteBuffer.wrap(header, 2, 4).getInt();
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size: " + segmentSize);
+        }
+        return new ChunkedAeadFormat(header, segmentSize, secret);
+    }
+
+    private ChunkedAeadFormat(byte[] header, int segmentSize, byte[] secret) {
+        this.header = header;
+        this.segmentSize = segmentSize;
+
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(secret, Arrays.copyOfRange(header, 6, 6 + SALT_LENGTH), HKDF_INFO));
+        byte[] keyBytes = new byte[secret.length];
+        hkdf.generateBytes(keyBytes, 0, keyBytes.length);
+        this.segmentKey = new KeyParameter(keyBytes);
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+
+    byte[] getHeader() {
+        return header.clone();
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    int getCiphertextSegmentSize() {
+        return segmentSize + TAG_LENGTH;
+    }
+
+    /**
+     * Creates the state to encrypt or decrypt one segment at a time. Instances are not thread-safe, so each
+     * thread needs its own.
+     */
+    SegmentCipher createSegmentCipher() {
+        return new SegmentCipher();
+    }
+
+    /**
+     * Runs the tasks, in parallel if an executor is given, and waits for all of them.
+     */
+    static void runAll(@Nullable ExecutorService executorService, List<Callable<Void>> tasks) throws IOException {
+        if (executorService == null || tasks.size() == 1) {
+            try {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(executorService.submit(task));
+        }
+        IOException exception = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (exception == null) {
+                    exception = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    class SegmentCipher {
+        private final GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+
+        private SegmentCipher() {
+            System.arraycopy(header, 6 + SALT_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        }
+
+        int encrypt(long segmentIndex, boolean isLastSegment, byte[] plaintext, int length, byte[] ciphertext)
+                throws IOException {
+            init(true, segmentIndex, isLastSegment);
+            try {
+                return process(plaintext, length, ciphertext);
+            } catch (InvalidCipherTextException e) {
+                throw new IOException(e);
+            }
+        }
+
+        int decrypt(long segmentIndex, boolean isLastSegment, byte[] ciphertext, int length, byte[] plaintext)
+                throws IOException {
+            init(false, segmentIndex, isLastSegment);
+            try {
+                return process(ciphertext, length, plaintext);
+            } catch (InvalidCipherTextException e) {
+                throw new IOException("Segment " + segmentIndex + " failed authentication", e);
+            }
+        }
+
+        private int process(byte[] input, int length, byte[] output) throws InvalidCipherTextException {
+            int outputLength = cipher.processBytes(input, 0, length, output, 0);
+            return outputLength + cipher.doFinal(output, outputLength);
+        }
+
+        private void init(boolean forEncryption, long segmentIndex, boolean isLastSegment) {
+            if (segmentIndex < 0 || segmentIndex > 0xffffffffL) {
+                throw new IllegalArgumentException("Too many segments");
+            }
+            nonce[NONCE_PREFIX_LENGTH] = (byte) (segmentIndex >> 24);
+            nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (segmentIndex >> 16);
+            nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (segmentIndex >> 8);
+            nonce[NONCE_PREFIX_LENGTH + 3] = (byte) segmentIndex;
+            nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (isLastSegment ? 1 : 0);
+            cipher.init(forEncryption, new AEADParameters(segmentKey, TAG_LENGTH * 8, nonce, header));
+        }
+    }
+}
@@ -25,86 +25,158 @@
 package de.cotech.hw.openpgp.util;
 
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import de.cotech.hw.openpgp.util.ChunkedAeadFormat.SegmentCipher;
 import de.cotech.hw.secrets.ByteSecret;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 
 /**
  * An {@link InputStream} that decrypts data with a {@link ByteSecret}.
+ * <p>
+ * Files are decrypted one segment at a time, so memory use does not depend on the file size, and data is only
+ * returned after its segment has been authenticated. Since every segment can be decrypted on its own,
+ * {@link #seek(long)} and {@link #skip(long)} do not decrypt the data they pass over. If an
+ * {@link ExecutorService} is given, a few consecutive segments are decrypted in parallel.
+ * <p>
+ * Files written as a single AES-GCM stream by earlier versions of {@link EncryptingFileOutputStream} are still
+ * read, but cannot be seeked.
  *
- * See {@link DecryptingFileInputStream}.
+ * See {@link EncryptingFileOutputStream}.
  *
- * @see DecryptingFileInputStream
+ * @see EncryptingFileOutputStream
  */
 public class DecryptingFileInputStream extends InputStream {
-    private final Cipher cipher;
+    @Nullable
+    private final LegacyGcmFileInputStream legacyInputStream;
 
-    private final InputStream inputStream;
-    private final long totalCiphertextLength;
-    private long totalCiphertextRead;
+    @Nullable
+    private final ExecutorService executorService;
+    private FileInputStream fileInputStream;
+    private FileChannel fileChannel;
+    private ChunkedAeadFormat format;
+    private SegmentCipher[] segmentCiphers;
+    private byte[][] ciphertextSegments;
+    private byte[][] plaintextSegments;
+    private int[] plaintextSegmentLengths;
 
-    private byte[] ciphertextBuf = new byte[2048];
-    private byte[] cleartextBuf = new byte[2048];
-    private int cleartextPosition;
-    private int cleartextLength;
+    private long segmentCount;
+    private long plaintextLength;
+    private long position;
+    private long firstLoadedSegment = -1;
+    private int loadedSegments;
+    private boolean lastSegmentVerified;
 
     public DecryptingFileInputStream(@NonNull File file, ByteSecret byteSecret) throws IOException {
+        this(file, byteSecret, null);
+    }
+
+    /**
+     * Creates a stream that decrypts consecutive segments in parallel on the given {@link ExecutorService}.
+     */
+    public DecryptingFileInputStream(@NonNull File file, ByteSecret byteSecret,
+            @Nullable ExecutorService executorService) throws IOException {
         super();
 
         if (!file.exists()) {
             throw new FileNotFoundException();
         }
-
-        inputStream = new BufferedInputStream(new FileInputStream(file));
-        totalCiphertextLength = file.length();
+        this.executorService = executorService;
 
         byte[] sessionKey = byteSecret.getByteCopyAndClear();
         try {
-            cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
-            int ivLength = inputStream.read();
-            byte[] iv = new byte[ivLength];
-            int ivRead = inputStream.read(iv);
-            if (ivRead != ivLength) {
-                throw new AssertionError();
+            fileInputStream = new FileInputStream(file);
+            fileChannel = fileInputStream.getChannel();
+
+            byte[] header = new byte[ChunkedAeadFormat.HEADER_LENGTH];
+            int headerRead = readFully(0, header, 1);
+            if (headerRead == 0 || header[0] != ChunkedAeadFormat.FORMAT_MARKER) {
+                fileInputStream.close();
+                legacyInputStream = new LegacyGcmFileInputStream(file, sessionKey);
+                return;
             }
+            legacyInputStream = null;
 
-            totalCiphertextRead += 1 + ivLength;
-            SecretKeySpec secretKey = new SecretKeySpec(sessionKey, "AES");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        } catch (NoSuchAlgorithmException | NoSuchProviderException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
-            throw new AssertionError(e);
+            if (readFully(0, header, header.length) != header.length) {
+                throw new IOException("Truncated header");
+            }
+            format = ChunkedAeadFormat.fromHeader(header, sessionKey);
+            initSegments(fileChannel.size() - header.length);
+        } catch (IOException e) {
+            fileInputStream.close();
+            throw e;
         } finally {
             Arrays.fill(sessionKey, (byte) 0);
         }
     }
 
+    private void initSegments(long payloadLength) throws IOException {
+        int ciphertextSegmentSize = format.getCiphertextSegmentSize();
+        segmentCount = (payloadLength + ciphertextSegmentSize - 1) / ciphertextSegmentSize;
+        long lastSegmentLength = payloadLength - (segmentCount - 1) * ciphertextSegmentSize;
+        if (segmentCount == 0 || lastSegmentLength < ChunkedAeadFormat.TAG_LENGTH) {
+            throw new IOException("Truncated segment");
+        }
+        plaintextLength = payloadLength - segmentCount * ChunkedAeadFormat.TAG_LENGTH;
+
+        int slots = executorService != null ? ChunkedAeadFormat.PARALLEL_SEGMENTS : 1;
+        segmentCiphers = new SegmentCipher[slots];
+        ciphertextSegments = new byte[slots][ciphertextSegmentSize];
+        plaintextSegments = new byte[slots][format.getSegmentSize()];
+        plaintextSegmentLengths = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            segmentCiphers[i] = format.createSegmentCipher();
+        }
+    }
+
+    /**
+     * Returns the length of the decrypted data.
+     */
+    public long getPlaintextLength() throws IOException {
+        if (legacyInputStream != null) {
+            throw new IOException("Length is not known for files in the single GCM stream format");
+        }
+        return plaintextLength;
+    }
+
+    /**
+     * Moves the read position to the given offset of the decrypted data. Only the segment at the new position
+     * is decrypted, on the next read.
+     */
+    public void seek(long position) throws IOException {
+        if (legacyInputStream != null) {
+            throw new IOException("Seeking is not supported for files in the single GCM stream format");
+        }
+        if (position < 0 || position > plaintextLength) {
+            throw new IOException("Position out of range: " + position);
+        }
+        this.position = position;
+    }
+
     @Override
     public int read() throws IOException {
-        fillDecryptedBuffer();
-        if (cleartextLength == -1) {
+        if (legacyInputStream != null) {
+            return legacyInputStream.read();
+        }
+        if (!loadSegmentAtPosition()) {
             return -1;
         }
-        return cleartextBuf[cleartextPosition++];
+        int slot = (int) (position / format.getSegmentSize() - firstLoadedSegment);
+        return plaintextSegments[slot][(int) (position++ % format.getSegmentSize())] & 0xff;
     }
 
     @Override
@@ -114,17 +186,20 @@ public class DecryptingFileInputStream extends InputStream {
 
     @Override
     public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (legacyInputStream != null) {
+            return legacyInputStream.read(buffer, offset, length);
+        }
         int totalBytesRead = 0;
         while (length > 0) {
-            fillDecryptedBuffer();
-
-            if (cleartextLength == -1) {
+            if (!loadSegmentAtPosition()) {
                 return totalBytesRead > 0 ? totalBytesRead : -1;
             }
 
-            int bytesToCopy = Math.min(length, cleartextAvailable());
-            System.arraycopy(cleartextBuf, cleartextPosition, buffer, offset, bytesToCopy);
-            cleartextPosition += bytesToCopy;
+            int slot = (int) (position / format.getSegmentSize() - firstLoadedSegment);
+            int segmentOffset = (int) (position % format.getSegmentSize());
+            int bytesToCopy = Math.min(length, plaintextSegmentLengths[slot] - segmentOffset);
+            System.arraycopy(plaintextSegments[slot], segmentOffset, buffer, offset, bytesToCopy);
+            position += bytesToCopy;
             length -= bytesToCopy;
             offset += bytesToCopy;
             totalBytesRead += bytesToCopy;
@@ -132,36 +207,107 @@ public class DecryptingFileInputStream extends InputStream {
         return totalBytesRead;
     }
 
-    private void fillDecryptedBuffer() throws IOException {
-        if (cleartextAvailable() > 0) {
-            return;
+    @Override
+    public long skip(long n) throws IOException {
+        if (legacyInputStream != null) {
+            return legacyInputStream.skip(n);
         }
-        if (totalCiphertextLength == totalCiphertextRead) {
-            cleartextLength = -1;
-            return;
+        if (n <= 0) {
+            return 0;
         }
-        int bytesRead = inputStream.read(ciphertextBuf, 0, ciphertextBuf.length);
-        totalCiphertextRead += bytesRead;
-        try {
-            if (totalCiphertextRead < totalCiphertextLength) {
-                cleartextLength = cipher.update(ciphertextBuf, 0, bytesRead, cleartextBuf);
-            } else {
-                cleartextLength = cipher.doFinal(ciphertextBuf, 0, bytesRead, cleartextBuf);
+        long skipped = Math.min(n, plaintextLength - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (legacyInputStream != null) {
+            return legacyInputStream.available();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, plaintextLength - position);
+    }
+
+    /**
+     * Makes sure the segment containing the current position is decrypted. At the end of the data, this
+     * verifies the last segment if it has not been read, so a tampered or truncated file never reads as
+     * complete.
+     */
+    private boolean loadSegmentAtPosition() throws IOException {
+        if (position >= plaintextLength) {
+            if (!lastSegmentVerified) {
+                loadSegments(segmentCount - 1);
             }
-            cleartextPosition = 0;
-        } catch (BadPaddingException e) {
-            throw new IOException(e);
-        } catch (ShortBufferException | IllegalBlockSizeException e) {
-            throw new AssertionError(e);
+            return false;
+        }
+
+        long segmentIndex = position / format.getSegmentSize();
+        if (segmentIndex < firstLoadedSegment || segmentIndex >= firstLoadedSegment + loadedSegments) {
+            loadSegments(segmentIndex);
         }
+        return true;
     }
 
-    private int cleartextAvailable() {
-        return cleartextLength - cleartextPosition;
+    private void loadSegments(final long firstSegment) throws IOException {
+        firstLoadedSegment = -1;
+        loadedSegments = 0;
+
+        final int ciphertextSegmentSize = format.getCiphertextSegmentSize();
+        int count = (int) Math.min(segmentCiphers.length, segmentCount - firstSegment);
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int slot = i;
+            tasks.add(() -> {
+                long segmentIndex = firstSegment + slot;
+                long offset = ChunkedAeadFormat.HEADER_LENGTH + segmentIndex * ciphertextSegmentSize;
+                int length = (int) Math.min(ciphertextSegmentSize,
+                        ChunkedAeadFormat.HEADER_LENGTH + plaintextLength +
+                                segmentCount * ChunkedAeadFormat.TAG_LENGTH - offset);
+                if (readFully(offset, ciphertextSegments[slot], length) != length) {
+                    throw new IOException("Unexpected end of file");
+                }
+                plaintextSegmentLengths[slot] = segmentCiphers[slot].decrypt(segmentIndex,
+                        segmentIndex == segmentCount - 1, ciphertextSegments[slot], length, plaintextSegments[slot]);
+                return null;
+            });
+        }
+        ChunkedAeadFormat.runAll(executorService, tasks);
+
+        firstLoadedSegment = firstSegment;
+        loadedSegments = count;
+        if (firstSegment + count == segmentCount) {
+            lastSegmentVerified = true;
+        }
+    }
+
+    /**
+     * Reads from an absolute file offset, which leaves the channel position untouched and may be called from
+     * several threads at once.
+     */
+    private int readFully(long offset, byte[] buffer, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+        while (byteBuffer.hasRemaining()) {
+            if (fileChannel.read(byteBuffer, offset + byteBuffer.position()) == -1) {
+                break;
+            }
+        }
+        return byteBuffer.position();
     }
 
     @Override
     public boolean markSupported() {
         return false;
     }
+
+    @Override
+    public void close() throws IOException {
+        if (legacyInputStream != null) {
+            legacyInputStream.close();
+            return;
+        }
+        for (byte[] plaintextSegment : plaintextSegments) {
+            Arrays.fill(plaintextSegment, (byte) 0);
+        }
+        fileInputStream.close();
+    }
 }
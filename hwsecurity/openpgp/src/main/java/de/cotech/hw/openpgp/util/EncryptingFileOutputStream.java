@@ -30,19 +30,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import de.cotech.hw.openpgp.util.ChunkedAeadFormat.SegmentCipher;
 import de.cotech.hw.secrets.ByteSecret;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * An {@link OutputStream} that encrypts data with a {@link ByteSecret}.
@@ -65,41 +63,69 @@ import javax.crypto.spec.SecretKeySpec;
  * </pre>
  * <p>
  *
- * Internally, this uses AES-GCM for authenticated encryption. The randomly generated nonce is stored as part of the file.
+ * Internally, this uses AES-GCM for authenticated encryption. Data is split into segments of 64 KiB by default,
+ * each encrypted with its own nonce and tag, so neither this stream nor {@link DecryptingFileInputStream} has to
+ * hold more than a few segments in memory. The random salt and nonce prefix are stored at the start of the file.
+ * Since the last segment is only known once the stream is closed, {@link #flush()} does not write buffered data.
  *
  * @see DecryptingFileInputStream
  */
 public class EncryptingFileOutputStream extends OutputStream {
     private final OutputStream outputStream;
-    private final Cipher cipher;
+    @Nullable
+    private final ExecutorService executorService;
+    private final int segmentSize;
+    private final SegmentCipher[] segmentCiphers;
+    private final byte[][] plaintextSegments;
+    private final byte[][] ciphertextSegments;
+    private final int[] ciphertextSegmentLengths;
+
+    private long nextSegmentIndex;
+    private int bufferedSegments;
+    private int segmentPosition;
     private boolean closed = false;
 
     public EncryptingFileOutputStream(@NonNull File file, ByteSecret byteSecret) throws IOException {
-        super();
+        this(file, byteSecret, ChunkedAeadFormat.DEFAULT_SEGMENT_SIZE, null);
+    }
 
-        outputStream = new BufferedOutputStream(new FileOutputStream(file));
+    /**
+     * Creates a stream with the given plaintext segment size, which must be between 1 KiB and 8 MiB. If an
+     * {@link ExecutorService} is given, consecutive segments are encrypted on it in parallel.
+     */
+    public EncryptingFileOutputStream(@NonNull File file, ByteSecret byteSecret, int segmentSize,
+            @Nullable ExecutorService executorService) throws IOException {
+        super();
 
+        byte[] secretBytes = byteSecret.getByteCopyAndClear();
+        ChunkedAeadFormat format;
         try {
-            byte[] secretBytes = byteSecret.getByteCopyAndClear();
-            SecretKeySpec secretKey = new SecretKeySpec(secretBytes, "AES");
+            format = ChunkedAeadFormat.createRandom(secretBytes, segmentSize);
+        } finally {
             Arrays.fill(secretBytes, (byte) 0);
+        }
 
-            cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-            byte[] iv = cipher.getIV();
-            if (iv.length > 255) {
-                throw new AssertionError();
-            }
-            outputStream.write(new byte[] { (byte) iv.length }, 0, 1);
-            outputStream.write(iv, 0, iv.length);
-        } catch (NoSuchAlgorithmException | NoSuchProviderException | NoSuchPaddingException | InvalidKeyException e) {
-            throw new AssertionError(e);
+        this.executorService = executorService;
+        this.segmentSize = segmentSize;
+        int slots = executorService != null ? ChunkedAeadFormat.PARALLEL_SEGMENTS : 1;
+        segmentCiphers = new SegmentCipher[slots];
+        plaintextSegments = new byte[slots][segmentSize];
+        ciphertextSegments = new byte[slots][format.getCiphertextSegmentSize()];
+        ciphertextSegmentLengths = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            segmentCiphers[i] = format.createSegmentCipher();
         }
+
+        outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        outputStream.write(format.getHeader());
     }
 
     @Override
     public void write(int i) throws IOException {
-        write(new byte[] { (byte) i });
+        if (segmentPosition == segmentSize) {
+            nextBufferedSegment();
+        }
+        plaintextSegments[bufferedSegments][segmentPosition++] = (byte) i;
     }
 
     @Override
@@ -109,27 +135,65 @@ public class EncryptingFileOutputStream extends OutputStream {
 
     @Override
     public void write(@NonNull byte[] buffer, int off, int len) throws IOException {
-        byte[] buf = cipher.update(buffer, off, len);
-        if (buf != null) {
-            outputStream.write(buf);
+        while (len > 0) {
+            if (segmentPosition == segmentSize) {
+                nextBufferedSegment();
+            }
+            int bytesToCopy = Math.min(len, segmentSize - segmentPosition);
+            System.arraycopy(buffer, off, plaintextSegments[bufferedSegments], segmentPosition, bytesToCopy);
+            segmentPosition += bytesToCopy;
+            off += bytesToCopy;
+            len -= bytesToCopy;
         }
     }
 
+    /**
+     * Called when more data follows a full segment, which means it is not the last one.
+     */
+    private void nextBufferedSegment() throws IOException {
+        bufferedSegments++;
+        segmentPosition = 0;
+        if (bufferedSegments == plaintextSegments.length) {
+            encryptBufferedSegments(bufferedSegments, false);
+            bufferedSegments = 0;
+        }
+    }
+
+    private void encryptBufferedSegments(int count, final boolean includesLastSegment) throws IOException {
+        final long firstSegmentIndex = nextSegmentIndex;
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int slot = i;
+            final boolean isLastSegment = includesLastSegment && i == count - 1;
+            final int length = isLastSegment ? segmentPosition : segmentSize;
+            tasks.add(() -> {
+                ciphertextSegmentLengths[slot] = segmentCiphers[slot].encrypt(firstSegmentIndex + slot,
+                        isLastSegment, plaintextSegments[slot], length, ciphertextSegments[slot]);
+                return null;
+            });
+        }
+        ChunkedAeadFormat.runAll(executorService, tasks);
+
+        for (int i = 0; i < count; i++) {
+            outputStream.write(ciphertextSegments[i], 0, ciphertextSegmentLengths[i]);
+        }
+        nextSegmentIndex += count;
+    }
+
     @Override
     public void close() throws IOException {
         if (closed) {
             return;
         }
         try {
-            byte[] bytes = cipher.doFinal();
-            outputStream.write(bytes);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-            throw new IOException(e);
+            encryptBufferedSegments(bufferedSegments + 1, true);
         } finally {
             closed = true;
+            for (byte[] plaintextSegment : plaintextSegments) {
+                Arrays.fill(plaintextSegment, (byte) 0);
+            }
+            outputStream.close();
         }
-
-        outputStream.close();
     }
 
     @Override
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.util;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.openpgp.OpenPgpCapabilities;
+import de.cotech.hw.openpgp.OpenPgpSecurityKey;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.openpgp.EcKeyFormat;
+import de.cotech.hw.openpgp.internal.openpgp.KeyFormat;
+import de.cotech.hw.openpgp.internal.openpgp.PacketBodyInputStream;
+import de.cotech.hw.openpgp.internal.openpgp.Rfc4880FingerprintCalculator;
+import de.cotech.hw.openpgp.internal.openpgp.RsaKeyFormat;
+import de.cotech.hw.openpgp.internal.openpgp.SeipdDecryptingInputStream;
+import de.cotech.hw.openpgp.internal.operations.PsoDecryptOp;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.secrets.PinProvider;
+
+/**
+ * An {@link InputStream} that decrypts an OpenPGP message encrypted to the encryption key of a security key.
+ *
+ * <pre>
+ * InputStream in = OpenPgpDecryptingInputStream.create(openPgpSecurityKey, pinProvider,
+ *         new BufferedInputStream(new FileInputStream("archive.tar.gpg")));
+ * try {
+ *     copy(in, new FileOutputStream("archive.tar.unverified"));
+ * } finally {
+ *     in.close();
+ * }
+ * </pre>
+ * <p>
+ * Only the session key is decrypted by the security key, during {@link #create}. Afterwards, the security key is
+ * no longer needed and the message is decrypted while reading, in constant memory regardless of its size.
+ * <p>
+ * Supported are RSA and ECDH session keys, AES encrypted data with modification detection code (MDC), and
+ * uncompressed, ZIP and ZLIB compressed literal data. For ECDH, the KDF parameters SHA256 and AES128 are assumed,
+ * as for keys set up by this library. Signatures inside the message are skipped, not verified.
+ * <p>
+ * Decrypted data is returned before the MDC at the end of the message has been checked. If the message was
+ * modified, the read reaching its end throws an {@link IOException}, and all data read before must be discarded.
+ */
+public class OpenPgpDecryptingInputStream extends InputStream {
+    private static final int MAX_PKESK_LENGTH = 4096;
+    private static final int ECDH_KEK_SIZE = 128;
+
+    private static final int ALGORITHM_RSA_GENERAL = 1;
+    private static final int ALGORITHM_RSA_ENCRYPT = 2;
+    private static final int ALGORITHM_ECDH = 18;
+
+    private static final int PKESK_NO_MATCH = 0;
+    private static final int PKESK_WILDCARD_MATCH = 1;
+    private static final int PKESK_EXACT_MATCH = 2;
+
+    private static final int COMPRESSION_UNCOMPRESSED = 0;
+    private static final int COMPRESSION_ZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+
+    private final InputStream encryptedInputStream;
+    private final SeipdDecryptingInputStream decryptingInputStream;
+    @Nullable
+    private final Inflater inflater;
+    private final InputStream literalDataInputStream;
+    private final String fileName;
+    private final byte[] singleByte = new byte[1];
+    private boolean isFinished;
+
+    /**
+     * Decrypts the session key of an OpenPGP message with the connected security key, and returns a stream of the
+     * message contents.
+     * <p>
+     * This method directly performs IO with the security token, and should therefore not be called on the UI thread.
+     *
+     * @throws IOException if the message is malformed, not encrypted to this security key, or uses unsupported
+     *                     algorithms, or if communication with the security key failed
+     */
+    @WorkerThread
+    public static OpenPgpDecryptingInputStream create(OpenPgpSecurityKey openPgpSecurityKey, PinProvider pinProvider,
+                                                      @NonNull InputStream encryptedInputStream) throws IOException {
+        ByteSecret pin = pinProvider.getPin(openPgpSecurityKey.getOpenPgpInstanceAid());
+        return create(openPgpSecurityKey.openPgpAppletConnection, pin, encryptedInputStream);
+    }
+
+    @RestrictTo(Scope.LIBRARY_GROUP)
+    @WorkerThread
+    public static OpenPgpDecryptingInputStream create(OpenPgpAppletConnection connection, ByteSecret pin,
+                                                      @NonNull InputStream encryptedInputStream) throws IOException {
+        PacketBodyInputStream seipdPacket = null;
+        byte[] pkesk = null;
+        boolean isExactMatch = false;
+
+        OpenPgpCapabilities openPgpCapabilities = connection.getOpenPgpCapabilities();
+        if (!openPgpCapabilities.hasEncryptKey()) {
+            throw new IOException("No encryption key available!");
+        }
+        byte[] fingerprint = openPgpCapabilities.getFingerprintEncrypt();
+        byte[] keyId = Arrays.copyOfRange(fingerprint, fingerprint.length - 8, fingerprint.length);
+        KeyFormat keyFormat = openPgpCapabilities.getEncryptKeyFormat();
+
+        while (seipdPacket == null) {
+            PacketBodyInputStream packet = PacketBodyInputStream.readPacket(encryptedInputStream);
+            if (packet == null) {
+                throw new EOFException("No encrypted data found");
+            }
+            switch (packet.getTag()) {
+                case PacketBodyInputStream.TAG_PUBLIC_KEY_ENCRYPTED_SESSION_KEY: {
+                    // keep the first PKESK for our key id, or else the first one with a wildcard key id
+                    byte[] body = packet.readFully(MAX_PKESK_LENGTH);
+                    int match = matchPkesk(body, keyId, keyFormat);
+                    if (!isExactMatch && match != PKESK_NO_MATCH && (pkesk == null || match == PKESK_EXACT_MATCH)) {
+                        pkesk = body;
+                        isExactMatch = match == PKESK_EXACT_MATCH;
+                    }
+                    break;
+                }
+                case PacketBodyInputStream.TAG_MARKER:
+                    packet.skipRemaining();
+                    break;
+                case PacketBodyInputStream.TAG_SYM_ENCRYPTED_INTEGRITY_PROTECTED_DATA:
+                    seipdPacket = packet;
+                    break;
+                case PacketBodyInputStream.TAG_SYMMETRICALLY_ENCRYPTED_DATA:
+                    throw new IOException("Encrypted data without integrity protection is not supported");
+                default:
+                    throw new IOException("Unexpected OpenPGP packet, tag " + packet.getTag());
+            }
+        }
+        if (pkesk == null) {
+            throw new IOException("Message is not encrypted to this security key");
+        }
+
+        byte[] userKeyingMaterial = null;
+        if (keyFormat instanceof EcKeyFormat) {
+            userKeyingMaterial = Rfc4880FingerprintCalculator.calculateEcdhUserKeyingMaterial(
+                    (EcKeyFormat) keyFormat, fingerprint);
+        }
+        // version, key id, and public key algorithm precede the algorithm specific fields
+        byte[] encryptedSessionKey = Arrays.copyOfRange(pkesk, 10, pkesk.length);
+        ByteSecret sessionData = ByteSecret.fromByteArrayTakeOwnership(PsoDecryptOp.create(connection)
+                .verifyAndDecryptSessionKey(pin, encryptedSessionKey, ECDH_KEK_SIZE, userKeyingMaterial));
+
+        SeipdDecryptingInputStream decryptingInputStream;
+        try {
+            decryptingInputStream = SeipdDecryptingInputStream.create(seipdPacket, sessionData);
+        } finally {
+            sessionData.removeFromMemory();
+        }
+        try {
+            return openLiteralData(encryptedInputStream, decryptingInputStream);
+        } catch (IOException | RuntimeException e) {
+            decryptingInputStream.close();
+            throw e;
+        }
+    }
+
+    private static int matchPkesk(byte[] pkesk, byte[] keyId, KeyFormat keyFormat) {
+        // see RFC 4880, 5.1. Public-Key Encrypted Session Key Packets (Tag 1)
+        if (pkesk.length < 10 || pkesk[0] != 3) {
+            return PKESK_NO_MATCH;
+        }
+        int algorithm = pkesk[9] & 0xff;
+        boolean isAlgorithmMatch;
+        if (keyFormat instanceof RsaKeyFormat) {
+            isAlgorithmMatch = algorithm == ALGORITHM_RSA_GENERAL
+                    || algorithm == ALGORITHM_RSA_ENCRYPT;
+        } else {
+            isAlgorithmMatch = algorithm == ALGORITHM_ECDH;
+        }
+        if (!isAlgorithmMatch) {
+            return PKESK_NO_MATCH;
+        }
+
+        byte[] pkeskKeyId = Arrays.copyOfRange(pkesk, 1, 9);
+        if (Arrays.equals(keyId, pkeskKeyId)) {
+            return PKESK_EXACT_MATCH;
+        } else if (Arrays.equals(new byte[8], pkeskKeyId)) {
+            return PKESK_WILDCARD_MATCH;
+        }
+        return PKESK_NO_MATCH;
+    }
+
+    private static OpenPgpDecryptingInputStream openLiteralData(InputStream encryptedInputStream,
+            SeipdDecryptingInputStream decryptingInputStream) throws IOException {
+        Inflater inflater = null;
+        try {
+            PacketBodyInputStream packet = readDataPacket(decryptingInputStream);
+            if (packet.getTag() == PacketBodyInputStream.TAG_COMPRESSED_DATA) {
+                int compressionAlgorithm = packet.read();
+                switch (compressionAlgorithm) {
+                    case COMPRESSION_UNCOMPRESSED:
+                        packet = readDataPacket(packet);
+                        break;
+                    case COMPRESSION_ZIP:
+                        inflater = new Inflater(true);
+                        packet = readDataPacket(new InflaterInputStream(packet, inflater));
+                        break;
+                    case COMPRESSION_ZLIB:
+                        inflater = new Inflater();
+                        packet = readDataPacket(new InflaterInputStream(packet, inflater));
+                        break;
+                    default:
+                        throw new IOException("Unsupported compression algorithm: " + compressionAlgorithm);
+                }
+            }
+            if (packet.getTag() != PacketBodyInputStream.TAG_LITERAL_DATA) {
+                throw new IOException("Unexpected OpenPGP packet, tag " + packet.getTag());
+            }
+
+            // format, file name, and date precede the data, see RFC 4880, 5.9. Literal Data Packet (Tag 11)
+            packet.read();
+            int fileNameLength = packet.read();
+            if (fileNameLength == -1) {
+                throw new EOFException("Truncated literal data packet");
+            }
+            byte[] fileName = new byte[fileNameLength];
+            readFully(packet, fileName);
+            readFully(packet, new byte[4]);
+
+            return new OpenPgpDecryptingInputStream(encryptedInputStream, decryptingInputStream, inflater, packet,
+                    new String(fileName, Charset.forName("UTF-8")));
+        } catch (IOException | RuntimeException e) {
+            if (inflater != null) {
+                inflater.end();
+            }
+            throw e;
+        }
+    }
+
+    private static PacketBodyInputStream readDataPacket(InputStream in) throws IOException {
+        while (true) {
+            PacketBodyInputStream packet = PacketBodyInputStream.readPacket(in);
+            if (packet == null) {
+                throw new EOFException("No literal data found");
+            }
+            if (packet.getTag() != PacketBodyInputStream.TAG_ONE_PASS_SIGNATURE
+                    && packet.getTag() != PacketBodyInputStream.TAG_MARKER) {
+                return packet;
+            }
+            packet.skipRemaining();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                throw new EOFException("Truncated literal data packet");
+            }
+            length += read;
+        }
+    }
+
+    private OpenPgpDecryptingInputStream(InputStream encryptedInputStream,
+            SeipdDecryptingInputStream decryptingInputStream, @Nullable Inflater inflater,
+            InputStream literalDataInputStream, String fileName) {
+        this.encryptedInputStream = encryptedInputStream;
+        this.decryptingInputStream = decryptingInputStream;
+        this.inflater = inflater;
+        this.literalDataInputStream = literalDataInputStream;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Returns the file name stored in the literal data packet, which may be empty.
+     */
+    @NonNull
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (isFinished) {
+            return -1;
+        }
+        int read = literalDataInputStream.read(b, off, len);
+        if (read == -1) {
+            // remaining packets, e.g. signatures, are skipped, but the MDC covers them and must be checked
+            byte[] buffer = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (decryptingInputStream.read(buffer, 0, buffer.length) != -1) {
+            }
+            isFinished = true;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        decryptingInputStream.close();
+        if (inflater != null) {
+            inflater.end();
+        }
+        encryptedInputStream.close();
+    }
+}
@@ -34,8 +34,6 @@ import java.util.LinkedList;
 
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
 import de.cotech.hw.util.Hex;
 
 import static org.junit.Assert.assertEquals;
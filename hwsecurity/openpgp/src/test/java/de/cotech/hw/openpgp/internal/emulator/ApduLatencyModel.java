@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+
+
+/**
+ * Models the time a card and its link take to answer a command APDU.
+ */
+public interface ApduLatencyModel {
+    ApduLatencyModel NONE = (command, response) -> 0;
+
+    long getLatencyNanos(CommandApdu command, ResponseApdu response);
+
+    /**
+     * A latency of a fixed round trip time plus a transfer time per byte sent and received. Command
+     * processing time on the card is part of the round trip time.
+     */
+    static ApduLatencyModel create(long roundTripMicros, long perByteNanos) {
+        return (command, response) -> roundTripMicros * 1000
+                + perByteNanos * (command.toBytes().length + response.getData().length + 2);
+    }
+
+    /** Roughly a USB full-speed CCID reader with a T=1 card at its default 3.57 MHz clock. */
+    static ApduLatencyModel createUsbCcid() {
+        return create(1000, 1000);
+    }
+
+    /** Roughly an ISO 14443-4 link at 106 kbit/s. */
+    static ApduLatencyModel createNfc() {
+        return create(5000, 100_000);
+    }
+}
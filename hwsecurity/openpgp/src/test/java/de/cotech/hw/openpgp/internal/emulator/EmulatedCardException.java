@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+/**
+ * Aborts processing of a command APDU in the emulated card, answering with the given status word.
+ */
+class EmulatedCardException extends Exception {
+    static final int SW_WRONG_LENGTH = 0x6700;
+    static final int SW_LAST_COMMAND_EXPECTED = 0x6883;
+    static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    static final int SW_AUTHENTICATION_BLOCKED = 0x6983;
+    static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    static final int SW_WRONG_DATA = 0x6A80;
+    static final int SW_FILE_NOT_FOUND = 0x6A82;
+    static final int SW_WRONG_P1_P2 = 0x6B00;
+    static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+    static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+    static final int SW_TERMINATED = 0x6285;
+
+    private final int sw;
+
+    EmulatedCardException(int sw) {
+        super(String.format("SW %04x", sw));
+        this.sw = sw;
+    }
+
+    int getSw() {
+        return sw;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.openpgp.internal.openpgp.EcObjectIdentifiers;
+import de.cotech.hw.openpgp.internal.openpgp.RsaKeyFormat;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.encodings.PKCS1Encoding;
+import org.bouncycastle.crypto.engines.RSABlindedEngine;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
+import org.bouncycastle.crypto.params.X25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.BigIntegers;
+
+
+/**
+ * A key slot of the emulated card, holding algorithm attributes and key material for one of the
+ * signature, decryption or authentication keys.
+ */
+class EmulatedKeySlot {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final int TAG_RSA_EXPONENT = 0x91;
+    private static final int TAG_RSA_PRIME_P = 0x92;
+    private static final int TAG_RSA_PRIME_Q = 0x93;
+    private static final int TAG_EC_PRIVATE = 0x92;
+    private static final int TAG_EC_PUBLIC = 0x99;
+
+    private byte[] algorithmAttributes;
+
+    private RSAPrivateCrtKeyParameters rsaKey;
+    private ECPrivateKeyParameters ecKey;
+    private X25519PrivateKeyParameters x25519Key;
+    private Ed25519PrivateKeyParameters ed25519Key;
+
+    EmulatedKeySlot(byte[] algorithmAttributes) {
+        this.algorithmAttributes = algorithmAttributes;
+    }
+
+    byte[] getAlgorithmAttributes() {
+        return algorithmAttributes;
+    }
+
+    void setAlgorithmAttributes(byte[] algorithmAttributes) {
+        this.algorithmAttributes = algorithmAttributes;
+        clear();
+    }
+
+    boolean hasKey() {
+        return rsaKey != null || ecKey != null || x25519Key != null || ed25519Key != null;
+    }
+
+    void clear() {
+        rsaKey = null;
+        ecKey = null;
+        x25519Key = null;
+        ed25519Key = null;
+    }
+
+    void generate() throws EmulatedCardException {
+        clear();
+        if (isRsa()) {
+            RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
+            generator.init(new RSAKeyGenerationParameters(BigInteger.valueOf(65537), RANDOM, getRsaModulusLength(), 80));
+            rsaKey = (RSAPrivateCrtKeyParameters) generator.generateKeyPair().getPrivate();
+            return;
+        }
+
+        ASN1ObjectIdentifier curveOid = getCurveOid();
+        if (EcObjectIdentifiers.X25519.equals(curveOid)) {
+            x25519Key = new X25519PrivateKeyParameters(RANDOM);
+        } else if (EcObjectIdentifiers.ED25519.equals(curveOid)) {
+            ed25519Key = new Ed25519PrivateKeyParameters(RANDOM);
+        } else {
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+            generator.init(new ECKeyGenerationParameters(getDomainParameters(curveOid), RANDOM));
+            AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+            ecKey = (ECPrivateKeyParameters) keyPair.getPrivate();
+        }
+    }
+
+    /**
+     * Imports key material from the extended header list, minus the CRT, as created by OpenPgpCardUtils.
+     */
+    void importKey(byte[] privateKeyTemplate, byte[] keyData) throws EmulatedCardException {
+        clear();
+        ByteBuffer template = ByteBuffer.wrap(privateKeyTemplate);
+        ByteBuffer data = ByteBuffer.wrap(keyData);
+        if (isRsa()) {
+            BigInteger e = null;
+            BigInteger p = null;
+            BigInteger q = null;
+            while (template.hasRemaining()) {
+                int tag = template.get() & 0xff;
+                byte[] value = new byte[readTemplateLength(template)];
+                data.get(value);
+                if (tag == TAG_RSA_EXPONENT) {
+                    e = new BigInteger(1, value);
+                } else if (tag == TAG_RSA_PRIME_P) {
+                    p = new BigInteger(1, value);
+                } else if (tag == TAG_RSA_PRIME_Q) {
+                    q = new BigInteger(1, value);
+                }
+            }
+            if (e == null || p == null || q == null) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+            rsaKey = createRsaKey(e, p, q);
+            return;
+        }
+
+        byte[] privateValue = null;
+        while (template.hasRemaining()) {
+            int tag = template.get() & 0xff;
+            byte[] value = new byte[readTemplateLength(template)];
+            data.get(value);
+            if (tag == TAG_EC_PRIVATE) {
+                privateValue = value;
+            } else if (tag != TAG_EC_PUBLIC) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+        }
+        if (privateValue == null) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+
+        ASN1ObjectIdentifier curveOid = getCurveOid();
+        if (EcObjectIdentifiers.X25519.equals(curveOid)) {
+            // OpenPGP stores Curve25519 secrets big endian, native encoding is little endian
+            x25519Key = new X25519PrivateKeyParameters(reverse(privateValue), 0);
+        } else if (EcObjectIdentifiers.ED25519.equals(curveOid)) {
+            ed25519Key = new Ed25519PrivateKeyParameters(privateValue, 0);
+        } else {
+            ecKey = new ECPrivateKeyParameters(new BigInteger(1, privateValue), getDomainParameters(curveOid));
+        }
+    }
+
+    /**
+     * Returns the public key DO 7F49.
+     */
+    byte[] getPublicKeyTemplate() throws EmulatedCardException {
+        requireKey();
+        if (rsaKey != null) {
+            return OpenPgpCardEmulator.tlv(0x7F49,
+                    OpenPgpCardEmulator.tlv(0x81, BigIntegers.asUnsignedByteArray(rsaKey.getModulus())),
+                    OpenPgpCardEmulator.tlv(0x82, BigIntegers.asUnsignedByteArray(rsaKey.getPublicExponent())));
+        }
+        byte[] encodedPoint;
+        if (x25519Key != null) {
+            encodedPoint = x25519Key.generatePublicKey().getEncoded();
+        } else if (ed25519Key != null) {
+            encodedPoint = ed25519Key.generatePublicKey().getEncoded();
+        } else {
+            encodedPoint = getEcPublicPoint().getEncoded(false);
+        }
+        return OpenPgpCardEmulator.tlv(0x7F49, OpenPgpCardEmulator.tlv(0x86, encodedPoint));
+    }
+
+    /**
+     * PSO:COMPUTE DIGITAL SIGNATURE and INTERNAL AUTHENTICATE. RSA input is a DigestInfo which is padded per
+     * PKCS#1, ECDSA and EdDSA input is the hash to sign.
+     */
+    byte[] sign(byte[] input) throws EmulatedCardException {
+        requireKey();
+        if (rsaKey != null) {
+            PKCS1Encoding cipher = new PKCS1Encoding(new RSABlindedEngine());
+            cipher.init(true, rsaKey);
+            try {
+                return cipher.processBlock(input, 0, input.length);
+            } catch (InvalidCipherTextException e) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+        }
+        if (ed25519Key != null) {
+            Ed25519Signer signer = new Ed25519Signer();
+            signer.init(true, ed25519Key);
+            signer.update(input, 0, input.length);
+            return signer.generateSignature();
+        }
+        if (ecKey == null) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(true, ecKey);
+        BigInteger[] rs = signer.generateSignature(input);
+        int fieldSize = getFieldSizeBytes();
+        return concat(BigIntegers.asUnsignedByteArray(fieldSize, rs[0]),
+                BigIntegers.asUnsignedByteArray(fieldSize, rs[1]));
+    }
+
+    /**
+     * PSO:DECIPHER. RSA input is the padding indicator byte followed by the cryptogram, ECDH input is the
+     * cipher DO A6 containing the ephemeral public key.
+     */
+    byte[] decipher(byte[] input) throws EmulatedCardException {
+        requireKey();
+        if (rsaKey != null) {
+            if (input.length < 1 || input[0] != 0x00) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+            PKCS1Encoding cipher = new PKCS1Encoding(new RSABlindedEngine());
+            cipher.init(false, rsaKey);
+            try {
+                return cipher.processBlock(input, 1, input.length - 1);
+            } catch (InvalidCipherTextException e) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+        }
+
+        byte[] ephemeralPoint;
+        try {
+            Iso7816TLV cipherDo = Iso7816TLV.readSingle(input, true);
+            Iso7816TLV pointTlv = Iso7816TLV.findRecursive(cipherDo, 0x86);
+            if (pointTlv == null) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+            ephemeralPoint = pointTlv.mV;
+        } catch (IOException e) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+
+        if (x25519Key != null) {
+            byte[] sharedSecret = new byte[32];
+            x25519Key.generateSecret(new X25519PublicKeyParameters(ephemeralPoint, 0),
+                    sharedSecret, 0);
+            return sharedSecret;
+        }
+        if (ecKey == null) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        // the card returns the full shared point, the client takes its x coordinate
+        ECPoint point = ecKey.getParameters().getCurve().decodePoint(ephemeralPoint);
+        return point.multiply(ecKey.getD()).normalize().getEncoded(false);
+    }
+
+    private boolean isRsa() {
+        return algorithmAttributes[0] == RsaKeyFormat.ALGORITHM_ID;
+    }
+
+    private int getRsaModulusLength() {
+        return ((algorithmAttributes[1] & 0xff) << 8) | (algorithmAttributes[2] & 0xff);
+    }
+
+    private ASN1ObjectIdentifier getCurveOid() {
+        int oidLength = algorithmAttributes.length - 1;
+        if (algorithmAttributes[algorithmAttributes.length - 1] == (byte) 0xff) {
+            oidLength--;
+        }
+        return EcObjectIdentifiers.parseOid(Arrays.copyOfRange(algorithmAttributes, 1, 1 + oidLength));
+    }
+
+    private static ECDomainParameters getDomainParameters(ASN1ObjectIdentifier curveOid) throws EmulatedCardException {
+        X9ECParameters curveParameters = ECNamedCurveTable.getByOID(curveOid);
+        if (curveParameters == null) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+        return new ECDomainParameters(curveParameters.getCurve(), curveParameters.getG(), curveParameters.getN(),
+                curveParameters.getH());
+    }
+
+    private ECPoint getEcPublicPoint() {
+        ECPublicKeyParameters publicKey = new ECPublicKeyParameters(
+                ecKey.getParameters().getG().multiply(ecKey.getD()).normalize(), ecKey.getParameters());
+        return publicKey.getQ();
+    }
+
+    private int getFieldSizeBytes() {
+        return (ecKey.getParameters().getCurve().getFieldSize() + 7) / 8;
+    }
+
+    private void requireKey() throws EmulatedCardException {
+        if (!hasKey()) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CONDITIONS_NOT_SATISFIED);
+        }
+    }
+
+    private static RSAPrivateCrtKeyParameters createRsaKey(BigInteger e, BigInteger p, BigInteger q) {
+        BigInteger n = p.multiply(q);
+        BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        BigInteger d = e.modInverse(phi);
+        return new RSAPrivateCrtKeyParameters(n, e, d, p, q,
+                d.mod(p.subtract(BigInteger.ONE)), d.mod(q.subtract(BigInteger.ONE)), q.modInverse(p));
+    }
+
+    private static int readTemplateLength(ByteBuffer template) {
+        int length = template.get() & 0xff;
+        if (length == 0x81) {
+            return template.get() & 0xff;
+        } else if (length == 0x82) {
+            return template.getShort() & 0xffff;
+        }
+        return length;
+    }
+
+    private static byte[] reverse(byte[] bytes) {
+        byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = bytes[bytes.length - 1 - i];
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first, 0, first.length);
+        out.write(second, 0, second.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.IOException;
+
+import androidx.annotation.Nullable;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.internal.transport.Transport;
+
+
+/**
+ * A {@link Transport} connected to an {@link OpenPgpCardEmulator}.
+ *
+ * Latency from the configured {@link ApduLatencyModel} is accumulated as simulated time, and only
+ * spent by sleeping if {@link #setRealTime(boolean)} is enabled. This lets benchmarks report modeled
+ * latency separately from the host side cost of the library.
+ */
+public class EmulatedOpenPgpTransport implements Transport {
+    private final OpenPgpCardEmulator emulator;
+    private final TransportType transportType;
+
+    private ApduLatencyModel latencyModel = ApduLatencyModel.NONE;
+    private boolean realTime;
+
+    private boolean connected;
+    private boolean released;
+
+    private int commandCount;
+    private long bytesSent;
+    private long bytesReceived;
+    private long simulatedNanos;
+
+    public EmulatedOpenPgpTransport(OpenPgpCardEmulator emulator) {
+        this(emulator, TransportType.USB_CCID);
+    }
+
+    public EmulatedOpenPgpTransport(OpenPgpCardEmulator emulator, TransportType transportType) {
+        this.emulator = emulator;
+        this.transportType = transportType;
+    }
+
+    public OpenPgpCardEmulator getEmulator() {
+        return emulator;
+    }
+
+    public void setLatencyModel(ApduLatencyModel latencyModel) {
+        this.latencyModel = latencyModel;
+    }
+
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getSimulatedNanos() {
+        return simulatedNanos;
+    }
+
+    public void resetStatistics() {
+        commandCount = 0;
+        bytesSent = 0;
+        bytesReceived = 0;
+        simulatedNanos = 0;
+    }
+
+    @Override
+    public ResponseApdu transceive(CommandApdu data) throws IOException {
+        if (!connected || released) {
+            throw new IOException("Transport is not connected");
+        }
+
+        ResponseApdu response = emulator.process(data);
+
+        commandCount++;
+        bytesSent += data.toBytes().length;
+        bytesReceived += response.getData().length + 2;
+
+        long latencyNanos = latencyModel.getLatencyNanos(data, response);
+        simulatedNanos += latencyNanos;
+        if (realTime && latencyNanos > 0) {
+            try {
+                Thread.sleep(latencyNanos / 1_000_000, (int) (latencyNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during transceive");
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        connected = false;
+        emulator.powerCycle();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean isPersistentConnectionAllowed() {
+        return true;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return true;
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+        released = false;
+    }
+
+    @Override
+    public boolean ping() {
+        return connected;
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    @Nullable
+    @Override
+    public SecurityKeyType getSecurityKeyTypeIfAvailable() {
+        return null;
+    }
+}
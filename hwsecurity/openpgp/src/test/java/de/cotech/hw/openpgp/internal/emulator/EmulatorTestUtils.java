@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.OpenPgpCapabilitiesCache;
+import de.cotech.hw.openpgp.internal.openpgp.DerivedPinCache;
+import de.cotech.hw.util.Hex;
+
+
+class EmulatorTestUtils {
+    static final byte[] AID_PREFIX_OPENPGP = Hex.decodeHexOrFail("D27600012401");
+
+    /**
+     * Connects to a fresh emulator. Emulators share their AID, so capabilities and derived PINs cached for a
+     * previous one are dropped first.
+     */
+    static OpenPgpAppletConnection connect(Transport transport) throws Exception {
+        OpenPgpCapabilitiesCache.getInstance().clear();
+        DerivedPinCache.getInstance().clear();
+        return reconnect(transport);
+    }
+
+    static OpenPgpAppletConnection reconnect(Transport transport) throws Exception {
+        transport.connect();
+        OpenPgpAppletConnection connection = OpenPgpAppletConnection.getInstanceForTransport(
+                transport, Collections.singletonList(AID_PREFIX_OPENPGP));
+        connection.connectIfNecessary();
+        return connection;
+    }
+
+    static KeyPair generateEcKeyPair(String curveName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curveName));
+        return generator.generateKeyPair();
+    }
+
+    static KeyPair generateRsaKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Encrypts a session key to an ECDH recipient as described in RFC 6637, returning the MPI encoded
+     * ephemeral point followed by the wrapped key, as passed to PsoDecryptOp.
+     */
+    static byte[] encryptSessionKeyEcdh(ECPublicKey recipientKey, byte[] sessionKey, byte[] userKeyingMaterial)
+            throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(recipientKey.getParams());
+        KeyPair ephemeralKeyPair = generator.generateKeyPair();
+
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(ephemeralKeyPair.getPrivate());
+        keyAgreement.doPhase(recipientKey, true);
+        byte[] sharedX = keyAgreement.generateSecret();
+
+        MessageDigest kdf = MessageDigest.getInstance("SHA-256");
+        kdf.update(new byte[] { 0, 0, 0, 1 });
+        kdf.update(sharedX);
+        kdf.update(userKeyingMaterial);
+        byte[] kek = Arrays.copyOf(kdf.digest(), 16);
+
+        int padLength = 8 - (sessionKey.length % 8);
+        byte[] paddedSessionKey = Arrays.copyOf(sessionKey, sessionKey.length + padLength);
+        Arrays.fill(paddedSessionKey, sessionKey.length, paddedSessionKey.length, (byte) padLength);
+
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(kek, "AES"));
+        byte[] wrappedKey = cipher.wrap(new SecretKeySpec(paddedSessionKey, "AES"));
+
+        ECPublicKey ephemeralPublicKey = (ECPublicKey) ephemeralKeyPair.getPublic();
+        int fieldSize = (recipientKey.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] point = new byte[1 + 2 * fieldSize];
+        point[0] = 0x04;
+        writeUnsigned(ephemeralPublicKey.getW().getAffineX(), point, 1, fieldSize);
+        writeUnsigned(ephemeralPublicKey.getW().getAffineY(), point, 1 + fieldSize, fieldSize);
+
+        ByteArrayOutputStream mpi = new ByteArrayOutputStream();
+        int bitLength = point.length * 8 - 5; // leading 0x04 has 3 significant bits
+        mpi.write(bitLength >> 8);
+        mpi.write(bitLength);
+        mpi.write(point, 0, point.length);
+        mpi.write(wrappedKey.length);
+        mpi.write(wrappedKey, 0, wrappedKey.length);
+        return mpi.toByteArray();
+    }
+
+    private static void writeUnsigned(BigInteger value, byte[] out, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int skip = bytes.length > length ? bytes.length - length : 0;
+        System.arraycopy(bytes, skip, out, offset + length - (bytes.length - skip), bytes.length - skip);
+    }
+}
@@ -0,0 +1,807 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.openpgp.internal.openpgp.KdfCalculator;
+import de.cotech.hw.openpgp.internal.openpgp.KdfParameters;
+import de.cotech.hw.openpgp.internal.openpgp.KdfParameters.PasswordType;
+import de.cotech.hw.openpgp.internal.openpgp.KeyType;
+import de.cotech.hw.util.Hex;
+
+
+/**
+ * A software implementation of the OpenPGP card application, version 3.4, for use in JVM tests.
+ *
+ * The emulator implements the subset of the specification used by this library: SELECT, GET DATA and
+ * PUT DATA, PIN verification and management with retry counters, the KDF-DO, key import and generation,
+ * PSO:CDS, PSO:DECIPHER, INTERNAL AUTHENTICATE, and the TERMINATE DF/ACTIVATE FILE life cycle.
+ * Command chaining, extended length and GET RESPONSE are supported and can be toggled to emulate
+ * cards with fewer capabilities. Secure messaging is not supported.
+ *
+ * References:
+ * [0] `Functional Specification of the OpenPGP application on ISO Smart Card Operating Systems`
+ *      version 3.4.1
+ *      https://gnupg.org/ftp/specs/OpenPGP-smart-card-application-3.4.1.pdf
+ */
+public class OpenPgpCardEmulator {
+    public static final byte[] DEFAULT_PW1 = "123456".getBytes(Charset.forName("UTF-8"));
+    public static final byte[] DEFAULT_PW3 = "12345678".getBytes(Charset.forName("UTF-8"));
+
+    private static final byte[] AID_PREFIX = Hex.decodeHexOrFail("D27600012401");
+    private static final byte[] DEFAULT_RSA_ATTRIBUTES = Hex.decodeHexOrFail("010800002000");
+    private static final byte[] KDF_DO_NONE = Hex.decodeHexOrFail("810100");
+
+    private static final int MASK_CLA_CHAINING = 0x10;
+    private static final int MAX_PW_TRIES = 3;
+    private static final int MAX_PW_LENGTH = 127;
+
+    private static final int INS_SELECT_FILE = 0xA4;
+    private static final int INS_ACTIVATE_FILE = 0x44;
+    private static final int INS_TERMINATE_DF = 0xE6;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int INS_INTERNAL_AUTHENTICATE = 0x88;
+    private static final int INS_VERIFY = 0x20;
+    private static final int INS_CHANGE_REFERENCE_DATA = 0x24;
+    private static final int INS_RESET_RETRY_COUNTER = 0x2C;
+    private static final int INS_PERFORM_SECURITY_OPERATION = 0x2A;
+    private static final int INS_GET_DATA = 0xCA;
+    private static final int INS_PUT_DATA = 0xDA;
+    private static final int INS_PUT_DATA_ODD = 0xDB;
+    private static final int INS_GENERATE_ASYMMETRIC_KEY = 0x47;
+
+    private static final int PW1_SIGN = 0x81;
+    private static final int PW1_OTHER = 0x82;
+    private static final int PW3 = 0x83;
+
+    private final byte[] aid;
+    private boolean extendedLengthSupported = true;
+    private boolean chainingSupported = true;
+    private boolean kdfSupported = true;
+    private boolean selectReturnsFci;
+
+    private final EmulatedKeySlot[] keySlots = new EmulatedKeySlot[3];
+    private final Map<Integer, byte[]> dataObjects = new HashMap<>();
+
+    private boolean terminated;
+    private boolean selected;
+    private boolean pw1MultiUse;
+    private byte[] pw1;
+    private byte[] pw3;
+    private byte[] resetCode;
+    private int pw1Tries;
+    private int pw3Tries;
+    private int resetCodeTries;
+    private byte[] kdfDo;
+    private int signatureCounter;
+
+    private boolean pw1SignVerified;
+    private boolean pw1OtherVerified;
+    private boolean pw3Verified;
+
+    private CommandApdu chainHeader;
+    private ByteArrayOutputStream chainBuffer;
+    private byte[] pendingResponse;
+
+    public OpenPgpCardEmulator() {
+        this(0x00000001);
+    }
+
+    public OpenPgpCardEmulator(int serialNumber) {
+        aid = ByteBuffer.allocate(16)
+                .put(AID_PREFIX)
+                .put((byte) 0x03).put((byte) 0x04) // version 3.4
+                .putShort((short) 0xFFFF) // manufacturer: test card
+                .putInt(serialNumber)
+                .putShort((short) 0)
+                .array();
+        resetToFactoryState();
+    }
+
+    public byte[] getAid() {
+        return aid.clone();
+    }
+
+    public void setExtendedLengthSupported(boolean extendedLengthSupported) {
+        this.extendedLengthSupported = extendedLengthSupported;
+    }
+
+    public void setChainingSupported(boolean chainingSupported) {
+        this.chainingSupported = chainingSupported;
+    }
+
+    public void setKdfSupported(boolean kdfSupported) {
+        this.kdfSupported = kdfSupported;
+    }
+
+    /**
+     * Answer SELECT with an FCI template containing the full AID as DF name, like some cards do.
+     */
+    public void setSelectReturnsFci(boolean selectReturnsFci) {
+        this.selectReturnsFci = selectReturnsFci;
+    }
+
+    public int getPw1TriesLeft() {
+        return pw1Tries;
+    }
+
+    public int getPw3TriesLeft() {
+        return pw3Tries;
+    }
+
+    public int getSignatureCounter() {
+        return signatureCounter;
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Emulates removing the card from the field, which resets all volatile state.
+     */
+    public void powerCycle() {
+        selected = false;
+        resetVerificationState();
+        resetCommandState();
+    }
+
+    public ResponseApdu process(CommandApdu command) {
+        try {
+            if (!extendedLengthSupported && command.isExtendedLength()) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_LENGTH);
+            }
+            if (command.getINS() != INS_GET_RESPONSE) {
+                pendingResponse = null;
+            }
+
+            if ((command.getCLA() & MASK_CLA_CHAINING) != 0) {
+                appendToChain(command);
+                return ResponseApdu.create(0x9000, new byte[0]);
+            }
+            byte[] data = completeChain(command);
+
+            byte[] response = dispatch(command, data);
+            return createResponse(response, command.getNe());
+        } catch (EmulatedCardException e) {
+            resetCommandState();
+            return ResponseApdu.create(e.getSw(), new byte[0]);
+        }
+    }
+
+    private void appendToChain(CommandApdu command) throws EmulatedCardException {
+        if (!chainingSupported) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CLA_NOT_SUPPORTED);
+        }
+        if (chainHeader == null) {
+            chainHeader = command;
+            chainBuffer = new ByteArrayOutputStream();
+        } else if (!isSameCommand(chainHeader, command)) {
+            throw new EmulatedCardException(EmulatedCardException.SW_LAST_COMMAND_EXPECTED);
+        }
+        byte[] data = command.getData();
+        chainBuffer.write(data, 0, data.length);
+    }
+
+    private byte[] completeChain(CommandApdu command) throws EmulatedCardException {
+        if (chainHeader == null) {
+            return command.getData();
+        }
+        if (!isSameCommand(chainHeader, command)) {
+            throw new EmulatedCardException(EmulatedCardException.SW_LAST_COMMAND_EXPECTED);
+        }
+        byte[] data = command.getData();
+        chainBuffer.write(data, 0, data.length);
+        byte[] result = chainBuffer.toByteArray();
+        chainHeader = null;
+        chainBuffer = null;
+        return result;
+    }
+
+    private static boolean isSameCommand(CommandApdu first, CommandApdu second) {
+        return first.getINS() == second.getINS() && first.getP1() == second.getP1()
+                && first.getP2() == second.getP2();
+    }
+
+    private ResponseApdu createResponse(byte[] data, int ne) {
+        int maxLength = ne == 0 ? 256 : ne;
+        if (data.length <= maxLength) {
+            return ResponseApdu.create(0x9000, data);
+        }
+
+        pendingResponse = Arrays.copyOfRange(data, maxLength, data.length);
+        int remaining = Math.min(pendingResponse.length, 256);
+        return ResponseApdu.create(0x6100 | (remaining & 0xff), Arrays.copyOf(data, maxLength));
+    }
+
+    private byte[] dispatch(CommandApdu command, byte[] data) throws EmulatedCardException {
+        int ins = command.getINS();
+        if (ins == INS_SELECT_FILE) {
+            return selectFile(command, data);
+        }
+        if (ins == INS_ACTIVATE_FILE) {
+            return activateFile();
+        }
+        if (ins == INS_GET_RESPONSE) {
+            return getResponse();
+        }
+        if (!selected) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (terminated) {
+            throw new EmulatedCardException(EmulatedCardException.SW_TERMINATED);
+        }
+
+        switch (ins) {
+            case INS_TERMINATE_DF:
+                return terminateDf();
+            case INS_GET_DATA:
+                return getData((command.getP1() << 8) | command.getP2());
+            case INS_PUT_DATA:
+                return putData((command.getP1() << 8) | command.getP2(), data);
+            case INS_PUT_DATA_ODD:
+                return importKey(command, data);
+            case INS_GENERATE_ASYMMETRIC_KEY:
+                return generateAsymmetricKey(command, data);
+            case INS_VERIFY:
+                return verify(command, data);
+            case INS_CHANGE_REFERENCE_DATA:
+                return changeReferenceData(command, data);
+            case INS_RESET_RETRY_COUNTER:
+                return resetRetryCounter(command, data);
+            case INS_PERFORM_SECURITY_OPERATION:
+                return performSecurityOperation(command, data);
+            case INS_INTERNAL_AUTHENTICATE:
+                return internalAuthenticate(command, data);
+            default:
+                throw new EmulatedCardException(EmulatedCardException.SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    // region life cycle
+
+    private byte[] selectFile(CommandApdu command, byte[] data) throws EmulatedCardException {
+        if (command.getP1() != 0x04) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+        if (data.length < AID_PREFIX.length || data.length > aid.length
+                || !Arrays.equals(data, Arrays.copyOf(aid, data.length))) {
+            throw new EmulatedCardException(EmulatedCardException.SW_FILE_NOT_FOUND);
+        }
+        selected = true;
+        resetVerificationState();
+        if (terminated) {
+            throw new EmulatedCardException(EmulatedCardException.SW_TERMINATED);
+        }
+        if (selectReturnsFci) {
+            return Iso7816TLV.encode(0x6F, Iso7816TLV.encode(0x84, aid));
+        }
+        return new byte[0];
+    }
+
+    private byte[] activateFile() {
+        if (terminated) {
+            resetToFactoryState();
+        }
+        return new byte[0];
+    }
+
+    private byte[] terminateDf() throws EmulatedCardException {
+        // allowed after PW3 verification, or if PW3 is blocked. see 7.2.16 of [0]
+        if (!pw3Verified && pw3Tries > 0) {
+            throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        terminated = true;
+        resetVerificationState();
+        return new byte[0];
+    }
+
+    private byte[] getResponse() throws EmulatedCardException {
+        if (pendingResponse == null) {
+            throw new EmulatedCardException(EmulatedCardException.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte[] remaining = pendingResponse;
+        pendingResponse = null;
+        return remaining;
+    }
+
+    private void resetToFactoryState() {
+        terminated = false;
+        pw1MultiUse = false;
+        pw1 = DEFAULT_PW1.clone();
+        pw3 = DEFAULT_PW3.clone();
+        resetCode = null;
+        pw1Tries = MAX_PW_TRIES;
+        pw3Tries = MAX_PW_TRIES;
+        resetCodeTries = 0;
+        kdfDo = KDF_DO_NONE.clone();
+        signatureCounter = 0;
+        dataObjects.clear();
+        for (int i = 0; i < keySlots.length; i++) {
+            keySlots[i] = new EmulatedKeySlot(DEFAULT_RSA_ATTRIBUTES.clone());
+        }
+        resetVerificationState();
+        resetCommandState();
+    }
+
+    private void resetVerificationState() {
+        pw1SignVerified = false;
+        pw1OtherVerified = false;
+        pw3Verified = false;
+    }
+
+    private void resetCommandState() {
+        chainHeader = null;
+        chainBuffer = null;
+        pendingResponse = null;
+    }
+
+    // endregion
+
+    // region data objects
+
+    private byte[] getData(int tag) throws EmulatedCardException {
+        switch (tag) {
+            case 0x004F:
+                return aid.clone();
+            case 0x5F52:
+                return getHistoricalBytes();
+            case 0x006E:
+                return getApplicationRelatedData();
+            case 0x0065:
+                return tlv(0x65,
+                        tlv(0x5B, getDataObject(0x5B)),
+                        tlv(0x5F2D, getDataObject(0x5F2D)),
+                        tlv(0x5F35, getDataObject(0x5F35)));
+            case 0x007A:
+                return tlv(0x7A, tlv(0x93, intToBytes(signatureCounter, 3)));
+            case 0x00C4:
+                return getPwStatusBytes();
+            case 0x00C5:
+                return getFingerprints();
+            case 0x00F9:
+                if (!kdfSupported) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_REFERENCED_DATA_NOT_FOUND);
+                }
+                return kdfDo.clone();
+            case 0x7F21:
+                return tlv(0x7F21, getDataObject(0x7F21));
+            default:
+                return getDataObject(tag);
+        }
+    }
+
+    private byte[] getDataObject(int tag) {
+        byte[] value = dataObjects.get(tag);
+        return value != null ? value.clone() : new byte[0];
+    }
+
+    private byte[] putData(int tag, byte[] data) throws EmulatedCardException {
+        requirePw3();
+
+        switch (tag) {
+            case 0x00D3:
+                // resetting code, see 7.2.8 of [0]
+                resetCode = data.length == 0 ? null : data.clone();
+                resetCodeTries = resetCode == null ? 0 : MAX_PW_TRIES;
+                break;
+            case 0x00C1:
+            case 0x00C2:
+            case 0x00C3:
+                if (data.length < 2) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+                }
+                keySlots[tag - 0x00C1].setAlgorithmAttributes(data.clone());
+                break;
+            case 0x00C4:
+                if (data.length < 1) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+                }
+                pw1MultiUse = data[0] == 0x01;
+                break;
+            case 0x00C7:
+            case 0x00C8:
+            case 0x00C9:
+                if (data.length != 20) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+                }
+                dataObjects.put(tag, data.clone());
+                break;
+            case 0x00CE:
+            case 0x00CF:
+            case 0x00D0:
+                if (data.length != 4) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+                }
+                dataObjects.put(tag, data.clone());
+                break;
+            case 0x00F9:
+                if (!kdfSupported) {
+                    throw new EmulatedCardException(EmulatedCardException.SW_REFERENCED_DATA_NOT_FOUND);
+                }
+                setKdfDo(data);
+                break;
+            default:
+                dataObjects.put(tag, data.clone());
+                break;
+        }
+        return new byte[0];
+    }
+
+    /**
+     * Changing the KDF-DO resets PW1 and PW3 to their default values, transformed with the new KDF
+     * parameters unless the client supplied precomputed hashes. This mirrors Gnuk, see 4.3.2 of [0].
+     */
+    private void setKdfDo(byte[] data) throws EmulatedCardException {
+        KdfParameters kdfParameters;
+        try {
+            kdfParameters = KdfParameters.fromKdfDo(data);
+        } catch (IOException | RuntimeException e) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+
+        if (kdfParameters.isHasUsesKdf()) {
+            pw1 = kdfParameters.getHashUser().length != 0 ? kdfParameters.getHashUser() :
+                    KdfCalculator.calculateKdf(kdfParameters.forType(PasswordType.PW1), DEFAULT_PW1);
+            pw3 = kdfParameters.getHashAdmin().length != 0 ? kdfParameters.getHashAdmin() :
+                    KdfCalculator.calculateKdf(kdfParameters.forType(PasswordType.PW3), DEFAULT_PW3);
+        } else {
+            pw1 = DEFAULT_PW1.clone();
+            pw3 = DEFAULT_PW3.clone();
+        }
+        kdfDo = data.clone();
+        pw1Tries = MAX_PW_TRIES;
+        pw3Tries = MAX_PW_TRIES;
+        resetVerificationState();
+    }
+
+    private byte[] getHistoricalBytes() {
+        int capabilities = (chainingSupported ? 0x80 : 0) | (extendedLengthSupported ? 0x40 : 0);
+        // category indicator, card capabilities, status indicator: operational, 9000
+        return new byte[] { 0x00, 0x73, 0x00, 0x00, (byte) capabilities, 0x05, (byte) 0x90, 0x00 };
+    }
+
+    private byte[] getExtendedCapabilities() {
+        int flags = 0x20 | 0x04 | (kdfSupported ? 0x01 : 0); // key import, attributes changeable
+        int maxLength = extendedLengthSupported ? 0x0800 : 0x00FF;
+        return new byte[] {
+                (byte) flags, 0x00, // no secure messaging
+                0x00, 0x00, // no GET CHALLENGE
+                (byte) (maxLength >> 8), (byte) maxLength, // max cardholder certificate length
+                (byte) (maxLength >> 8), (byte) maxLength, // max special DO length
+                0x00, // no PIN block 2 format
+                0x00, // MSE not supported
+        };
+    }
+
+    private byte[] getPwStatusBytes() {
+        return new byte[] {
+                (byte) (pw1MultiUse ? 0x01 : 0x00),
+                MAX_PW_LENGTH, MAX_PW_LENGTH, MAX_PW_LENGTH,
+                (byte) pw1Tries, (byte) resetCodeTries, (byte) pw3Tries,
+        };
+    }
+
+    private byte[] getFingerprints() {
+        ByteArrayOutputStream fingerprints = new ByteArrayOutputStream();
+        for (KeyType keyType : KeyType.values()) {
+            byte[] fingerprint = dataObjects.get(keyType.getFingerprintObjectId());
+            fingerprints.write(fingerprint != null ? fingerprint : new byte[20], 0, 20);
+        }
+        return fingerprints.toByteArray();
+    }
+
+    private byte[] getApplicationRelatedData() {
+        ByteArrayOutputStream timestamps = new ByteArrayOutputStream();
+        for (KeyType keyType : KeyType.values()) {
+            byte[] timestamp = dataObjects.get(keyType.getTimestampObjectId());
+            timestamps.write(timestamp != null ? timestamp : new byte[4], 0, 4);
+        }
+
+        byte[] discretionaryData = concat(
+                tlv(0xC0, getExtendedCapabilities()),
+                tlv(0xC1, keySlots[0].getAlgorithmAttributes()),
+                tlv(0xC2, keySlots[1].getAlgorithmAttributes()),
+                tlv(0xC3, keySlots[2].getAlgorithmAttributes()),
+                tlv(0xC4, getPwStatusBytes()),
+                tlv(0xC5, getFingerprints()),
+                tlv(0xC6, new byte[60]),
+                tlv(0xCD, timestamps.toByteArray()));
+
+        return tlv(0x6E,
+                tlv(0x4F, aid),
+                tlv(0x5F52, getHistoricalBytes()),
+                tlv(0x73, discretionaryData));
+    }
+
+    // endregion
+
+    // region keys
+
+    private byte[] importKey(CommandApdu command, byte[] data) throws EmulatedCardException {
+        if (command.getP1() != 0x3F || command.getP2() != 0xFF) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+        requirePw3();
+
+        try {
+            Iso7816TLV extendedHeaderList = Iso7816TLV.readSingle(data, false);
+            if (extendedHeaderList.mT != 0x4D) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+            Iso7816TLV[] elements = Iso7816TLV.readList(extendedHeaderList.mV, false);
+            if (elements.length != 3 || elements[1].mT != 0x7F48 || elements[2].mT != 0x5F48) {
+                throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+            }
+            EmulatedKeySlot keySlot = getKeySlot(elements[0].mT);
+            keySlot.importKey(elements[1].mV, elements[2].mV);
+        } catch (IOException | RuntimeException e) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+        return new byte[0];
+    }
+
+    private byte[] generateAsymmetricKey(CommandApdu command, byte[] data) throws EmulatedCardException {
+        if (data.length < 1) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+        int slot = data[0] & 0xff;
+        EmulatedKeySlot keySlot = getKeySlot(slot);
+        if (command.getP1() == 0x80) {
+            requirePw3();
+            keySlot.generate();
+            if (slot == KeyType.SIGN.getSlot()) {
+                signatureCounter = 0;
+            }
+        } else if (command.getP1() != 0x81) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+        return keySlot.getPublicKeyTemplate();
+    }
+
+    private byte[] performSecurityOperation(CommandApdu command, byte[] data) throws EmulatedCardException {
+        int operation = (command.getP1() << 8) | command.getP2();
+        if (operation == 0x9E9A) {
+            if (!pw1SignVerified) {
+                throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            byte[] signature = keySlots[0].sign(data);
+            signatureCounter++;
+            if (!pw1MultiUse) {
+                pw1SignVerified = false;
+            }
+            return signature;
+        } else if (operation == 0x8086) {
+            if (!pw1OtherVerified) {
+                throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            return keySlots[1].decipher(data);
+        }
+        throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+    }
+
+    private byte[] internalAuthenticate(CommandApdu command, byte[] data) throws EmulatedCardException {
+        if (command.getP1() != 0x00) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+        if (!pw1OtherVerified) {
+            throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        return keySlots[2].sign(data);
+    }
+
+    private EmulatedKeySlot getKeySlot(int crtTag) throws EmulatedCardException {
+        if (crtTag == KeyType.SIGN.getSlot()) {
+            return keySlots[0];
+        } else if (crtTag == KeyType.ENCRYPT.getSlot()) {
+            return keySlots[1];
+        } else if (crtTag == KeyType.AUTH.getSlot()) {
+            return keySlots[2];
+        }
+        throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+    }
+
+    // endregion
+
+    // region pin management
+
+    private byte[] verify(CommandApdu command, byte[] data) throws EmulatedCardException {
+        int reference = command.getP2();
+        if (reference != PW1_SIGN && reference != PW1_OTHER && reference != PW3) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+        if (command.getP1() == 0xFF) {
+            setVerified(reference, false);
+            return new byte[0];
+        }
+
+        int triesLeft = reference == PW3 ? pw3Tries : pw1Tries;
+        if (data.length == 0) {
+            // status check, see 7.2.2 of [0]
+            if (isVerified(reference)) {
+                return new byte[0];
+            }
+            throw new EmulatedCardException(0x63C0 | triesLeft);
+        }
+
+        checkPassword(reference == PW3 ? PW3 : PW1_SIGN, data);
+        setVerified(reference, true);
+        return new byte[0];
+    }
+
+    private byte[] changeReferenceData(CommandApdu command, byte[] data) throws EmulatedCardException {
+        int reference = command.getP2();
+        if (command.getP1() != 0x00 || (reference != PW1_SIGN && reference != PW3)) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+
+        byte[] current = reference == PW3 ? pw3 : pw1;
+        if (data.length <= current.length) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+        checkPassword(reference, Arrays.copyOf(data, current.length));
+
+        byte[] newPassword = Arrays.copyOfRange(data, current.length, data.length);
+        if (reference == PW3) {
+            pw3 = newPassword;
+            pw3Verified = false;
+        } else {
+            pw1 = newPassword;
+            pw1SignVerified = false;
+            pw1OtherVerified = false;
+        }
+        return new byte[0];
+    }
+
+    private byte[] resetRetryCounter(CommandApdu command, byte[] data) throws EmulatedCardException {
+        if (command.getP2() != PW1_SIGN) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+
+        byte[] newPw1;
+        if (command.getP1() == 0x02) {
+            requirePw3();
+            newPw1 = data;
+        } else if (command.getP1() == 0x00) {
+            if (resetCode == null || resetCodeTries == 0) {
+                throw new EmulatedCardException(EmulatedCardException.SW_AUTHENTICATION_BLOCKED);
+            }
+            if (data.length <= resetCode.length
+                    || !Arrays.equals(resetCode, Arrays.copyOf(data, resetCode.length))) {
+                resetCodeTries--;
+                throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            resetCodeTries = MAX_PW_TRIES;
+            newPw1 = Arrays.copyOfRange(data, resetCode.length, data.length);
+        } else {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_P1_P2);
+        }
+
+        if (newPw1.length == 0 || newPw1.length > MAX_PW_LENGTH) {
+            throw new EmulatedCardException(EmulatedCardException.SW_WRONG_DATA);
+        }
+        pw1 = newPw1.clone();
+        pw1Tries = MAX_PW_TRIES;
+        pw1SignVerified = false;
+        pw1OtherVerified = false;
+        return new byte[0];
+    }
+
+    private void checkPassword(int reference, byte[] candidate) throws EmulatedCardException {
+        boolean isPw3 = reference == PW3;
+        int triesLeft = isPw3 ? pw3Tries : pw1Tries;
+        if (triesLeft == 0) {
+            throw new EmulatedCardException(EmulatedCardException.SW_AUTHENTICATION_BLOCKED);
+        }
+
+        if (!Arrays.equals(isPw3 ? pw3 : pw1, candidate)) {
+            if (isPw3) {
+                pw3Tries--;
+            } else {
+                pw1Tries--;
+            }
+            throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        if (isPw3) {
+            pw3Tries = MAX_PW_TRIES;
+        } else {
+            pw1Tries = MAX_PW_TRIES;
+        }
+    }
+
+    private boolean isVerified(int reference) {
+        switch (reference) {
+            case PW1_SIGN:
+                return pw1SignVerified;
+            case PW1_OTHER:
+                return pw1OtherVerified;
+            default:
+                return pw3Verified;
+        }
+    }
+
+    private void setVerified(int reference, boolean verified) {
+        switch (reference) {
+            case PW1_SIGN:
+                pw1SignVerified = verified;
+                break;
+            case PW1_OTHER:
+                pw1OtherVerified = verified;
+                break;
+            default:
+                pw3Verified = verified;
+                break;
+        }
+    }
+
+    private void requirePw3() throws EmulatedCardException {
+        if (!pw3Verified) {
+            throw new EmulatedCardException(EmulatedCardException.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+    }
+
+    // endregion
+
+    static byte[] tlv(int tag, byte[]... values) {
+        byte[] value = concat(values);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag > 0xFF) {
+            out.write(tag >> 8);
+        }
+        out.write(tag & 0xFF);
+        byte[] length = Iso7816TLV.encodeLength(value.length);
+        out.write(length, 0, length.length);
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] value : values) {
+            out.write(value, 0, value.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] intToBytes(int value, int length) {
+        byte[] result = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            result[i] = (byte) value;
+            value >>= 8;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.util.Date;
+import java.util.Locale;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.openpgp.KeyType;
+import de.cotech.hw.openpgp.internal.operations.ChangeKeyEccOp;
+import de.cotech.hw.openpgp.internal.operations.PsoDecryptOp;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Benchmarks full OpenPGP flows against the emulated card. Host side time is measured on the wall clock
+ * without any latency model, the time spent on the link is reported separately as modeled by
+ * {@link ApduLatencyModel}, for both an extended length card and a card limited to short APDUs.
+ * <p>
+ * Only runs if the system property hwsecurity.benchmark is set, e.g., gradle test -Dhwsecurity.benchmark=true.
+ */
+@SuppressWarnings("SameParameterValue")
+public class OpenPgpCardEmulatorBenchmarkTest {
+    private static final String BENCHMARK_PROPERTY = "hwsecurity.benchmark";
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    private static final Date CREATION_TIME = new Date(1546300800000L);
+    private static final byte[] SESSION_KEY = Hex.decodeHexOrFail(
+            "09000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f0210");
+    private static final byte[] USER_KEYING_MATERIAL = new byte[] { 1, 2, 3, 4, 5 };
+    private static final byte[] HASH = new byte[32];
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+    }
+
+    @Test
+    public void benchmarkFlows() throws Exception {
+        report("extended", true);
+        report("short", false);
+    }
+
+    private void report(String mode, boolean extendedLength) throws Exception {
+        KeyPair keyPair = EmulatorTestUtils.generateEcKeyPair("secp256r1");
+        byte[] encryptedSessionKey = EmulatorTestUtils.encryptSessionKeyEcdh(
+                (ECPublicKey) keyPair.getPublic(), SESSION_KEY, USER_KEYING_MATERIAL);
+
+        measure(mode, "provision", extendedLength, null, connection -> {
+            connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+            ChangeKeyEccOp changeKeyOp = ChangeKeyEccOp.create(connection);
+            changeKeyOp.changeKey(KeyType.SIGN, "secp256r1", keyPair, CREATION_TIME);
+            changeKeyOp.changeKey(KeyType.ENCRYPT, "secp256r1", keyPair, CREATION_TIME);
+            changeKeyOp.changeKey(KeyType.AUTH, "secp256r1", keyPair, CREATION_TIME);
+        });
+        measure(mode, "sign", extendedLength, keyPair, connection -> {
+            connection.verifyPinForSignature(ByteSecret.unsafeFromString("123456"));
+            CommandApdu command = connection.getCommandFactory().createComputeDigitalSignatureCommand(HASH);
+            assertEquals(64, connection.communicateOrThrow(command).getData().length);
+            connection.invalidateSingleUsePw1();
+        });
+        measure(mode, "decrypt", extendedLength, keyPair, connection -> {
+            byte[] sessionKey = PsoDecryptOp.create(connection).verifyAndDecryptSessionKey(
+                    ByteSecret.unsafeFromString("123456"), encryptedSessionKey, 128, USER_KEYING_MATERIAL);
+            assertArrayEquals(SESSION_KEY, sessionKey);
+            connection.resetPwState();
+        });
+    }
+
+    private void measure(String mode, String name, boolean extendedLength, KeyPair provisionedKeyPair, Flow flow)
+            throws Exception {
+        OpenPgpCardEmulator emulator = new OpenPgpCardEmulator();
+        emulator.setExtendedLengthSupported(extendedLength);
+        EmulatedOpenPgpTransport transport = new EmulatedOpenPgpTransport(emulator);
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        if (provisionedKeyPair != null) {
+            provision(connection, provisionedKeyPair);
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            flow.run(connection);
+        }
+
+        transport.resetStatistics();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            flow.run(connection);
+        }
+        long hostNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+        int apdus = transport.getCommandCount() / MEASURED_ITERATIONS;
+        long bytes = (transport.getBytesSent() + transport.getBytesReceived()) / MEASURED_ITERATIONS;
+
+        long usbNanos = modelLatency(connection, transport, flow, ApduLatencyModel.createUsbCcid());
+        long nfcNanos = modelLatency(connection, transport, flow, ApduLatencyModel.createNfc());
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "OpenPGP %s %s: %d APDUs, %d bytes, host %d us/op (%.0f ops/s), modeled USB %.1f ms, NFC %.1f ms",
+                mode, name, apdus, bytes, hostNanos / 1000, 1e9 / hostNanos, usbNanos / 1e6, nfcNanos / 1e6));
+    }
+
+    private static long modelLatency(OpenPgpAppletConnection connection, EmulatedOpenPgpTransport transport,
+                                     Flow flow, ApduLatencyModel latencyModel) throws Exception {
+        transport.setLatencyModel(latencyModel);
+        transport.resetStatistics();
+        flow.run(connection);
+        transport.setLatencyModel(ApduLatencyModel.NONE);
+        return transport.getSimulatedNanos();
+    }
+
+    private static void provision(OpenPgpAppletConnection connection, KeyPair keyPair) throws Exception {
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp changeKeyOp = ChangeKeyEccOp.create(connection);
+        changeKeyOp.changeKey(KeyType.SIGN, "secp256r1", keyPair, CREATION_TIME);
+        changeKeyOp.changeKey(KeyType.ENCRYPT, "secp256r1", keyPair, CREATION_TIME);
+        connection.resetPwState();
+    }
+
+    interface Flow {
+        void run(OpenPgpAppletConnection connection) throws Exception;
+    }
+}
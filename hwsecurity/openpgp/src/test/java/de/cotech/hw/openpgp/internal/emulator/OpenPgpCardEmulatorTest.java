@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.SecurityKeyInfo;
+import de.cotech.hw.openpgp.OpenPgpSecurityKeyConnectionMode;
+import de.cotech.hw.openpgp.exceptions.OpenPgpLockedException;
+import de.cotech.hw.openpgp.exceptions.OpenPgpWrongPinException;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.openpgp.DerivedPinCache;
+import de.cotech.hw.openpgp.internal.openpgp.KeyType;
+import de.cotech.hw.openpgp.internal.operations.ChangeKeyEccOp;
+import de.cotech.hw.openpgp.internal.operations.ChangeKeyRsaOp;
+import de.cotech.hw.openpgp.internal.operations.ModifyPinOp;
+import de.cotech.hw.openpgp.internal.operations.PsoDecryptOp;
+import de.cotech.hw.openpgp.internal.operations.PsoSignOp;
+import de.cotech.hw.openpgp.internal.operations.ResetAndWipeOp;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.Hex;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class OpenPgpCardEmulatorTest {
+    private static final Date CREATION_TIME = new Date(1546300800000L);
+    private static final byte[] SESSION_KEY = Hex.decodeHexOrFail("09" +
+            "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f" + "0210");
+    private static final byte[] USER_KEYING_MATERIAL = Hex.decodeHexOrFail("0102030405");
+
+    private OpenPgpCardEmulator emulator;
+    private EmulatedOpenPgpTransport transport;
+
+    @Before
+    public void setUp() {
+        emulator = new OpenPgpCardEmulator(0x12345678);
+        transport = new EmulatedOpenPgpTransport(emulator);
+    }
+
+    @Test
+    public void connect_readSecurityKeyInfo() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+
+        SecurityKeyInfo securityKeyInfo = connection.readSecurityKeyInfo();
+
+        assertArrayEquals(emulator.getAid(), securityKeyInfo.getAid());
+        assertEquals(3, securityKeyInfo.getVerifyRetries());
+        assertTrue(securityKeyInfo.hasLifeCycleManagement());
+        assertFalse(connection.getOpenPgpCapabilities().hasEncryptKey());
+        assertTrue(connection.getOpenPgpCapabilities().isHasKdf());
+    }
+
+    @Test
+    public void verifyPin_wrongPin_decrementsRetryCounterUntilLocked() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+
+        for (int expectedRetries = 2; expectedRetries >= 0; expectedRetries--) {
+            try {
+                connection.verifyPinForOther(ByteSecret.unsafeFromString("654321"));
+                fail();
+            } catch (OpenPgpWrongPinException e) {
+                assertEquals(expectedRetries, e.getPinRetriesLeft());
+                assertEquals(3, e.getPukRetriesLeft());
+            }
+        }
+
+        try {
+            connection.verifyPinForOther(ByteSecret.unsafeFromString("123456"));
+            fail();
+        } catch (OpenPgpLockedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void importEcdhKey_decryptSessionKey() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        KeyPair keyPair = EmulatorTestUtils.generateEcKeyPair("secp256r1");
+
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        byte[] fingerprint = ChangeKeyEccOp.create(connection)
+                .changeKey(KeyType.ENCRYPT, "secp256r1", keyPair, CREATION_TIME);
+        connection.refreshConnectionCapabilities();
+        assertArrayEquals(fingerprint, connection.getOpenPgpCapabilities().getFingerprintEncrypt());
+
+        byte[] encryptedSessionKey = EmulatorTestUtils.encryptSessionKeyEcdh(
+                (ECPublicKey) keyPair.getPublic(), SESSION_KEY, USER_KEYING_MATERIAL);
+        byte[] sessionKey = PsoDecryptOp.create(connection).verifyAndDecryptSessionKey(
+                ByteSecret.unsafeFromString("123456"), encryptedSessionKey, 128, USER_KEYING_MATERIAL);
+
+        assertArrayEquals(SESSION_KEY, sessionKey);
+    }
+
+    @Test
+    public void importEcdsaKey_computeDigitalSignature_requiresPinPerSignature() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        KeyPair keyPair = EmulatorTestUtils.generateEcKeyPair("secp256r1");
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(new byte[] { 1, 2, 3 });
+
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp.create(connection).changeKey(KeyType.SIGN, "secp256r1", keyPair, CREATION_TIME);
+        connection.verifyPinForSignature(ByteSecret.unsafeFromString("123456"));
+        CommandApdu signCommand = connection.getCommandFactory().createComputeDigitalSignatureCommand(hash);
+        byte[] signature = connection.communicateOrThrow(signCommand).getData();
+        connection.invalidateSingleUsePw1();
+
+        assertEquals(64, signature.length);
+        byte[] derSignature = new DERSequence(new ASN1Integer[] {
+                new ASN1Integer(new BigInteger(1, Arrays.copyOfRange(signature, 0, 32))),
+                new ASN1Integer(new BigInteger(1, Arrays.copyOfRange(signature, 32, 64))),
+        }).getEncoded();
+        Signature verifier = Signature.getInstance("NONEwithECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(hash);
+        assertTrue(verifier.verify(derSignature));
+        assertEquals(1, emulator.getSignatureCounter());
+
+        ResponseApdu secondSignature = connection.communicate(signCommand);
+        assertEquals(0x6982, secondSignature.getSw());
+    }
+
+    @Test
+    public void psoSign_pw1ValidForMultipleSignatures_verifiesPinOnce() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        KeyPair keyPair = EmulatorTestUtils.generateEcKeyPair("secp256r1");
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp.create(connection).changeKey(KeyType.SIGN, "secp256r1", keyPair, CREATION_TIME);
+        connection.putData(0xC4, new byte[] { 0x01 });
+        connection.refreshConnectionCapabilities();
+        List<byte[]> digests = createDigests(5);
+
+        transport.resetStatistics();
+        List<byte[]> signatures = PsoSignOp.create(connection)
+                .calculateSignatures(ByteSecret.unsafeFromString("123456"), digests, "SHA-256");
+
+        // GET DATA for the KDF-DO, one VERIFY, and one PSO per digest
+        assertEquals(1 + 1 + digests.size(), transport.getCommandCount());
+        assertEquals(digests.size(), emulator.getSignatureCounter());
+        Signature verifier = Signature.getInstance("NONEwithECDSA");
+        for (int i = 0; i < digests.size(); i++) {
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(digests.get(i));
+            assertTrue(verifier.verify(signatures.get(i)));
+        }
+    }
+
+    @Test
+    public void psoSign_pw1ValidForSingleSignature_verifiesPinPerSignature() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        KeyPair keyPair = EmulatorTestUtils.generateRsaKeyPair();
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyRsaOp.create(connection).changeKey(KeyType.SIGN, keyPair, CREATION_TIME);
+        connection.refreshConnectionCapabilities();
+        List<byte[]> digests = createDigests(3);
+
+        transport.resetStatistics();
+        List<byte[]> signatures = PsoSignOp.create(connection)
+                .calculateSignatures(ByteSecret.unsafeFromString("123456"), digests, "SHA-256");
+
+        // GET DATA for the KDF-DO, and one VERIFY and one PSO per digest
+        assertEquals(1 + 2 * digests.size(), transport.getCommandCount());
+        assertEquals(digests.size(), emulator.getSignatureCounter());
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < digests.size(); i++) {
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(new byte[] { (byte) i });
+            assertTrue(verifier.verify(signatures.get(i)));
+        }
+    }
+
+    @Test
+    public void modifyPw1AndPw3() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+
+        ModifyPinOp.create(connection).modifyPw1AndPw3(
+                ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()),
+                ByteSecret.unsafeFromString("654321"), ByteSecret.unsafeFromString("87654321"));
+
+        connection.verifyPinForOther(ByteSecret.unsafeFromString("654321"));
+        connection.verifyPuk(ByteSecret.unsafeFromString("87654321"));
+    }
+
+    @Test
+    public void kdfDo_pinsAreTransformedByClient() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        byte[] kdfDo = Hex.decodeHexOrFail("810103" + "820108" + "830400010000" +
+                "8408" + "0102030405060708" + "8608" + "1112131415161718");
+
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        connection.putData(0xF9, kdfDo);
+        transport.release();
+
+        OpenPgpAppletConnection kdfConnection = EmulatorTestUtils.connect(transport);
+        CommandApdu plainVerify = kdfConnection.getCommandFactory()
+                .createVerifyPw1ForOtherCommand(OpenPgpCardEmulator.DEFAULT_PW1.clone());
+        assertEquals(0x6982, kdfConnection.communicate(plainVerify).getSw());
+
+        kdfConnection.verifyPinForOther(ByteSecret.unsafeFromString("123456"));
+        assertEquals(3, emulator.getPw1TriesLeft());
+        assertEquals(0, DerivedPinCache.getInstance().size());
+    }
+
+    @Test
+    public void kdfDo_derivedPinCacheEnabled_cachesDerivedPin() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        byte[] kdfDo = Hex.decodeHexOrFail("810103" + "820108" + "830400010000" +
+                "8408" + "0102030405060708" + "8608" + "1112131415161718");
+
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        connection.putData(0xF9, kdfDo);
+        transport.release();
+
+        transport.connect();
+        OpenPgpAppletConnection kdfConnection = OpenPgpAppletConnection.getInstanceForTransport(
+                transport, Collections.singletonList(EmulatorTestUtils.AID_PREFIX_OPENPGP), true);
+        kdfConnection.connectIfNecessary();
+        kdfConnection.verifyPinForOther(ByteSecret.unsafeFromString("123456"));
+        assertEquals(1, DerivedPinCache.getInstance().size());
+
+        OpenPgpSecurityKeyConnectionMode.clearDerivedPinCache();
+        assertEquals(0, DerivedPinCache.getInstance().size());
+    }
+
+    @Test
+    public void shortApdusOnly_importRsaKey_usesChainingAndGetResponse() throws Exception {
+        emulator.setExtendedLengthSupported(false);
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        KeyPair keyPair = EmulatorTestUtils.generateRsaKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyRsaOp.create(connection).changeKey(KeyType.ENCRYPT, keyPair, CREATION_TIME);
+        byte[] publicKeyTemplate = connection.retrievePublicKey(KeyType.ENCRYPT.getSlot());
+
+        Iso7816TLV modulus = Iso7816TLV.findRecursive(Iso7816TLV.readSingle(publicKeyTemplate, true), 0x81);
+        assertEquals(publicKey.getModulus(), new BigInteger(1, modulus.mV));
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        byte[] encryptedSessionKey = cipher.doFinal(SESSION_KEY);
+        byte[] encryptedSessionKeyMpi = ByteBuffer.allocate(2 + encryptedSessionKey.length)
+                .putShort((short) publicKey.getModulus().bitLength()).put(encryptedSessionKey).array();
+        byte[] sessionKey = PsoDecryptOp.create(connection).verifyAndDecryptSessionKey(
+                ByteSecret.unsafeFromString("123456"), encryptedSessionKeyMpi, 128, null);
+
+        assertArrayEquals(SESSION_KEY, sessionKey);
+    }
+
+    @Test
+    public void shortApdusOnly_rejectsExtendedLength() {
+        emulator.setExtendedLengthSupported(false);
+
+        ResponseApdu response = emulator.process(CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 65536));
+
+        assertEquals(0x6700, response.getSw());
+    }
+
+    @Test
+    public void resetAndWipe_restoresFactoryState() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp.create(connection).changeKey(
+                KeyType.ENCRYPT, "secp256r1", EmulatorTestUtils.generateEcKeyPair("secp256r1"), CREATION_TIME);
+        connection.resetPwState();
+
+        ResetAndWipeOp.create(connection).resetAndWipeSecurityKey();
+
+        assertFalse(emulator.isTerminated());
+        assertFalse(connection.getOpenPgpCapabilities().hasEncryptKey());
+        assertEquals(3, connection.getOpenPgpCapabilities().getPw1TriesLeft());
+        assertEquals(3, connection.getOpenPgpCapabilities().getPw3TriesLeft());
+    }
+
+    @Test
+    public void reconnect_usesCachedCapabilities() throws Exception {
+        emulator.setSelectReturnsFci(true);
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        long coldBytesReceived = transport.getBytesReceived();
+
+        transport.resetStatistics();
+        OpenPgpAppletConnection reconnection = EmulatorTestUtils.reconnect(transport);
+
+        assertTrue(transport.getBytesReceived() < coldBytesReceived);
+        assertArrayEquals(connection.getOpenPgpCapabilities().getAid(),
+                reconnection.getOpenPgpCapabilities().getAid());
+        assertEquals(3, reconnection.getOpenPgpCapabilities().getPw1TriesLeft());
+    }
+
+    @Test
+    public void reconnect_withFci_needsNoExtraExchange() throws Exception {
+        emulator.setSelectReturnsFci(true);
+        EmulatorTestUtils.connect(transport);
+        // SELECT, GET DATA 6E
+        assertEquals(2, transport.getCommandCount());
+        long coldBytesReceived = transport.getBytesReceived();
+
+        transport.resetStatistics();
+        EmulatorTestUtils.reconnect(transport);
+        // SELECT, GET DATA C4 instead of the whole application related data
+        assertEquals(2, transport.getCommandCount());
+        assertTrue(transport.getBytesReceived() < coldBytesReceived);
+    }
+
+    @Test
+    public void reconnect_withoutFci_readsCapabilities() throws Exception {
+        EmulatorTestUtils.connect(transport);
+        int coldCommandCount = transport.getCommandCount();
+        long coldBytesReceived = transport.getBytesReceived();
+
+        transport.resetStatistics();
+        EmulatorTestUtils.reconnect(transport);
+
+        assertEquals(coldCommandCount, transport.getCommandCount());
+        assertEquals(coldBytesReceived, transport.getBytesReceived());
+    }
+
+    @Test
+    public void reconnect_afterChangeKey_readsCapabilities() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        byte[] fingerprint = ChangeKeyEccOp.create(connection).changeKey(
+                KeyType.ENCRYPT, "secp256r1", EmulatorTestUtils.generateEcKeyPair("secp256r1"), CREATION_TIME);
+
+        OpenPgpAppletConnection reconnection = EmulatorTestUtils.reconnect(transport);
+
+        assertArrayEquals(fingerprint, reconnection.getOpenPgpCapabilities().getFingerprintEncrypt());
+    }
+
+    @Test
+    public void reconnect_afterKeyOperationFailedWithKeyChangedElsewhere_readsCapabilities() throws Exception {
+        emulator.setSelectReturnsFci(true);
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp.create(connection).changeKey(
+                KeyType.SIGN, "secp256r1", EmulatorTestUtils.generateEcKeyPair("secp256r1"), CREATION_TIME);
+        connection.refreshConnectionCapabilities();
+        // as another app would, without going through this library
+        emulator.process(CommandApdu.create(0x00, 0x20, 0x00, 0x83, OpenPgpCardEmulator.DEFAULT_PW3));
+        emulator.process(CommandApdu.create(0x00, 0xE6, 0x00, 0x00));
+        emulator.process(CommandApdu.create(0x00, 0x44, 0x00, 0x00));
+
+        // stale, but trusted on connect
+        OpenPgpAppletConnection staleConnection = EmulatorTestUtils.reconnect(transport);
+        assertTrue(staleConnection.getOpenPgpCapabilities().hasSignKey());
+        try {
+            PsoSignOp.create(staleConnection).calculateSignature(
+                    ByteSecret.unsafeFromString("123456"), createDigests(1).get(0), "SHA-256");
+            fail();
+        } catch (IOException e) {
+            // expected, the sign key is gone
+        }
+
+        OpenPgpAppletConnection reconnection = EmulatorTestUtils.reconnect(transport);
+
+        assertFalse(reconnection.getOpenPgpCapabilities().hasSignKey());
+    }
+
+    @Test
+    public void reconnect_afterWrongPin_readsRetryCounter() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        try {
+            connection.verifyPinForOther(ByteSecret.unsafeFromString("654321"));
+            fail();
+        } catch (OpenPgpWrongPinException e) {
+            // expected
+        }
+
+        OpenPgpAppletConnection reconnection = EmulatorTestUtils.reconnect(transport);
+
+        assertEquals(2, reconnection.getOpenPgpCapabilities().getPw1TriesLeft());
+    }
+
+    private static List<byte[]> createDigests(int count) throws Exception {
+        List<byte[]> digests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            digests.add(MessageDigest.getInstance("SHA-256").digest(new byte[] { (byte) i }));
+        }
+        return digests;
+    }
+}
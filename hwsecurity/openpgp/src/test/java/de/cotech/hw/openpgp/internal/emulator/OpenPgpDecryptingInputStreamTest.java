@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.openpgp.internal.openpgp.KeyType;
+import de.cotech.hw.openpgp.internal.operations.ChangeKeyEccOp;
+import de.cotech.hw.openpgp.internal.operations.ChangeKeyRsaOp;
+import de.cotech.hw.openpgp.util.OpenPgpDecryptingInputStream;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+@SuppressWarnings("WeakerAccess")
+public class OpenPgpDecryptingInputStreamTest {
+    static final Date CREATION_TIME = new Date(1546300800000L);
+    static final byte[] SESSION_KEY = Hex.decodeHexOrFail(
+            "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+    static final int ALGORITHM_RSA = 1;
+    static final int ALGORITHM_ECDH = 18;
+    static final int COMPRESSION_NONE = -1;
+    static final int COMPRESSION_ZIP = 1;
+    static final int COMPRESSION_ZLIB = 2;
+
+    OpenPgpCardEmulator emulator;
+    EmulatedOpenPgpTransport transport;
+    OpenPgpAppletConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new OpenPgpCardEmulator(0x12345678);
+        transport = new EmulatedOpenPgpTransport(emulator);
+        connection = EmulatorTestUtils.connect(transport);
+    }
+
+    @Test
+    public void rsa_uncompressed_decrypts() throws Exception {
+        PublicKey publicKey = importRsaEncryptionKey();
+        byte[] plaintext = "hello OpenPGP!\n".getBytes(Charset.forName("UTF-8"));
+
+        byte[] message = encryptMessage(ALGORITHM_RSA, encryptSessionKeyRsa(publicKey), getKeyId(),
+                createLiteralDataPacket("hello.txt", plaintext), COMPRESSION_NONE, 0);
+        OpenPgpDecryptingInputStream decryptingInputStream = decrypt(message);
+
+        assertEquals("hello.txt", decryptingInputStream.getFileName());
+        assertArrayEquals(plaintext, readAll(decryptingInputStream));
+    }
+
+    @Test
+    public void ecdh_zlibCompressed_partialLengths_decryptsLargeMessage() throws Exception {
+        KeyPair keyPair = EmulatorTestUtils.generateEcKeyPair("secp256r1");
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyEccOp.create(connection).changeKey(KeyType.ENCRYPT, "secp256r1", keyPair, CREATION_TIME);
+        connection.refreshConnectionCapabilities();
+        byte[] plaintext = createPlaintext(2 * 1024 * 1024 + 17);
+
+        byte[] encryptedSessionKey = EmulatorTestUtils.encryptSessionKeyEcdh((ECPublicKey) keyPair.getPublic(),
+                createSessionData(), createUserKeyingMaterialP256());
+        byte[] message = encryptMessage(ALGORITHM_ECDH, encryptedSessionKey, getKeyId(),
+                createLiteralDataPacket("", plaintext), COMPRESSION_ZLIB, 8192);
+        OpenPgpDecryptingInputStream decryptingInputStream = decrypt(message);
+
+        assertEquals("", decryptingInputStream.getFileName());
+        assertArrayEquals(plaintext, readAll(decryptingInputStream));
+    }
+
+    @Test
+    public void zipCompressed_withSignaturePackets_skipsThem() throws Exception {
+        PublicKey publicKey = importRsaEncryptionKey();
+        byte[] plaintext = createPlaintext(100_000);
+
+        ByteArrayOutputStream packets = new ByteArrayOutputStream();
+        writePacket(packets, 4, new byte[13], 0);
+        packets.write(createLiteralDataPacket("data.bin", plaintext));
+        writePacket(packets, 2, new byte[80], 0);
+        byte[] message = encryptMessage(ALGORITHM_RSA, encryptSessionKeyRsa(publicKey), getKeyId(),
+                packets.toByteArray(), COMPRESSION_ZIP, 0);
+
+        assertArrayEquals(plaintext, readAll(decrypt(message)));
+    }
+
+    @Test
+    public void wildcardKeyId_decrypts() throws Exception {
+        PublicKey publicKey = importRsaEncryptionKey();
+        byte[] plaintext = createPlaintext(1000);
+
+        byte[] message = encryptMessage(ALGORITHM_RSA, encryptSessionKeyRsa(publicKey), new byte[8],
+                createLiteralDataPacket("", plaintext), COMPRESSION_NONE, 0);
+
+        assertArrayEquals(plaintext, readAll(decrypt(message)));
+    }
+
+    @Test
+    public void modifiedCiphertext_failsAtEnd() throws Exception {
+        PublicKey publicKey = importRsaEncryptionKey();
+        byte[] message = encryptMessage(ALGORITHM_RSA, encryptSessionKeyRsa(publicKey), getKeyId(),
+                createLiteralDataPacket("", createPlaintext(50_000)), COMPRESSION_NONE, 0);
+        message[message.length - 1000] ^= 0x01;
+
+        OpenPgpDecryptingInputStream decryptingInputStream = decrypt(message);
+        try {
+            readAll(decryptingInputStream);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherKeyId_throws() throws Exception {
+        PublicKey publicKey = importRsaEncryptionKey();
+        byte[] message = encryptMessage(ALGORITHM_RSA, encryptSessionKeyRsa(publicKey),
+                Hex.decodeHexOrFail("0102030405060708"), createLiteralDataPacket("", new byte[10]),
+                COMPRESSION_NONE, 0);
+
+        decrypt(message);
+    }
+
+    private OpenPgpDecryptingInputStream decrypt(byte[] message) throws IOException {
+        return OpenPgpDecryptingInputStream.create(connection, ByteSecret.unsafeFromString("123456"),
+                new ByteArrayInputStream(message));
+    }
+
+    private PublicKey importRsaEncryptionKey() throws Exception {
+        KeyPair keyPair = EmulatorTestUtils.generateRsaKeyPair();
+        connection.verifyPuk(ByteSecret.fromByteArrayAndClear(OpenPgpCardEmulator.DEFAULT_PW3.clone()));
+        ChangeKeyRsaOp.create(connection).changeKey(KeyType.ENCRYPT, keyPair, CREATION_TIME);
+        connection.refreshConnectionCapabilities();
+        return keyPair.getPublic();
+    }
+
+    private byte[] getKeyId() {
+        byte[] fingerprint = connection.getOpenPgpCapabilities().getFingerprintEncrypt();
+        return Arrays.copyOfRange(fingerprint, 12, 20);
+    }
+
+    private byte[] createUserKeyingMaterialP256() throws Exception {
+        // see RFC 6637, 8. ECDH Algorithm
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Hex.decodeHexOrFail("082A8648CE3D030107"));
+        out.write(ALGORITHM_ECDH);
+        out.write(Hex.decodeHexOrFail("03010807"));
+        out.write("Anonymous Sender    ".getBytes(Charset.forName("US-ASCII")));
+        out.write(connection.getOpenPgpCapabilities().getFingerprintEncrypt());
+        return out.toByteArray();
+    }
+
+    static byte[] createSessionData() {
+        // AES-256, key, and checksum
+        byte[] sessionData = new byte[1 + SESSION_KEY.length + 2];
+        sessionData[0] = 9;
+        System.arraycopy(SESSION_KEY, 0, sessionData, 1, SESSION_KEY.length);
+        int checksum = 0;
+        for (byte b : SESSION_KEY) {
+            checksum += b & 0xff;
+        }
+        sessionData[sessionData.length - 2] = (byte) (checksum >> 8);
+        sessionData[sessionData.length - 1] = (byte) checksum;
+        return sessionData;
+    }
+
+    static byte[] encryptSessionKeyRsa(PublicKey publicKey) throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        BigInteger encrypted = new BigInteger(1, cipher.doFinal(createSessionData()));
+        return encodeMpi(encrypted);
+    }
+
+    static byte[] encodeMpi(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        int offset = bytes[0] == 0 ? 1 : 0;
+        byte[] mpi = new byte[2 + bytes.length - offset];
+        mpi[0] = (byte) (value.bitLength() >> 8);
+        mpi[1] = (byte) value.bitLength();
+        System.arraycopy(bytes, offset, mpi, 2, bytes.length - offset);
+        return mpi;
+    }
+
+    static byte[] createPlaintext(int length) {
+        // compressible, but not trivially
+        Random random = new Random(length);
+        byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plaintext[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return plaintext;
+    }
+
+    static byte[] createLiteralDataPacket(String fileName, byte[] data) throws IOException {
+        byte[] fileNameBytes = fileName.getBytes(Charset.forName("UTF-8"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write('b');
+        body.write(fileNameBytes.length);
+        body.write(fileNameBytes);
+        body.write(Hex.decodeHexOrFail("5c2a8a00"));
+        body.write(data);
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        writePacket(packet, 11, body.toByteArray(), 0);
+        return packet.toByteArray();
+    }
+
+    /**
+     * Builds a PKESK and a SEIPD packet, as described in RFC 4880 5.1 and 5.13.
+     */
+    static byte[] encryptMessage(int algorithm, byte[] encryptedSessionKey, byte[] keyId, byte[] packets,
+                                 int compression, int partialChunkSize) throws Exception {
+        byte[] innerPackets = packets;
+        if (compression != COMPRESSION_NONE) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, compression == COMPRESSION_ZIP);
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(compressed, deflater);
+            deflaterOutputStream.write(packets);
+            deflaterOutputStream.close();
+            deflater.end();
+
+            // old format header with indeterminate length, as written by GnuPG
+            ByteArrayOutputStream compressedPacket = new ByteArrayOutputStream();
+            compressedPacket.write(0x80 | (8 << 2) | 3);
+            compressedPacket.write(compression);
+            compressedPacket.write(compressed.toByteArray());
+            innerPackets = compressedPacket.toByteArray();
+        }
+
+        byte[] prefix = new byte[18];
+        new Random(1).nextBytes(prefix);
+        prefix[16] = prefix[14];
+        prefix[17] = prefix[15];
+
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        plaintext.write(prefix);
+        plaintext.write(innerPackets);
+        plaintext.write(new byte[] { (byte) 0xD3, 0x14 });
+        plaintext.write(MessageDigest.getInstance("SHA-1").digest(plaintext.toByteArray()));
+
+        Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SESSION_KEY, "AES"), new IvParameterSpec(new byte[16]));
+        byte[] ciphertext = cipher.doFinal(plaintext.toByteArray());
+
+        ByteArrayOutputStream pkesk = new ByteArrayOutputStream();
+        pkesk.write(3);
+        pkesk.write(keyId);
+        pkesk.write(algorithm);
+        pkesk.write(encryptedSessionKey);
+
+        ByteArrayOutputStream seipd = new ByteArrayOutputStream();
+        seipd.write(1);
+        seipd.write(ciphertext);
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writePacket(message, 1, pkesk.toByteArray(), 0);
+        writePacket(message, 18, seipd.toByteArray(), partialChunkSize);
+        return message.toByteArray();
+    }
+
+    static void writePacket(ByteArrayOutputStream out, int tag, byte[] body, int partialChunkSize) {
+        out.write(0xC0 | tag);
+        int offset = 0;
+        if (partialChunkSize > 0) {
+            int exponent = Integer.numberOfTrailingZeros(partialChunkSize);
+            while (body.length - offset > partialChunkSize) {
+                out.write(0xE0 | exponent);
+                out.write(body, offset, partialChunkSize);
+                offset += partialChunkSize;
+            }
+        }
+        int length = body.length - offset;
+        out.write(0xFF);
+        out.write(length >> 24);
+        out.write(length >> 16);
+        out.write(length >> 8);
+        out.write(length);
+        out.write(body, offset, length);
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.emulator;
+
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.transport.SecurityKeyInfo;
+import de.cotech.hw.openpgp.exceptions.OpenPgpWrongPinException;
+import de.cotech.hw.openpgp.internal.OpenPgpAppletConnection;
+import de.cotech.hw.pcsc.PcscCardResetException;
+import de.cotech.hw.pcsc.PcscTransport;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.util.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Drives an {@link OpenPgpAppletConnection} through a {@link PcscTransport}, with a mocked reader that passes
+ * the APDUs to an {@link OpenPgpCardEmulator}.
+ */
+public class PcscOpenPgpAppletConnectionTest {
+    // OpenPGP card 3.x, announcing command chaining and extended length in its card capabilities
+    private static final byte[] ATR_OPENPGP_CARD = Hex.decodeHexOrFail("3BDA18FF81B1FE751F030031F573C001E0059000DC");
+
+    private OpenPgpCardEmulator emulator;
+    private PcscTransport transport;
+    private boolean resetCardOnNextCommand;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new OpenPgpCardEmulator(0x12345678);
+
+        CardTerminal cardTerminal = mock(CardTerminal.class);
+        Card card = mock(Card.class);
+        CardChannel cardChannel = mock(CardChannel.class);
+        when(cardTerminal.getName()).thenReturn("Virtual PCD 00 00");
+        when(cardTerminal.connect("*")).thenReturn(card);
+        when(card.getBasicChannel()).thenReturn(cardChannel);
+        when(card.getATR()).thenReturn(new ATR(ATR_OPENPGP_CARD));
+        when(card.getProtocol()).thenReturn("T=1");
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class))).thenAnswer(invocation -> {
+            if (resetCardOnNextCommand) {
+                resetCardOnNextCommand = false;
+                emulator.powerCycle();
+                throw new CardException("transmit() failed", new CardException("SCARD_W_RESET_CARD"));
+            }
+            ByteBuffer command = invocation.getArgument(0);
+            byte[] rawCommand = new byte[command.remaining()];
+            command.get(rawCommand);
+
+            byte[] rawResponse = emulator.process(CommandApdu.fromBytes(rawCommand)).toBytes();
+            ByteBuffer response = invocation.getArgument(1);
+            response.put(rawResponse);
+            return rawResponse.length;
+        });
+
+        transport = PcscTransport.createPcscTransport(cardTerminal, false, false);
+    }
+
+    @Test
+    public void connect_readSecurityKeyInfo() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+
+        SecurityKeyInfo securityKeyInfo = connection.readSecurityKeyInfo();
+
+        assertArrayEquals(emulator.getAid(), securityKeyInfo.getAid());
+        assertEquals(3, securityKeyInfo.getVerifyRetries());
+        assertTrue(transport.getTransportCapabilities().isExtendedLengthSupported());
+    }
+
+    @Test
+    public void verifyPin() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+
+        try {
+            connection.verifyPinForOther(ByteSecret.unsafeFromString("654321"));
+            fail();
+        } catch (OpenPgpWrongPinException e) {
+            assertEquals(2, e.getPinRetriesLeft());
+        }
+        connection.verifyPinForOther(ByteSecret.unsafeFromString("123456"));
+
+        assertEquals(3, emulator.getPw1TriesLeft());
+    }
+
+    @Test
+    public void cardReset_reconnectsAndRequiresNewConnection() throws Exception {
+        OpenPgpAppletConnection connection = EmulatorTestUtils.connect(transport);
+        resetCardOnNextCommand = true;
+
+        try {
+            connection.readSecurityKeyInfo();
+            fail();
+        } catch (PcscCardResetException e) {
+            // expected
+        }
+
+        assertTrue(transport.isConnected());
+        connection = EmulatorTestUtils.reconnect(transport);
+        assertArrayEquals(emulator.getAid(), connection.readSecurityKeyInfo().getAid());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import org.junit.Test;
+
+import de.cotech.hw.openpgp.internal.openpgp.KdfParameters.HashType;
+import de.cotech.hw.util.Hex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+@SuppressWarnings("WeakerAccess")
+public class DerivedPinCacheTest {
+    static final byte[] AID_1 = Hex.decodeHexOrFail("D2760001240103040006123456780000");
+    static final byte[] AID_2 = Hex.decodeHexOrFail("D2760001240103040006876543210000");
+    static final KdfCalculator.KdfCalculatorArguments ARGUMENTS =
+            KdfCalculatorTest.createArguments(HashType.SHA256, KdfCalculatorTest.SALT, 0x10000);
+
+    DerivedPinCache derivedPinCache = new DerivedPinCache(60_000);
+
+    @Test
+    public void calculateKdf_cachesPerSecurityKey() {
+        byte[] expected = KdfCalculator.calculateKdf(ARGUMENTS, KdfCalculatorTest.PIN);
+
+        assertArrayEquals(expected, derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN));
+        assertArrayEquals(expected, derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN));
+        assertEquals(1, derivedPinCache.size());
+
+        assertArrayEquals(expected, derivedPinCache.calculateKdf(AID_2, ARGUMENTS, KdfCalculatorTest.PIN));
+        assertEquals(2, derivedPinCache.size());
+    }
+
+    @Test
+    public void calculateKdf_returnsCopy() {
+        byte[] derivedPin = derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN);
+        byte[] expected = derivedPin.clone();
+        derivedPin[0] ^= 1;
+
+        assertArrayEquals(expected, derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN));
+    }
+
+    @Test
+    public void calculateKdf_differentPinOrParameters_areSeparateEntries() {
+        derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN);
+        byte[] otherPin = "654321".getBytes();
+        KdfCalculator.KdfCalculatorArguments otherArguments =
+                KdfCalculatorTest.createArguments(HashType.SHA512, KdfCalculatorTest.SALT, 0x10000);
+
+        assertArrayEquals(KdfCalculator.calculateKdf(ARGUMENTS, otherPin),
+                derivedPinCache.calculateKdf(AID_1, ARGUMENTS, otherPin));
+        assertArrayEquals(KdfCalculator.calculateKdf(otherArguments, KdfCalculatorTest.PIN),
+                derivedPinCache.calculateKdf(AID_1, otherArguments, KdfCalculatorTest.PIN));
+        assertEquals(3, derivedPinCache.size());
+    }
+
+    @Test
+    public void expiredEntries_areRemoved() {
+        DerivedPinCache expiringCache = new DerivedPinCache(0);
+
+        byte[] expected = KdfCalculator.calculateKdf(ARGUMENTS, KdfCalculatorTest.PIN);
+        assertArrayEquals(expected, expiringCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN));
+        assertEquals(0, expiringCache.size());
+    }
+
+    @Test
+    public void invalidate_removesOnlyThatSecurityKey() {
+        derivedPinCache.calculateKdf(AID_1, ARGUMENTS, KdfCalculatorTest.PIN);
+        derivedPinCache.calculateKdf(AID_2, ARGUMENTS, KdfCalculatorTest.PIN);
+
+        derivedPinCache.invalidate(AID_1);
+        assertEquals(1, derivedPinCache.size());
+
+        derivedPinCache.clear();
+        assertEquals(0, derivedPinCache.size());
+    }
+}
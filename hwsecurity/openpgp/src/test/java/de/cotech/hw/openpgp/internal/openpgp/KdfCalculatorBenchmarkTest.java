@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.cotech.hw.openpgp.internal.openpgp.KdfParameters.HashType;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Benchmarks PIN derivation for iteration counts as found in KDF-DOs, comparing {@link KdfCalculator} with
+ * a digest update per copy of salt and PIN, and with a hit in the {@link DerivedPinCache}.
+ * <p>
+ * Only runs if the system property hwsecurity.benchmark is set, e.g., gradle test -Dhwsecurity.benchmark=true.
+ */
+@SuppressWarnings("WeakerAccess")
+public class KdfCalculatorBenchmarkTest {
+    private static final String BENCHMARK_PROPERTY = "hwsecurity.benchmark";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int[] ITERATION_COUNTS = { 0x10000, 0x100000, 0x1000000 };
+    private static final byte[] AID = KdfCalculatorTest.SALT;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+    }
+
+    @Test
+    public void benchmarkDerivation() {
+        for (HashType hashType : HashType.values()) {
+            for (int iterations : ITERATION_COUNTS) {
+                KdfCalculator.KdfCalculatorArguments arguments =
+                        KdfCalculatorTest.createArguments(hashType, KdfCalculatorTest.SALT, iterations);
+                assertArrayEquals(KdfCalculatorTest.calculateKdfPerIteration(arguments, KdfCalculatorTest.PIN),
+                        KdfCalculator.calculateKdf(arguments, KdfCalculatorTest.PIN));
+
+                DerivedPinCache derivedPinCache = new DerivedPinCache(60_000);
+                long perIterationNanos = measure(
+                        () -> KdfCalculatorTest.calculateKdfPerIteration(arguments, KdfCalculatorTest.PIN));
+                long blockNanos = measure(() -> KdfCalculator.calculateKdf(arguments, KdfCalculatorTest.PIN));
+                long cachedNanos = measure(
+                        () -> derivedPinCache.calculateKdf(AID, arguments, KdfCalculatorTest.PIN));
+
+                System.out.println(String.format(Locale.ENGLISH,
+                        "KDF %s %d octets: per iteration %.2f ms, block %.2f ms, cached %.3f ms",
+                        hashType, iterations, perIterationNanos / 1e6, blockNanos / 1e6, cachedNanos / 1e6));
+            }
+        }
+    }
+
+    private static long measure(Derivation derivation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            derivation.derive();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            derivation.derive();
+        }
+        return (System.nanoTime() - start) / MEASURED_ITERATIONS;
+    }
+
+    interface Derivation {
+        byte[] derive();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.internal.openpgp;
+
+
+import java.util.Random;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.junit.Test;
+
+import de.cotech.hw.openpgp.internal.openpgp.KdfParameters.HashType;
+import de.cotech.hw.util.Hex;
+
+import static org.junit.Assert.assertArrayEquals;
+
+
+@SuppressWarnings("WeakerAccess")
+public class KdfCalculatorTest {
+    static final byte[] SALT = Hex.decodeHexOrFail("0102030405060708");
+    static final byte[] PIN = "123456".getBytes();
+
+    @Test
+    public void calculateKdf_matchesIteratedSaltedS2k() {
+        for (HashType hashType : HashType.values()) {
+            for (int iterations : new int[] { 0, 5, 14, 4095, 4096, 4097, 65536, 100003 }) {
+                KdfCalculator.KdfCalculatorArguments arguments = createArguments(hashType, SALT, iterations);
+                assertArrayEquals(hashType + " " + iterations,
+                        calculateKdfPerIteration(arguments, PIN), KdfCalculator.calculateKdf(arguments, PIN));
+            }
+        }
+    }
+
+    @Test
+    public void calculateKdf_longSaltAndPin_matchesIteratedSaltedS2k() {
+        Random random = new Random(42);
+        byte[] salt = new byte[3000];
+        byte[] pin = new byte[2000];
+        random.nextBytes(salt);
+        random.nextBytes(pin);
+
+        KdfCalculator.KdfCalculatorArguments arguments = createArguments(HashType.SHA512, salt, 65536);
+        assertArrayEquals(calculateKdfPerIteration(arguments, pin), KdfCalculator.calculateKdf(arguments, pin));
+    }
+
+    static KdfCalculator.KdfCalculatorArguments createArguments(HashType hashType, byte[] salt, int iterations) {
+        KdfCalculator.KdfCalculatorArguments arguments = new KdfCalculator.KdfCalculatorArguments();
+        arguments.digestAlgorithm = hashType;
+        arguments.salt = salt;
+        arguments.iterations = iterations;
+        return arguments;
+    }
+
+    /**
+     * Reference implementation, updating the digest once per copy of salt and PIN.
+     */
+    static byte[] calculateKdfPerIteration(KdfCalculator.KdfCalculatorArguments arguments, byte[] pin) {
+        Digest digester = arguments.digestAlgorithm == HashType.SHA256 ? new SHA256Digest() : new SHA512Digest();
+        byte[] data = new byte[arguments.salt.length + pin.length];
+        System.arraycopy(arguments.salt, 0, data, 0, arguments.salt.length);
+        System.arraycopy(pin, 0, data, arguments.salt.length, pin.length);
+
+        int q = arguments.iterations / data.length;
+        int r = arguments.iterations % data.length;
+        for (int i = 0; i < q; i++) {
+            digester.update(data, 0, data.length);
+        }
+        digester.update(data, 0, r);
+
+        byte[] digest = new byte[digester.getDigestSize()];
+        digester.doFinal(digest, 0);
+        return digest;
+    }
+}
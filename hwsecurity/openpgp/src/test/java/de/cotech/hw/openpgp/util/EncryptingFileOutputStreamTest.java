@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.openpgp.util;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.cotech.hw.secrets.ByteSecret;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+
+@SuppressWarnings("WeakerAccess")
+public class EncryptingFileOutputStreamTest {
+    static final int SEGMENT_SIZE = 1024;
+    static final byte[] SECRET = new byte[32];
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    @BeforeClass
+    public static void setUpClass() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        new SecureRandom().nextBytes(SECRET);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (int length : new int[] { 0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 10 * SEGMENT_SIZE,
+                10 * SEGMENT_SIZE + 17 }) {
+            byte[] plaintext = randomBytes(length);
+            File file = encrypt(plaintext, null);
+
+            assertEquals(ChunkedAeadFormat.HEADER_LENGTH +
+                            Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE) * ChunkedAeadFormat.TAG_LENGTH + length,
+                    file.length());
+            assertArrayEquals(plaintext, decrypt(file, null));
+        }
+    }
+
+    @Test
+    public void roundTrip_singleByteWrites() throws Exception {
+        byte[] plaintext = randomBytes(3 * SEGMENT_SIZE + 5);
+        File file = temporaryFolder.newFile();
+        EncryptingFileOutputStream outputStream = new EncryptingFileOutputStream(file, secret(), SEGMENT_SIZE, null);
+        for (byte b : plaintext) {
+            outputStream.write(b);
+        }
+        outputStream.close();
+
+        DecryptingFileInputStream inputStream = new DecryptingFileInputStream(file, secret());
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            decrypted.write(b);
+        }
+        inputStream.close();
+        assertArrayEquals(plaintext, decrypted.toByteArray());
+    }
+
+    @Test
+    public void roundTrip_parallel() throws Exception {
+        byte[] plaintext = randomBytes(21 * SEGMENT_SIZE + 100);
+
+        assertArrayEquals(plaintext, decrypt(encrypt(plaintext, executorService), null));
+        assertArrayEquals(plaintext, decrypt(encrypt(plaintext, null), executorService));
+    }
+
+    @Test
+    public void defaultSegmentSize() throws Exception {
+        byte[] plaintext = randomBytes(ChunkedAeadFormat.DEFAULT_SEGMENT_SIZE * 2 + 3);
+        File file = temporaryFolder.newFile();
+        EncryptingFileOutputStream outputStream = new EncryptingFileOutputStream(file, secret());
+        outputStream.write(plaintext);
+        outputStream.close();
+
+        assertArrayEquals(plaintext, decrypt(file, null));
+    }
+
+    @Test
+    public void seek() throws Exception {
+        byte[] plaintext = randomBytes(10 * SEGMENT_SIZE + 500);
+        File file = encrypt(plaintext, null);
+
+        DecryptingFileInputStream inputStream = new DecryptingFileInputStream(file, secret(), executorService);
+        assertEquals(plaintext.length, inputStream.getPlaintextLength());
+
+        byte[] buffer = new byte[SEGMENT_SIZE];
+        for (int position : new int[] { 7 * SEGMENT_SIZE + 3, 0, 10 * SEGMENT_SIZE, 2 * SEGMENT_SIZE - 10 }) {
+            inputStream.seek(position);
+            int read = inputStream.read(buffer);
+            assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + read),
+                    Arrays.copyOf(buffer, read));
+        }
+
+        inputStream.seek(0);
+        assertEquals(5 * SEGMENT_SIZE, inputStream.skip(5 * SEGMENT_SIZE));
+        assertEquals(plaintext[5 * SEGMENT_SIZE] & 0xff, inputStream.read());
+        inputStream.close();
+    }
+
+    @Test
+    public void legacyFormat() throws Exception {
+        byte[] plaintext = randomBytes(5000);
+        File file = temporaryFolder.newFile();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET, "AES"));
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(cipher.getIV().length);
+        outputStream.write(cipher.getIV());
+        outputStream.write(cipher.doFinal(plaintext));
+        outputStream.close();
+
+        assertArrayEquals(plaintext, decrypt(file, null));
+    }
+
+    @Test
+    public void tamperedSegment_fails() throws Exception {
+        File file = encrypt(randomBytes(3 * SEGMENT_SIZE), null);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        long offset = ChunkedAeadFormat.HEADER_LENGTH + SEGMENT_SIZE + ChunkedAeadFormat.TAG_LENGTH + 5;
+        randomAccessFile.seek(offset);
+        int b = randomAccessFile.read();
+        randomAccessFile.seek(offset);
+        randomAccessFile.write(b ^ 1);
+        randomAccessFile.close();
+
+        assertDecryptionFails(file);
+    }
+
+    @Test
+    public void tamperedHeader_fails() throws Exception {
+        File file = encrypt(randomBytes(100), null);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(ChunkedAeadFormat.HEADER_LENGTH - 1);
+        int b = randomAccessFile.read();
+        randomAccessFile.seek(ChunkedAeadFormat.HEADER_LENGTH - 1);
+        randomAccessFile.write(b ^ 1);
+        randomAccessFile.close();
+
+        assertDecryptionFails(file);
+    }
+
+    @Test
+    public void truncatedAtSegmentBoundary_fails() throws Exception {
+        File file = encrypt(randomBytes(3 * SEGMENT_SIZE + 10), null);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(ChunkedAeadFormat.HEADER_LENGTH + 2 * (SEGMENT_SIZE + ChunkedAeadFormat.TAG_LENGTH));
+        randomAccessFile.close();
+
+        assertDecryptionFails(file);
+    }
+
+    @Test
+    public void reorderedSegments_fail() throws Exception {
+        File file = encrypt(randomBytes(3 * SEGMENT_SIZE), null);
+        int segmentLength = SEGMENT_SIZE + ChunkedAeadFormat.TAG_LENGTH;
+        byte[] first = new byte[segmentLength];
+        byte[] second = new byte[segmentLength];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(ChunkedAeadFormat.HEADER_LENGTH);
+        randomAccessFile.readFully(first);
+        randomAccessFile.readFully(second);
+        randomAccessFile.seek(ChunkedAeadFormat.HEADER_LENGTH);
+        randomAccessFile.write(second);
+        randomAccessFile.write(first);
+        randomAccessFile.close();
+
+        assertDecryptionFails(file);
+    }
+
+    @Test
+    public void sameSecret_usesDifferentKeysPerFile() throws Exception {
+        byte[] plaintext = new byte[SEGMENT_SIZE];
+        byte[] first = readFile(encrypt(plaintext, null));
+        byte[] second = readFile(encrypt(plaintext, null));
+
+        assertNotEquals(Arrays.toString(Arrays.copyOfRange(first, ChunkedAeadFormat.HEADER_LENGTH, first.length)),
+                Arrays.toString(Arrays.copyOfRange(second, ChunkedAeadFormat.HEADER_LENGTH, second.length)));
+    }
+
+    File encrypt(byte[] plaintext, ExecutorService executorService) throws IOException {
+        File file = temporaryFolder.newFile();
+        EncryptingFileOutputStream outputStream =
+                new EncryptingFileOutputStream(file, secret(), SEGMENT_SIZE, executorService);
+        // uneven writes, so segment boundaries fall inside a write
+        int offset = 0;
+        while (offset < plaintext.length) {
+            int length = Math.min(plaintext.length - offset, 333);
+            outputStream.write(plaintext, offset, length);
+            offset += length;
+        }
+        outputStream.close();
+        return file;
+    }
+
+    byte[] decrypt(File file, ExecutorService executorService) throws IOException {
+        DecryptingFileInputStream inputStream = new DecryptingFileInputStream(file, secret(), executorService);
+        try {
+            return readAll(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    void assertDecryptionFails(File file) {
+        try {
+            decrypt(file, null);
+            fail("Expected decryption to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) randomAccessFile.length()];
+        randomAccessFile.readFully(bytes);
+        randomAccessFile.close();
+        return bytes;
+    }
+
+    static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[700];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+
+    static ByteSecret secret() {
+        return ByteSecret.fromByteArrayAndClear(SECRET.clone());
+    }
+}
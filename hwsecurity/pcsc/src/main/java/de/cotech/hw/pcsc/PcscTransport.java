@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.pcsc;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import androidx.annotation.Nullable;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.SecurityKeyType;
+import de.cotech.hw.internal.transport.Transport;
+import de.cotech.hw.internal.transport.TransportType;
+import de.cotech.hw.util.Hex;
+
+
+/**
+ * Transport for security keys in a PC/SC reader, based on javax.smartcardio.
+ * <p>
+ * This transport is meant for JVM hosts, e.g., servers doing signing operations with
+ * a security key or CI machines using a virtual PC/SC reader, and is not available on Android.
+ * It implements {@link Transport} from the Android-free hwsecurity-transport library, so applet connections
+ * can use it like any other transport. Raw command and response APDUs can be exchanged with
+ * {@link #transceive(byte[])}.
+ * <p>
+ * In exclusive mode, the card is locked to this transport from {@link #connect()} until {@link #release()},
+ * so no other process can interleave commands and change the card's state. In shared mode, callers can use
+ * {@link #beginExclusive()} and {@link #endExclusive()} around sequences of commands that must not be interleaved.
+ * <p>
+ * If the card is reset by another process while connected, the transport reconnects to it and throws
+ * {@link PcscCardResetException}, since all card state such as selected applets and verified PINs is lost.
+ * If the card or reader is gone, the transport is released and {@link PcscCardRemovedException} is thrown.
+ */
+public class PcscTransport implements Transport {
+    private static final Logger LOGGER = Logger.getLogger(PcscTransport.class.getName());
+
+    // CLA INS P1 P2, extended Lc and body, extended Le
+    public static final int MAX_EXTENDED_COMMAND_LENGTH = 4 + 3 + 65535 + 2;
+    // response body and SW1 SW2
+    public static final int MAX_EXTENDED_RESPONSE_LENGTH = 65536 + 2;
+
+    private static final String ANY_PROTOCOL = "*";
+    private static final String PROTOCOL_T0 = "T=0";
+
+    // Compact-TLV "card capabilities" in the historical bytes, see ISO 7816-4, section 8.1.1.2.7
+    private static final int HISTORICAL_BYTES_CATEGORY_COMPACT_TLV = 0x00;
+    private static final int HISTORICAL_BYTES_CATEGORY_COMPACT_TLV_DIR = 0x80;
+    private static final int COMPACT_TLV_TAG_CARD_CAPABILITIES = 0x7;
+    private static final int CARD_CAPABILITIES_COMMAND_CHAINING = 0x80;
+    private static final int CARD_CAPABILITIES_EXTENDED_LENGTH = 0x40;
+
+    private static final String SCARD_W_RESET_CARD = "SCARD_W_RESET_CARD";
+    private static final String[] SCARD_DISCONNECTED_ERRORS = {
+            "SCARD_W_REMOVED_CARD", "SCARD_E_NO_SMARTCARD", "SCARD_E_READER_UNAVAILABLE",
+            "SCARD_E_NO_READERS_AVAILABLE", "SCARD_E_NO_SERVICE", "SCARD_E_SERVICE_STOPPED",
+    };
+
+    private final CardTerminal cardTerminal;
+    private final boolean exclusive;
+    private final boolean enableDebugLogging;
+
+    private final Object connectionLock = new Object();
+    private final ByteBuffer commandBuffer = ByteBuffer.allocate(MAX_EXTENDED_COMMAND_LENGTH);
+    private final ByteBuffer responseBuffer = ByteBuffer.allocate(MAX_EXTENDED_RESPONSE_LENGTH);
+
+    private Card card;
+    private CardChannel cardChannel;
+    private ATR atr;
+    private boolean exclusiveAccess = false;
+
+    private boolean released = false;
+    private TransportReleasedCallback transportReleasedCallback;
+
+    public static PcscTransport createPcscTransport(
+            CardTerminal cardTerminal, boolean exclusive, boolean enableDebugLogging) {
+        return new PcscTransport(cardTerminal, exclusive, enableDebugLogging);
+    }
+
+    private PcscTransport(CardTerminal cardTerminal, boolean exclusive, boolean enableDebugLogging) {
+        this.cardTerminal = cardTerminal;
+        this.exclusive = exclusive;
+        this.enableDebugLogging = enableDebugLogging;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (connectionLock) {
+            if (released) {
+                throw new PcscCardRemovedException();
+            }
+            try {
+                connectCard();
+            } catch (CardException e) {
+                throw translateCardException(e);
+            }
+        }
+    }
+
+    /**
+     * Reconnects to the card, e.g., after it has been reset by another process.
+     * <p>
+     * All card state, including selected applets and verified PINs, must be considered lost afterwards.
+     */
+    public void reconnect() throws IOException {
+        synchronized (connectionLock) {
+            if (released) {
+                throw new PcscCardRemovedException();
+            }
+            disconnectCard(false);
+            try {
+                connectCard();
+            } catch (CardException e) {
+                throw translateCardException(e);
+            }
+        }
+    }
+
+    private void connectCard() throws CardException {
+        card = cardTerminal.connect(ANY_PROTOCOL);
+        if (exclusive) {
+            card.beginExclusive();
+            exclusiveAccess = true;
+        }
+        cardChannel = card.getBasicChannel();
+        atr = card.getATR();
+        LOGGER.fine(String.format("PC/SC connected to %s using %s, ATR: %s",
+                cardTerminal.getName(), card.getProtocol(), Hex.encodeHexString(atr.getBytes())));
+    }
+
+    /**
+     * Requests exclusive access to the card for this transport, if it was connected in shared mode.
+     * Other processes are blocked from accessing the card until {@link #endExclusive()} is called.
+     */
+    public void beginExclusive() throws IOException {
+        synchronized (connectionLock) {
+            if (!isConnected()) {
+                throw new PcscCardRemovedException();
+            }
+            if (exclusiveAccess) {
+                return;
+            }
+            try {
+                card.beginExclusive();
+                exclusiveAccess = true;
+            } catch (CardException e) {
+                throw translateCardException(e);
+            }
+        }
+    }
+
+    /**
+     * Releases exclusive access acquired with {@link #beginExclusive()}. In exclusive mode, access is only
+     * released when the transport is released.
+     */
+    public void endExclusive() throws IOException {
+        synchronized (connectionLock) {
+            if (!isConnected() || !exclusiveAccess || exclusive) {
+                return;
+            }
+            try {
+                card.endExclusive();
+                exclusiveAccess = false;
+            } catch (CardException e) {
+                throw translateCardException(e);
+            }
+        }
+    }
+
+    @Override
+    public ResponseApdu transceive(CommandApdu commandApdu) throws IOException {
+        return ResponseApdu.fromBytes(transceive(commandApdu.toBytes()));
+    }
+
+    /**
+     * Transmits a command APDU and returns the response APDU, including its status word.
+     * <p>
+     * Extended length commands are only understood by cards for which {@link #isExtendedLengthSupported()}
+     * returns true, others need short APDUs, possibly chained.
+     */
+    public byte[] transceive(byte[] commandApdu) throws IOException {
+        synchronized (connectionLock) {
+            if (!isConnected()) {
+                throw new PcscCardRemovedException();
+            }
+            if (commandApdu.length > MAX_EXTENDED_COMMAND_LENGTH) {
+                throw new IllegalArgumentException("Command APDU too long: " + commandApdu.length + " bytes");
+            }
+            if (enableDebugLogging) {
+                LOGGER.info("PC/SC out: " + Hex.encodeHexString(commandApdu));
+            }
+
+            long startTime = System.nanoTime();
+            byte[] rawResponse;
+            try {
+                commandBuffer.clear();
+                commandBuffer.put(commandApdu);
+                commandBuffer.flip();
+                responseBuffer.clear();
+                int responseLength = cardChannel.transmit(commandBuffer, responseBuffer);
+                rawResponse = new byte[responseLength];
+                responseBuffer.flip();
+                responseBuffer.get(rawResponse);
+            } catch (CardException e) {
+                throw translateCardException(e);
+            } catch (IllegalStateException e) {
+                // thrown by javax.smartcardio if the card has been disconnected
+                release();
+                throw new PcscCardRemovedException(e);
+            }
+
+            if (enableDebugLogging) {
+                LOGGER.info("PC/SC  in: " + Hex.encodeHexString(rawResponse));
+                LOGGER.info("PC/SC communication took " + (System.nanoTime() - startTime) / 1000000 + "ms");
+            }
+            return rawResponse;
+        }
+    }
+
+    private IOException translateCardException(CardException e) {
+        String error = getPcscError(e);
+        if (SCARD_W_RESET_CARD.equals(error)) {
+            LOGGER.fine("Card in " + cardTerminal.getName() + " has been reset, reconnecting");
+            try {
+                disconnectCard(false);
+                connectCard();
+            } catch (CardException reconnectException) {
+                release();
+                return new PcscCardRemovedException(reconnectException);
+            }
+            return new PcscCardResetException(e);
+        }
+        for (String disconnectedError : SCARD_DISCONNECTED_ERRORS) {
+            if (disconnectedError.equals(error)) {
+                release();
+                return new PcscCardRemovedException(e);
+            }
+        }
+        return new PcscTransportException(e);
+    }
+
+    /**
+     * javax.smartcardio does not expose PC/SC error codes in its API, but the default provider uses the
+     * names of the SCARD_* constants as messages of the exception or its cause.
+     */
+    private static String getPcscError(CardException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            int index = message.indexOf("SCARD_");
+            if (index < 0) {
+                continue;
+            }
+            int end = index;
+            while (end < message.length() &&
+                    (Character.isLetterOrDigit(message.charAt(end)) || message.charAt(end) == '_')) {
+                end++;
+            }
+            return message.substring(index, end).toUpperCase(Locale.ENGLISH);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean ping() {
+        try {
+            return isConnected() && cardTerminal.isCardPresent();
+        } catch (CardException e) {
+            LOGGER.log(Level.WARNING, "PC/SC reader " + cardTerminal.getName() + " not available", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void setTransportReleaseCallback(TransportReleasedCallback callback) {
+        this.transportReleasedCallback = callback;
+    }
+
+    /**
+     * Returns true if the card announces extended length support in the card capabilities of its ATR
+     * historical bytes. T=0 cannot transport extended length APDUs, whatever the card announces.
+     */
+    @Override
+    public boolean isExtendedLengthSupported() {
+        synchronized (connectionLock) {
+            if (!isConnected() || PROTOCOL_T0.equals(card.getProtocol())) {
+                return false;
+            }
+            return (getCardCapabilities(atr.getHistoricalBytes()) & CARD_CAPABILITIES_EXTENDED_LENGTH) != 0;
+        }
+    }
+
+    /**
+     * Returns true if the card announces command chaining in the card capabilities of its ATR historical bytes.
+     */
+    public boolean isCommandChainingSupported() {
+        synchronized (connectionLock) {
+            if (!isConnected()) {
+                return false;
+            }
+            return (getCardCapabilities(atr.getHistoricalBytes()) & CARD_CAPABILITIES_COMMAND_CHAINING) != 0;
+        }
+    }
+
+    /**
+     * Returns the third software function table byte of the card capabilities in the historical bytes,
+     * or 0 if the historical bytes do not contain card capabilities.
+     */
+    static int getCardCapabilities(byte[] historicalBytes) {
+        if (historicalBytes == null || historicalBytes.length == 0) {
+            return 0;
+        }
+        int categoryIndicator = historicalBytes[0] & 0xff;
+        int end = historicalBytes.length;
+        if (categoryIndicator == HISTORICAL_BYTES_CATEGORY_COMPACT_TLV) {
+            // the last three bytes are the mandatory status indicator
+            end -= 3;
+        } else if (categoryIndicator != HISTORICAL_BYTES_CATEGORY_COMPACT_TLV_DIR) {
+            return 0;
+        }
+
+        int offset = 1;
+        while (offset < end) {
+            int tag = (historicalBytes[offset] & 0xf0) >> 4;
+            int length = historicalBytes[offset] & 0x0f;
+            offset++;
+            if (offset + length > end) {
+                return 0;
+            }
+            if (tag == COMPACT_TLV_TAG_CARD_CAPABILITIES) {
+                return length >= 3 ? historicalBytes[offset + 2] & 0xff : 0;
+            }
+            offset += length;
+        }
+        return 0;
+    }
+
+    @Override
+    public void release() {
+        synchronized (connectionLock) {
+            if (released) {
+                return;
+            }
+            LOGGER.fine("PC/SC transport disconnected");
+            released = true;
+            disconnectCard(false);
+        }
+        if (transportReleasedCallback != null) {
+            transportReleasedCallback.onTransportReleased();
+        }
+    }
+
+    private void disconnectCard(boolean reset) {
+        if (card == null) {
+            return;
+        }
+        try {
+            if (exclusiveAccess) {
+                card.endExclusive();
+            }
+            card.disconnect(reset);
+        } catch (CardException | IllegalStateException e) {
+            LOGGER.log(Level.FINE, "Error disconnecting from card", e);
+        } finally {
+            exclusiveAccess = false;
+            card = null;
+            cardChannel = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return card != null && !released;
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean isPersistentConnectionAllowed() {
+        return true;
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        // PC/SC readers are CCID devices
+        return TransportType.USB_CCID;
+    }
+
+    @Nullable
+    @Override
+    public SecurityKeyType getSecurityKeyTypeIfAvailable() {
+        return null;
+    }
+
+    public CardTerminal getCardTerminal() {
+        return cardTerminal;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.pcsc;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import de.cotech.hw.internal.transport.Transport.TransportReleasedCallback;
+import de.cotech.hw.internal.transport.TransportCapabilities;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class PcscTransportTest {
+    // OpenPGP card 3.x, announcing command chaining and extended length in its card capabilities
+    private static final byte[] ATR_OPENPGP_CARD = decodeHex("3BDA18FF81B1FE751F030031F573C001E0059000DC");
+    private static final byte[] HISTORICAL_BYTES_OPENPGP_CARD = decodeHex("0031F573C001E0059000");
+    private static final byte[] HISTORICAL_BYTES_SHORT_ONLY = decodeHex("0031F573C00180059000");
+
+    private static final byte[] COMMAND = decodeHex("00CA006E");
+    private static final byte[] RESPONSE = decodeHex("0102039000");
+
+    private CardTerminal cardTerminal;
+    private Card card;
+    private CardChannel cardChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        cardTerminal = mock(CardTerminal.class);
+        card = mock(Card.class);
+        cardChannel = mock(CardChannel.class);
+        when(cardTerminal.getName()).thenReturn("Virtual PCD 00 00");
+        when(cardTerminal.connect("*")).thenReturn(card);
+        when(card.getBasicChannel()).thenReturn(cardChannel);
+        when(card.getATR()).thenReturn(new ATR(ATR_OPENPGP_CARD));
+        when(card.getProtocol()).thenReturn("T=1");
+    }
+
+    @Test
+    public void connect_exclusive() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        assertTrue(transport.isConnected());
+        verify(card).beginExclusive();
+    }
+
+    @Test
+    public void connect_shared() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, false, false);
+        transport.connect();
+        verify(card, never()).beginExclusive();
+
+        transport.beginExclusive();
+        transport.beginExclusive();
+        verify(card).beginExclusive();
+
+        transport.endExclusive();
+        verify(card).endExclusive();
+    }
+
+    @Test
+    public void transceive() throws Exception {
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer command = invocation.getArgument(0);
+            byte[] rawCommand = new byte[command.remaining()];
+            command.get(rawCommand);
+            assertArrayEquals(COMMAND, rawCommand);
+
+            ByteBuffer response = invocation.getArgument(1);
+            response.put(RESPONSE);
+            return RESPONSE.length;
+        });
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(RESPONSE, transport.transceive(COMMAND));
+        }
+    }
+
+    @Test
+    public void transceive_commandApdu() throws Exception {
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer command = invocation.getArgument(0);
+            byte[] rawCommand = new byte[command.remaining()];
+            command.get(rawCommand);
+            assertArrayEquals(COMMAND, rawCommand);
+
+            ByteBuffer response = invocation.getArgument(1);
+            response.put(RESPONSE);
+            return RESPONSE.length;
+        });
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        ResponseApdu response = transport.transceive(CommandApdu.fromBytes(COMMAND));
+
+        assertEquals(0x9000, response.getSw());
+        assertArrayEquals(decodeHex("010203"), response.getData());
+    }
+
+    @Test
+    public void transceive_cardReset_reconnects() throws Exception {
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class)))
+                .thenThrow(new CardException("transmit() failed", new CardException("SCARD_W_RESET_CARD")));
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        try {
+            transport.transceive(COMMAND);
+            fail();
+        } catch (PcscCardResetException e) {
+            // expected
+        }
+
+        assertTrue(transport.isConnected());
+        verify(card).disconnect(false);
+        verify(cardTerminal, times(2)).connect("*");
+        verify(card, times(2)).beginExclusive();
+    }
+
+    @Test
+    public void transceive_cardRemoved_releases() throws Exception {
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class)))
+                .thenThrow(new CardException("transmit() failed", new CardException("SCARD_W_REMOVED_CARD")));
+        TransportReleasedCallback callback = mock(TransportReleasedCallback.class);
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.setTransportReleaseCallback(callback);
+        transport.connect();
+
+        try {
+            transport.transceive(COMMAND);
+            fail();
+        } catch (PcscCardRemovedException e) {
+            // expected
+        }
+
+        assertTrue(transport.isReleased());
+        assertFalse(transport.isConnected());
+        verify(callback).onTransportReleased();
+    }
+
+    @Test(expected = PcscTransportException.class)
+    public void transceive_otherError() throws Exception {
+        when(cardChannel.transmit(any(ByteBuffer.class), any(ByteBuffer.class)))
+                .thenThrow(new CardException("transmit() failed", new CardException("SCARD_E_PROTO_MISMATCH")));
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        transport.transceive(COMMAND);
+    }
+
+    @Test(expected = PcscCardRemovedException.class)
+    public void transceive_afterRelease() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+        transport.release();
+
+        transport.transceive(COMMAND);
+    }
+
+    @Test
+    public void release() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+        transport.release();
+        transport.release();
+
+        verify(card).endExclusive();
+        verify(card).disconnect(false);
+        assertTrue(transport.isReleased());
+    }
+
+    @Test
+    public void release_ignoresDisconnectErrors() throws Exception {
+        doThrow(new CardException("SCARD_E_READER_UNAVAILABLE")).when(card).disconnect(false);
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+        transport.release();
+
+        assertTrue(transport.isReleased());
+    }
+
+    @Test
+    public void cardCapabilities() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        assertFalse(transport.isExtendedLengthSupported());
+
+        transport.connect();
+
+        assertTrue(transport.isExtendedLengthSupported());
+        assertTrue(transport.isCommandChainingSupported());
+    }
+
+    @Test
+    public void getTransportCapabilities() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        TransportCapabilities capabilities = transport.getTransportCapabilities();
+
+        assertTrue(capabilities.isExtendedLengthSupported());
+        assertEquals(TransportCapabilities.MAX_EXTENDED_COMMAND_LENGTH, capabilities.getMaxCommandLength());
+    }
+
+    @Test
+    public void cardCapabilities_t0() throws Exception {
+        when(card.getProtocol()).thenReturn("T=0");
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        assertFalse(transport.isExtendedLengthSupported());
+        assertTrue(transport.isCommandChainingSupported());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transceive_commandTooLong() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+
+        transport.transceive(new byte[PcscTransport.MAX_EXTENDED_COMMAND_LENGTH + 1]);
+    }
+
+    @Test
+    public void getCardCapabilities() {
+        assertEquals(0xe0, PcscTransport.getCardCapabilities(HISTORICAL_BYTES_OPENPGP_CARD));
+        assertEquals(0x80, PcscTransport.getCardCapabilities(HISTORICAL_BYTES_SHORT_ONLY));
+        // Yubikey4 historical bytes are not compact-TLV
+        assertEquals(0, PcscTransport.getCardCapabilities("Yubikey4".getBytes()));
+        assertEquals(0, PcscTransport.getCardCapabilities(new byte[0]));
+        // truncated card capabilities
+        assertEquals(0, PcscTransport.getCardCapabilities(decodeHex("8073C0")));
+    }
+
+    @Test
+    public void ping() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        assertFalse(transport.ping());
+
+        transport.connect();
+        when(cardTerminal.isCardPresent()).thenReturn(true);
+        assertTrue(transport.ping());
+
+        when(cardTerminal.isCardPresent()).thenThrow(new CardException("SCARD_E_NO_SERVICE"));
+        assertFalse(transport.ping());
+    }
+
+    @Test(expected = PcscCardRemovedException.class)
+    public void connect_noCard() throws Exception {
+        when(cardTerminal.connect("*")).thenThrow(new CardException("connect() failed",
+                new CardException("SCARD_E_NO_SMARTCARD")));
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+
+        transport.connect();
+    }
+
+    @Test(expected = IOException.class)
+    public void reconnect_afterRelease() throws Exception {
+        PcscTransport transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+        transport.release();
+
+        transport.reconnect();
+    }
+
+    static byte[] decodeHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+}
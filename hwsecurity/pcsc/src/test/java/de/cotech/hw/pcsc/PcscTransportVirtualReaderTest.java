@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.pcsc;
+
+
+import java.util.Arrays;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Integration test against a PC/SC reader with an OpenPGP card, e.g., the virtual reader of vsmartcard
+ * (vpcd) with its OpenPGP card emulation (vicc -t openpgp). Only runs if the reader name is passed in
+ * the system property pcsc.terminal, e.g., gradle test -Dpcsc.terminal="Virtual PCD 00 00".
+ */
+public class PcscTransportVirtualReaderTest {
+    private static final String TERMINAL_PROPERTY = "pcsc.terminal";
+    private static final byte[] SELECT_OPENPGP = PcscTransportTest.decodeHex("00A4040006D27600012401");
+    private static final byte[] GET_DATA_AID = PcscTransportTest.decodeHex("00CA004F00");
+    private static final byte[] SW_SUCCESS = { (byte) 0x90, 0x00 };
+    private static final int ITERATIONS = 1000;
+    // generous bound, a virtual reader answers in well under a millisecond
+    private static final long MAX_MICROS_PER_COMMAND = 50 * 1000;
+
+    private PcscTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        String terminalName = System.getProperty(TERMINAL_PROPERTY);
+        assumeNotNull(terminalName);
+
+        CardTerminal cardTerminal = TerminalFactory.getDefault().terminals().getTerminal(terminalName);
+        assumeNotNull(cardTerminal);
+        assumeTrue(cardTerminal.isCardPresent());
+
+        transport = PcscTransport.createPcscTransport(cardTerminal, true, false);
+        transport.connect();
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.release();
+        }
+    }
+
+    @Test
+    public void selectOpenPgp() throws Exception {
+        assertSuccess(transport.transceive(SELECT_OPENPGP));
+        assertSuccess(transport.transceive(GET_DATA_AID));
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        assertSuccess(transport.transceive(SELECT_OPENPGP));
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertSuccess(transport.transceive(GET_DATA_AID));
+        }
+        long microsPerCommand = (System.nanoTime() - startTime) / 1000 / ITERATIONS;
+        assertTrue("GET DATA took " + microsPerCommand + " us per command",
+                microsPerCommand < MAX_MICROS_PER_COMMAND);
+    }
+
+    private static void assertSuccess(byte[] response) {
+        assertTrue(response.length >= 2);
+        assertArrayEquals(SW_SUCCESS, Arrays.copyOfRange(response, response.length - 2, response.length));
+    }
+}
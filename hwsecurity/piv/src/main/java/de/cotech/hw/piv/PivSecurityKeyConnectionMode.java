@@ -31,8 +31,7 @@ import java.util.Collections;
 import de.cotech.hw.SecurityKey;
 import de.cotech.hw.SecurityKeyConnectionMode;
 import de.cotech.hw.SecurityKeyManagerConfig;
-import de.cotech.hw.internal.transport.SecurityKeyInfo;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
+import de.cotech.hw.internal.transport.TransportType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.piv.internal.PivAppletConnection;
 import de.cotech.hw.util.Hex;
@@ -44,7 +43,7 @@ public class PivSecurityKeyConnectionMode extends SecurityKeyConnectionMode<PivS
 
     @Override
     public PivSecurityKey establishSecurityKeyConnection(SecurityKeyManagerConfig config, Transport transport) throws IOException {
-        if (transport.getTransportType() == SecurityKeyInfo.TransportType.USB_CTAPHID) {
+        if (transport.getTransportType() == TransportType.USB_CTAPHID) {
             HwTimber.d("USB CTAPHID is available but not supported by PIV.");
             return null;
         }
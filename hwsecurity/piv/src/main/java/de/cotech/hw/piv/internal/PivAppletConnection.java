@@ -36,16 +36,18 @@ import de.cotech.hw.exceptions.ConditionsNotSatisfiedException;
 import de.cotech.hw.exceptions.InsNotSupportedException;
 import de.cotech.hw.exceptions.SelectAppletException;
 import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.Iso7816Communicator;
 import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvCursor;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.SecurityKeyType;
+import de.cotech.hw.internal.transport.ConnectionProbeCache;
+import de.cotech.hw.internal.transport.SecurityKeyType;
 import de.cotech.hw.internal.transport.Transport;
 import de.cotech.hw.piv.PivKeyReference;
 import de.cotech.hw.piv.exceptions.PivWrongPinException;
 import de.cotech.hw.secrets.ByteSecret;
 import de.cotech.hw.util.Hex;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
@@ -53,12 +55,11 @@ import java.util.List;
 
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class PivAppletConnection {
-    private static final int APDU_SW1_RESPONSE_AVAILABLE = 0x61;
-    private static final int RESPONSE_SW1_INCORRECT_LENGTH = 0x6c;
-
     @NonNull
     private final Transport transport;
     @NonNull
+    private final Iso7816Communicator communicator;
+    @NonNull
     private final List<byte[]> aidPrefixes;
     private final PivCommandApduFactory commandFactory;
 
@@ -79,6 +80,8 @@ public class PivAppletConnection {
     private PivAppletConnection(@NonNull Transport transport, @NonNull List<byte[]> aidPrefixes,
             PivCommandApduFactory commandFactory) {
         this.transport = transport;
+        this.communicator = Iso7816Communicator.create(transport, CommandApdu.MAX_APDU_NC_SHORT);
+        communicator.setRequestMaxResponseLength(true);
         this.aidPrefixes = aidPrefixes;
         this.commandFactory = commandFactory;
     }
@@ -118,9 +121,11 @@ public class PivAppletConnection {
     }
 
     private byte[] selectFilesFromPrefixOrFail() throws IOException {
-        for (byte[] fileAid : aidPrefixes) {
+        ConnectionProbeCache probeCache = ConnectionProbeCache.getInstance();
+        for (byte[] fileAid : probeCache.getAidsForProbing(transport, aidPrefixes)) {
             byte[] initializedAid = selectFileOrReactivateOrFail(fileAid);
             if (initializedAid != null) {
+                probeCache.putAidSelected(transport, fileAid);
                 return initializedAid;
             }
         }
@@ -134,6 +139,7 @@ public class PivAppletConnection {
             communicateOrThrow(select);
             return fileAid;
         } catch (AppletFileNotFoundException e) {
+            ConnectionProbeCache.getInstance().putAidNotFound(transport, fileAid);
             return null;
         }
     }
@@ -148,8 +154,13 @@ public class PivAppletConnection {
         securityKeyType = SecurityKeyType.UNKNOWN;
     }
 
+    /**
+     * PIV applets don't announce extended length support, only command chaining is mandatory in SP 800-73-4.
+     * Extended length APDUs are tried whenever the transport can carry them, and the communicator falls back
+     * to chaining if the device rejects them.
+     */
     private void refreshConnectionCapabilities() {
-        // TODO?
+        communicator.setExtendedLengthHint(transport.isExtendedLengthSupported());
     }
 
     public byte[] getConnectedAppletAid() {
@@ -197,63 +208,7 @@ public class PivAppletConnection {
      * @return response from the card
      */
     public ResponseApdu communicate(CommandApdu commandApdu) throws IOException {
-        ResponseApdu lastResponse;
-
-        lastResponse = transceiveWithChaining(commandApdu);
-        if (lastResponse.getSw1() == RESPONSE_SW1_INCORRECT_LENGTH && lastResponse.getSw2() != 0) {
-            commandApdu = commandApdu.withNe(lastResponse.getSw2());
-            lastResponse = transceiveWithChaining(commandApdu);
-        }
-        return readChainedResponseIfAvailable(lastResponse);
-    }
-
-    @NonNull
-    private ResponseApdu transceiveWithChaining(CommandApdu commandApdu) throws IOException {
-        // NOTE: Currently always using short APDUs for PIV
-        if (commandFactory.isSuitableForSingleShortApdu(commandApdu)) {
-            return transport.transceive(commandApdu.withShortApduNe());
-        }
-        ResponseApdu lastResponse = null;
-
-        List<CommandApdu> chainedApdus = commandFactory.createChainedApdus(commandApdu);
-        for (int i = 0, totalCommands = chainedApdus.size(); i < totalCommands; i++) {
-            CommandApdu chainedApdu = chainedApdus.get(i);
-            lastResponse = transport.transceive(chainedApdu);
-
-            boolean isLastCommand = (i == totalCommands - 1);
-            if (!isLastCommand && !lastResponse.isSuccess()) {
-                throw new IOException("Failed to chain APDU " +
-                        "(" + i + "/" + (totalCommands-1) + ", last SW: " + Integer.toHexString(lastResponse.getSw()) + ")");
-            }
-        }
-
-        if (lastResponse == null) {
-            throw new IllegalStateException();
-        }
-
-        return lastResponse;
-    }
-
-    @NonNull
-    private ResponseApdu readChainedResponseIfAvailable(ResponseApdu lastResponse) throws IOException {
-        if (lastResponse.getSw1() != APDU_SW1_RESPONSE_AVAILABLE) {
-            return lastResponse;
-        }
-
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        result.write(lastResponse.getData());
-
-        do {
-            // GET RESPONSE ISO/IEC 7816-4 par.7.6.1
-            CommandApdu getResponse = commandFactory.createGetResponseCommand(lastResponse.getSw2());
-            lastResponse = transport.transceive(getResponse);
-            result.write(lastResponse.getData());
-        } while (lastResponse.getSw1() == APDU_SW1_RESPONSE_AVAILABLE);
-
-        result.write(lastResponse.getSw1());
-        result.write(lastResponse.getSw2());
-
-        return ResponseApdu.fromBytes(result.toByteArray());
+        return communicator.communicate(commandApdu);
     }
 
     // endregion
@@ -290,26 +245,31 @@ public class PivAppletConnection {
     }
 
     public byte[] retrieveCertificateBytes(PivKeyReference keyReference) throws IOException {
-        byte[] getCertData = getData(keyReference.dataObject);
-        Iso7816TLV responseTlv = Iso7816TLV.readSingle(getCertData, false);
-        Iso7816TLV responseTlv0x70 = Iso7816TLV.find(responseTlv, 0x70);
-        if (responseTlv0x70 == null) {
+        Iso7816TlvCursor certificateTlv = getDataObject(keyReference.dataObject).children();
+        if (!certificateTlv.next() || certificateTlv.getTag() != 0x70) {
             throw new IOException("Could not find expected certificate tag 0x70!");
         }
-        return responseTlv0x70.mV;
+        return certificateTlv.getValue();
     }
 
     public byte[] getData(String dataObjectHex) throws IOException {
+        return getDataObject(dataObjectHex).getValue();
+    }
+
+    private Iso7816TlvCursor getDataObject(String dataObjectHex) throws IOException {
         byte[] dataObject = Hex.decodeHex(dataObjectHex);
         byte[] retrieve = Iso7816TLV.encode(0x5c, dataObject);
         CommandApdu commandApdu = commandFactory.createGetDataCommand(retrieve);
         ResponseApdu responseApdu = communicateOrThrow(commandApdu);
 
-        Iso7816TLV responseTlv = Iso7816TLV.readSingle(responseApdu.getData(), false);
-        if (responseTlv.mT != 0x53) {
-            throw new IOException("Expected TLV tag 0x53, found " + Integer.toHexString(responseTlv.mT));
+        Iso7816TlvCursor responseTlv = Iso7816TlvCursor.wrap(responseApdu.getData()).skipFillerBytes();
+        if (!responseTlv.next()) {
+            throw new IOException("Expected TLV tag 0x53, found no data");
+        }
+        if (responseTlv.getTag() != 0x53) {
+            throw new IOException("Expected TLV tag 0x53, found " + Integer.toHexString(responseTlv.getTag()));
         }
 
-        return responseTlv.mV;
+        return responseTlv;
     }
 }
@@ -30,16 +30,12 @@ import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
 @RestrictTo(Scope.LIBRARY_GROUP)
 public class PivCommandApduFactory {
     private static final PivCommandApduDescriber DESCRIBER = new PivCommandApduDescriber();
 
     private static final int CLA = 0x00;
-    private static final int MASK_CLA_CHAINING = 1 << 4;
 
     private static final int INS_SELECT_FILE = 0xA4;
     private static final int P1_SELECT_FILE = 0x04;
@@ -49,7 +45,6 @@ public class PivCommandApduFactory {
     private static final int INS_RESET_RETRY_COUNTER = 0x2C;
     private static final int P2_RESET_RETRY_COUNTER_CARD_APPLICATION_PIN = 0x80;
 
-    private static final int INS_GET_RESPONSE = 0xC0;
 
     private static final int INS_VERIFY = 0x20;
     private static final int P2_VERIFY_PW1_SIGN = 0x81;
@@ -103,42 +98,4 @@ public class PivCommandApduFactory {
     public CommandApdu createSelectFileCommand(byte[] fileAid) {
         return CommandApdu.create(CLA, INS_SELECT_FILE, P1_SELECT_FILE, P2_EMPTY, fileAid, CommandApdu.MAX_APDU_NE_SHORT).withDescriber(DESCRIBER);
     }
-
-    // ISO/IEC 7816-4 par.7.6.1
-    @NonNull
-    public CommandApdu createGetResponseCommand(int lastResponseSw2) {
-        return CommandApdu.create(CLA, INS_GET_RESPONSE, P1_EMPTY, P2_EMPTY, lastResponseSw2).withDescriber(DESCRIBER);
-    }
-
-    // ISO/IEC 7816-4
-    @NonNull
-    public List<CommandApdu> createChainedApdus(CommandApdu apdu) {
-        ArrayList<CommandApdu> result = new ArrayList<>();
-
-        int offset = 0;
-        byte[] data = apdu.getData();
-        while (offset < data.length) {
-            int curLen = Math.min(CommandApdu.MAX_APDU_NC_SHORT, data.length - offset);
-            boolean last = offset + curLen >= data.length;
-            int cla = apdu.getCLA() + (last ? 0 : MASK_CLA_CHAINING);
-
-            CommandApdu cmd;
-            if (last) {
-                // TODO: check this!
-                int ne = Math.min(apdu.getNe(), CommandApdu.MAX_APDU_NE_SHORT);
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, ne, DESCRIBER);
-            } else {
-                cmd = CommandApdu.create(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(), data, offset, curLen, 0, DESCRIBER);
-            }
-            result.add(cmd);
-
-            offset += curLen;
-        }
-
-        return result;
-    }
-
-    public boolean isSuitableForSingleShortApdu(CommandApdu apdu) {
-        return apdu.getNc() <= CommandApdu.MAX_APDU_NC_SHORT;
-    }
 }
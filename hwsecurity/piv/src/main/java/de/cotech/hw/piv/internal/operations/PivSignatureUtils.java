@@ -27,6 +27,7 @@ package de.cotech.hw.piv.internal.operations;
 
 import androidx.annotation.VisibleForTesting;
 import de.cotech.hw.internal.iso7816.Iso7816TLV;
+import de.cotech.hw.internal.iso7816.Iso7816TlvCursor;
 import de.cotech.hw.util.Arrays;
 import de.cotech.hw.util.Hex;
 
@@ -132,15 +133,14 @@ class PivSignatureUtils {
     }
 
     byte[] unpackSignatureData(byte[] signature) throws IOException {
-        Iso7816TLV tlv = Iso7816TLV.readSingle(signature, true);
-        Iso7816TLV outer = Iso7816TLV.find(tlv, 0x7C);
-        if (outer == null) {
+        Iso7816TlvCursor outer = Iso7816TlvCursor.wrap(signature).skipFillerBytes();
+        if (!outer.next() || outer.getTag() != 0x7C) {
             throw new IOException("Malformed signature TLV value (no 0x7C tag)");
         }
-        Iso7816TLV inner = Iso7816TLV.find(outer, 0x82);
-        if (inner == null) {
+        Iso7816TlvCursor inner = outer.children();
+        if (!inner.find(0x82)) {
             throw new IOException("Malformed signature TLV value (no 0x82 tag)");
         }
-        return inner.mV;
+        return inner.getValue();
     }
 }
@@ -26,6 +26,8 @@ package de.cotech.hw.internal.iso7816;
 
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import androidx.annotation.Nullable;
@@ -40,6 +42,10 @@ import de.cotech.hw.util.Hex;
 /**
  * A command APDU following the structure defined in ISO/IEC 7816-4.
  * It consists of a four byte header and a conditional body of variable length.
+ * <p>
+ * The body is stored as a slice of a backing buffer. Instances created with {@link #wrap} reference the
+ * caller's buffer directly, and can be serialized into outgoing packet buffers with {@link #encodeInto}
+ * without intermediate copies.
  */
 @AutoValue
 @RestrictTo(Scope.LIBRARY_GROUP)
@@ -60,26 +66,39 @@ public abstract class CommandApdu {
      */
     public static final int DEFAULT_APDU_NE_ZERO = 0;
 
+    private static final byte[] EMPTY_DATA = new byte[0];
+
 
     public abstract int getCLA();
     public abstract int getINS();
     public abstract int getP1();
     public abstract int getP2();
     @SuppressWarnings("mutable")
-    public abstract byte[] getData();
+    abstract byte[] getDataBuffer();
+    abstract int getDataOffset();
+    public abstract int getNc();
     public abstract int getNe();
 
     @Nullable
     abstract CommandApduDescriber getDescriber();
 
-    public int getNc() {
-        byte[] data = getData();
-        return data != null ? data.length : 0;
+    /**
+     * Returns the body of this command. This is only a copy if the command references a slice of a larger
+     * buffer, see {@link #wrap}.
+     */
+    public byte[] getData() {
+        byte[] dataBuffer = getDataBuffer();
+        int dataOffset = getDataOffset();
+        int nc = getNc();
+        if (dataOffset == 0 && nc == dataBuffer.length) {
+            return dataBuffer;
+        }
+        return Arrays.copyOfRange(dataBuffer, dataOffset, dataOffset + nc);
     }
 
     public static CommandApdu create(CommandApduDescriber describer, byte[] apdu, int apduOffset, int apduLength)
             throws IOException {
-        return fromBytes(Arrays.copyOfRange(apdu, apduOffset, apduOffset + apduLength));
+        return parse(Arrays.copyOfRange(apdu, apduOffset, apduOffset + apduLength), false);
     }
 
     public static CommandApdu create(int cla, int ins, int p1, int p2) {
@@ -108,23 +127,54 @@ public abstract class CommandApdu {
 
     public static CommandApdu create(
             int cla, int ins, int p1, int p2, byte[] data, int dataOffset, int dataLength, int ne, CommandApduDescriber describer) {
+        if (data != null) {
+            data = Arrays.copyOfRange(data, dataOffset, dataOffset + dataLength);
+        } else {
+            data = EMPTY_DATA;
+        }
+
+        return wrap(cla, ins, p1, p2, data, 0, data.length, ne, describer);
+    }
+
+    /**
+     * Creates a command that references {@code dataLength} bytes of {@code data} starting at {@code dataOffset},
+     * without copying them. The caller must not modify that part of the buffer while the command is in use.
+     */
+    public static CommandApdu wrap(
+            int cla, int ins, int p1, int p2, byte[] data, int dataOffset, int dataLength, int ne, CommandApduDescriber describer) {
         if (ne < DEFAULT_APDU_NE_ZERO) {
             throw new IllegalArgumentException("ne must not be negative");
         }
         if (ne > MAX_APDU_NE_EXTENDED) {
             throw new IllegalArgumentException("ne is too large");
         }
-        if (data != null) {
-            data = Arrays.copyOfRange(data, dataOffset, dataOffset + dataLength);
-        } else {
-            data = new byte[0];
+        if (data == null) {
+            data = EMPTY_DATA;
+            dataOffset = 0;
+            dataLength = 0;
+        }
+        if (dataOffset < 0 || dataLength < 0 || dataOffset + dataLength > data.length) {
+            throw new IndexOutOfBoundsException("data slice out of bounds");
         }
+        if (dataLength > MAX_APDU_NC_EXTENDED) {
+            throw new IllegalArgumentException("data is too large");
+        }
+
+        return new AutoValue_CommandApdu(cla, ins, p1, p2, data, dataOffset, dataLength, ne, describer);
+    }
 
-        return new AutoValue_CommandApdu(cla, ins, p1, p2, data, ne, describer);
+    /**
+     * Returns true if this command is encoded using the extended length format.
+     */
+    public boolean isExtendedLength() {
+        return getNe() > MAX_APDU_NE_SHORT || getNc() > MAX_APDU_NC_SHORT;
     }
 
     public CommandApdu withNe(int ne) {
-        return create(getCLA(), getINS(), getP1(), getP2(), getData(), ne, getDescriber());
+        if (ne == getNe()) {
+            return this;
+        }
+        return wrap(getCLA(), getINS(), getP1(), getP2(), getDataBuffer(), getDataOffset(), getNc(), ne, getDescriber());
     }
 
     /**
@@ -167,11 +217,14 @@ public abstract class CommandApdu {
     }
 
     public CommandApdu withDescriber(CommandApduDescriber describer) {
-        return create(getCLA(), getINS(), getP1(), getP2(), getData(), getNe(), describer);
+        if (describer == getDescriber()) {
+            return this;
+        }
+        return wrap(getCLA(), getINS(), getP1(), getP2(), getDataBuffer(), getDataOffset(), getNc(), getNe(), describer);
     }
 
     public static CommandApdu fromBytes(byte[] apdu, int offset, int length) throws IOException {
-        return fromBytes(Arrays.copyOfRange(apdu, offset, offset + length));
+        return parse(Arrays.copyOfRange(apdu, offset, offset + length), false);
     }
 
     /**
@@ -191,6 +244,10 @@ public abstract class CommandApdu {
      * see https://docs.oracle.com/javacard/3.0.5/prognotes/extended-apdu-nominal-cases.htm
      */
     public static CommandApdu fromBytes(byte[] apdu) throws IOException {
+        return parse(apdu, true);
+    }
+
+    private static CommandApdu parse(byte[] apdu, boolean copyData) throws IOException {
         if (apdu.length < 4) {
             throw new IOException("apdu must be at least 4 bytes long");
         }
@@ -248,89 +305,84 @@ public abstract class CommandApdu {
             }
         }
 
-        byte[] data;
-        if (dataOffset != null) {
-            data = Arrays.copyOfRange(apdu, dataOffset, dataOffset + dataLength);
-        } else {
-            data = new byte[0];
+        if (dataOffset == null) {
+            return wrap(cla, ins, p1, p2, null, 0, 0, ne, null);
         }
-
-        return new AutoValue_CommandApdu(cla, ins, p1, p2, data, ne, null);
+        if (dataOffset + dataLength > apdu.length) {
+            throw new IOException("apdu is too short for its Lc");
+        }
+        if (copyData) {
+            return create(cla, ins, p1, p2, apdu, dataOffset, dataLength, ne, null);
+        }
+        return wrap(cla, ins, p1, p2, apdu, dataOffset, dataLength, ne, null);
     }
 
-    public byte[] toBytes() {
-        final byte[] apdu;
+    /**
+     * Returns the number of bytes written by {@link #encodeInto}.
+     */
+    public int encodedLength() {
+        int nc = getNc();
+        int ne = getNe();
+        boolean extended = nc > MAX_APDU_NC_SHORT || ne > MAX_APDU_NE_SHORT;
+
+        int length = 4;
+        if (nc > 0) {
+            // case 3s/4s: LC, case 3e/4e: 00|LC1|LC2
+            length += (extended ? 3 : 1) + nc;
+        }
+        if (ne > 0) {
+            // case 2s/4s: LE, case 4e: LE1|LE2, case 2e: 00|LE1|LE2
+            length += extended ? (nc > 0 ? 2 : 3) : 1;
+        }
+        return length;
+    }
 
-        byte[] data = getData();
+    /**
+     * Writes the encoded command to the buffer's current position, and advances the position by
+     * {@link #encodedLength()} bytes.
+     *
+     * @throws BufferOverflowException if there is insufficient space remaining in the buffer
+     */
+    public void encodeInto(ByteBuffer buffer) {
+        int nc = getNc();
         int ne = getNe();
-        if (data.length == 0) {
-            if (ne == 0) {
-                // case 1
-                apdu = new byte[4];
-            } else {
-                // case 2s or 2e
-                if (ne <= 256) {
-                    // case 2s
-                    apdu = new byte[5];
-                    apdu[4] = (ne != 256) ? (byte) ne : 0;
-                } else {
-                    // case 2e
-                    apdu = new byte[7];
-                    if (ne != 65536) {
-                        apdu[5] = (byte) (ne >> 8);
-                        apdu[6] = (byte) ne;
-                    } else {
-                        apdu[5] = 0;
-                        apdu[6] = 0;
-                    }
-                }
+        boolean extended = nc > MAX_APDU_NC_SHORT || ne > MAX_APDU_NE_SHORT;
+        if (buffer.remaining() < encodedLength()) {
+            throw new BufferOverflowException();
+        }
+
+        buffer.put((byte) getCLA());
+        buffer.put((byte) getINS());
+        buffer.put((byte) getP1());
+        buffer.put((byte) getP2());
+
+        if (nc > 0) {
+            if (extended) {
+                buffer.put((byte) 0);
+                buffer.put((byte) (nc >> 8));
             }
-        } else {
-            if (ne == 0) {
-                // case 3s or 3e
-                if (data.length <= 255) {
-                    // case 3s
-                    apdu = new byte[4 + 1 + data.length];
-                    apdu[4] = (byte) data.length;
-                    System.arraycopy(data, 0, apdu, 5, data.length);
-                } else {
-                    // case 3e
-                    apdu = new byte[4 + 3 + data.length];
-                    apdu[4] = 0;
-                    apdu[5] = (byte) (data.length >> 8);
-                    apdu[6] = (byte) data.length;
-                    System.arraycopy(data, 0, apdu, 7, data.length);
-                }
-            } else {
-                if (data.length <= 255 && ne <= 256) {
-                    // case 4s
-                    apdu = new byte[4 + 2 + data.length];
-                    apdu[4] = (byte) data.length;
-                    System.arraycopy(data, 0, apdu, 5, data.length);
-                    apdu[apdu.length - 1] = (ne != 256) ? (byte) ne : 0;
-                } else {
-                    // case 4e
-                    apdu = new byte[4 + 5 + data.length];
-                    apdu[4] = 0;
-                    apdu[5] = (byte) (data.length >> 8);
-                    apdu[6] = (byte) data.length;
-                    System.arraycopy(data, 0, apdu, 7, data.length);
-                    if (ne != 65536) {
-                        apdu[apdu.length - 2] = (byte) (ne >> 8);
-                        apdu[apdu.length - 1] = (byte) ne;
-                    } else {
-                        apdu[apdu.length - 2] = 0;
-                        apdu[apdu.length - 1] = 0;
-                    }
+            buffer.put((byte) nc);
+            buffer.put(getDataBuffer(), getDataOffset(), nc);
+        }
+
+        if (ne > 0) {
+            // Ne of 256 or 65536 are encoded as 00 or 0000 respectively, which the casts take care of
+            if (extended) {
+                if (nc == 0) {
+                    buffer.put((byte) 0);
                 }
+                buffer.put((byte) (ne >> 8));
             }
+            buffer.put((byte) ne);
         }
+    }
 
-        apdu[0] = (byte) getCLA();
-        apdu[1] = (byte) getINS();
-        apdu[2] = (byte) getP1();
-        apdu[3] = (byte) getP2();
-
+    /**
+     * Command APDU encoding options, see {@link #fromBytes(byte[])}.
+     */
+    public byte[] toBytes() {
+        byte[] apdu = new byte[encodedLength()];
+        encodeInto(ByteBuffer.wrap(apdu));
         return apdu;
     }
 
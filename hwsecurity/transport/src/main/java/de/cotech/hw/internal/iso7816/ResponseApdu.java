@@ -52,12 +52,20 @@ public abstract class ResponseApdu {
     }
 
     public static ResponseApdu fromBytes(byte[] apdu) throws IOException {
-        if (apdu.length < 2) {
+        return fromBytes(apdu, 0, apdu.length);
+    }
+
+    /**
+     * Parses a response APDU from part of a buffer, copying only the response data.
+     */
+    public static ResponseApdu fromBytes(byte[] buffer, int offset, int length) throws IOException {
+        if (length < 2) {
             throw new IOException("Response APDU must be 2 bytes or larger!");
         }
-        byte[] data = Arrays.copyOfRange(apdu, 0, apdu.length - 2);
-        int sw1 = apdu[apdu.length -2] & 0xff;
-        int sw2 = apdu[apdu.length -1] & 0xff;
+        int end = offset + length;
+        byte[] data = Arrays.copyOfRange(buffer, offset, end - 2);
+        int sw1 = buffer[end - 2] & 0xff;
+        int sw2 = buffer[end - 1] & 0xff;
         return new AutoValue_ResponseApdu(data, sw1, sw2);
     }
 
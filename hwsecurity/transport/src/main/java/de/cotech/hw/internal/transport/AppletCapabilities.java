@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+import com.google.auto.value.AutoValue;
+
+
+/**
+ * Describes how one applet on a device wants APDUs encoded, as learned by
+ * {@link de.cotech.hw.internal.iso7816.Iso7816Communicator} from its responses. Applets on the same device may
+ * differ, e.g. an OpenPGP applet may accept extended length APDUs while the PIV applet next to it doesn't, so
+ * this complements the {@link TransportCapabilities} of the device.
+ */
+@AutoValue
+@RestrictTo(Scope.LIBRARY_GROUP)
+public abstract class AppletCapabilities {
+    private static final AppletCapabilities UNKNOWN = create(null, true, 0, null);
+
+    /**
+     * Returns whether the applet accepted an extended length APDU, or null if not learned yet.
+     */
+    @Nullable
+    public abstract Boolean getExtendedLengthSupported();
+    public abstract boolean isChainingSupported();
+    /**
+     * Returns the largest data field per chained command the applet is known to accept, or 0 if no limit has
+     * been learned.
+     */
+    public abstract int getMaxChainedCommandDataLength();
+    /**
+     * Returns whether the applet answered GET RESPONSE with an extended length Le, or null if unknown.
+     */
+    @Nullable
+    public abstract Boolean getExtendedGetResponseSupported();
+
+    public static AppletCapabilities create(@Nullable Boolean extendedLengthSupported, boolean chainingSupported,
+            int maxChainedCommandDataLength, @Nullable Boolean extendedGetResponseSupported) {
+        return new AutoValue_AppletCapabilities(extendedLengthSupported, chainingSupported,
+                maxChainedCommandDataLength, extendedGetResponseSupported);
+    }
+
+    public static AppletCapabilities createUnknown() {
+        return UNKNOWN;
+    }
+
+    public AppletCapabilities withExtendedLengthSupported(boolean extendedLengthSupported) {
+        return create(extendedLengthSupported, isChainingSupported(), getMaxChainedCommandDataLength(),
+                getExtendedGetResponseSupported());
+    }
+
+    public AppletCapabilities withChainingSupported(boolean chainingSupported) {
+        return create(getExtendedLengthSupported(), chainingSupported, getMaxChainedCommandDataLength(),
+                getExtendedGetResponseSupported());
+    }
+
+    public AppletCapabilities withMaxChainedCommandDataLength(int maxChainedCommandDataLength) {
+        return create(getExtendedLengthSupported(), isChainingSupported(), maxChainedCommandDataLength,
+                getExtendedGetResponseSupported());
+    }
+
+    public AppletCapabilities withExtendedGetResponseSupported(boolean extendedGetResponseSupported) {
+        return create(getExtendedLengthSupported(), isChainingSupported(), getMaxChainedCommandDataLength(),
+                extendedGetResponseSupported);
+    }
+}
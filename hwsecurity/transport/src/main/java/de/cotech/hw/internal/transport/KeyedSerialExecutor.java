@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.transport;
+
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+
+/**
+ * Runs work on a shared {@link Executor}, one item after another per key in the order it was posted. Work for
+ * different keys runs concurrently. Used by {@link TransportScheduler} and {@link TransportDispatcher} to keep
+ * the work of each transport in order.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class KeyedSerialExecutor<K> {
+    private static final Logger LOGGER = Logger.getLogger(KeyedSerialExecutor.class.getName());
+
+    private final Executor executor;
+    private final Map<K, SerialQueue> serialQueues = new HashMap<>();
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @AnyThread
+    public void execute(K key, Runnable runnable) {
+        synchronized (serialQueues) {
+            SerialQueue serialQueue = serialQueues.get(key);
+            if (serialQueue == null) {
+                serialQueue = new SerialQueue(key);
+                serialQueues.put(key, serialQueue);
+            }
+            serialQueue.pendingWork.add(runnable);
+            if (!serialQueue.isScheduled) {
+                serialQueue.isScheduled = true;
+                executor.execute(serialQueue);
+            }
+        }
+    }
+
+    /**
+     * Work of a single key. At most one item is handed to the executor at a time, the next one once it
+     * completed. The queue is dropped once it runs empty.
+     */
+    private class SerialQueue implements Runnable {
+        private final K key;
+        private final ArrayDeque<Runnable> pendingWork = new ArrayDeque<>();
+        private boolean isScheduled;
+
+        SerialQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable work;
+            synchronized (serialQueues) {
+                work = pendingWork.poll();
+            }
+            try {
+                if (work != null) {
+                    work.run();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error in work queued for " + key.getClass().getSimpleName(), e);
+            } finally {
+                synchronized (serialQueues) {
+                    if (pendingWork.isEmpty()) {
+                        isScheduled = false;
+                        serialQueues.remove(key);
+                    } else {
+                        executor.execute(this);
+                    }
+                }
+            }
+        }
+    }
+}
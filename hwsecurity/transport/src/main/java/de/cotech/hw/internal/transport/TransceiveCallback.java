@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.io.IOException;
+
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+
+
+/**
+ * Receives the outcome of {@link Transport#transceiveAsync}. Callbacks are invoked on an I/O thread of the
+ * {@link TransportScheduler}, and must not block.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public interface TransceiveCallback {
+    @WorkerThread
+    void onTransceiveResult(ResponseApdu responseApdu);
+
+    @WorkerThread
+    void onTransceiveError(IOException exception);
+}
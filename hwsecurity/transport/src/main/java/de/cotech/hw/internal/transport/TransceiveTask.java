@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.WorkerThread;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+
+
+/**
+ * A command submitted through {@link Transport#transceiveAsync}, which may be cancelled until it completes.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TransceiveTask {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final Transport transport;
+    private final CommandApdu commandApdu;
+    private final TransceiveCallback callback;
+    @Nullable
+    private final Runnable cancelAction;
+    private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+    TransceiveTask(Transport transport, CommandApdu commandApdu, TransceiveCallback callback,
+            @Nullable Runnable cancelAction) {
+        this.transport = transport;
+        this.commandApdu = commandApdu;
+        this.callback = callback;
+        this.cancelAction = cancelAction;
+    }
+
+    /**
+     * Cancels this command. If it is already being transmitted, the transport is asked to abort it where
+     * the protocol allows, e.g. using CTAPHID_CANCEL. No callback is invoked after this method returned true.
+     *
+     * @return false if the command already completed
+     */
+    @AnyThread
+    public boolean cancel() {
+        if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+            return true;
+        }
+        if (state.compareAndSet(STATE_RUNNING, STATE_CANCELLED)) {
+            if (cancelAction != null) {
+                cancelAction.run();
+            }
+            return true;
+        }
+        return state.get() == STATE_CANCELLED;
+    }
+
+    @AnyThread
+    public boolean isCancelled() {
+        return state.get() == STATE_CANCELLED;
+    }
+
+    @AnyThread
+    public boolean isDone() {
+        int currentState = state.get();
+        return currentState == STATE_DONE || currentState == STATE_CANCELLED;
+    }
+
+    @WorkerThread
+    void run() {
+        if (!state.compareAndSet(STATE_PENDING, STATE_RUNNING)) {
+            return;
+        }
+
+        ResponseApdu responseApdu = null;
+        IOException exception = null;
+        try {
+            responseApdu = transport.transceive(commandApdu);
+        } catch (IOException e) {
+            exception = e;
+        } catch (RuntimeException e) {
+            // the callback must learn about the failure, otherwise it would wait forever
+            exception = new IOException("Unexpected error transmitting command", e);
+        }
+
+        if (!state.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+            return;
+        }
+        if (exception != null) {
+            callback.onTransceiveError(exception);
+        } else {
+            callback.onTransceiveResult(responseApdu);
+        }
+    }
+}
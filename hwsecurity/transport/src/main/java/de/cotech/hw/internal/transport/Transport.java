@@ -27,13 +27,13 @@ package de.cotech.hw.internal.transport;
 
 import java.io.IOException;
 
+import androidx.annotation.AnyThread;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.RestrictTo.Scope;
 import androidx.annotation.WorkerThread;
 import de.cotech.hw.internal.iso7816.CommandApdu;
 import de.cotech.hw.internal.iso7816.ResponseApdu;
-import de.cotech.hw.internal.transport.SecurityKeyInfo.TransportType;
 
 
 /**
@@ -49,6 +49,18 @@ public interface Transport {
      */
     ResponseApdu transceive(CommandApdu data) throws IOException;
 
+    /**
+     * Transmit data without blocking the calling thread. Commands are queued on the shared
+     * {@link TransportScheduler} and transmitted in order.
+     * @param data data to transmit
+     * @param callback receives the response, on an I/O thread
+     * @return task which may be used to cancel the command
+     */
+    @AnyThread
+    default TransceiveTask transceiveAsync(CommandApdu data, TransceiveCallback callback) {
+        return TransportScheduler.getInstance().submit(this, data, callback, null);
+    }
+
     /**
      * Disconnect and release connection
      */
@@ -74,6 +86,31 @@ public interface Transport {
      */
     boolean isExtendedLengthSupported();
 
+    /**
+     * Returns the capabilities of this transport, as learned for the connected device in this or an
+     * earlier connection.
+     */
+    default TransportCapabilities getTransportCapabilities() {
+        return TransportCapabilitiesCache.getInstance().getCapabilities(this);
+    }
+
+    /**
+     * Queries the capabilities reported by the platform for the connected device. Callers should use
+     * {@link #getTransportCapabilities()}, which caches the result.
+     */
+    default TransportCapabilities queryTransportCapabilities() {
+        return TransportCapabilities.fromExtendedLengthSupport(isExtendedLengthSupported());
+    }
+
+    /**
+     * Returns an identifier of the connected device or tag which is stable across connections, or null
+     * if there is none.
+     */
+    @Nullable
+    default String getDeviceIdentity() {
+        return null;
+    }
+
     /**
      * Connect to device
      * @throws IOException
@@ -84,7 +121,7 @@ public interface Transport {
 
     TransportType getTransportType();
     @Nullable
-    SecurityKeyInfo.SecurityKeyType getSecurityKeyTypeIfAvailable();
+    SecurityKeyType getSecurityKeyTypeIfAvailable();
 
     @RestrictTo(Scope.LIBRARY_GROUP)
     default void setTransportReleaseCallback(TransportReleasedCallback callback) {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+
+import com.google.auto.value.AutoValue;
+
+
+/**
+ * Describes which APDUs a {@link Transport} can carry to the connected device, so applet connections can choose
+ * between short, extended length and chained APDUs before sending the first command. What each applet on the
+ * device accepts is learned separately, see {@link AppletCapabilities}.
+ * <p>
+ * Lengths are in bytes of the encoded APDU, including header and Lc/Le fields.
+ */
+@AutoValue
+@RestrictTo(Scope.LIBRARY_GROUP)
+public abstract class TransportCapabilities {
+    public static final int MAX_SHORT_COMMAND_LENGTH = 4 + 1 + 255 + 1;
+    public static final int MAX_SHORT_RESPONSE_LENGTH = 256 + 2;
+    public static final int MAX_EXTENDED_COMMAND_LENGTH = 4 + 3 + 65535 + 2;
+    public static final int MAX_EXTENDED_RESPONSE_LENGTH = 65536 + 2;
+
+    private static final int SHORT_HEADER_LENGTH = 4 + 1 + 1;
+    private static final int EXTENDED_HEADER_LENGTH = 4 + 3 + 2;
+
+    public abstract int getMaxCommandLength();
+    public abstract int getMaxResponseLength();
+    /**
+     * Returns whether the platform reported extended length support. Some platforms report no extended length
+     * support for tags that accept it.
+     */
+    public abstract boolean isExtendedLengthSupported();
+    public abstract boolean isChainingSupported();
+    public abstract int getSecureMessagingOverhead();
+
+    public static TransportCapabilities create(int maxCommandLength, int maxResponseLength,
+            boolean extendedLengthSupported, boolean chainingSupported, int secureMessagingOverhead) {
+        return new AutoValue_TransportCapabilities(maxCommandLength, maxResponseLength,
+                extendedLengthSupported, chainingSupported, secureMessagingOverhead);
+    }
+
+    public static TransportCapabilities createShortOnly() {
+        return create(MAX_SHORT_COMMAND_LENGTH, MAX_SHORT_RESPONSE_LENGTH, false, true, 0);
+    }
+
+    public static TransportCapabilities createExtended(int maxCommandLength, int maxResponseLength) {
+        return create(Math.min(maxCommandLength, MAX_EXTENDED_COMMAND_LENGTH),
+                Math.min(maxResponseLength, MAX_EXTENDED_RESPONSE_LENGTH), true, true, 0);
+    }
+
+    public static TransportCapabilities fromExtendedLengthSupport(boolean extendedLengthSupported) {
+        if (extendedLengthSupported) {
+            return createExtended(MAX_EXTENDED_COMMAND_LENGTH, MAX_EXTENDED_RESPONSE_LENGTH);
+        }
+        return createShortOnly();
+    }
+
+    /**
+     * Returns the largest command data field that fits into a single APDU, after subtracting the
+     * secure messaging overhead.
+     */
+    public int getMaxCommandDataLength() {
+        int maxDataLength;
+        if (isExtendedLengthSupported()) {
+            maxDataLength = Math.min(65535, getMaxCommandLength() - EXTENDED_HEADER_LENGTH);
+        } else {
+            maxDataLength = Math.min(255, getMaxCommandLength() - SHORT_HEADER_LENGTH);
+        }
+        return Math.max(0, maxDataLength - getSecureMessagingOverhead());
+    }
+
+    public TransportCapabilities withChainingSupported(boolean chainingSupported) {
+        return create(getMaxCommandLength(), getMaxResponseLength(), isExtendedLengthSupported(),
+                chainingSupported, getSecureMessagingOverhead());
+    }
+
+    public TransportCapabilities withSecureMessagingOverhead(int secureMessagingOverhead) {
+        return create(getMaxCommandLength(), getMaxResponseLength(), isExtendedLengthSupported(),
+                isChainingSupported(), secureMessagingOverhead);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import de.cotech.hw.util.Hex;
+
+
+/**
+ * Remembers {@link TransportCapabilities} across connections, keyed by {@link Transport#getDeviceIdentity()}.
+ * Transports without a stable identity are remembered for as long as the transport instance is alive.
+ * <p>
+ * Along with the capabilities, this remembers how each applet on the device wants APDUs encoded, as learned by
+ * {@link de.cotech.hw.internal.iso7816.Iso7816Communicator}. These {@link AppletCapabilities} are keyed by the
+ * AID of the applet in addition to the device, since applets on one device may accept different encodings.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TransportCapabilitiesCache {
+    private static final Logger LOGGER = Logger.getLogger(TransportCapabilitiesCache.class.getName());
+
+    private static final int MAX_CACHED_DEVICES = 32;
+
+    private static final TransportCapabilitiesCache INSTANCE = new TransportCapabilitiesCache();
+
+    private final Map<String, DeviceEntry> entriesByIdentity =
+            new LinkedHashMap<String, DeviceEntry>(MAX_CACHED_DEVICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceEntry> eldest) {
+                    return size() > MAX_CACHED_DEVICES;
+                }
+            };
+    private final Map<Transport, DeviceEntry> entriesByTransport = new WeakHashMap<>();
+
+    public static TransportCapabilitiesCache getInstance() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    public TransportCapabilitiesCache() {
+    }
+
+    @AnyThread
+    @NonNull
+    public synchronized TransportCapabilities getCapabilities(Transport transport) {
+        return getEntry(transport).capabilities;
+    }
+
+    /**
+     * Returns what was learned about the applet with the given AID on the device. Commands sent before an applet
+     * was selected use a null AID.
+     */
+    @AnyThread
+    @NonNull
+    public synchronized AppletCapabilities getAppletCapabilities(Transport transport, @Nullable byte[] aid) {
+        AppletCapabilities appletCapabilities = getEntry(transport).appletCapabilitiesByAid.get(getAidKey(aid));
+        return appletCapabilities != null ? appletCapabilities : AppletCapabilities.createUnknown();
+    }
+
+    /**
+     * Records whether the applet accepted an extended length APDU, so subsequent connections use the working
+     * encoding right away.
+     */
+    @AnyThread
+    public synchronized void learnExtendedLengthSupport(Transport transport, @Nullable byte[] aid,
+            boolean extendedLengthSupported) {
+        AppletCapabilities appletCapabilities = getAppletCapabilities(transport, aid);
+        if (Boolean.valueOf(extendedLengthSupported).equals(appletCapabilities.getExtendedLengthSupported())) {
+            return;
+        }
+        LOGGER.fine(String.format("Learned extended length support for %s, AID %s: %b",
+                transport.getTransportType(), getAidKey(aid), extendedLengthSupported));
+        putAppletCapabilities(transport, aid, appletCapabilities.withExtendedLengthSupported(extendedLengthSupported));
+    }
+
+    /**
+     * Records that the applet rejected command chaining, so subsequent commands that do not fit into a single
+     * APDU fail without being sent.
+     */
+    @AnyThread
+    public synchronized void learnChainingUnsupported(Transport transport, @Nullable byte[] aid) {
+        AppletCapabilities appletCapabilities = getAppletCapabilities(transport, aid);
+        if (appletCapabilities.isChainingSupported()) {
+            LOGGER.fine(String.format("Learned that %s, AID %s does not support command chaining",
+                    transport.getTransportType(), getAidKey(aid)));
+            putAppletCapabilities(transport, aid, appletCapabilities.withChainingSupported(false));
+        }
+    }
+
+    @AnyThread
+    public synchronized void learnMaxChainedCommandDataLength(Transport transport, @Nullable byte[] aid,
+            int maxChainedCommandDataLength) {
+        LOGGER.fine(String.format("Learned chaining limit for %s, AID %s: %d",
+                transport.getTransportType(), getAidKey(aid), maxChainedCommandDataLength));
+        putAppletCapabilities(transport, aid,
+                getAppletCapabilities(transport, aid).withMaxChainedCommandDataLength(maxChainedCommandDataLength));
+    }
+
+    @AnyThread
+    public synchronized void learnExtendedGetResponseSupport(Transport transport, @Nullable byte[] aid,
+            boolean extendedGetResponseSupported) {
+        AppletCapabilities appletCapabilities = getAppletCapabilities(transport, aid);
+        Boolean learnedSupport = appletCapabilities.getExtendedGetResponseSupported();
+        if (learnedSupport == null || learnedSupport != extendedGetResponseSupported) {
+            LOGGER.fine(String.format("Learned extended GET RESPONSE support for %s, AID %s: %b",
+                    transport.getTransportType(), getAidKey(aid), extendedGetResponseSupported));
+            putAppletCapabilities(transport, aid,
+                    appletCapabilities.withExtendedGetResponseSupported(extendedGetResponseSupported));
+        }
+    }
+
+    /**
+     * Returns what was learned about each applet on the device, keyed by hex encoded AID, with an empty key for
+     * commands sent before an applet was selected.
+     */
+    @AnyThread
+    @NonNull
+    public synchronized Map<String, AppletCapabilities> getAllAppletCapabilities(Transport transport) {
+        return new HashMap<>(getEntry(transport).appletCapabilitiesByAid);
+    }
+
+    /**
+     * Replaces everything learned about the device, e.g. to replay a recorded session from the state it
+     * was recorded in.
+     */
+    @AnyThread
+    public synchronized void restore(Transport transport, TransportCapabilities capabilities,
+            Map<String, AppletCapabilities> appletCapabilitiesByAid) {
+        DeviceEntry entry = getEntry(transport);
+        entry.capabilities = capabilities;
+        entry.appletCapabilitiesByAid.clear();
+        entry.appletCapabilitiesByAid.putAll(appletCapabilitiesByAid);
+    }
+
+    @AnyThread
+    public synchronized void clear() {
+        entriesByIdentity.clear();
+        entriesByTransport.clear();
+    }
+
+    private DeviceEntry getEntry(Transport transport) {
+        String identity = getCacheKey(transport);
+        DeviceEntry entry = identity != null ? entriesByIdentity.get(identity) : entriesByTransport.get(transport);
+        if (entry == null) {
+            entry = new DeviceEntry(transport.queryTransportCapabilities());
+            if (identity != null) {
+                entriesByIdentity.put(identity, entry);
+            } else {
+                entriesByTransport.put(transport, entry);
+            }
+        }
+        return entry;
+    }
+
+    private void putAppletCapabilities(Transport transport, @Nullable byte[] aid,
+            AppletCapabilities appletCapabilities) {
+        getEntry(transport).appletCapabilitiesByAid.put(getAidKey(aid), appletCapabilities);
+    }
+
+    private static String getAidKey(@Nullable byte[] aid) {
+        return aid != null ? Hex.encodeHexString(aid) : "";
+    }
+
+    private static String getCacheKey(Transport transport) {
+        String deviceIdentity = transport.getDeviceIdentity();
+        if (deviceIdentity == null) {
+            return null;
+        }
+        return transport.getTransportType() + ":" + deviceIdentity;
+    }
+
+    private static class DeviceEntry {
+        TransportCapabilities capabilities;
+        final Map<String, AppletCapabilities> appletCapabilitiesByAid = new HashMap<>();
+
+        DeviceEntry(TransportCapabilities capabilities) {
+            this.capabilities = capabilities;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.RestrictTo.Scope;
+import androidx.annotation.VisibleForTesting;
+import de.cotech.hw.internal.iso7816.CommandApdu;
+
+
+/**
+ * Runs asynchronous commands for all transports on a shared pool of I/O threads.
+ * <p>
+ * Commands for the same transport run one after another in submission order, commands for different
+ * transports run concurrently. Transmitting a command blocks its thread, e.g. while a key waits for user
+ * presence. Queued commands don't occupy a thread, only the command currently transmitted does, so there is
+ * at most one thread per transport. Threads are started on demand up to {@link #MAX_IO_THREADS}, which is
+ * more than the number of keys a device can reasonably have attached at once. Only beyond that, commands
+ * wait for a key to finish its current command. Idle threads stop after a while.
+ * <p>
+ * Operations that need several dependent commands, e.g. selecting an applet before the actual command, can be
+ * queued as a whole with {@link #execute}. Operations that poll a key, e.g. until the user touched it, should
+ * queue each attempt with {@link #executeDelayed} instead of sleeping, so they don't hold a thread in between.
+ */
+@RestrictTo(Scope.LIBRARY_GROUP)
+public class TransportScheduler {
+    @VisibleForTesting
+    static final int MAX_IO_THREADS = 8;
+    private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static TransportScheduler instance;
+
+    private final Executor ioExecutor;
+    private final KeyedSerialExecutor<Transport> transportQueues;
+    private ScheduledThreadPoolExecutor delayExecutor;
+
+    public static synchronized TransportScheduler getInstance() {
+        if (instance == null) {
+            instance = new TransportScheduler(createIoExecutor());
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    TransportScheduler(Executor ioExecutor) {
+        this.ioExecutor = ioExecutor;
+        this.transportQueues = new KeyedSerialExecutor<>(ioExecutor);
+    }
+
+    /**
+     * Queues a command for the given transport.
+     *
+     * @param cancelAction invoked if the task is cancelled while the command is being transmitted, or null if
+     *                     the transport can't abort a command in progress
+     */
+    @AnyThread
+    public TransceiveTask submit(Transport transport, CommandApdu commandApdu, TransceiveCallback callback,
+            @Nullable Runnable cancelAction) {
+        TransceiveTask task = new TransceiveTask(transport, commandApdu, callback, cancelAction);
+        transportQueues.execute(transport, task::run);
+        return task;
+    }
+
+    /**
+     * Queues an operation for the given transport. It runs on an I/O thread in order with commands submitted
+     * through {@link #submit}, and may transmit commands with {@link Transport#transceive} directly.
+     */
+    @AnyThread
+    public void execute(Transport transport, Runnable operation) {
+        transportQueues.execute(transport, operation);
+    }
+
+    /**
+     * Queues an operation for the given transport after the given delay. No thread is occupied while waiting,
+     * only a single shared timer thread which is started on demand.
+     */
+    @AnyThread
+    public void executeDelayed(Transport transport, Runnable operation, long delayMs) {
+        getDelayExecutor().schedule(() -> execute(transport, operation), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getDelayExecutor() {
+        if (delayExecutor == null) {
+            delayExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "hwsecurity timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            delayExecutor.setKeepAliveTime(IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            delayExecutor.allowCoreThreadTimeOut(true);
+        }
+        return delayExecutor;
+    }
+
+    private static Executor createIoExecutor() {
+        return createThreadPool("hwsecurity I/O", MAX_IO_THREADS);
+    }
+
+    /**
+     * Creates a pool of daemon threads which are started on demand up to the given number and stop when idle.
+     * Work beyond that number is queued.
+     */
+    public static Executor createThreadPool(String threadName, int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, threadName + " " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cotech.hw.internal.iso7816;
+
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import de.cotech.hw.util.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+@SuppressWarnings("WeakerAccess")
+public class CommandApduTest {
+    static final byte[] SHORT_DATA = Hex.decodeHexOrFail("010203");
+    static final byte[] EXTENDED_DATA = new byte[300];
+
+    @Test
+    public void toBytes_case1() throws Exception {
+        assertEncoding("00A40400", CommandApdu.create(0x00, 0xA4, 0x04, 0x00));
+    }
+
+    @Test
+    public void toBytes_case2s() throws Exception {
+        assertEncoding("00CA006E00", CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 256));
+        assertEncoding("00CA006E10", CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 16));
+    }
+
+    @Test
+    public void toBytes_case2e() throws Exception {
+        assertEncoding("00CA006E000000", CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 65536));
+        assertEncoding("00CA006E000101", CommandApdu.create(0x00, 0xCA, 0x00, 0x6E, 257));
+    }
+
+    @Test
+    public void toBytes_case3s() throws Exception {
+        assertEncoding("00DA00F903010203", CommandApdu.create(0x00, 0xDA, 0x00, 0xF9, SHORT_DATA));
+    }
+
+    @Test
+    public void toBytes_case4s() throws Exception {
+        assertEncoding("002A9E9A0301020300", CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, SHORT_DATA, 256));
+    }
+
+    @Test
+    public void toBytes_case3e() throws Exception {
+        CommandApdu commandApdu = CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, EXTENDED_DATA);
+        assertEncoding("00DB3FFF00012C" + Hex.encodeHexString(EXTENDED_DATA), commandApdu);
+    }
+
+    @Test
+    public void toBytes_case4e() throws Exception {
+        assertEncoding("002A9E9A000003010203" + "0000",
+                CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, SHORT_DATA, 65536));
+        assertEncoding("00DB3FFF00012C" + Hex.encodeHexString(EXTENDED_DATA) + "0010",
+                CommandApdu.create(0x00, 0xDB, 0x3F, 0xFF, EXTENDED_DATA, 16));
+    }
+
+    @Test
+    public void wrap_referencesSlice() throws Exception {
+        byte[] buffer = Hex.decodeHexOrFail("ff010203ff");
+        CommandApdu commandApdu = CommandApdu.wrap(0x00, 0xDA, 0x00, 0xF9, buffer, 1, 3, 0, null);
+
+        assertEquals(3, commandApdu.getNc());
+        assertArrayEquals(SHORT_DATA, commandApdu.getData());
+        assertEquals(CommandApdu.create(0x00, 0xDA, 0x00, 0xF9, SHORT_DATA), commandApdu);
+        assertEncoding("00DA00F903010203", commandApdu);
+    }
+
+    @Test
+    public void create_doesNotReferenceCallerBuffer() {
+        byte[] data = Hex.decodeHexOrFail("010203");
+        CommandApdu commandApdu = CommandApdu.create(0x00, 0xDA, 0x00, 0xF9, data);
+        data[0] = 0x7f;
+
+        assertArrayEquals(SHORT_DATA, commandApdu.getData());
+    }
+
+    @Test
+    public void withNe_keepsData() {
+        CommandApdu commandApdu = CommandApdu.create(0x00, 0xDA, 0x00, 0xF9, SHORT_DATA);
+
+        assertSame(commandApdu.getData(), commandApdu.forceExtendedApduNe().getData());
+        assertSame(commandApdu, commandApdu.withNe(0));
+    }
+
+    @Test
+    public void encodeInto_writesAtPosition() {
+        CommandApdu commandApdu = CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, SHORT_DATA, 256);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) 0x6f);
+
+        commandApdu.encodeInto(buffer);
+
+        assertEquals(1 + commandApdu.encodedLength(), buffer.position());
+        byte[] expected = Hex.decodeHexOrFail("6f002A9E9A0301020300");
+        byte[] actual = new byte[expected.length];
+        System.arraycopy(buffer.array(), 0, actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void encodeInto_insufficientSpace() {
+        CommandApdu commandApdu = CommandApdu.create(0x00, 0x2A, 0x9E, 0x9A, SHORT_DATA, 256);
+
+        commandApdu.encodeInto(ByteBuffer.allocate(commandApdu.encodedLength() - 1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void wrap_outOfBounds() {
+        CommandApdu.wrap(0x00, 0xDA, 0x00, 0xF9, SHORT_DATA, 1, 3, 0, null);
+    }
+
+    static void assertEncoding(String expectedHex, CommandApdu commandApdu) throws Exception {
+        byte[] expected = Hex.decodeHexOrFail(expectedHex);
+        assertEquals(expected.length, commandApdu.encodedLength());
+        assertArrayEquals(expected, commandApdu.toBytes());
+
+        CommandApdu parsed = CommandApdu.fromBytes(expected);
+        assertEquals(commandApdu.getNe(), parsed.getNe());
+        assertArrayEquals(commandApdu.getData(), parsed.getData());
+    }
+}
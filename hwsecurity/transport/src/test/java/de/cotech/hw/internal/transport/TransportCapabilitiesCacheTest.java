@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+public class TransportCapabilitiesCacheTest {
+    static final byte[] AID_1 = { (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01 };
+    static final byte[] AID_2 = { (byte) 0xA0, 0x00, 0x00, 0x03, 0x08 };
+    static final byte[] AID_3 = { (byte) 0xA0, 0x00, 0x00, 0x06, 0x47, 0x2F, 0x00, 0x01 };
+
+    TransportCapabilitiesCache cache = new TransportCapabilitiesCache();
+
+    @Test
+    public void getCapabilities_queriesOncePerIdentity() {
+        Transport first = mockTransport("0102", TransportCapabilities.createShortOnly());
+        Transport second = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+
+        TransportCapabilities capabilities = cache.getCapabilities(first);
+        cache.getCapabilities(first);
+
+        assertSame(capabilities, cache.getCapabilities(second));
+        verify(first, times(1)).queryTransportCapabilities();
+        verify(second, times(0)).queryTransportCapabilities();
+    }
+
+    @Test
+    public void getCapabilities_withoutIdentity_cachesPerTransport() {
+        Transport first = mockTransport(null, TransportCapabilities.createShortOnly());
+        Transport second = mockTransport(null, TransportCapabilities.fromExtendedLengthSupport(true));
+
+        assertFalse(cache.getCapabilities(first).isExtendedLengthSupported());
+        assertTrue(cache.getCapabilities(second).isExtendedLengthSupported());
+        cache.getCapabilities(first);
+
+        verify(first, times(1)).queryTransportCapabilities();
+    }
+
+    @Test
+    public void learnExtendedLengthSupport_appliesToLaterConnections() {
+        Transport first = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(first, AID_1, false);
+
+        Transport second = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(second, AID_1).getExtendedLengthSupported());
+        assertTrue(cache.getCapabilities(second).isExtendedLengthSupported());
+    }
+
+    @Test
+    public void learnExtendedLengthSupport_isScopedByAid() {
+        Transport transport = mockTransport("0102", TransportCapabilities.createShortOnly());
+        cache.learnExtendedLengthSupport(transport, AID_1, true);
+        cache.learnExtendedLengthSupport(transport, AID_2, false);
+
+        assertEquals(Boolean.TRUE, cache.getAppletCapabilities(transport, AID_1).getExtendedLengthSupported());
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, AID_2).getExtendedLengthSupported());
+        assertNull(cache.getAppletCapabilities(transport, null).getExtendedLengthSupported());
+        assertNull(cache.getAppletCapabilities(transport, AID_3).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void learnedEncoding_appliesToLaterConnections() {
+        Transport first = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnChainingUnsupported(first, AID_1);
+        cache.learnMaxChainedCommandDataLength(first, AID_1, 254);
+        cache.learnExtendedGetResponseSupport(first, AID_1, false);
+
+        Transport second = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        AppletCapabilities appletCapabilities = cache.getAppletCapabilities(second, AID_1);
+        assertFalse(appletCapabilities.isChainingSupported());
+        assertEquals(254, appletCapabilities.getMaxChainedCommandDataLength());
+        assertEquals(Boolean.FALSE, appletCapabilities.getExtendedGetResponseSupported());
+        assertTrue(cache.getCapabilities(second).isChainingSupported());
+
+        AppletCapabilities otherApplet = cache.getAppletCapabilities(second, AID_2);
+        assertTrue(otherApplet.isChainingSupported());
+        assertEquals(0, otherApplet.getMaxChainedCommandDataLength());
+        assertNull(otherApplet.getExtendedGetResponseSupported());
+
+        Transport other = mockTransport("0304", TransportCapabilities.fromExtendedLengthSupport(true));
+        assertTrue(cache.getAppletCapabilities(other, AID_1).isChainingSupported());
+        assertEquals(0, cache.getAppletCapabilities(other, AID_1).getMaxChainedCommandDataLength());
+        assertNull(cache.getAppletCapabilities(other, AID_1).getExtendedGetResponseSupported());
+    }
+
+    @Test
+    public void restore_replacesAppletCapabilities() {
+        Transport transport = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        cache.learnExtendedLengthSupport(transport, AID_1, false);
+        Map<String, AppletCapabilities> appletCapabilities = cache.getAllAppletCapabilities(transport);
+        cache.learnExtendedLengthSupport(transport, AID_2, true);
+
+        cache.restore(transport, TransportCapabilities.createShortOnly(), appletCapabilities);
+
+        assertFalse(cache.getCapabilities(transport).isExtendedLengthSupported());
+        assertEquals(Boolean.FALSE, cache.getAppletCapabilities(transport, AID_1).getExtendedLengthSupported());
+        assertNull(cache.getAppletCapabilities(transport, AID_2).getExtendedLengthSupported());
+    }
+
+    @Test
+    public void identityIsScopedByTransportType() {
+        Transport nfc = mockTransport("0102", TransportCapabilities.createShortOnly());
+        Transport usb = mockTransport("0102", TransportCapabilities.fromExtendedLengthSupport(true));
+        when(usb.getTransportType()).thenReturn(TransportType.USB_CCID);
+
+        assertFalse(cache.getCapabilities(nfc).isExtendedLengthSupported());
+        assertTrue(cache.getCapabilities(usb).isExtendedLengthSupported());
+    }
+
+    @Test
+    public void getMaxCommandDataLength() {
+        assertEquals(255, TransportCapabilities.createShortOnly().getMaxCommandDataLength());
+        assertEquals(65535, TransportCapabilities.fromExtendedLengthSupport(true).getMaxCommandDataLength());
+        assertEquals(1024 - 9, TransportCapabilities.createExtended(1024, 1024).getMaxCommandDataLength());
+        assertEquals(255 - 16, TransportCapabilities.createShortOnly()
+                .withSecureMessagingOverhead(16).getMaxCommandDataLength());
+    }
+
+    private static Transport mockTransport(String identity, TransportCapabilities capabilities) {
+        Transport transport = mock(Transport.class);
+        when(transport.getDeviceIdentity()).thenReturn(identity);
+        when(transport.getTransportType()).thenReturn(TransportType.NFC);
+        when(transport.queryTransportCapabilities()).thenReturn(capabilities);
+        return transport;
+    }
+}
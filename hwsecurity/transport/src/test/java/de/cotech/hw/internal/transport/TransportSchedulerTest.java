@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018-2021 Confidential Technologies GmbH
+ *
+ * You can purchase a commercial license at https://hwsecurity.dev.
+ * Buying such a license is mandatory as soon as you develop commercial
+ * activities involving this program without disclosing the source code
+ * of your own applications.
+ *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.cotech.hw.internal.transport;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.cotech.hw.internal.iso7816.CommandApdu;
+import de.cotech.hw.internal.iso7816.ResponseApdu;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@SuppressWarnings("WeakerAccess")
+public class TransportSchedulerTest {
+    static final CommandApdu COMMAND_1 = CommandApdu.create(0x00, 0x01, 0x00, 0x00);
+    static final CommandApdu COMMAND_2 = CommandApdu.create(0x00, 0x02, 0x00, 0x00);
+    static final ResponseApdu RESPONSE_OK = ResponseApdu.create(0x9000, new byte[0]);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    TransportScheduler scheduler = new TransportScheduler(executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void submit_deliversResult() throws Exception {
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_1)).thenReturn(RESPONSE_OK);
+
+        RecordingCallback callback = new RecordingCallback();
+        TransceiveTask task = scheduler.submit(transport, COMMAND_1, callback, null);
+
+        callback.await();
+        assertSame(RESPONSE_OK, callback.response);
+        assertTrue(task.isDone());
+        assertFalse(task.isCancelled());
+    }
+
+    @Test
+    public void submit_deliversError() throws Exception {
+        Transport transport = mock(Transport.class);
+        IOException exception = new IOException("gone");
+        when(transport.transceive(COMMAND_1)).thenThrow(exception);
+
+        RecordingCallback callback = new RecordingCallback();
+        scheduler.submit(transport, COMMAND_1, callback, null);
+
+        callback.await();
+        assertSame(exception, callback.exception);
+    }
+
+    @Test
+    public void submit_runtimeException_deliversError() throws Exception {
+        Transport transport = mock(Transport.class);
+        IllegalStateException exception = new IllegalStateException("broken");
+        when(transport.transceive(COMMAND_1)).thenThrow(exception);
+
+        RecordingCallback callback = new RecordingCallback();
+        TransceiveTask task = scheduler.submit(transport, COMMAND_1, callback, null);
+
+        callback.await();
+        assertSame(exception, callback.exception.getCause());
+        assertTrue(task.isDone());
+    }
+
+    @Test
+    public void submit_sameTransport_runsInOrderOneAtATime() throws Exception {
+        AtomicInteger concurrentCalls = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        List<CommandApdu> transmitted = Collections.synchronizedList(new ArrayList<>());
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(any())).thenAnswer(invocation -> {
+            if (concurrentCalls.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            Thread.sleep(20);
+            transmitted.add(invocation.getArgument(0));
+            concurrentCalls.decrementAndGet();
+            return RESPONSE_OK;
+        });
+
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        scheduler.submit(transport, COMMAND_1, first, null);
+        scheduler.submit(transport, COMMAND_2, second, null);
+
+        first.await();
+        second.await();
+        assertFalse(overlapped.get());
+        assertEquals(COMMAND_1, transmitted.get(0));
+        assertEquals(COMMAND_2, transmitted.get(1));
+    }
+
+    @Test
+    public void execute_runsInOrderWithSubmittedCommands() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_1)).thenAnswer(invocation -> {
+            Thread.sleep(20);
+            events.add("command");
+            return RESPONSE_OK;
+        });
+
+        CountDownLatch operationDone = new CountDownLatch(1);
+        scheduler.submit(transport, COMMAND_1, new RecordingCallback(), null);
+        scheduler.execute(transport, () -> {
+            events.add("operation");
+            operationDone.countDown();
+        });
+
+        assertTrue(operationDone.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("command", "operation"), events);
+    }
+
+    @Test
+    public void executeDelayed_runsAfterDelay() throws Exception {
+        Transport transport = mock(Transport.class);
+        CountDownLatch operationDone = new CountDownLatch(1);
+
+        long startTime = System.nanoTime();
+        scheduler.executeDelayed(transport, operationDone::countDown, 50);
+
+        assertTrue(operationDone.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) >= 50);
+    }
+
+    @Test
+    public void getInstance_blockedTransports_doNotHoldBackOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<RecordingCallback> blockedCallbacks = new ArrayList<>();
+        // as long as there are free threads
+        for (int i = 0; i < TransportScheduler.MAX_IO_THREADS - 1; i++) {
+            Transport blockedTransport = mock(Transport.class);
+            when(blockedTransport.transceive(COMMAND_1)).thenAnswer(invocation -> {
+                release.await();
+                return RESPONSE_OK;
+            });
+            RecordingCallback blockedCallback = new RecordingCallback();
+            TransportScheduler.getInstance().submit(blockedTransport, COMMAND_1, blockedCallback, null);
+            blockedCallbacks.add(blockedCallback);
+        }
+
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_2)).thenReturn(RESPONSE_OK);
+        RecordingCallback callback = new RecordingCallback();
+        TransportScheduler.getInstance().submit(transport, COMMAND_2, callback, null);
+
+        callback.await();
+        release.countDown();
+        for (RecordingCallback blockedCallback : blockedCallbacks) {
+            blockedCallback.await();
+        }
+    }
+
+    @Test
+    public void cancel_pendingTask_isNotTransmitted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_1)).thenAnswer(invocation -> {
+            release.await();
+            return RESPONSE_OK;
+        });
+
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        scheduler.submit(transport, COMMAND_1, first, null);
+        TransceiveTask secondTask = scheduler.submit(transport, COMMAND_2, second, null);
+
+        assertTrue(secondTask.cancel());
+        release.countDown();
+        first.await();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+
+        verify(transport, never()).transceive(COMMAND_2);
+        assertEquals(1, second.latch.getCount());
+        assertTrue(secondTask.isCancelled());
+    }
+
+    @Test
+    public void cancel_runningTask_invokesCancelAction() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_1)).thenAnswer(invocation -> {
+            started.countDown();
+            cancelled.await();
+            return RESPONSE_OK;
+        });
+
+        RecordingCallback callback = new RecordingCallback();
+        TransceiveTask task = scheduler.submit(transport, COMMAND_1, callback, cancelled::countDown);
+        started.await();
+
+        assertTrue(task.cancel());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertEquals(1, callback.latch.getCount());
+        assertTrue(task.isCancelled());
+    }
+
+    @Test
+    public void cancel_completedTask_returnsFalse() throws Exception {
+        Transport transport = mock(Transport.class);
+        when(transport.transceive(COMMAND_1)).thenReturn(RESPONSE_OK);
+
+        RecordingCallback callback = new RecordingCallback();
+        TransceiveTask task = scheduler.submit(transport, COMMAND_1, callback, null);
+        callback.await();
+
+        assertFalse(task.cancel());
+    }
+
+    static class RecordingCallback implements TransceiveCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ResponseApdu response;
+        IOException exception;
+
+        @Override
+        public void onTransceiveResult(ResponseApdu responseApdu) {
+            response = responseApdu;
+            latch.countDown();
+        }
+
+        @Override
+        public void onTransceiveError(IOException exception) {
+            this.exception = exception;
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -64,9 +64,11 @@ dependencyResolutionManagement {
 rootProject.name = "hwsec"
 include(
   ":hwsecurity:core",
+  ":hwsecurity:transport",
   ":hwsecurity:intent-usb",
   ":hwsecurity:intent-nfc",
   ":hwsecurity:provider",
+  ":hwsecurity:pcsc",
   ":hwsecurity:fido",
   ":hwsecurity:fido2",
   ":hwsecurity:openpgp",